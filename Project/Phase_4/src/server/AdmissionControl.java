@@ -0,0 +1,193 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a server takes on more work, so the sessions it already has keep their latency when it is
+ * overloaded. A new connection is admitted if fewer than the maximum handshakes are under way, and a transfer
+ * if fewer than the maximum transfers are, and neither while less than the minimum share of the heap is free.
+ *
+ * Whatever is refused is answered BUSY with the milliseconds to wait before trying again, spread around
+ * the configured time so the clients turned away together do not all come back together.
+ */
+public class AdmissionControl
+{
+    private final String        name;                                    // Name of the server, for toString()
+    private final int           maxHandshakes;                           // Most handshakes under way at once, 0 for no limit
+    private final int           maxTransfers;                            // Most transfers under way at once, 0 for no limit
+    private final int           minFreeHeap;                             // Least percent of the heap that must be free
+    private final int           retryAfter;                              // Milliseconds a refused client is asked to wait
+    private final AtomicInteger handshakes        = new AtomicInteger(); // Handshakes under way
+    private final AtomicInteger transfers         = new AtomicInteger(); // Transfers under way
+    private final AtomicLong    refusedHandshakes = new AtomicLong();    // Connections refused for too many handshakes
+    private final AtomicLong    refusedTransfers  = new AtomicLong();    // Transfers refused for too many transfers
+    private final AtomicLong    refusedHeap       = new AtomicLong();    // Connections and transfers refused for the heap
+
+    /**
+     * Constructor which accepts the limits
+     *
+     * @param name The name of the server
+     * @param maxHandshakes The most handshakes under way at once, 0 for no limit
+     * @param maxTransfers The most transfers under way at once, 0 for no limit
+     * @param minFreeHeap The least percent of the heap that must be free, 0 for no limit
+     * @param retryAfter The milliseconds a refused client is asked to wait
+     */
+    public AdmissionControl(String name, int maxHandshakes, int maxTransfers, int minFreeHeap, int retryAfter)
+    {
+        this.name          = name;
+        this.maxHandshakes = maxHandshakes;
+        this.maxTransfers  = maxTransfers;
+        this.minFreeHeap   = minFreeHeap;
+        this.retryAfter    = retryAfter;
+    }
+
+    /**
+     * Admits a new connection's handshake, unless too many are under way or the heap is too full.
+     * An admitted handshake must be ended with endHandshake()
+     *
+     * @return true if it is admitted, false if the client must be told to retry
+     */
+    public boolean startHandshake()
+    {
+        if (isHeapLow())
+        {
+            refusedHeap.incrementAndGet();
+            return false;
+        }
+        if (!acquire(handshakes, maxHandshakes))
+        {
+            refusedHandshakes.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ends a handshake admitted by startHandshake(), whether it finished or not
+     */
+    public void endHandshake()
+    {
+        handshakes.decrementAndGet();
+    }
+
+    /**
+     * Admits a transfer, unless too many are under way or the heap is too full.
+     * An admitted transfer must be ended with endTransfer()
+     *
+     * @return true if it is admitted, false if the client must be told to retry
+     */
+    public boolean startTransfer()
+    {
+        if (isHeapLow())
+        {
+            refusedHeap.incrementAndGet();
+            return false;
+        }
+        if (!acquire(transfers, maxTransfers))
+        {
+            refusedTransfers.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ends a transfer admitted by startTransfer(), whether it finished or not
+     */
+    public void endTransfer()
+    {
+        transfers.decrementAndGet();
+    }
+
+    /**
+     * Returns how long a refused client should wait before trying again, between half and one and a half times
+     * the configured time
+     *
+     * @return The time in milliseconds
+     */
+    public int getRetryAfter()
+    {
+        return retryAfter / 2 + ThreadLocalRandom.current().nextInt(retryAfter + 1);
+    }
+
+    /**
+     * Returns whether less than the minimum share of the heap is free. What the heap held after its last collection
+     * is used where the JVM reports it, so garbage waiting to be collected does not count
+     *
+     * @return true if it is, false otherwise
+     */
+    public boolean isHeapLow()
+    {
+        if (minFreeHeap <= 0)
+            return false;
+
+        long max  = Runtime.getRuntime().maxMemory();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() != MemoryType.HEAP)
+                continue;
+            MemoryUsage usage = pool.getCollectionUsage();
+            used += (usage != null ? usage : pool.getUsage()).getUsed();
+        }
+        return (max - used) * 100 < max * minFreeHeap;
+    }
+
+    /**
+     * Returns the number of handshakes under way
+     *
+     * @return The number of handshakes
+     */
+    public int getHandshakes()
+    {
+        return handshakes.get();
+    }
+
+    /**
+     * Returns the number of transfers under way
+     *
+     * @return The number of transfers
+     */
+    public int getTransfers()
+    {
+        return transfers.get();
+    }
+
+    /**
+     * Summarizes what was admitted and refused in one line
+     *
+     * @return The summary
+     */
+    @Override public String toString()
+    {
+        return String.format("%s admission: %d handshakes, %d transfers under way, refused %d for handshakes, %d for transfers, %d for the heap",
+                             name, getHandshakes(), getTransfers(), refusedHandshakes.get(), refusedTransfers.get(),
+                             refusedHeap.get());
+    }
+
+    /**
+     * Takes one of a limited number of places
+     *
+     * @param count The places taken
+     * @param limit The number of places, 0 for no limit
+     *
+     * @return true if one was taken, false if all were
+     */
+    private static boolean acquire(AtomicInteger count, int limit)
+    {
+        while (true)
+        {
+            int taken = count.get();
+            if (limit > 0 && taken >= limit)
+                return false;
+            if (count.compareAndSet(taken, taken + 1))
+                return true;
+        }
+    }
+}
@@ -0,0 +1,1025 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Storage that keeps its entries in a B+tree in a file of fixed size pages, so a list can be far larger than
+ * the heap and is ready as soon as the file is opened.
+ *
+ * Entries are kept in leaves sorted by name, and the leaves are linked in order. Branches hold the names that
+ * separate their children. A node is split when it no longer fits in a page. Removing entries does not merge
+ * nodes, a leaf that empties is kept and reused by the names that fall in its range. An entry larger than
+ * MAX_INLINE bytes is kept in a chain of overflow pages, and pages that are no longer used go on a free list.
+ *
+ * Only the most recently used pages are cached. Changed pages are held in memory until flush(), so the file
+ * always holds the tree as of the last flush and the changes since are in the server's log. flush() first writes
+ * every changed page, with a checksum, to NAME.journal and forces it to disk, and only then writes the pages in
+ * place. A crash while writing in place is repaired when the file is next opened by writing the journal again,
+ * and a crash while writing the journal leaves the file as it was. Each page also has its own checksum.
+ *
+ * @param <V> The type of the entries
+ */
+public class BTreeStorage<V> implements Storage<V>
+{
+    public static final int   PAGE_SIZE  = 4096;           // Bytes per page
+    public static final int   MAX_KEY    = 512;            // Longest name, in UTF-8 bytes
+    public static final int   MAX_INLINE = 1024;           // Largest entry kept in its leaf, larger ones overflow
+    private static final int  MAGIC      = 0x42545245;     // "BTRE"
+    private static final int  VERSION    = 1;              // Layout of the pages
+    private static final int  PAYLOAD    = PAGE_SIZE - 8;  // Bytes of a page after its checksum and length
+    private static final byte LEAF       = 1;              // Page types
+    private static final byte BRANCH     = 2;
+    private static final byte OVERFLOW   = 3;
+    private static final byte FREE       = 4;
+
+    private final File                      file;                         // The tree
+    private final File                      journal;                      // Where flush() writes the changed pages first
+    private final FileChannel               channel;                      // Open on file
+    private final Codec<V>                  codec;                        // Writes entries to bytes and back
+    private final Object                    flushLock  = new Object();    // Held by flush(), so one runs at a time
+    private final LinkedHashMap<Long, Node> cache;                        // Unchanged nodes, least recently used first
+    private final HashMap<Long, Node>       dirtyNodes = new HashMap<>(); // Nodes changed since the last flush
+    private final HashMap<Long, byte[]>     dirtyPages = new HashMap<>(); // Other pages changed since then, by payload
+    private Map<Long, byte[]>               flushing;                     // Pages flush() is writing in place
+    private long                            root;                         // Page of the root node
+    private long                            pages;                        // Pages in the file, unflushed ones included
+    private long                            size;                         // Number of entries
+    private long                            freeHead   = -1;              // First page of the free list, -1 if empty
+    private IOException                     failure;                      // Why a flush failed, nothing is done after that
+
+    /**
+     * A leaf or branch, as held in memory
+     */
+    private static class Node
+    {
+        final boolean           leaf;                        // Whether this is a leaf
+        final ArrayList<String> keys     = new ArrayList<>(); // Leaf: the names, branch: the separators
+        final ArrayList<Object> values   = new ArrayList<>(); // Leaf: byte[] of the entry or Overflow
+        final ArrayList<Long>   children = new ArrayList<>(); // Branch: one more than keys
+        long                    next     = -1;               // Leaf: page of the next leaf, -1 if it is the last
+
+        Node(boolean leaf)
+        {
+            this.leaf = leaf;
+        }
+    }
+
+    /**
+     * Where an entry too large for its leaf is kept
+     */
+    private static class Overflow
+    {
+        final long page;   // First page of the chain
+        final int  length; // Bytes of the entry
+
+        Overflow(long page, int length)
+        {
+            this.page   = page;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Constructor which opens a tree, creating it if the file does not exist
+     *
+     * @param name The name of the file
+     * @param cachePages The most unchanged pages to keep in memory
+     * @param codec Writes entries to bytes and back
+     *
+     * @throws IOException If the file cannot be opened or is damaged
+     */
+    public BTreeStorage(String name, final int cachePages, Codec<V> codec) throws IOException
+    {
+        this.file    = new File(name);
+        this.journal = new File(name + ".journal");
+        this.codec   = codec;
+        this.cache   = new LinkedHashMap<Long, Node>(16, 0.75f, true)
+        {
+            @Override protected boolean removeEldestEntry(Map.Entry<Long, Node> eldest)
+            {
+                return size() > cachePages;
+            }
+        };
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+        recoverJournal();
+
+        if (channel.size() == 0)
+        {// New tree, nothing is written until the first flush
+            root  = 1;
+            pages = 2;
+            dirtyNodes.put(root, new Node(true));
+        }
+        else
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(readPayload(0)));
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a B-tree");
+            int version  = in.readInt();
+            int pageSize = in.readInt();
+            if (version != VERSION || pageSize != PAGE_SIZE)
+                throw new IOException(file + " has version " + version + " and page size " + pageSize
+                                      + ", expected " + VERSION + " and " + PAGE_SIZE);
+            root     = in.readLong();
+            pages    = in.readLong();
+            size     = in.readLong();
+            freeHead = in.readLong();
+        }
+    }
+
+    @Override public synchronized V get(String key)
+    {
+        checkFailure();
+        Node leaf = findLeaf(key, null);
+        int  pos  = Collections.binarySearch(leaf.keys, key);
+        return pos < 0 ? null : decode(leaf.values.get(pos));
+    }
+
+    @Override public synchronized void put(String key, V value)
+    {
+        checkFailure();
+        if (!fits(key))
+            throw new IllegalArgumentException("Name is longer than " + MAX_KEY + " bytes");
+
+        byte[] bytes  = encode(value);
+        Object stored = bytes.length > MAX_INLINE ? writeOverflow(bytes) : bytes;
+
+        ArrayList<Long> path = new ArrayList<>();
+        Node            leaf = findLeaf(key, path);
+        long            id   = path.get(path.size() - 1);
+        int             pos  = Collections.binarySearch(leaf.keys, key);
+        if (pos >= 0)
+        {
+            freeOverflow(leaf.values.get(pos));
+            leaf.values.set(pos, stored);
+        }
+        else
+        {
+            leaf.keys.add(-pos - 1, key);
+            leaf.values.add(-pos - 1, stored);
+            size++;
+        }
+        changed(id, leaf);
+        splitUp(path, leaf);
+    }
+
+    @Override public synchronized void remove(String key)
+    {
+        checkFailure();
+        ArrayList<Long> path = new ArrayList<>();
+        Node            leaf = findLeaf(key, path);
+        int             pos  = Collections.binarySearch(leaf.keys, key);
+        if (pos < 0)
+            return;
+
+        freeOverflow(leaf.values.remove(pos));
+        leaf.keys.remove(pos);
+        size--;
+        changed(path.get(path.size() - 1), leaf);
+    }
+
+    @Override public synchronized boolean containsKey(String key)
+    {
+        checkFailure();
+        return Collections.binarySearch(findLeaf(key, null).keys, key) >= 0;
+    }
+
+    @Override public synchronized long size()
+    {
+        return size;
+    }
+
+    @Override public synchronized Map<String, V> copy()
+    {
+        checkFailure();
+        Node node = load(root);
+        while (!node.leaf)
+            node = load(node.children.get(0));
+
+        Map<String, V> entries = new LinkedHashMap<>();
+        while (true)
+        {
+            for (int i = 0; i < node.keys.size(); i++)
+                entries.put(node.keys.get(i), decode(node.values.get(i)));
+            if (node.next < 0)
+                return entries;
+            node = load(node.next);
+        }
+    }
+
+    @Override public boolean isPersistent()
+    {
+        return true;
+    }
+
+    @Override public long flush() throws IOException
+    {
+        synchronized (flushLock)
+        {
+            TreeMap<Long, byte[]> images = new TreeMap<>();
+            synchronized (this)
+            {
+                checkFailure();
+                if (dirtyNodes.isEmpty() && dirtyPages.isEmpty())
+                    return 0;
+
+                // The changed nodes are clean from here on, and are read from flushing until they are in place
+                for (Map.Entry<Long, Node> entry : dirtyNodes.entrySet())
+                    images.put(entry.getKey(), image(serialize(entry.getValue())));
+                for (Map.Entry<Long, byte[]> entry : dirtyPages.entrySet())
+                    images.put(entry.getKey(), image(entry.getValue()));
+                images.put(0L, image(header()));
+                cache.putAll(dirtyNodes);
+                dirtyNodes.clear();
+                dirtyPages.clear();
+                flushing = images;
+            }
+
+            try
+            {
+                writeJournal(images);
+                writePages(images);
+                journal.delete();
+            }
+            catch (IOException e)
+            {// The changes are gone from memory and only partly in the file, the log still has them
+                synchronized (this)
+                {
+                    failure = e;
+                }
+                throw e;
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    flushing = null;
+                }
+            }
+            return (long)images.size() * PAGE_SIZE;
+        }
+    }
+
+    /**
+     * Writes any changes and closes the file
+     *
+     * @throws IOException If the changes cannot be written
+     */
+    @Override public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the name of the file
+     *
+     * @return The name
+     */
+    @Override public String toString()
+    {
+        return file.toString();
+    }
+
+    /**
+     * Finds the leaf that holds or would hold some name
+     *
+     * @param key The name
+     * @param path If not null, receives the pages from the root down to the leaf
+     *
+     * @return The leaf
+     */
+    private Node findLeaf(String key, List<Long> path)
+    {
+        long id   = root;
+        Node node = load(id);
+        if (path != null)
+            path.add(id);
+        while (!node.leaf)
+        {
+            int pos = Collections.binarySearch(node.keys, key);
+            id   = node.children.get(pos >= 0 ? pos + 1 : -pos - 1);
+            node = load(id);
+            if (path != null)
+                path.add(id);
+        }
+        return node;
+    }
+
+    /**
+     * Splits a node that no longer fits in a page, and its parents in turn while they no longer fit either
+     *
+     * @param path The pages from the root down to the node
+     * @param node The node
+     */
+    private void splitUp(List<Long> path, Node node)
+    {
+        for (int level = path.size() - 1; level >= 0 && size(node) > PAYLOAD; level--)
+        {
+            long id    = path.get(level);
+            Node right = new Node(node.leaf);
+            int  split = splitPoint(node);
+            String separator;
+            if (node.leaf)
+            {// The right leaf's first name separates them
+                move(node.keys, split, right.keys);
+                move(node.values, split, right.values);
+                separator  = right.keys.get(0);
+                right.next = node.next;
+            }
+            else
+            {// The separator at the split moves up
+                separator = node.keys.get(split);
+                move(node.keys, split + 1, right.keys);
+                move(node.children, split + 1, right.children);
+                node.keys.remove(split);
+            }
+
+            long rightId = allocate();
+            if (node.leaf)
+                node.next = rightId;
+            changed(id, node);
+            changed(rightId, right);
+
+            if (level == 0)
+            {// The root split, the tree grows a level
+                Node newRoot = new Node(false);
+                newRoot.keys.add(separator);
+                newRoot.children.add(id);
+                newRoot.children.add(rightId);
+                root = allocate();
+                changed(root, newRoot);
+                return;
+            }
+
+            Node parent = load(path.get(level - 1));
+            int  pos    = parent.children.indexOf(id);
+            parent.keys.add(pos, separator);
+            parent.children.add(pos + 1, rightId);
+            changed(path.get(level - 1), parent);
+            node = parent;
+        }
+    }
+
+    /**
+     * Picks where to split a node so the larger half is as small as it can be
+     *
+     * @param node The node
+     *
+     * @return The index the right half starts at, or of the separator that moves up for a branch
+     */
+    private int splitPoint(Node node)
+    {
+        int[] sizes = new int[node.keys.size()];
+        int   total = 0;
+        for (int i = 0; i < sizes.length; i++)
+        {
+            sizes[i] = entrySize(node, i);
+            total   += sizes[i];
+        }
+
+        // A branch keeps at least one separator on each side of the one that moves up
+        int best = 1, bestLarger = Integer.MAX_VALUE, left = 0;
+        int last = node.leaf ? sizes.length - 1 : sizes.length - 2;
+        for (int i = 1; i <= last; i++)
+        {
+            left += sizes[i - 1];
+            int larger = Math.max(left, total - left - (node.leaf ? 0 : sizes[i]));
+            if (larger < bestLarger)
+            {
+                best       = i;
+                bestLarger = larger;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the number of bytes serialize() writes for a node, without writing it
+     *
+     * @param node The node
+     *
+     * @return The number of bytes
+     */
+    private static int size(Node node)
+    {
+        int size = 13; // Type, count, and the next leaf or first child
+        for (int i = 0; i < node.keys.size(); i++)
+            size += entrySize(node, i);
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes serialize() writes for one name of a node and what follows it
+     *
+     * @param node The node
+     * @param i The index of the name
+     *
+     * @return The number of bytes
+     */
+    private static int entrySize(Node node, int i)
+    {
+        int key = utf8Length(node.keys.get(i));
+        int size = countSize(key + 1) + key;
+        if (!node.leaf)
+            return size + 8;
+
+        Object value = node.values.get(i);
+        if (value instanceof Overflow)
+            return size + 13;
+        int length = ((byte[])value).length;
+        return size + 1 + countSize(length + 1) + length;
+    }
+
+    /**
+     * Returns the number of bytes SnapshotCodec.writeCount() writes for a value
+     *
+     * @param value The value
+     *
+     * @return The number of bytes
+     */
+    private static int countSize(int value)
+    {
+        int size = 1;
+        while (value > 0x7f)
+        {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Moves the end of a list onto another
+     *
+     * @param from The list
+     * @param start The first index to move
+     * @param to The list to move it to
+     */
+    private static <T> void move(ArrayList<T> from, int start, ArrayList<T> to)
+    {
+        List<T> tail = from.subList(start, from.size());
+        to.addAll(tail);
+        tail.clear();
+    }
+
+    /**
+     * Returns a node, reading it if it is not in memory
+     *
+     * @param id The page
+     *
+     * @return The node
+     */
+    private Node load(long id)
+    {
+        Node node = dirtyNodes.get(id);
+        if (node == null)
+            node = cache.get(id);
+        if (node == null)
+        {
+            try
+            {
+                node = parse(readPayload(id));
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            cache.put(id, node);
+        }
+        return node;
+    }
+
+    /**
+     * Marks a node as changed, so it stays in memory until the next flush
+     *
+     * @param id The page
+     * @param node The node
+     */
+    private void changed(long id, Node node)
+    {
+        cache.remove(id);
+        dirtyNodes.put(id, node);
+    }
+
+    /**
+     * Returns a page that is not in use, from the free list or past the end of the file
+     *
+     * @return The page
+     */
+    private long allocate()
+    {
+        if (freeHead < 0)
+            return pages++;
+
+        long id = freeHead;
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRaw(id)));
+            in.readByte();
+            freeHead = in.readLong();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        dirtyPages.remove(id);
+        return id;
+    }
+
+    /**
+     * Puts a page on the free list
+     *
+     * @param id The page
+     */
+    private void free(long id)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream      out   = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(FREE);
+            out.writeLong(freeHead);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        dirtyPages.put(id, bytes.toByteArray());
+        freeHead = id;
+    }
+
+    /**
+     * Writes an entry too large for a leaf to a chain of overflow pages
+     *
+     * @param bytes The entry
+     *
+     * @return Where it was written
+     */
+    private Overflow writeOverflow(byte[] bytes)
+    {
+        int    room  = PAYLOAD - 13;
+        int    count = (bytes.length + room - 1) / room;
+        long[] ids   = new long[count];
+        for (int i = 0; i < count; i++)
+            ids[i] = allocate();
+
+        for (int i = 0; i < count; i++)
+        {
+            int                   length = Math.min(room, bytes.length - i * room);
+            ByteArrayOutputStream page   = new ByteArrayOutputStream(PAYLOAD);
+            DataOutputStream      out    = new DataOutputStream(page);
+            try
+            {
+                out.writeByte(OVERFLOW);
+                out.writeLong(i + 1 < count ? ids[i + 1] : -1);
+                out.writeInt(length);
+                out.write(bytes, i * room, length);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            dirtyPages.put(ids[i], page.toByteArray());
+        }
+        return new Overflow(ids[0], bytes.length);
+    }
+
+    /**
+     * Reads an entry kept in a chain of overflow pages
+     *
+     * @param overflow Where it is kept
+     *
+     * @return The entry
+     */
+    private byte[] readOverflow(Overflow overflow)
+    {
+        byte[] bytes = new byte[overflow.length];
+        int    done  = 0;
+        long   id    = overflow.page;
+        try
+        {
+            while (done < bytes.length)
+            {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRaw(id)));
+                if (in.readByte() != OVERFLOW)
+                    throw new IOException("Page " + id + " of " + file + " is not an overflow page");
+                id = in.readLong();
+                int length = in.readInt();
+                in.readFully(bytes, done, length);
+                done += length;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return bytes;
+    }
+
+    /**
+     * Frees the overflow pages of an entry that was replaced or removed
+     *
+     * @param value The entry as kept in its leaf
+     */
+    private void freeOverflow(Object value)
+    {
+        if (!(value instanceof Overflow))
+            return;
+
+        long id = ((Overflow)value).page;
+        try
+        {
+            while (id >= 0)
+            {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRaw(id)));
+                in.readByte();
+                long next = in.readLong();
+                free(id);
+                id = next;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes an entry to bytes
+     *
+     * @param value The entry
+     *
+     * @return The bytes
+     */
+    private byte[] encode(V value)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            codec.write(out, value);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads an entry as kept in a leaf
+     *
+     * @param stored The byte[] of the entry or where it overflowed to
+     *
+     * @return The entry
+     */
+    private V decode(Object stored)
+    {
+        byte[] bytes = stored instanceof Overflow ? readOverflow((Overflow)stored) : (byte[])stored;
+        try
+        {
+            return codec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a node as the payload of its page
+     *
+     * @param node The node
+     *
+     * @return The payload
+     */
+    private static byte[] serialize(Node node)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(PAYLOAD);
+        DataOutputStream      out   = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(node.leaf ? LEAF : BRANCH);
+            out.writeInt(node.keys.size());
+            if (node.leaf)
+            {
+                out.writeLong(node.next);
+                for (int i = 0; i < node.keys.size(); i++)
+                {
+                    SnapshotCodec.writeString(out, node.keys.get(i));
+                    Object value = node.values.get(i);
+                    if (value instanceof Overflow)
+                    {
+                        out.writeBoolean(true);
+                        out.writeLong(((Overflow)value).page);
+                        out.writeInt(((Overflow)value).length);
+                    }
+                    else
+                    {
+                        out.writeBoolean(false);
+                        SnapshotCodec.writeBytes(out, (byte[])value);
+                    }
+                }
+            }
+            else
+            {
+                out.writeLong(node.children.get(0));
+                for (int i = 0; i < node.keys.size(); i++)
+                {
+                    SnapshotCodec.writeString(out, node.keys.get(i));
+                    out.writeLong(node.children.get(i + 1));
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a node written by serialize()
+     *
+     * @param payload The payload of its page
+     *
+     * @return The node
+     *
+     * @throws IOException If the page does not hold a node
+     */
+    private Node parse(byte[] payload) throws IOException
+    {
+        DataInputStream in   = new DataInputStream(new ByteArrayInputStream(payload));
+        byte            type = in.readByte();
+        if (type != LEAF && type != BRANCH)
+            throw new IOException("Expected a node in " + file + ", found page type " + type);
+
+        Node node  = new Node(type == LEAF);
+        int  count = in.readInt();
+        if (node.leaf)
+        {
+            node.next = in.readLong();
+            for (int i = 0; i < count; i++)
+            {
+                node.keys.add(SnapshotCodec.readString(in));
+                if (in.readBoolean())
+                    node.values.add(new Overflow(in.readLong(), in.readInt()));
+                else
+                    node.values.add(SnapshotCodec.readBytes(in));
+            }
+        }
+        else
+        {
+            node.children.add(in.readLong());
+            for (int i = 0; i < count; i++)
+            {
+                node.keys.add(SnapshotCodec.readString(in));
+                node.children.add(in.readLong());
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Writes the header kept in page 0
+     *
+     * @return The payload
+     */
+    private byte[] header()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream      out   = new DataOutputStream(bytes);
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(PAGE_SIZE);
+            out.writeLong(root);
+            out.writeLong(pages);
+            out.writeLong(size);
+            out.writeLong(freeHead);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the payload of a page that is not a node, changed or not
+     *
+     * @param id The page
+     *
+     * @return The payload
+     *
+     * @throws IOException If the page cannot be read or is damaged
+     */
+    private byte[] readRaw(long id) throws IOException
+    {
+        byte[] payload = dirtyPages.get(id);
+        return payload != null ? payload : readPayload(id);
+    }
+
+    /**
+     * Reads the payload of a page from the file, or from the flush writing it
+     *
+     * @param id The page
+     *
+     * @return The payload
+     *
+     * @throws IOException If the page cannot be read or is damaged
+     */
+    private byte[] readPayload(long id) throws IOException
+    {
+        byte[] image = flushing != null ? flushing.get(id) : null;
+        if (image == null)
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+            long       offset = id * PAGE_SIZE;
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, offset + buffer.position()) < 0)
+                    throw new IOException("Page " + id + " is past the end of " + file);
+            image = buffer.array();
+        }
+
+        DataInputStream in     = new DataInputStream(new ByteArrayInputStream(image));
+        long            crc    = in.readInt() & 0xffffffffL;
+        int             length = in.readInt();
+        if (length < 0 || length > PAYLOAD)
+            throw new IOException("Page " + id + " of " + file + " is damaged");
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32 check = new CRC32();
+        check.update(payload);
+        if (check.getValue() != crc)
+            throw new IOException("Page " + id + " of " + file + " fails its checksum");
+        return payload;
+    }
+
+    /**
+     * Builds the image of a page, its checksum and length followed by the payload
+     *
+     * @param payload The payload
+     *
+     * @return The image, PAGE_SIZE bytes
+     */
+    private static byte[] image(byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer image = ByteBuffer.allocate(PAGE_SIZE);
+        image.putInt((int)crc.getValue());
+        image.putInt(payload.length);
+        image.put(payload);
+        return image.array();
+    }
+
+    /**
+     * Writes page images to the journal, ending with a checksum of the whole journal, and forces it to disk
+     *
+     * @param images The images by page
+     *
+     * @throws IOException
+     */
+    private void writeJournal(Map<Long, byte[]> images) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(journal);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536)))
+        {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(MAGIC);
+            header.putInt(images.size());
+            out.write(header.array());
+            crc.update(header.array());
+            for (Map.Entry<Long, byte[]> entry : images.entrySet())
+            {
+                byte[] id = ByteBuffer.allocate(8).putLong(entry.getKey()).array();
+                out.write(id);
+                out.write(entry.getValue());
+                crc.update(id);
+                crc.update(entry.getValue());
+            }
+            out.writeLong(crc.getValue());
+            out.flush();
+            fos.getFD().sync();
+        }
+    }
+
+    /**
+     * Writes page images in place and forces them to disk
+     *
+     * @param images The images by page
+     *
+     * @throws IOException
+     */
+    private void writePages(Map<Long, byte[]> images) throws IOException
+    {
+        for (Map.Entry<Long, byte[]> entry : images.entrySet())
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(entry.getValue());
+            while (buffer.hasRemaining())
+                channel.write(buffer, entry.getKey() * PAGE_SIZE + buffer.position());
+        }
+        channel.force(true);
+    }
+
+    /**
+     * Finishes a flush a crash interrupted, if its journal was completely written, and deletes the journal
+     *
+     * @throws IOException If the pages cannot be written
+     */
+    private void recoverJournal() throws IOException
+    {
+        if (!journal.exists())
+            return;
+
+        TreeMap<Long, byte[]> images = new TreeMap<>();
+        byte[]                bytes  = java.nio.file.Files.readAllBytes(journal.toPath());
+        ByteBuffer            in     = ByteBuffer.wrap(bytes);
+        boolean               whole  = false;
+        if (bytes.length >= 16 && in.getInt() == MAGIC)
+        {
+            int count = in.getInt();
+            if (count >= 0 && bytes.length == 16 + (long)count * (8 + PAGE_SIZE))
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    long   id    = in.getLong();
+                    byte[] image = new byte[PAGE_SIZE];
+                    in.get(image);
+                    images.put(id, image);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, bytes.length - 8);
+                whole = in.getLong() == crc.getValue();
+            }
+        }
+
+        if (whole)
+        {
+            System.out.printf("Finishing the interrupted write of %d pages to %s\n", images.size(), file);
+            writePages(images);
+        }
+        else
+            System.out.printf("Discarding the incomplete journal of %s\n", file);
+        journal.delete();
+    }
+
+    /**
+     * Checks whether a name is short enough to be a key, so a caller can refuse it before put() throws
+     *
+     * @param key The name
+     *
+     * @return true if it is at most MAX_KEY bytes in UTF-8, false otherwise
+     */
+    public static boolean fits(String key)
+    {
+        return utf8Length(key) <= MAX_KEY;
+    }
+
+    /**
+     * Returns the length of a string in UTF-8
+     *
+     * @param string The string
+     *
+     * @return The number of bytes
+     */
+    private static int utf8Length(String string)
+    {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++)
+        {
+            char c = string.charAt(i);
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800 || Character.isSurrogate(c))
+                length += 2; // A surrogate pair is 4 bytes
+            else
+                length += 3;
+        }
+        return length;
+    }
+
+    /**
+     * Throws if a flush failed before
+     */
+    private void checkFailure()
+    {
+        if (failure != null)
+            throw new UncheckedIOException(new IOException("Writing " + file + " failed: " + failure.getMessage(), failure));
+    }
+}
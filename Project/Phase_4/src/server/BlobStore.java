@@ -0,0 +1,236 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores the contents of files once per group, however many paths they are uploaded to.
+ *
+ * Each distinct content is kept as a blob at shared_files/GROUP/.blobs/SHA256, named after the SHA-256 of its
+ * plain text, and counts the ShareFiles pointing at it. Uploading a file a group already has only adds a path
+ * and a reference, and deleting a path only removes the blob once nothing else points at it. A client that
+ * sends the hash first finishes such an upload without sending the data at all.
+ *
+ * Blobs are encrypted with the group key like any other stored file, so they cannot be shared between groups.
+ * That also means a hash only ever proves possession of a file to members of a group who could read it anyway.
+ *
+ * The reference counts are not saved; they are counted again from the FileList when the server starts.
+ * Files stored before this class, which are still at their own path, are located and deleted as before.
+ *
+ * writeLock is only held while the counts and the FileList are changed. The FileList record is appended with it
+ * held and waited for after it is released, so uploads and deletes share the log's writes, and locate() takes no
+ * lock at all. Data is only deleted once its removal is on disk. A blob whose count falls to zero stays in blobs
+ * until then and is taken back by an upload of the same contents meanwhile. A blob moved in before a crash kept
+ * its record from being written is not counted by anything and is deleted when the server starts.
+ */
+public class BlobStore
+{
+    private final FileList          fileList;                           // The files pointing at the blobs
+    private final Map<String, Blob> blobs     = new ConcurrentHashMap<>(); // GROUP/SHA256 -> blob
+    private final Object            writeLock = new Object();              // Held while changing counts and files
+
+    /**
+     * A stored content and the number of files pointing at it
+     */
+    private static class Blob
+    {
+        private final long size; // Plain text length
+        private       int  refs; // Files pointing at the blob, changed with writeLock held
+
+        Blob(long size)
+        {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Constructor which counts the references from the files already in a FileList and deletes the blobs nothing
+     * points at
+     *
+     * @param fileList The FileList
+     */
+    public BlobStore(FileList fileList)
+    {
+        this.fileList = fileList;
+
+        for (ShareFile file : fileList.getFiles())
+        {
+            FileMetadata metadata = file.getMetadata();
+            if (metadata == null || !getBlobFile(file.getGroup(), metadata.getSHA256()).isFile())
+                continue; // Stored at its own path
+
+            Blob blob = blobs.get(key(file.getGroup(), metadata.getSHA256()));
+            if (blob == null)
+            {
+                blob = new Blob(metadata.getSize());
+                blobs.put(key(file.getGroup(), metadata.getSHA256()), blob);
+            }
+            blob.refs++;
+        }
+
+        File[] groupDirs = new File("shared_files").listFiles();
+        for (File groupDir : groupDirs == null ? new File[0] : groupDirs)
+        {
+            File[] blobFiles = new File(groupDir, ".blobs").listFiles();
+            for (File blobFile : blobFiles == null ? new File[0] : blobFiles)
+                if (!blobs.containsKey(key(groupDir.getName(), blobFile.getName())) && blobFile.delete())
+                    System.out.printf("Deleted unreferenced blob %s/%s\n", groupDir.getName(), blobFile.getName());
+        }
+    }
+
+    /**
+     * Adds a finished upload to the FileList and keeps its contents, unless the group already has them
+     *
+     * @param owner The owner of the file
+     * @param group The group to which the file belongs
+     * @param path The path to the file
+     * @param metadata The file's metadata, holding the hash of its contents
+     * @param data The finished BlockFile, moved into the store or deleted
+     *
+     * @return true if the file was added, false if a file already exists at path and the upload was dropped
+     *
+     * @throws IOException If the data cannot be moved into the store
+     */
+    public boolean store(String owner, String group, String path, FileMetadata metadata, File data)
+            throws IOException
+    {
+        long lsn;
+        synchronized (writeLock)
+        {
+            if (fileList.checkFile(path) || new File(path).exists())
+            {// Someone else finished an upload to the same path first
+                data.delete();
+                return false;
+            }
+
+            Blob blob = blobs.get(key(group, metadata.getSHA256()));
+            if (blob == null)
+            {
+                File blobFile = getBlobFile(group, metadata.getSHA256());
+                blobFile.getParentFile().mkdirs();
+                Files.move(data.toPath(), blobFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                blob = new Blob(metadata.getSize());
+                blobs.put(key(group, metadata.getSHA256()), blob);
+            }
+            else
+            {// The group has these contents already
+                System.out.printf("Contents of %s already stored, keeping one copy\n", path);
+                data.delete();
+            }
+
+            blob.refs++;
+            lsn = fileList.appendFile(owner, group, path, metadata);
+        }
+        fileList.commit(lsn);
+        return true;
+    }
+
+    /**
+     * Adds a file to the FileList whose contents the group already has, without any data being sent
+     *
+     * @param owner The owner of the file
+     * @param group The group to which the file belongs
+     * @param path The path to the file
+     * @param sha256 The SHA-256 of the contents, in hex
+     * @param size The length of the contents
+     *
+     * @return true if the file was added, false if the group does not have the contents or path is taken
+     */
+    public boolean link(String owner, String group, String path, String sha256, long size)
+    {
+        long lsn;
+        synchronized (writeLock)
+        {
+            Blob blob = blobs.get(key(group, sha256));
+            if (blob == null || blob.size != size || fileList.checkFile(path) || new File(path).exists())
+                return false;
+
+            blob.refs++;
+            lsn = fileList.appendFile(owner, group, path, new FileMetadata(size, sha256));
+        }
+        fileList.commit(lsn);
+        return true;
+    }
+
+    /**
+     * Removes a file from the FileList, deleting its contents once no other file points at them.
+     * The removal is on disk before anything is deleted, so a crash in between leaves data nothing points at
+     * rather than a file without its data
+     *
+     * @param file The file
+     *
+     * @return true if the file was removed, false if it was removed but its contents could not be deleted
+     */
+    public boolean remove(ShareFile file)
+    {
+        String key = file.getMetadata() == null ? null : key(file.getGroup(), file.getMetadata().getSHA256());
+        Blob   blob;
+        long   lsn;
+        synchronized (writeLock)
+        {
+            if (fileList.getFile(file.getPath()) != file)
+                return true; // Someone else removed it first
+
+            blob = key == null ? null : blobs.get(key);
+            if (blob != null)
+                blob.refs--;
+            lsn = fileList.appendRemove(file.getPath());
+        }
+        fileList.commit(lsn);
+
+        if (blob == null) // Stored at its own path
+            return new File(file.getPath()).delete();
+
+        synchronized (writeLock)
+        {// Unless the same contents were uploaded again meanwhile
+            if (blob.refs == 0 && blobs.remove(key, blob))
+                getBlobFile(file.getGroup(), file.getMetadata().getSHA256()).delete();
+        }
+        return true;
+    }
+
+    /**
+     * Returns where the contents of a file are stored
+     *
+     * @param file The file
+     *
+     * @return The blob, or the file's own path if it was stored before blobs
+     */
+    public File locate(ShareFile file)
+    {
+        if (file.getMetadata() != null && blobs.containsKey(key(file.getGroup(), file.getMetadata().getSHA256())))
+            return getBlobFile(file.getGroup(), file.getMetadata().getSHA256());
+        return new File(file.getPath());
+    }
+
+    /**
+     * Returns the file a blob is kept in
+     *
+     * @param group The group
+     * @param sha256 The SHA-256 of the contents, in hex
+     *
+     * @return The file
+     */
+    private static File getBlobFile(String group, String sha256)
+    {
+        return new File("shared_files/" + group + "/.blobs/" + sha256);
+    }
+
+    /**
+     * Returns the key of a blob in blobs
+     *
+     * @param group The group
+     * @param sha256 The SHA-256 of the contents, in hex
+     *
+     * @return The key
+     */
+    private static String key(String group, String sha256)
+    {
+        return group + "/" + sha256;
+    }
+}
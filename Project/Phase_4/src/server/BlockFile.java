@@ -0,0 +1,664 @@
+package server;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * The format files are stored in on the file server.
+ *
+ * A file starts with a HEADER_SIZE byte header: the magic bytes "FSB2", the block size, the length of the plain
+ * text (-1 until the file is complete) and a random file ID. The plain text follows in blocks of blockSize bytes,
+ * each encrypted on its own with AES/GCM under the group key and a random nonce, and stored as nonce + cipher text
+ * + tag. Every block but the last takes up exactly stride() bytes, so the block holding any byte of the file is
+ * found without an index and a range can be read by decrypting only the blocks it covers.
+ *
+ * The file ID, the block number and whether it is the last block are authenticated with each block, so blocks
+ * cannot be swapped around, moved between files under the same group key, or the file cut short without the tag
+ * check failing.
+ *
+ * Files written before this format are plain AES/CBC under the group IV. isBlockFile() tells the two apart.
+ *
+ * Writer writes a file from start to end. A file whose length is known up front can instead be started with create()
+ * and have its blocks written in any order by several SegmentWriters, which is how multipart uploads are stored.
+ */
+public class BlockFile
+{
+    public  static final int DEFAULT_BLOCK_SIZE = 65536;      // Plain text bytes per block
+    public  static final int HEADER_SIZE        = 32;         // Magic, block size, length and file ID
+    private static final int ID_SIZE            = 16;         // File ID
+    private static final int NONCE_SIZE         = 12;         // GCM nonce
+    private static final int TAG_SIZE           = 16;         // GCM tag
+    private static final int MAGIC              = 0x46534232; // "FSB2"
+
+    /**
+     * Checks whether a file is in this format or is an older AES/CBC file
+     *
+     * @param file The file
+     *
+     * @return true if the file starts with the magic bytes, false otherwise
+     */
+    public static boolean isBlockFile(File file)
+    {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+        {
+            return in.readInt() == MAGIC;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the plain text length recorded in a file's header
+     *
+     * @param file The file
+     *
+     * @return The length, -1 if the file is incomplete
+     *
+     * @throws IOException
+     */
+    public static long length(File file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+        {
+            in.skipBytes(8); // Magic and block size
+            return in.readLong();
+        }
+    }
+
+    /**
+     * Opens part of a complete file for reading
+     *
+     * @param file The file
+     * @param groupKey The group key
+     * @param offset The first byte to read
+     * @param length The number of bytes to read, negative to read to the end of the file
+     *
+     * @return The stream of plain text
+     *
+     * @throws IOException If the file is incomplete or its length does not match its header
+     */
+    public static Reader open(File file, SecretKey groupKey, long offset, long length) throws IOException
+    {
+        return new Reader(file, groupKey, offset, length);
+    }
+
+    /**
+     * Starts a file whose blocks will be written by SegmentWriters
+     *
+     * @param file The file
+     * @param blockSize The block size
+     *
+     * @return The channel to give to the SegmentWriters
+     *
+     * @throws IOException
+     */
+    public static FileChannel create(File file, int blockSize) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.write(ByteBuffer.wrap(header(blockSize, -1, newFileId())), 0);
+        return channel;
+    }
+
+    /**
+     * Returns the file ID of a file started with create(), to give to its SegmentWriters
+     *
+     * @param channel The channel returned by create()
+     *
+     * @return The file ID
+     *
+     * @throws IOException
+     */
+    public static byte[] getFileId(FileChannel channel) throws IOException
+    {
+        ByteBuffer id = ByteBuffer.allocate(ID_SIZE);
+        while (id.hasRemaining())
+            if (channel.read(id, HEADER_SIZE - ID_SIZE + id.position()) < 0)
+                throw new EOFException("Block file header is cut short");
+        return id.array();
+    }
+
+    /**
+     * Records the length of a file started with create() once all of its blocks are written, and forces it to disk
+     *
+     * @param channel The channel returned by create()
+     * @param length The plain text length
+     *
+     * @throws IOException
+     */
+    public static void finish(FileChannel channel, long length) throws IOException
+    {
+        channel.write(ByteBuffer.wrap(ByteBuffer.allocate(8).putLong(length).array()), 8);
+        channel.force(true);
+    }
+
+    /**
+     * Returns the number of the last block of a file
+     *
+     * @param length The plain text length
+     * @param blockSize The block size
+     *
+     * @return The block number
+     */
+    public static long lastBlock(long length, int blockSize)
+    {
+        return length <= 0 ? 0 : (length - 1) / blockSize;
+    }
+
+    /**
+     * Builds the header
+     *
+     * @param blockSize The block size
+     * @param length The plain text length, -1 if not known yet
+     * @param fileId The file ID
+     *
+     * @return The header
+     */
+    private static byte[] header(int blockSize, long length, byte[] fileId)
+    {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(blockSize).putLong(length).put(fileId).array();
+    }
+
+    /**
+     * Draws a new file ID
+     *
+     * @return The file ID
+     */
+    private static byte[] newFileId()
+    {
+        byte[] id = new byte[ID_SIZE];
+        new SecureRandom().nextBytes(id);
+        return id;
+    }
+
+    /**
+     * Returns the position of a block in the file
+     *
+     * @param block The block number
+     * @param blockSize The block size
+     *
+     * @return The position
+     */
+    private static long position(long block, int blockSize)
+    {
+        return HEADER_SIZE + block * stride(blockSize);
+    }
+
+    /**
+     * Returns the number of bytes a block takes up on disk
+     *
+     * @param blockSize The block size
+     *
+     * @return The stride
+     */
+    private static long stride(int blockSize)
+    {
+        return NONCE_SIZE + blockSize + TAG_SIZE;
+    }
+
+    /**
+     * Creates the cipher for one block
+     *
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param groupKey The group key
+     * @param nonce The block's nonce
+     * @param fileId The file ID
+     * @param block The block number
+     * @param last Whether this is the last block of the file
+     *
+     * @return The cipher
+     *
+     * @throws GeneralSecurityException
+     */
+    private static Cipher getCipher(int mode, SecretKey groupKey, byte[] nonce, byte[] fileId, long block, boolean last)
+            throws GeneralSecurityException
+    {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
+        cipher.init(mode, groupKey, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        cipher.updateAAD(fileId);
+        cipher.updateAAD(ByteBuffer.allocate(9).putLong(block).put((byte)(last ? 1 : 0)).array());
+        return cipher;
+    }
+
+    /**
+     * Encrypts one block
+     *
+     * @param groupKey The group key
+     * @param random Source of the nonce
+     * @param fileId The file ID
+     * @param block The block number
+     * @param last Whether this is the last block of the file
+     * @param buf The plain text
+     * @param len The number of bytes of buf to encrypt
+     *
+     * @return The nonce followed by the cipher text and tag
+     *
+     * @throws IOException
+     */
+    private static byte[] seal(SecretKey groupKey, SecureRandom random, byte[] fileId, long block, boolean last,
+                               byte[] buf, int len) throws IOException
+    {
+        byte[] sealed = new byte[NONCE_SIZE + len + TAG_SIZE];
+        byte[] nonce  = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        System.arraycopy(nonce, 0, sealed, 0, NONCE_SIZE);
+
+        try
+        {
+            getCipher(Cipher.ENCRYPT_MODE, groupKey, nonce, fileId, block, last).doFinal(buf, 0, len, sealed, NONCE_SIZE);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException(e);
+        }
+
+        return sealed;
+    }
+
+    /**
+     * Writes a file in this format. Nothing is readable until close() writes the last block and the length
+     */
+    public static class Writer extends OutputStream
+    {
+        private final RandomAccessFile raf;      // The file
+        private final SecretKey        groupKey; // The group key
+        private final int              blockSize; // Plain text bytes per block
+        private final byte[]           buf;      // Plain text of the block being filled
+        private final SecureRandom     random = new SecureRandom(); // Source of nonces
+        private final byte[]           fileId;   // Authenticated with every block
+        private       int              buffered; // Bytes in buf
+        private       long             blocks;   // Blocks written to the file
+        private       boolean          closed;   // Whether close() or release() has been called
+
+        /**
+         * Opens a file for writing. With blocks = 0 the file is started over, otherwise it is cut back
+         * to that many blocks and writing continues after them
+         *
+         * @param file The file
+         * @param groupKey The group key
+         * @param blockSize The block size for a new file. A file being continued keeps its own
+         * @param blocks The number of complete blocks to keep
+         *
+         * @throws IOException
+         */
+        public Writer(File file, SecretKey groupKey, int blockSize, long blocks) throws IOException
+        {
+            this.raf      = new RandomAccessFile(file, "rw");
+            this.groupKey = groupKey;
+            this.blocks   = blocks;
+
+            if (blocks == 0)
+            {// New file
+                this.fileId = newFileId();
+                raf.setLength(0);
+                raf.write(header(blockSize, -1, fileId));
+            }
+            else
+            {// Drop anything after the last complete block
+                this.fileId = new byte[ID_SIZE];
+                raf.seek(4);
+                blockSize = raf.readInt();
+                raf.seek(HEADER_SIZE - ID_SIZE);
+                raf.readFully(fileId);
+                raf.setLength(position(blocks, blockSize));
+                raf.seek(raf.length());
+            }
+
+            this.blockSize = blockSize;
+            this.buf       = new byte[blockSize];
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            if (buffered == blockSize)
+                writeBlock(false);
+            buf[buffered++] = (byte)b;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {// A full block is only written once more data arrives, so the last block is always written by close()
+                if (buffered == blockSize)
+                    writeBlock(false);
+
+                int n = Math.min(len, blockSize - buffered);
+                System.arraycopy(b, off, buf, buffered, n);
+                buffered += n;
+                off      += n;
+                len      -= n;
+            }
+        }
+
+        /**
+         * Returns the number of plain text bytes in complete blocks on disk.
+         * Writing can later continue from here by passing getBlocks() to the constructor
+         *
+         * @return The number of bytes
+         */
+        public long getWritten()
+        {
+            return blocks * blockSize;
+        }
+
+        /**
+         * Returns the number of complete blocks written to the file
+         *
+         * @return The number of blocks
+         */
+        public long getBlocks()
+        {
+            return blocks;
+        }
+
+        /**
+         * Forces the blocks written so far to disk
+         *
+         * @throws IOException
+         */
+        public void sync() throws IOException
+        {
+            raf.getFD().sync();
+        }
+
+        /**
+         * Writes the last block and the length, then closes the file
+         *
+         * @throws IOException
+         */
+        @Override public void close() throws IOException
+        {
+            if (closed)
+                return;
+
+            long length = blocks * blockSize + buffered;
+            long full   = blocks;
+            try
+            {
+                writeBlock(true);
+                raf.seek(8);
+                raf.writeLong(length);
+                raf.getFD().sync();
+            }
+            catch (IOException e)
+            {// The last block does not count as complete, so a checkpoint after this keeps only the full ones
+                blocks = full;
+                throw e;
+            }
+            raf.close();
+            closed = true;
+        }
+
+        /**
+         * Closes the file without finishing it, keeping the complete blocks so writing can continue later
+         *
+         * @throws IOException
+         */
+        public void release() throws IOException
+        {
+            if (closed)
+                return;
+
+            raf.close();
+            closed = true;
+        }
+
+        /**
+         * Encrypts the buffered plain text and appends it as the next block
+         *
+         * @param last Whether this is the last block
+         *
+         * @throws IOException
+         */
+        private void writeBlock(boolean last) throws IOException
+        {
+            raf.write(seal(groupKey, random, fileId, blocks, last, buf, buffered));
+            blocks++;
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Writes a run of blocks of a file started with create(). Several SegmentWriters can write
+     * different parts of the same file at once since each block's position is fixed
+     */
+    public static class SegmentWriter extends OutputStream
+    {
+        private final FileChannel  channel;   // The file
+        private final SecretKey    groupKey;  // The group key
+        private final int          blockSize; // Plain text bytes per block
+        private final long         lastBlock; // Number of the last block of the whole file
+        private final long         limit;     // Bytes this segment may hold
+        private final byte[]       buf;       // Plain text of the block being filled
+        private final SecureRandom random = new SecureRandom(); // Source of nonces
+        private final byte[]       fileId;    // Authenticated with every block
+        private       long         block;     // Number of the block being filled
+        private       int          buffered;  // Bytes in buf
+        private       long         written;   // Bytes accepted so far
+
+        /**
+         * Constructor which accepts the file and where the segment starts
+         *
+         * @param channel The channel returned by create()
+         * @param fileId The file ID, from getFileId()
+         * @param groupKey The group key
+         * @param blockSize The block size the file was created with
+         * @param firstBlock The number of the segment's first block
+         * @param limit The number of bytes in the segment
+         * @param length The plain text length of the whole file
+         */
+        public SegmentWriter(FileChannel channel, byte[] fileId, SecretKey groupKey, int blockSize, long firstBlock,
+                             long limit, long length)
+        {
+            this.channel   = channel;
+            this.fileId    = fileId;
+            this.groupKey  = groupKey;
+            this.blockSize = blockSize;
+            this.block     = firstBlock;
+            this.limit     = limit;
+            this.lastBlock = lastBlock(length, blockSize);
+            this.buf       = new byte[blockSize];
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (written + len > limit)
+                throw new IOException("Segment is longer than " + limit + " bytes");
+            written += len;
+
+            while (len > 0)
+            {
+                int n = Math.min(len, blockSize - buffered);
+                System.arraycopy(b, off, buf, buffered, n);
+                buffered += n;
+                off      += n;
+                len      -= n;
+
+                if (buffered == blockSize)
+                    writeBlock();
+            }
+        }
+
+        /**
+         * Returns the number of bytes accepted so far
+         *
+         * @return The number of bytes
+         */
+        public long getWritten()
+        {
+            return written;
+        }
+
+        /**
+         * Writes the short block at the end of the segment, if there is one.
+         * The channel is left open for the other segments
+         *
+         * @throws IOException
+         */
+        @Override public void close() throws IOException
+        {
+            if (buffered > 0 || (written == 0 && block == lastBlock))
+                writeBlock(); // The last block of the file, which may be empty
+        }
+
+        /**
+         * Encrypts the buffered plain text and writes it at the current block's position
+         *
+         * @throws IOException
+         */
+        private void writeBlock() throws IOException
+        {
+            ByteBuffer sealed   = ByteBuffer.wrap(seal(groupKey, random, fileId, block, block == lastBlock, buf, buffered));
+            long       position = position(block, blockSize);
+
+            while (sealed.hasRemaining())
+                position += channel.write(sealed, position);
+
+            block++;
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Reads a range of a file, decrypting only the blocks the range covers
+     */
+    public static class Reader extends InputStream
+    {
+        private final RandomAccessFile raf;       // The file
+        private final SecretKey        groupKey;  // The group key
+        private final int              blockSize; // Plain text bytes per block
+        private final long             length;    // Plain text length of the whole file
+        private final long             lastBlock; // Number of the last block
+        private final byte[]           fileId;    // Authenticated with every block
+        private final long             end;       // One past the last byte to read
+        private       long             position;  // Next byte to read
+        private       long             loaded = -1; // Number of the block in plain
+        private       byte[]           plain;     // Plain text of the loaded block
+
+        /**
+         * Constructor which opens the file and checks its header against its size
+         *
+         * @param file The file
+         * @param groupKey The group key
+         * @param offset The first byte to read
+         * @param length The number of bytes to read, negative to read to the end
+         *
+         * @throws IOException
+         */
+        private Reader(File file, SecretKey groupKey, long offset, long length) throws IOException
+        {
+            this.raf      = new RandomAccessFile(file, "r");
+            this.groupKey = groupKey;
+
+            if (raf.readInt() != MAGIC)
+            {
+                raf.close();
+                throw new IOException("Not a block file");
+            }
+            this.blockSize = raf.readInt();
+            this.length    = raf.readLong();
+            this.lastBlock = lastBlock(this.length, blockSize);
+            this.fileId    = new byte[ID_SIZE];
+            raf.readFully(fileId);
+
+            long lastSize = this.length - lastBlock * blockSize;
+            if (this.length < 0 || raf.length() != position(lastBlock, blockSize) + NONCE_SIZE + lastSize + TAG_SIZE)
+            {
+                raf.close();
+                throw new IOException("Block file is incomplete or damaged");
+            }
+
+            this.position = Math.min(Math.max(0, offset), this.length);
+            this.end      = length < 0 || length > this.length - position ? this.length : position + length; // No overflow
+        }
+
+        /**
+         * Returns the plain text length of the whole file
+         *
+         * @return The length
+         */
+        public long getFileLength()
+        {
+            return length;
+        }
+
+        /**
+         * Returns the number of bytes left in the range
+         *
+         * @return The number of bytes
+         */
+        public long getRemaining()
+        {
+            return end - position;
+        }
+
+        @Override public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (position >= end)
+                return -1;
+
+            long block = position / blockSize;
+            if (block != loaded)
+                load(block);
+
+            int within = (int)(position - block * blockSize);
+            int n      = (int)Math.min(Math.min(len, plain.length - within), end - position);
+            System.arraycopy(plain, within, b, off, n);
+            position += n;
+
+            return n;
+        }
+
+        @Override public void close() throws IOException
+        {
+            raf.close();
+        }
+
+        /**
+         * Reads and decrypts one block
+         *
+         * @param block The block number
+         *
+         * @throws IOException If the block fails authentication
+         */
+        private void load(long block) throws IOException
+        {
+            byte[] nonce  = new byte[NONCE_SIZE];
+            byte[] cipher = new byte[(int)Math.min(blockSize, length - block * blockSize) + TAG_SIZE];
+
+            raf.seek(position(block, blockSize));
+            raf.readFully(nonce);
+            raf.readFully(cipher);
+
+            try
+            {
+                plain  = getCipher(Cipher.DECRYPT_MODE, groupKey, nonce, fileId, block, block == lastBlock).doFinal(cipher);
+                loaded = block;
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IOException("Block " + block + " failed authentication", e);
+            }
+        }
+    }
+}
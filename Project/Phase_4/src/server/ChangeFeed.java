@@ -0,0 +1,75 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the FileList changes a subscribed connection has not been sent yet.
+ *
+ * FileList hands every change to fileChanged() while it is locked, so changes are only queued there and the
+ * connection's FileThread sends them. A subscriber that falls further behind than the queue holds is not
+ * allowed to slow down uploads and deletes: the queue is emptied and the subscriber is told to list again.
+ */
+public class ChangeFeed implements FileList.ChangeListener
+{
+    private final Set<String>                groups;     // Groups the subscriber can see
+    private final BlockingQueue<FileChange>  queue;      // Changes waiting to be sent
+    private volatile boolean                 overflowed; // Whether changes were dropped since the last take()
+
+    /**
+     * Constructor which accepts the groups and how many changes may wait
+     *
+     * @param groups The groups the subscriber can see
+     * @param capacity The most changes to queue before giving up on the subscriber keeping up
+     */
+    public ChangeFeed(Collection<String> groups, int capacity)
+    {
+        this.groups = new HashSet<>(groups);
+        this.queue  = new LinkedBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /**
+     * Queues a change if it is for one of the subscriber's groups
+     *
+     * @param change The change
+     */
+    @Override public void fileChanged(FileChange change)
+    {
+        if (groups.contains(change.getGroup()) && !queue.offer(change))
+            overflowed = true;
+    }
+
+    /**
+     * Waits for changes and returns all that have been queued
+     *
+     * @param timeout The most milliseconds to wait
+     *
+     * @return The changes in order, empty if none arrived in time, null if some were dropped
+     *
+     * @throws InterruptedException
+     */
+    public List<FileChange> take(long timeout) throws InterruptedException
+    {
+        List<FileChange> changes = new ArrayList<>();
+        FileChange       first   = queue.poll(timeout, TimeUnit.MILLISECONDS);
+        if (first != null)
+        {
+            changes.add(first);
+            queue.drainTo(changes);
+        }
+
+        if (overflowed)
+        {
+            overflowed = false;
+            queue.clear();
+            return null;
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,573 @@
+package server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Moves the contents of a file between FileClient and FileThread as a series of CHUNK envelopes.
+ *
+ * The sender keeps up to window chunks in flight instead of waiting for a reply to every chunk.
+ * The receiver acknowledges them cumulatively with ACK envelopes carrying the last N it verified,
+ * which the sender checks with CryptoTools.verifyWindow(). The transfer ends with an EOF envelope
+ * and a single reply from the receiver, both of which use the usual N + 1 check.
+ *
+ * The chunk size is agreed on during the handshake. In adaptive mode the sender treats it as an upper
+ * bound and moves between MIN_CHUNK_SIZE and that bound based on the throughput and round trip times
+ * it measures from the ACKs.
+ *
+ * Chunks can also be compressed before they are encrypted, using the Compression agreed on during the handshake.
+ * A compressed CHUNK carries the ordinal of its Compression after the plain text length. Each chunk is compressed
+ * on its own, and one that would not get smaller is sent as it is, after which the sender tries fewer chunks until
+ * one compresses again, so incompressible files cost little CPU.
+ *
+ * The receiver trusts no length from the sender. A chunk that claims more than the agreed chunk size, less than
+ * nothing, or, when sent as it is, a length other than its own ends the transfer unsuccessfully.
+ */
+public class ChunkTransfer
+{
+    public static final int MIN_CHUNK_SIZE     = 4096;  // Smallest chunk either side will agree to
+    public static final int DEFAULT_CHUNK_SIZE = 65536; // Chunk size a client asks for unless told otherwise
+    public static final int DEFAULT_WINDOW     = 16;    // Chunks in flight when the client does not ask for a window
+
+    private final ObjectInputStream  input;     // The input stream of the connection
+    private final ObjectOutputStream output;    // The output stream of the connection
+    private final CryptoTools        ct;        // The session's CryptoTools
+    private final int                window;    // Maximum number of unacknowledged chunks
+    private final int                chunkSize; // Negotiated chunk size
+    private final boolean            adaptive;  // Whether the sender may change the chunk size as it goes
+    private final Compression        compression; // Compression the sender applies to chunks
+    private final TransferStats      stats = new TransferStats(); // Statistics for this transfer
+
+    /**
+     * Constructor which accepts the connection streams, the session's CryptoTools and the negotiated settings
+     *
+     * @param input The input stream
+     * @param output The output stream
+     * @param ct The CryptoTools
+     * @param window The number of chunks allowed in flight
+     * @param chunkSize The chunk size agreed on during the handshake
+     * @param adaptive true to let the sender adjust the chunk size, false to always use chunkSize
+     * @param compression The compression agreed on during the handshake
+     */
+    public ChunkTransfer(ObjectInputStream input, ObjectOutputStream output, CryptoTools ct,
+                         int window, int chunkSize, boolean adaptive, Compression compression)
+    {
+        this.input       = input;
+        this.output      = output;
+        this.ct          = ct;
+        this.window      = Math.max(1, window);
+        this.chunkSize   = Math.max(MIN_CHUNK_SIZE, chunkSize);
+        this.adaptive    = adaptive;
+        this.compression = compression;
+    }
+
+    /**
+     * Clamps the chunk size a client asked for during the handshake to what this side allows
+     *
+     * @param requested The requested chunk size
+     * @param max The largest chunk size allowed
+     *
+     * @return The chunk size to use
+     */
+    public static int negotiateChunkSize(int requested, int max)
+    {
+        return Math.max(MIN_CHUNK_SIZE, Math.min(requested, max));
+    }
+
+    /**
+     * Clamps the window a client asked for to what this side allows
+     *
+     * @param requested The requested window, null if the client did not ask for one
+     * @param max The largest window allowed
+     *
+     * @return The window to use
+     */
+    public static int negotiateWindow(Integer requested, int max)
+    {
+        if (requested == null)
+            return 1;
+        return Math.max(1, Math.min(requested, max));
+    }
+
+    /**
+     * Sends source in chunks followed by EOF
+     *
+     * @param source The stream to send
+     *
+     * @return The receiver's reply to EOF
+     *
+     * @throws Exception If the connection fails or a message fails verification
+     */
+    public Envelope send(InputStream source) throws Exception
+    {
+        ChunkCompressor codec = compression == Compression.NONE ? null : new ChunkCompressor(compression, stats);
+        try
+        {
+            return send(source, codec);
+        }
+        finally
+        {
+            if (codec != null)
+                codec.end();
+        }
+    }
+
+    /**
+     * Sends source in chunks followed by EOF, compressing the chunks with codec
+     *
+     * @param source The stream to send
+     * @param codec The compressor, null to send chunks as they are
+     *
+     * @return The receiver's reply to EOF
+     *
+     * @throws Exception If the connection fails or a message fails verification
+     */
+    private Envelope send(InputStream source, ChunkCompressor codec) throws Exception
+    {
+        byte[]     buf       = new byte[chunkSize];
+        int        size      = adaptive ? Math.max(MIN_CHUNK_SIZE, chunkSize / 4) : chunkSize;
+        ChunkSizer sizer     = adaptive ? new ChunkSizer(size, chunkSize) : null;
+        int        lastAcked = ct.getN();           // Everything up to here has been acknowledged
+        ArrayDeque<long[]> inFlight = new ArrayDeque<>(); // {N, time sent, bytes} of each unacknowledged chunk
+        int        n;
+
+        stats.start();
+        while ((n = read(source, buf, size)) > 0)
+        {// Send a chunk, then wait for an ACK only if the window is full
+            byte[] compressed = codec == null ? null : codec.compress(buf, n);
+
+            ct.incrementN();
+            Envelope chunk = new Envelope("CHUNK");
+            chunk.addObject(ct.getN());                                         // Add N
+            if (compressed == null)
+                chunk.addObject(n == buf.length ? buf : Arrays.copyOf(buf, n)); // Add the chunk
+            else
+                chunk.addObject(compressed);                                    // Add the compressed chunk
+            chunk.addObject(n);                                                 // Add chunk size
+            if (compressed != null)
+                chunk.addObject(compression.ordinal());                         // Add how it was compressed
+            write(chunk);
+            inFlight.add(new long[] { ct.getN(), System.nanoTime(), n });
+            stats.addChunk(n, compressed == null ? n : compressed.length);
+
+            while (ct.getN() - lastAcked >= window)
+            {
+                lastAcked = readAck(lastAcked);
+                long[] measured = acknowledge(inFlight, lastAcked);
+                if (sizer != null)
+                    size = sizer.update(measured[0], measured[1]);
+            }
+        }
+
+        // Tell the receiver it has reached the end of file
+        ct.incrementN();
+        Envelope eof = new Envelope("EOF");
+        eof.addObject(ct.getN());
+        write(eof);
+
+        // Skip the ACKs still on their way and return the final reply
+        while (true)
+        {
+            Envelope env    = (Envelope)ct.decrypt((byte[])input.readObject());
+            byte[]   digest = (byte[])input.readObject();
+
+            if (env.getMessage().equals("ACK"))
+            {
+                lastAcked = verifyAck(env, digest, lastAcked);
+                acknowledge(inFlight, lastAcked);
+            }
+            else if (ct.verifyMessage(env, digest))
+            {
+                ct.incrementN();
+                stats.stop();
+                return env;
+            }
+            else
+                throw new IOException("Message Verification Failed");
+        }
+    }
+
+    /**
+     * Receives chunks into sink until the sender sends something other than CHUNK
+     *
+     * @param sink The stream the file data is written to
+     *
+     * @return true if the transfer ended with EOF, false if it ended otherwise or a chunk's length was out of bounds
+     *
+     * @throws Exception If the connection fails or a message fails verification
+     */
+    public boolean receive(OutputStream sink) throws Exception
+    {
+        ChunkCompressor codec = new ChunkCompressor(compression, stats);
+        try
+        {
+            return receive(sink, codec);
+        }
+        finally
+        {
+            codec.end();
+        }
+    }
+
+    /**
+     * Receives chunks into sink until the sender sends something other than CHUNK
+     *
+     * @param sink The stream the file data is written to
+     * @param codec Decompresses the chunks that were compressed
+     *
+     * @return true if the transfer ended with EOF, false if it ended otherwise or a chunk's length was out of bounds
+     *
+     * @throws Exception If the connection fails or a message fails verification
+     */
+    private boolean receive(OutputStream sink, ChunkCompressor codec) throws Exception
+    {
+        int ackEvery = Math.max(1, window / 2); // Acknowledge twice per window so the sender never stalls
+        int unacked  = 0;
+
+        stats.start();
+        while (true)
+        {
+            Envelope env = (Envelope)ct.decrypt((byte[])input.readObject());
+
+            // Verify message integrity
+            if (ct.verifyMessage(env, (byte[])input.readObject()))
+                ct.incrementN();
+            else
+                throw new IOException("Message Verification Failed");
+
+            if (!env.getMessage().equals("CHUNK"))
+            {
+                stats.stop();
+                return env.getMessage().equals("EOF");
+            }
+
+            byte[]  data       = (byte[])env.getObjContents().get(1);
+            int     n          = (Integer)env.getObjContents().get(2);
+            boolean compressed = env.getObjContents().size() > 3; // The ordinal of the Compression follows the length
+            if (data == null || n < 0 || n > chunkSize || (!compressed && n != data.length))
+            {// Nothing larger than the agreed chunk size is allocated, the caller answers with an error
+                System.err.println("Error: Chunk length " + n + " is out of bounds for chunk size " + chunkSize);
+                stats.stop();
+                return false;
+            }
+
+            if (compressed)
+            {// Compressed
+                sink.write(codec.decompress(data, n), 0, n);
+                stats.addChunk(n, data.length);
+            }
+            else
+            {
+                sink.write(data, 0, n);
+                stats.addChunk(n, n);
+            }
+
+            if (++unacked >= ackEvery)
+            {// Cumulative acknowledgement. Does not use up an N
+                sink.flush(); // Lets a resumable upload checkpoint what it has received
+                Envelope ack = new Envelope("ACK");
+                ack.addObject(ct.getN());
+                write(ack);
+                unacked = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics for this transfer
+     *
+     * @return The statistics
+     */
+    public TransferStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * Removes the chunks covered by an ACK from the in-flight queue and records the round trip
+     *
+     * @param inFlight The unacknowledged chunks
+     * @param acked The acknowledged N
+     *
+     * @return {bytes acknowledged, round trip of the newest acknowledged chunk}
+     */
+    private long[] acknowledge(ArrayDeque<long[]> inFlight, int acked)
+    {
+        long bytes = 0;
+        long sent  = 0;
+
+        while (!inFlight.isEmpty() && acked - (int)inFlight.peek()[0] >= 0)
+        {
+            long[] chunk = inFlight.poll();
+            sent   = chunk[1];
+            bytes += chunk[2];
+        }
+
+        long rtt = System.nanoTime() - sent;
+        if (bytes > 0)
+            stats.addRTT(rtt);
+
+        return new long[] { bytes, rtt };
+    }
+
+    /**
+     * Reads an ACK from the receiver
+     *
+     * @param lastAcked The last acknowledged N
+     *
+     * @return The newly acknowledged N
+     *
+     * @throws Exception If the message is not a valid ACK
+     */
+    private int readAck(int lastAcked) throws Exception
+    {
+        Envelope env    = (Envelope)ct.decrypt((byte[])input.readObject());
+        byte[]   digest = (byte[])input.readObject();
+
+        if (!env.getMessage().equals("ACK"))
+            throw new IOException("Transfer aborted: " + env.getMessage());
+
+        return verifyAck(env, digest, lastAcked);
+    }
+
+    /**
+     * Verifies the digest and window of an ACK
+     *
+     * @param ack The ACK
+     * @param digest The digest sent with it
+     * @param lastAcked The last acknowledged N
+     *
+     * @return The newly acknowledged N
+     *
+     * @throws Exception If verification fails
+     */
+    private int verifyAck(Envelope ack, byte[] digest, int lastAcked) throws Exception
+    {
+        int value = (Integer)ack.getObjContents().get(0);
+
+        if (ct.verifyDigest(ct.getDigest(ack), digest) && ct.verifyWindow(value, lastAcked))
+            return value;
+        throw new IOException("Message Verification Failed");
+    }
+
+    /**
+     * Encrypts and sends an envelope with its digest
+     *
+     * @param env The envelope
+     *
+     * @throws Exception
+     */
+    private void write(Envelope env) throws Exception
+    {
+        output.writeObject(ct.encrypt(env));   // Send message
+        output.writeObject(ct.getDigest(env)); // Send digest
+        output.reset(); // Otherwise both object streams keep a reference to every chunk ever sent
+    }
+
+    /**
+     * Fills the first size bytes of buf as far as possible so that only the last chunk is short
+     *
+     * @param source The stream
+     * @param buf The buffer
+     * @param size The number of bytes wanted
+     *
+     * @return The number of bytes read, 0 at end of stream
+     *
+     * @throws IOException
+     */
+    private static int read(InputStream source, byte[] buf, int size) throws IOException
+    {
+        int total = 0;
+        int n;
+
+        while (total < size && (n = source.read(buf, total, size - total)) >= 0)
+            total += n;
+
+        return total;
+    }
+
+    /**
+     * Compresses and decompresses chunks, reusing one Deflater and Inflater for the whole transfer.
+     * After a chunk does not compress, the next skip chunks are sent without trying, and skip doubles each
+     * time up to MAX_SKIP, so a file that does not compress only has a few of its chunks tried
+     */
+    private static class ChunkCompressor
+    {
+        private static final int MAX_SKIP = 8; // Most chunks sent without trying after failed attempts
+
+        private final Compression   compression; // The compression to apply
+        private final TransferStats stats;       // Where CPU time is recorded
+        private final ThreadMXBean  threads = ManagementFactory.getThreadMXBean(); // Source of CPU time
+        private Deflater deflater;               // Created on first use
+        private Inflater inflater;               // Created on first use
+        private int      skip;                   // Chunks to send without trying after the last failed attempt
+        private int      skipped;                // Chunks sent without trying since then
+
+        /**
+         * Constructor which accepts the compression and where to record CPU time
+         *
+         * @param compression The compression
+         * @param stats The statistics
+         */
+        ChunkCompressor(Compression compression, TransferStats stats)
+        {
+            this.compression = compression;
+            this.stats       = stats;
+        }
+
+        /**
+         * Compresses the first n bytes of buf if that makes them at least 1/16 smaller
+         *
+         * @param buf The chunk
+         * @param n The length of the chunk
+         *
+         * @return The compressed chunk, null to send it as it is
+         */
+        byte[] compress(byte[] buf, int n)
+        {
+            if (skipped < skip)
+            {
+                skipped++;
+                return null;
+            }
+
+            long start = cpuTime();
+            if (deflater == null)
+                deflater = new Deflater(compression.getLevel(), true);
+            deflater.reset();
+            deflater.setInput(buf, 0, n);
+            deflater.finish();
+
+            // Stop as soon as the output stops being worth it
+            byte[] out   = new byte[n - n / 16];
+            int    total = 0;
+            while (!deflater.finished() && total < out.length)
+                total += deflater.deflate(out, total, out.length - total);
+            stats.addCodecTime(cpuTime() - start);
+
+            if (!deflater.finished())
+            {// Incompressible, try less often
+                skip    = Math.min(MAX_SKIP, Math.max(1, skip * 2));
+                skipped = 0;
+                return null;
+            }
+
+            skip = 0;
+            return Arrays.copyOf(out, total);
+        }
+
+        /**
+         * Decompresses a chunk
+         *
+         * @param data The compressed chunk
+         * @param n The length of the chunk
+         *
+         * @return The chunk
+         *
+         * @throws IOException If the data does not decompress to n bytes
+         */
+        byte[] decompress(byte[] data, int n) throws IOException
+        {
+            long start = cpuTime();
+            if (inflater == null)
+                inflater = new Inflater(true);
+            inflater.reset();
+            inflater.setInput(data);
+
+            byte[] out   = new byte[n];
+            int    total = 0;
+            try
+            {
+                int read;
+                while (total < n && (read = inflater.inflate(out, total, n - total)) > 0)
+                    total += read;
+            }
+            catch (DataFormatException e)
+            {
+                throw new IOException("Bad compressed chunk: " + e.getMessage());
+            }
+            stats.addCodecTime(cpuTime() - start);
+
+            if (total != n)
+                throw new IOException("Bad compressed chunk: " + total + " of " + n + " bytes");
+            return out;
+        }
+
+        /**
+         * Frees the Deflater and Inflater
+         */
+        void end()
+        {
+            if (deflater != null)
+                deflater.end();
+            if (inflater != null)
+                inflater.end();
+        }
+
+        /**
+         * Returns the CPU time of this thread, or the wall clock where the JVM cannot measure it
+         *
+         * @return The time in nanoseconds
+         */
+        private long cpuTime()
+        {
+            return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+        }
+    }
+
+    /**
+     * Picks the chunk size in adaptive mode.
+     * The size doubles while throughput keeps improving and halves when throughput drops
+     * or round trips grow well past the best one seen, which means chunks are queuing up
+     */
+    private static class ChunkSizer
+    {
+        private final int max;                     // Negotiated chunk size
+        private int    size;                       // Current chunk size
+        private double throughput;                 // Bytes per nanosecond at the previous ACK
+        private long   lastAck = System.nanoTime(); // Time of the previous ACK
+        private long   minRTT  = Long.MAX_VALUE;   // Best round trip seen so far
+
+        /**
+         * Constructor which accepts the starting and largest sizes
+         *
+         * @param size The starting chunk size
+         * @param max The largest chunk size
+         */
+        ChunkSizer(int size, int max)
+        {
+            this.size = size;
+            this.max  = max;
+        }
+
+        /**
+         * Takes the measurements from an ACK and returns the size to use for the next chunk
+         *
+         * @param bytes Bytes acknowledged since the previous ACK
+         * @param rtt Round trip of the newest acknowledged chunk
+         *
+         * @return The chunk size
+         */
+        int update(long bytes, long rtt)
+        {
+            long   now     = System.nanoTime();
+            double current = bytes / (double)Math.max(1, now - lastAck);
+            lastAck = now;
+            minRTT  = Math.min(minRTT, rtt);
+
+            if (rtt > 2 * minRTT || current < throughput * 0.8)
+                size = Math.max(MIN_CHUNK_SIZE, size / 2);
+            else if (current >= throughput * 0.95)
+                size = Math.min(max, size * 2);
+            throughput = current;
+
+            return size;
+        }
+    }
+}
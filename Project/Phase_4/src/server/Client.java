@@ -9,9 +9,10 @@ import java.io.ObjectOutputStream;
  */
 public abstract class Client
 {
-	protected Socket sock;                  // Used as endpoint for connection between two machines
-	protected ObjectOutputStream output;    // The output stream for envelopes
-	protected ObjectInputStream  input;     // The input stream for envelopes
+	protected Socket sock;                   // Used as endpoint for connection between two machines
+	protected ObjectOutputStream output;     // The output stream for envelopes
+	protected ObjectInputStream  input;      // The input stream for envelopes
+	protected int                retryAfter; // Milliseconds the server last asked to wait before retrying, 0 if it never did
 
     /**
      * This method connects to the specified server
@@ -25,9 +26,18 @@ public abstract class Client
     {
         try
         {
-            sock   = new Socket(server, port);
-            output = new ObjectOutputStream(sock.getOutputStream());
-            input  = new ObjectInputStream(sock.getInputStream());
+            sock = new Socket(server, port);
+            sock.setTcpNoDelay(true);
+            if (isFramed())
+            {// Each object in a frame of its own, which the NIO engine can read
+                output = new FrameOutputStream(sock.getOutputStream());
+                input  = new FrameInputStream(sock.getInputStream());
+            }
+            else
+            {
+                output = new ObjectOutputStream(sock.getOutputStream());
+                input  = new ObjectInputStream(sock.getInputStream());
+            }
         }
         catch (Exception e)
         {
@@ -38,6 +48,42 @@ public abstract class Client
         return isConnected();
 	}
 
+    /**
+     * Returns whether connect() opens framed streams, which the server must understand, instead of object streams
+     *
+     * @return true if it does, false otherwise
+     */
+    protected boolean isFramed()
+    {
+        return false;
+    }
+
+    /**
+     * Returns how long the server asked to wait before retrying, the last time it was too busy to answer
+     *
+     * @return The time in milliseconds, 0 if the server was never busy
+     */
+    public int getRetryAfter()
+    {
+        return retryAfter;
+    }
+
+    /**
+     * Checks whether a reply is BUSY, and notes how long the server asked to wait if it is
+     *
+     * @param reply The reply
+     * @param index Where the reply holds the time in milliseconds
+     *
+     * @return true if the server was busy, false otherwise
+     */
+    protected boolean isBusy(Envelope reply, int index)
+    {
+        if (!reply.getMessage().equals("BUSY"))
+            return false;
+        retryAfter = (Integer)reply.getObjContents().get(index);
+        return true;
+    }
+
     /**
      * This method checks if there is a connection to a server
      *
@@ -0,0 +1,64 @@
+package server;
+
+import java.util.zip.Deflater;
+
+/**
+ * How chunks are compressed before they are encrypted and sent.
+ *
+ * The client asks for one during the handshake and the server agrees to it or to a weaker one.
+ * Both are Deflate, FAST at the level that costs the least CPU and DEFLATE at the default level,
+ * which is slower but does better on text. Chunks that do not get smaller are sent as they are.
+ */
+public enum Compression
+{
+    NONE(Deflater.NO_COMPRESSION),         // Chunks are sent as they are
+    FAST(Deflater.BEST_SPEED),             // Deflate level 1
+    DEFLATE(Deflater.DEFAULT_COMPRESSION); // Deflate level 6
+
+    private final int level; // Deflater level
+
+    /**
+     * Constructor which accepts the Deflater level
+     *
+     * @param level The level
+     */
+    Compression(int level)
+    {
+        this.level = level;
+    }
+
+    /**
+     * Returns the Deflater level
+     *
+     * @return The level
+     */
+    public int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Picks the compression to use from what the client asked for and the strongest this side allows
+     *
+     * @param requested The ordinal the client asked for
+     * @param max The ordinal of the strongest compression allowed
+     *
+     * @return The compression to use
+     */
+    public static Compression negotiate(int requested, int max)
+    {
+        return fromOrdinal(Math.min(requested, max));
+    }
+
+    /**
+     * Returns the compression with some ordinal, as configured or sent by a client
+     *
+     * @param ordinal The ordinal
+     *
+     * @return The compression, the nearest one if ordinal is out of range
+     */
+    public static Compression fromOrdinal(int ordinal)
+    {
+        return values()[Math.max(0, Math.min(ordinal, values().length - 1))];
+    }
+}
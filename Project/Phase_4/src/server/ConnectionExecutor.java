@@ -0,0 +1,296 @@
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the handlers for the connections a server accepts, at most a fixed number at once.
+ *
+ * A connection accepted while every worker is busy waits in a queue for one to finish. If the queue is full,
+ * or the connection waits longer than the queue timeout, its socket is closed without being handled, so a storm
+ * of connections costs sockets but never more threads than the maximum.
+ *
+ * The workers are platform threads, or virtual threads if the server asks for them and the JVM has them
+ * (Java 21 on). They are found by reflection so the servers still build and run on Java 8.
+ */
+public class ConnectionExecutor
+{
+    private final String                      name;                           // Name of the server, for thread names
+    private final ThreadPoolExecutor          pool;                           // The workers and the connections waiting
+    private final ScheduledThreadPoolExecutor timer;                          // Closes connections that waited too long
+    private final long                        queueTimeout;                   // Longest a connection waits, in ms, 0 for no limit
+    private final boolean                     virtual;                        // Whether the workers are virtual threads
+    private final AtomicInteger               active   = new AtomicInteger(); // Connections being handled
+    private final AtomicLong                  accepted = new AtomicLong();    // Connections handed to execute()
+    private final AtomicLong                  rejected = new AtomicLong();    // Connections closed because the queue was full
+    private final AtomicLong                  timedOut = new AtomicLong();    // Connections closed because they waited too long
+    private final AtomicLong                  reaped   = new AtomicLong();    // Connections closed because the client went quiet
+
+    /**
+     * Constructor which accepts the kind of workers and the limits
+     *
+     * @param name The name of the server
+     * @param mode "virtual" for virtual threads if the JVM has them, anything else for platform threads
+     * @param maxConcurrency The most connections handled at once
+     * @param maxQueued The most connections waiting for a worker, 0 to close them instead of queueing
+     * @param queueTimeout The longest a connection waits for a worker in milliseconds, 0 for no limit
+     */
+    public ConnectionExecutor(String name, String mode, int maxConcurrency, int maxQueued, long queueTimeout)
+    {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("Maximum concurrency " + maxConcurrency + " is less than 1");
+
+        ThreadFactory factory = "virtual".equalsIgnoreCase(mode) ? virtualThreadFactory() : null;
+        if (factory == null && "virtual".equalsIgnoreCase(mode))
+            System.err.println("Error: virtual threads need Java 21, using platform threads");
+        this.virtual = factory != null;
+        if (factory == null)
+            factory = platformThreadFactory(name);
+
+        BlockingQueue<Runnable> queue = maxQueued > 0 ? new LinkedBlockingQueue<Runnable>(maxQueued)
+                                                      : new SynchronousQueue<Runnable>();
+        this.name         = name;
+        this.queueTimeout = queueTimeout;
+        this.pool         = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS, queue, factory);
+        this.pool.allowCoreThreadTimeOut(true); // Idle workers exit, so a quiet server keeps no threads
+        this.timer        = new ScheduledThreadPoolExecutor(1, runnable ->
+        {
+            Thread thread = new Thread(runnable, name + "-queue-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Handles a connection on a worker when one is free. The socket is closed instead if it cannot be queued
+     *
+     * @param socket The connection's socket
+     * @param handler What handles the connection, closing the socket when it is done
+     *
+     * @return true if the connection was handled or queued, false if its socket was closed
+     */
+    public boolean execute(Socket socket, Runnable handler)
+    {
+        accepted.incrementAndGet();
+        Connection connection = new Connection(socket, handler);
+        try
+        {
+            pool.execute(connection);
+        }
+        catch (RejectedExecutionException e)
+        {// Every worker is busy and the queue is full
+            rejected.incrementAndGet();
+            close(socket);
+            return false;
+        }
+
+        if (queueTimeout > 0 && !connection.started)
+            connection.timeout = timer.schedule(() ->
+            {
+                if (pool.remove(connection))
+                {// Still waiting, so no worker will ever run it
+                    timedOut.incrementAndGet();
+                    close(socket);
+                }
+            }, queueTimeout, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Returns the number of connections being handled
+     *
+     * @return The number of connections
+     */
+    public int getActive()
+    {
+        return active.get();
+    }
+
+    /**
+     * Returns the number of connections waiting for a worker
+     *
+     * @return The number of connections
+     */
+    public int getQueued()
+    {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Returns the number of connections handed to execute() since startup
+     *
+     * @return The number of connections
+     */
+    public long getAccepted()
+    {
+        return accepted.get();
+    }
+
+    /**
+     * Returns the number of connections closed since startup because the queue was full
+     *
+     * @return The number of connections
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of connections closed since startup because they waited longer than the queue timeout
+     *
+     * @return The number of connections
+     */
+    public long getTimedOut()
+    {
+        return timedOut.get();
+    }
+
+    /**
+     * Counts a connection its handler closed because the client sent nothing for longer than the server allows
+     */
+    public void reaped()
+    {
+        reaped.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of connections closed since startup because the client went quiet
+     *
+     * @return The number of connections
+     */
+    public long getReaped()
+    {
+        return reaped.get();
+    }
+
+    /**
+     * Returns the most connections handled at once
+     *
+     * @return The number of connections
+     */
+    public int getMaxConcurrency()
+    {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * Returns whether the workers are virtual threads
+     *
+     * @return true if they are, false if they are platform threads
+     */
+    public boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    /**
+     * Summarizes the connections in one line
+     *
+     * @return The summary
+     */
+    @Override public String toString()
+    {
+        return String.format("%s connections: %d active, %d queued, %d accepted, %d rejected, %d timed out, %d reaped (%d %s workers)",
+                             name, getActive(), getQueued(), getAccepted(), getRejected(), getTimedOut(), getReaped(),
+                             getMaxConcurrency(), virtual ? "virtual" : "platform");
+    }
+
+    /**
+     * Closes a socket that will not be handled
+     *
+     * @param socket The socket
+     */
+    private static void close(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {// Nothing more to do with it
+        }
+    }
+
+    /**
+     * Returns a factory for platform worker threads named after the server
+     *
+     * @param name The name of the server
+     *
+     * @return The factory
+     */
+    private static ThreadFactory platformThreadFactory(String name)
+    {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-worker-" + count.incrementAndGet());
+    }
+
+    /**
+     * Returns Thread.ofVirtual().factory(), looked up by reflection so this builds on Java 8
+     *
+     * @return The factory, null if the JVM has no virtual threads
+     */
+    private static ThreadFactory virtualThreadFactory()
+    {
+        try
+        {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * A connection waiting for, or being handled by, a worker
+     */
+    private class Connection implements Runnable
+    {
+        private final    Socket             socket;  // The connection's socket
+        private final    Runnable           handler; // What handles it
+        private volatile boolean            started; // Whether a worker has taken it
+        private volatile ScheduledFuture<?> timeout; // Closes it if it waits too long, null if there is no limit
+
+        /**
+         * Constructor which accepts the socket and its handler
+         *
+         * @param socket The socket
+         * @param handler The handler
+         */
+        Connection(Socket socket, Runnable handler)
+        {
+            this.socket  = socket;
+            this.handler = handler;
+        }
+
+        public void run()
+        {
+            started = true;
+            ScheduledFuture<?> timeout = this.timeout;
+            if (timeout != null)
+                timeout.cancel(false);
+
+            active.incrementAndGet();
+            try
+            {
+                handler.run();
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Error: " + e.getMessage());
+                e.printStackTrace(System.err);
+                close(socket);
+            }
+            finally
+            {
+                active.decrementAndGet();
+            }
+        }
+    }
+}
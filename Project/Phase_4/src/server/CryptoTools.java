@@ -189,6 +189,21 @@ public class CryptoTools
         return value == (N + 1);
     }
 
+    /**
+     * Verifies an acknowledged N received during a windowed transfer.
+     * Instead of being exactly N + 1, the value must acknowledge something past the last acknowledgement
+     * without running ahead of the last N that was actually sent
+     *
+     * @param value N to be verified
+     * @param lastAcked The last N that was acknowledged
+     *
+     * @return true if N falls within the window, false otherwise
+     */
+    public boolean verifyWindow(int value, int lastAcked)
+    {// Subtraction keeps the comparison correct when N wraps around
+        return value - lastAcked > 0 && N - value >= 0;
+    }
+
     /**
      * Increments N
      */
@@ -0,0 +1,80 @@
+package server;
+
+/**
+ * A file being added to or removed from the FileList, as returned by LCHANGES
+ */
+public class FileChange implements java.io.Serializable
+{
+    private static final long serialVersionUID = 3312864418853541078L;
+
+    /**
+     * What happened to the file
+     */
+    public enum Type { ADDED, REMOVED }
+
+    private final long   version; // FileList version this change produced
+    private final Type   type;    // Whether the file was added or removed
+    private final String group;   // Group to which the file belongs
+    private final String path;    // Path to the file on server
+
+    /**
+     * Constructor which accepts the version, type, group, and path
+     *
+     * @param version The version
+     * @param type The type
+     * @param group The group
+     * @param path The path
+     */
+    public FileChange(long version, Type type, String group, String path)
+    {
+        this.version = version;
+        this.type    = type;
+        this.group   = group;
+        this.path    = path;
+    }
+
+    /**
+     * Returns the FileList version this change produced
+     *
+     * @return The version
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Returns whether the file was added or removed
+     *
+     * @return The type
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * Returns the group to which the file belongs
+     *
+     * @return The group
+     */
+    public String getGroup()
+    {
+        return group;
+    }
+
+    /**
+     * Returns the path to the file
+     *
+     * @return The path
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    @Override public String toString()
+    {
+        return version + " " + type + " " + path;
+    }
+}
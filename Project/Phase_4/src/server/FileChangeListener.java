@@ -0,0 +1,24 @@
+package server;
+
+import java.util.List;
+
+/**
+ * Receives the changes a file server pushes to a subscription started with FileClient.subscribe().
+ * Methods are called on the subscription's own thread
+ */
+public interface FileChangeListener
+{
+    /**
+     * Called when files in the user's groups were added or removed
+     *
+     * @param version The FileList version the changes bring the listing up to
+     * @param changes The changes in order, or null if changes were missed and the files have to be listed again
+     */
+    public void filesChanged(long version, List<FileChange> changes);
+
+
+    /**
+     * Called once the subscription has ended, because it was closed or the connection was lost
+     */
+    public void subscriptionClosed();
+}
@@ -9,7 +9,13 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.SignedObject;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * FileClient provides all the client functionality regarding the file server
@@ -18,6 +24,47 @@ public class FileClient extends Client implements FileClientInterface
 {
     private CryptoTools ct;
     private String fileServerID; // server name + port number
+    private int    windowSize = ChunkTransfer.DEFAULT_WINDOW; // Chunks to keep in flight during transfers
+    private int    chunkSize  = ChunkTransfer.DEFAULT_CHUNK_SIZE; // Requested, then negotiated, chunk size
+    private boolean adaptive  = false;                            // Whether chunk sizes adapt during transfers
+    private Compression compression = Compression.FAST;           // Requested, then negotiated, chunk compression
+    private TransferStats lastStats;                              // Statistics for the most recent transfer
+    private String uploadSession;                                 // Session ID of an upload that did not finish
+    private String server;                                        // Host this client connected to
+    private int    port;                                          // Port this client connected to
+    private PublicKey KGS;                                        // Group server key used in the handshake
+    private long   listVersion = -1;                              // FileList version of the last listing or changes
+    private boolean hashFirst  = true;                            // Whether uploads offer the hash before the data
+
+    /**
+     * Connects to the file server with Nagle's algorithm turned off,
+     * so small ACKs are not held back during windowed transfers
+     *
+     * @param server The server
+     * @param port The port
+     *
+     * @return true is successful, false otherwise
+     */
+    @Override public boolean connect(final String server, final int port)
+    {
+        if (!super.connect(server, port))
+            return false;
+
+        // Kept so a multipart upload can open more connections to the same server
+        this.server = server;
+        this.port   = port;
+
+        try
+        {
+            sock.setTcpNoDelay(true);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: " + e.getMessage());
+        }
+
+        return true;
+    }
 
     /**
      * Handles the handshake protocol between the FileClient and the FileThread
@@ -28,12 +75,20 @@ public class FileClient extends Client implements FileClientInterface
      */
     public boolean handshake(PublicKey KGS)
     {
+        this.KGS = KGS;
+
         try
         {// Set provider as BouncyCastle
             Security.addProvider(new BouncyCastleProvider());
 
-            // Receive PublicKey from file server
-            PublicKey publicKey = (PublicKey)input.readObject();
+            // Receive PublicKey from file server, or how long to wait if it is too busy
+            Object first = input.readObject();
+            if (first instanceof Envelope && isBusy((Envelope)first, 0))
+            {
+                System.out.printf("Server busy, retry after %d ms\n", retryAfter);
+                return false;
+            }
+            PublicKey publicKey = (PublicKey)first;
 
             // Receive fileServerID
             fileServerID = (String)input.readObject();
@@ -74,6 +129,9 @@ public class FileClient extends Client implements FileClientInterface
             output.writeObject(cipher.doFinal(ct.toByteArray(KH))); // KH
             output.writeObject(KGS);                                // KGS
             output.writeObject(cipher.doFinal(ct.toByteArray(RC))); // RC
+            output.writeObject(cipher.doFinal(ct.toByteArray(chunkSize))); // Requested chunk size
+            output.writeObject(cipher.doFinal(ct.toByteArray(adaptive)));  // Adaptive chunk sizes
+            output.writeObject(cipher.doFinal(ct.toByteArray(compression.ordinal()))); // Requested compression
 
             // Receive cipher text and HMAC from group server
             Envelope envelope = (Envelope)ct.decrypt((byte[])input.readObject());
@@ -89,6 +147,11 @@ public class FileClient extends Client implements FileClientInterface
                 System.exit(0);
             }
 
+            // Use the chunk size and compression the server agreed to
+            chunkSize   = (Integer)envelope.getObjContents().get(2);
+            adaptive    = (Boolean)envelope.getObjContents().get(3);
+            compression = Compression.values()[(Integer)envelope.getObjContents().get(4)];
+
             // Check challenge response
             BigInteger RCResponse = (BigInteger)envelope.getObjContents().get(1);
             return RCResponse.compareTo(new BigInteger(String.valueOf(RC.intValue() + 1))) == 0;
@@ -171,6 +234,24 @@ public class FileClient extends Client implements FileClientInterface
      * @return true on success, false on failure
      */
 	public boolean download(String sourceFile, String destFile, SecretKey groupKey, byte[] IV, SignedObject token)
+    {
+        return download(sourceFile, destFile, groupKey, IV, token, 0, -1);
+    }
+
+    /**
+     * Downloads part of a file from the server. The server only decrypts the blocks the range covers,
+     * except for files stored before the block format which are still decrypted from the start
+     *
+     * @param sourceFile The filename used on the server
+     * @param destFile   The filename to use locally
+     * @param token      The token of the user downloading the file
+     * @param offset     The first byte to download
+     * @param length     The number of bytes to download, negative to download to the end of the file
+     *
+     * @return true on success, false on failure
+     */
+    public boolean download(String sourceFile, String destFile, SecretKey groupKey, byte[] IV, SignedObject token,
+                            long offset, long length)
     {
         // Check for and remove leading '/'
 		if (sourceFile.charAt(0) == '/')
@@ -193,6 +274,9 @@ public class FileClient extends Client implements FileClientInterface
                 env.addObject(groupKey);   // Add the group key
                 env.addObject(IV);         // Add the IV
                 env.addObject(token);      // Add the requester token
+                env.addObject(windowSize); // Add the requested window
+                env.addObject(offset);     // Add the first byte wanted
+                env.addObject(length);     // Add the number of bytes wanted
                 output.writeObject(ct.encrypt(env));   // Send message
                 output.writeObject(ct.getDigest(env)); // Send digest
 
@@ -209,37 +293,13 @@ public class FileClient extends Client implements FileClientInterface
                     System.exit(0);
                 }
 
-                while (env.getMessage().compareTo("CHUNK") == 0)
-                {// File is arriving in chunks
-                    fos.write((byte[])env.getObjContents().get(1), 0, (Integer)env.getObjContents().get(2));
-                    System.out.printf(".");
-
-                    // Tell the server to send next chunk
-                    ct.incrementN();
-                    env = new Envelope("DOWNLOADF");
-                    env.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(env));   // Send message
-                    output.writeObject(ct.getDigest(env)); // Send digest
-
-                    // Receive response
-                    env = (Envelope)ct.decrypt((byte[])input.readObject());
-                    // Verify message
-                    if (ct.verifyMessage(env, (byte[])input.readObject()))
-                        ct.incrementN();
-                    else
-                    {// Verification failed
-                        System.out.println("Message Verification Failed");
-                        disconnect();
-                        System.exit(0);
-                    }
-                }
-
-                fos.close();
-
-                if (env.getMessage().compareTo("EOF") == 0)
+                // Server is ready to send the file
+                lastStats = null;
+                if (env.getMessage().compareTo("READY") == 0 && receive(fos, (Integer)env.getObjContents().get(1)))
                 {// Reached the end of file
                     fos.close();
                     System.out.printf("\nTransfer successful file %s\n", sourceFile);
+                    System.out.println(lastStats);
 
                     // Tell the server it was a success
                     ct.incrementN();
@@ -250,6 +310,8 @@ public class FileClient extends Client implements FileClientInterface
                 }
                 else
                 {// Something went wrong with transfer
+                    isBusy(env, 1);
+                    fos.close();
                     System.out.printf("Error reading file %s (%s)\n", sourceFile, env.getMessage());
                     file.delete();
                     return false;
@@ -308,7 +370,11 @@ public class FileClient extends Client implements FileClientInterface
 
 			 // If server indicates success, return the member list
 			 if (e.getMessage().equals("OK"))
-				return (List<String>)e.getObjContents().get(1); // This cast creates compiler warnings
+			 {
+				 if (e.getObjContents().size() > 2)
+					 listVersion = (Long)e.getObjContents().get(2);
+				 return (List<String>)e.getObjContents().get(1); // This cast creates compiler warnings
+			 }
 
 			 return null;
 		 }
@@ -320,6 +386,274 @@ public class FileClient extends Client implements FileClientInterface
          }
 	}
 
+    /**
+     * Retrieves the files the user can see along with their size, upload time and hash
+     *
+     * @param token The token of the user listing files
+     *
+     * @return The files in path order mapped to their metadata, which is null for files uploaded
+     *         before metadata was recorded. null on failure
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, FileMetadata> listFileMetadata(SignedObject token)
+    {
+        try
+        {
+            ct.incrementN();
+            Envelope message = new Envelope("LFILES");
+            message.addObject(ct.getN()); // Add N
+            message.addObject(token);     // Add requester token
+            message.addObject(true);      // Ask for the metadata too
+            Envelope e = request(message);
+
+            if (e.getMessage().equals("OK"))
+            {
+                listVersion = (Long)e.getObjContents().get(2);
+                return (Map<String, FileMetadata>)e.getObjContents().get(3);
+            }
+
+            return null;
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the size, upload time and hash of a file without downloading it
+     *
+     * @param filename The filename used on the server
+     * @param token The token of the user
+     *
+     * @return The metadata, null if the file cannot be found, the user cannot see it,
+     *         or it was uploaded before metadata was recorded
+     */
+    public FileMetadata stat(String filename, SignedObject token)
+    {
+        // Check for and remove leading '/'
+        if (filename.charAt(0) == '/')
+            filename = filename.substring(1);
+
+        try
+        {
+            ct.incrementN();
+            Envelope message = new Envelope("STAT");
+            message.addObject(ct.getN()); // Add N
+            message.addObject(filename);  // Add the file path
+            message.addObject(token);     // Add requester token
+            Envelope e = request(message);
+
+            if (e.getMessage().equals("OK"))
+                return (FileMetadata)e.getObjContents().get(1);
+
+            System.out.printf("Stat of %s failed: %s\n", filename, e.getMessage());
+            return null;
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves one page of the files the user can see. Unlike listFiles(token) the whole
+     * list never has to be held at once on either side
+     *
+     * @param token    The token of the user listing files
+     * @param prefix   Only paths starting with this are listed, null or "" for every path
+     * @param pageSize The most paths to return, the server may return fewer
+     * @param cursor   The cursor of the previous page, null for the first page
+     *
+     * @return The page, null on failure
+     */
+    @SuppressWarnings("unchecked")
+    public FilePage listFiles(SignedObject token, String prefix, int pageSize, String cursor)
+    {
+        try
+        {
+            ct.incrementN();
+            Envelope message = new Envelope("LFILESP");
+            message.addObject(ct.getN()); // Add N
+            message.addObject(token);     // Add requester token
+            message.addObject(prefix);    // Add prefix
+            message.addObject(pageSize);  // Add page size
+            message.addObject(cursor);    // Add cursor
+            Envelope e = request(message);
+
+            if (e.getMessage().equals("OK"))
+            {
+                listVersion = (Long)e.getObjContents().get(3);
+                return new FilePage((List<String>)e.getObjContents().get(1), (String)e.getObjContents().get(2), listVersion);
+            }
+
+            return null;
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the files added and removed since a version of the listing, so a copy of the
+     * listing can be kept up to date without listing everything again. getListVersion() returns
+     * the version the changes bring the copy up to
+     *
+     * @param token The token of the user listing files
+     * @param since The version of the copy, from getListVersion() or FilePage.getVersion()
+     *
+     * @return The changes in order, empty if nothing changed, null if the copy is too old and
+     *         has to be listed again, or on failure
+     */
+    @SuppressWarnings("unchecked")
+    public List<FileChange> listChanges(SignedObject token, long since)
+    {
+        try
+        {
+            ct.incrementN();
+            Envelope message = new Envelope("LCHANGES");
+            message.addObject(ct.getN()); // Add N
+            message.addObject(token);     // Add requester token
+            message.addObject(since);     // Add the version the client has
+            Envelope e = request(message);
+
+            if (e.getObjContents().size() > 1 && e.getObjContents().get(1) instanceof Long)
+                listVersion = (Long)e.getObjContents().get(1);
+
+            switch (e.getMessage())
+            {
+                case "OK":
+                    return (List<FileChange>)e.getObjContents().get(2);
+                case "NOTMODIFIED":
+                    return new ArrayList<>();
+                default: // RESET or failure
+                    return null;
+            }
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Opens another connection to the server on which changes to the files of the user's groups are pushed
+     * as they happen, so the listing can be kept up to date without polling. The listener is called on a
+     * thread of its own until close() is called on the returned client or the connection is lost
+     *
+     * @param token The token of the user listing files
+     * @param since The version of the listing the caller has, changes after it are sent first.
+     *              Negative if the caller lists its files after subscribing
+     * @param listener Receives the changes
+     *
+     * @return The connection carrying the subscription, null on failure
+     */
+    public FileClient subscribe(SignedObject token, long since, final FileChangeListener listener)
+    {
+        final FileClient sibling = new FileClient();
+        if (!sibling.connect(server, port) || !sibling.handshake(KGS))
+            return null;
+
+        try
+        {
+            sibling.ct.incrementN();
+            Envelope message = new Envelope("SUBSCRIBE");
+            message.addObject(sibling.ct.getN()); // Add N
+            message.addObject(token);             // Add requester token
+            message.addObject(since);             // Add the version the client has
+            Envelope e = sibling.request(message);
+
+            if (!e.getMessage().equals("OK"))
+            {
+                System.out.printf("Subscribe failed: %s\n", e.getMessage());
+                sibling.close();
+                return null;
+            }
+            sibling.listVersion = (Long)e.getObjContents().get(1);
+
+            Thread thread = new Thread(() -> sibling.receiveChanges(listener), "FileClient subscription");
+            thread.setDaemon(true);
+            thread.start();
+            return sibling;
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            sibling.close();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the messages pushed to a subscription and hands the changes to the listener
+     *
+     * @param listener The listener
+     */
+    @SuppressWarnings("unchecked")
+    private void receiveChanges(FileChangeListener listener)
+    {
+        try
+        {
+            while (true)
+            {
+                Envelope e = (Envelope)ct.decrypt((byte[])input.readObject());
+                if (!ct.verifyMessage(e, (byte[])input.readObject()))
+                    throw new IOException("Message Verification Failed");
+                ct.incrementN();
+
+                listVersion = (Long)e.getObjContents().get(1);
+                if (e.getMessage().equals("RESET"))
+                    listener.filesChanged(listVersion, null);
+                else if (!((List<FileChange>)e.getObjContents().get(2)).isEmpty()) // Empty ones only keep the connection alive
+                    listener.filesChanged(listVersion, (List<FileChange>)e.getObjContents().get(2));
+            }
+        }
+        catch (Exception e)
+        {
+            if (!sock.isClosed())
+                System.err.println("Error: " + e.getMessage());
+        }
+        finally
+        {
+            close();
+            listener.subscriptionClosed();
+        }
+    }
+
+    /**
+     * Closes the connection without telling the server, which is how a subscription is ended
+     */
+    public void close()
+    {
+        try
+        {
+            sock.close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the FileList version of the last listing or changes received
+     *
+     * @return The version, -1 if nothing has been listed
+     */
+    public long getListVersion()
+    {
+        return listVersion;
+    }
+
     /**
      * Uploads a file to the server to be shared with members of the
      * specified group.  This method should only succeed if the
@@ -339,9 +673,20 @@ public class FileClient extends Client implements FileClientInterface
 		if (destFile.charAt(0) != '/')
 			 destFile = "/" + destFile;
 
+        // The server starts waiting for data as soon as it answers, so fail before asking
+        if (!new File(sourceFile).isFile())
+        {
+            System.out.printf("Upload failed: %s does not exist\n", sourceFile);
+            return false;
+        }
+
 		try
 		{
-			Envelope message, env;
+			Envelope message;
+
+            // Nothing to send if the group already has these contents
+            if (uploadHash(new File(sourceFile), destFile, group, token))
+                return true;
 
             // Tell the server to return the member list
             ct.incrementN();
@@ -352,120 +697,426 @@ public class FileClient extends Client implements FileClientInterface
             message.addObject(groupKey);  // Add group key
             message.addObject(IV);        // Add IV
             message.addObject(token);     // Add requester token
+            message.addObject(windowSize);// Add the requested window
             output.writeObject(ct.encrypt(message));   // Send message
             output.writeObject(ct.getDigest(message)); // Send digest
 
-            // Stream to local file
-            FileInputStream fis = new FileInputStream(sourceFile);
+            return sendFile(sourceFile);
+		}
+        catch (Exception e1)
+		{
+				System.err.println("Error: " + e1.getMessage());
+				e1.printStackTrace(System.err);
+				return false;
+		}
+	}
 
-            // Receive server response
-            env = (Envelope)ct.decrypt((byte[])input.readObject());
+    /**
+     * Uploads a file in segments sent at the same time over several connections, so the encryption
+     * and digests on both ends are spread over several cores. The server puts the segments together and
+     * adds the file once all of them have arrived. Unlike upload() an interrupted upload cannot be resumed
+     *
+     * @param sourceFile  Path to the local file to upload
+     * @param destFile    The filename to use on the server
+     * @param group       The group to share this file with
+     * @param groupKey    The group key
+     * @param token       The token of the user uploading the file
+     * @param connections The number of connections to use, the server may use fewer segments
+     *
+     * @return true on success, false on failure
+     */
+    public boolean uploadMultipart(String sourceFile, String destFile, String group, SecretKey groupKey, SignedObject token,
+                                   int connections)
+    {
+        // Check for and append a leading '/'
+        if (destFile.charAt(0) != '/')
+            destFile = "/" + destFile;
 
-            // Verify message
-            if (ct.verifyMessage(env, (byte[])input.readObject()))
-                ct.incrementN();
-            else
-            {// Verification failed
-                System.out.println("Message Verification Failed");
-                disconnect();
-                System.exit(0);
-            }
+        final File source = new File(sourceFile);
+        if (!source.isFile())
+        {
+            System.out.printf("Upload failed: %s does not exist\n", sourceFile);
+            return false;
+        }
 
-            // Server is ready for upload
-            if (env.getMessage().equals("READY"))
-                System.out.printf("Meta data upload successful\n");
-            else
+        try
+        {
+            // Nothing to send if the group already has these contents
+            if (uploadHash(source, destFile, group, token))
+                return true;
+
+            // Tell the server the file is coming in segments
+            ct.incrementN();
+            Envelope message = new Envelope("MPINIT");
+            message.addObject(ct.getN());       // Add N
+            message.addObject(destFile);        // Add filename on server
+            message.addObject(group);           // Add group name
+            message.addObject(groupKey);        // Add group key
+            message.addObject(token);           // Add requester token
+            message.addObject(source.length()); // Add file length
+            message.addObject(connections);     // Add number of segments wanted
+            Envelope env = request(message);
+
+            if (!env.getMessage().equals("OK"))
             {
                 System.out.printf("Upload failed: %s\n", env.getMessage());
                 return false;
             }
 
-            do
-            {// Send the file to server in chunks
-                byte[] buf = new byte[4096];
+            final String        id          = (String)env.getObjContents().get(1);
+            final long          segmentSize = (Long)env.getObjContents().get(2);
+            final int           segments    = (Integer)env.getObjContents().get(3);
+            final AtomicInteger next        = new AtomicInteger(); // Next segment nobody has taken yet
+            int                 threads     = Math.max(1, Math.min(connections, segments));
+            long                start       = System.nanoTime();
 
-                if (env.getMessage().compareTo("READY") != 0)
-                {// If the server isn't ready
-                    System.out.printf("Server error: %s\n", env.getMessage());
-                    return false;
-                }
-                // Tell the server there is a chunk coming
-                message = new Envelope("CHUNK");
-                int n = fis.read(buf); // Can throw an IOException
-                if (n > 0)
-                    System.out.printf(".");
-                else if (n < 0)
-                {// Couldn't read the chunk from local file
-                    System.out.println("Read error");
-                    return false;
-                }
-                ct.incrementN();
-                message.addObject(ct.getN());      // Add N
-                message.addObject(buf);            // Add the chunk
-                message.addObject(new Integer(n)); // Add chunk size
-                output.writeObject(ct.encrypt(message));   // Send message
-                output.writeObject(ct.getDigest(message)); // Send digest
+            // Each thread opens its own connection and sends segments until there are none left
+            ExecutorService       pool    = Executors.newFixedThreadPool(threads);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+                results.add(pool.submit(() -> sendSegments(id, source, segmentSize, segments, next, token)));
 
-                // Receive response
-                env = (Envelope)ct.decrypt((byte[])input.readObject());
+            boolean sent = true;
+            for (Future<Boolean> result : results)
+                sent &= result.get();
+            pool.shutdown();
 
-                // Verify message
-                if (ct.verifyMessage(env, (byte[])input.readObject()))
-                    ct.incrementN();
-                else
-                {// Verification failed
-                    System.out.println("Message Verification Failed");
-                    disconnect();
-                    System.exit(0);
-                }
-            } while (fis.available() > 0);
+            // Put the file together, or throw away what was sent
+            ct.incrementN();
+            message = new Envelope(sent ? "MPCOMPLETE" : "MPABORT");
+            message.addObject(ct.getN()); // Add N
+            message.addObject(id);        // Add upload ID
+            message.addObject(token);     // Add requester token
+            env = request(message);
 
-            // If server indicates success, return the member list
-            if (env.getMessage().compareTo("READY") == 0)
+            if (sent && env.getMessage().equals("OK"))
             {
-                // Tell server it has reached end of file
-                ct.incrementN();
-                message = new Envelope("EOF");
-                message.addObject(ct.getN());
-                output.writeObject(ct.encrypt(message));   // Send message
-                output.writeObject(ct.getDigest(message)); // Send digest
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("\nFile data upload successful\n");
+                System.out.printf("%d bytes in %d segments over %d connections, %.3f s, %.2f MB/s\n", source.length(),
+                                  segments, threads, seconds, source.length() / seconds / (1 << 20));
+                return true;
+            }
 
-                // Receive response
-                env = (Envelope)ct.decrypt((byte[])input.readObject());
+            System.out.printf("Upload failed: %s\n", sent ? env.getMessage() : "a segment was not sent");
+            return false;
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return false;
+        }
+    }
 
-                // Verify message
-                if (ct.verifyMessage(env, (byte[])input.readObject()))
-                    ct.incrementN();
-                else
-                {// Verification failed
-                    System.out.println("Message Verification Failed");
-                    disconnect();
-                    System.exit(0);
-                }
+    /**
+     * Offers the server the hash of a file before uploading it. If the group already has a file with
+     * the same contents the server adds the new path without the data being sent
+     *
+     * @param source The local file
+     * @param destFile The filename to use on the server, with a leading '/'
+     * @param group The group to share this file with
+     * @param token The token of the user uploading the file
+     *
+     * @return true if the file was added, false if the data has to be uploaded
+     *
+     * @throws Exception
+     */
+    private boolean uploadHash(File source, String destFile, String group, SignedObject token) throws Exception
+    {
+        if (!hashFirst)
+            return false;
 
-                if (env.getMessage().compareTo("OK") == 0)
-                    System.out.printf("\nFile data upload successful\n");
-                else
-                {
-                    System.out.printf("\nUpload failed: %s\n", env.getMessage());
-                    return false;
-                }
-            }
-            else
+        String sha256;
+        try (FileInputStream in = new FileInputStream(source))
+        {
+            sha256 = FileMetadata.sha256(in);
+        }
+
+        ct.incrementN();
+        Envelope message = new Envelope("UPLOADHASH");
+        message.addObject(ct.getN());       // Add N
+        message.addObject(destFile);        // Add filename on server
+        message.addObject(group);           // Add group name
+        message.addObject(token);           // Add requester token
+        message.addObject(sha256);          // Add hash of the contents
+        message.addObject(source.length()); // Add length of the contents
+        Envelope env = request(message);
+
+        if (env.getMessage().equals("OK"))
+        {
+            System.out.printf("\nThe group already has these contents, %d bytes not sent\n", source.length());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets whether uploads send the hash of the file first, so the data is not sent if the group already has it.
+     * Turn it off to save reading every file twice when duplicates are unlikely
+     *
+     * @param hashFirst true to send the hash first
+     */
+    public void setHashFirst(boolean hashFirst)
+    {
+        this.hashFirst = hashFirst;
+    }
+
+    /**
+     * Opens another connection to the server and sends segments of a multipart upload over it
+     *
+     * @param id The upload ID
+     * @param source The local file
+     * @param segmentSize The number of bytes in every segment but the last
+     * @param segments The number of segments
+     * @param next The next segment no connection has taken
+     * @param token The token of the user uploading the file
+     *
+     * @return true if every segment this connection took was stored, false otherwise
+     */
+    private boolean sendSegments(String id, File source, long segmentSize, int segments, AtomicInteger next,
+                                 SignedObject token)
+    {
+        FileClient sibling = new FileClient();
+        sibling.setWindowSize(windowSize);
+        sibling.setChunkSize(chunkSize, adaptive);
+        sibling.setCompression(compression);
+        if (!sibling.connect(server, port) || !sibling.handshake(KGS))
+            return false;
+
+        try
+        {
+            int segment;
+            while ((segment = next.getAndIncrement()) < segments)
             {
-                System.out.printf("Upload failed: %s\n", env.getMessage());
-                return false;
+                if (!sibling.sendSegment(id, segment, source, segment * segmentSize, token))
+                    return false;
             }
-		}
-        catch (Exception e1)
-		{
-				System.err.println("Error: " + e1.getMessage());
-				e1.printStackTrace(System.err);
-				return false;
-		}
+            return true;
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            return false;
+        }
+        finally
+        {
+            sibling.disconnect();
+        }
+    }
 
-		return true;
-	}
+    /**
+     * Sends one segment of a multipart upload
+     *
+     * @param id The upload ID
+     * @param segment The segment number
+     * @param source The local file
+     * @param offset Where the segment starts in the file
+     * @param token The token of the user uploading the file
+     *
+     * @return true if the server stored the segment, false otherwise
+     *
+     * @throws Exception
+     */
+    private boolean sendSegment(String id, int segment, File source, long offset, SignedObject token) throws Exception
+    {
+        ct.incrementN();
+        Envelope message = new Envelope("MPPART");
+        message.addObject(ct.getN());  // Add N
+        message.addObject(id);         // Add upload ID
+        message.addObject(segment);    // Add segment number
+        message.addObject(token);      // Add requester token
+        message.addObject(windowSize); // Add the requested window
+        Envelope env = request(message);
+
+        if (!env.getMessage().equals("READY"))
+        {
+            isBusy(env, 1);
+            System.out.printf("Segment %d failed: %s\n", segment, env.getMessage());
+            return false;
+        }
+
+        // Send exactly the bytes of this segment
+        try (FileInputStream fis = new FileInputStream(source))
+        {
+            fis.getChannel().position(offset);
+            ChunkTransfer transfer = new ChunkTransfer(input, output, ct, (Integer)env.getObjContents().get(1), chunkSize, adaptive, compression);
+            lastStats = transfer.getStats();
+            env = transfer.send(new LimitedInputStream(fis, (Long)env.getObjContents().get(2)));
+        }
+
+        if (!env.getMessage().equals("OK"))
+            System.out.printf("Segment %d failed: %s\n", segment, env.getMessage());
+        return env.getMessage().equals("OK");
+    }
+
+    /**
+     * Sends a request and returns the server's verified reply.
+     * Throws instead of exiting when verification fails, since multipart uploads call it from other threads
+     *
+     * @param message The request
+     *
+     * @return The reply
+     *
+     * @throws Exception If the connection fails or the reply fails verification
+     */
+    private Envelope request(Envelope message) throws Exception
+    {
+        output.writeObject(ct.encrypt(message));   // Send message
+        output.writeObject(ct.getDigest(message)); // Send digest
+
+        Envelope env = (Envelope)ct.decrypt((byte[])input.readObject());
+        if (!ct.verifyMessage(env, (byte[])input.readObject()))
+            throw new IOException("Message Verification Failed");
+
+        ct.incrementN();
+        return env;
+    }
+
+    /**
+     * Tells the server the session is still in use, so it is not closed as idle.
+     * A client that may go longer than the server's idle timeout between requests should call this in between
+     *
+     * @return true if the server answered, false otherwise
+     */
+    public boolean ping()
+    {
+        try
+        {
+            ct.incrementN();
+            Envelope message = new Envelope("PING");
+            message.addObject(ct.getN()); // Add N
+            return request(message).getMessage().equals("PONG");
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return false;
+        }
+    }
+
+    /**
+     * Continues an upload that was interrupted. The server keeps what it had received
+     * and only the rest of sourceFile is sent
+     *
+     * @param sessionID The session ID the server gave the interrupted upload
+     * @param sourceFile Path to the same local file that was being uploaded
+     * @param groupKey The group key
+     * @param IV The group IV
+     * @param token The token of the user who started the upload
+     *
+     * @return true on success, false on failure
+     */
+    public boolean resumeUpload(String sessionID, String sourceFile, SecretKey groupKey, byte[] IV, SignedObject token)
+    {
+        if (!new File(sourceFile).isFile())
+        {
+            System.out.printf("Upload failed: %s does not exist\n", sourceFile);
+            return false;
+        }
+
+        try
+        {
+            ct.incrementN();
+            Envelope message = new Envelope("RESUMEF");
+            message.addObject(ct.getN()); // Add N
+            message.addObject(sessionID); // Add session ID
+            message.addObject(groupKey);  // Add group key
+            message.addObject(IV);        // Add IV
+            message.addObject(token);     // Add requester token
+            message.addObject(windowSize);// Add the requested window
+            output.writeObject(ct.encrypt(message));   // Send message
+            output.writeObject(ct.getDigest(message)); // Send digest
+
+            return sendFile(sourceFile);
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the session ID of the last upload that did not finish.
+     * Pass it to resumeUpload() to continue that upload
+     *
+     * @return The session ID, null if the last upload finished or never started
+     */
+    public String getUploadSession()
+    {
+        return uploadSession;
+    }
+
+    /**
+     * Waits for READY after UPLOADF or RESUMEF, then sends the part of sourceFile the server does not have yet
+     *
+     * @param sourceFile Path to the local file
+     *
+     * @return true if the server stored the file, false otherwise
+     *
+     * @throws Exception
+     */
+    private boolean sendFile(String sourceFile) throws Exception
+    {
+        // Receive server response
+        Envelope env = (Envelope)ct.decrypt((byte[])input.readObject());
+
+        // Verify message
+        if (ct.verifyMessage(env, (byte[])input.readObject()))
+            ct.incrementN();
+        else
+        {// Verification failed
+            System.out.println("Message Verification Failed");
+            disconnect();
+            System.exit(0);
+        }
+
+        // Server is ready for upload
+        if (env.getMessage().equals("READY"))
+            System.out.printf("Meta data upload successful\n");
+        else
+        {
+            isBusy(env, 1);
+            System.out.printf("Upload failed: %s\n", env.getMessage());
+            return false;
+        }
+
+        // Skip what the server already has
+        uploadSession = (String)env.getObjContents().get(2);
+        long offset   = (Long)env.getObjContents().get(3);
+        FileInputStream fis = new FileInputStream(sourceFile);
+        fis.getChannel().position(offset);
+        if (offset > 0)
+            System.out.printf("Resuming upload at byte %d\n", offset);
+
+        // Send the file to server in chunks and get its reply to EOF
+        ChunkTransfer transfer = new ChunkTransfer(input, output, ct, (Integer)env.getObjContents().get(1), chunkSize, adaptive, compression);
+        lastStats = transfer.getStats();
+        try
+        {
+            env = transfer.send(fis);
+        }
+        finally
+        {
+            fis.close();
+        }
+
+        if (env.getMessage().compareTo("OK") == 0)
+        {
+            uploadSession = null;
+            System.out.printf("\nFile data upload successful\n");
+            System.out.println(lastStats);
+            return true;
+        }
+
+        if (!env.getMessage().startsWith("ERROR"))
+            uploadSession = null; // The server dropped the session
+        System.out.printf("Upload failed: %s\n", env.getMessage());
+        return false;
+    }
 
     /**
      * Override of disconnect() that makes sure the envelope is encrypted
@@ -490,6 +1141,87 @@ public class FileClient extends Client implements FileClientInterface
         }
     }
 
+    /**
+     * Sets how many chunks uploads and downloads keep in flight.
+     * The server may grant a smaller window. 1 waits for every chunk to be acknowledged
+     *
+     * @param windowSize The number of chunks
+     */
+    public void setWindowSize(int windowSize)
+    {
+        this.windowSize = Math.max(1, windowSize);
+    }
+
+    /**
+     * Sets the chunk size to ask for during the handshake. The server may lower it.
+     * Must be called before handshake()
+     *
+     * @param chunkSize The chunk size in bytes
+     * @param adaptive true to let transfers adjust the chunk size up to chunkSize as they measure the link
+     */
+    public void setChunkSize(int chunkSize, boolean adaptive)
+    {
+        this.chunkSize = chunkSize;
+        this.adaptive  = adaptive;
+    }
+
+    /**
+     * Sets the compression to ask for in the next handshake. The server may agree to a weaker one
+     *
+     * @param compression The compression
+     */
+    public void setCompression(Compression compression)
+    {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the compression to ask for, or the one agreed on once connected
+     *
+     * @return The compression
+     */
+    public Compression getCompression()
+    {
+        return compression;
+    }
+
+    /**
+     * Returns the chunk size agreed on during the handshake
+     *
+     * @return The chunk size
+     */
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the statistics for the most recent upload or download
+     *
+     * @return The statistics, null if there has not been a transfer
+     */
+    public TransferStats getLastTransferStats()
+    {
+        return lastStats;
+    }
+
+    /**
+     * Receives a file from the server after it has answered READY
+     *
+     * @param fos The local file
+     * @param window The window granted by the server
+     *
+     * @return true if the whole file arrived, false otherwise
+     *
+     * @throws Exception
+     */
+    private boolean receive(OutputStream fos, int window) throws Exception
+    {
+        ChunkTransfer transfer = new ChunkTransfer(input, output, ct, window, chunkSize, adaptive, compression);
+        lastStats = transfer.getStats();
+        return transfer.receive(fos);
+    }
+
     /**
      * Getter for fileServerID
      *
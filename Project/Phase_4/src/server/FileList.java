@@ -1,22 +1,81 @@
 package server;
 
+import java.io.*;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This list represents the files on the server
+ *
+ * Files are kept in a ConcurrentSkipListMap keyed by path, so lookups never block each other or writers
+ * and iterating over the files gives them in path order without sorting.
+ * A second index maps each group to its files so listing a user's files only touches the files of their groups.
+ * Changes to the two indexes are serialized by a lock that readers never take.
+ * The list is still written to FileList.bin as an ArrayList named "list" so existing files load unchanged.
+ *
+ * Every add and remove increases the version and is kept in a log of recent changes, so a client that has
+ * the listing as of some version can ask for just what changed since. The log only covers versions after
+ * floor. Anything older, including every version from before the list was last loaded, needs a full listing.
+ * The top half of a version is an epoch drawn whenever the list is created or loaded, never the one it was saved
+ * with, and the bottom half counts the changes since. Replaying the journal numbers its changes again, so a
+ * version a client kept from before a restart names other changes now, and its epoch is how it is told apart.
+ * Listeners are told about each change as it is made, in version order, for pushing changes to subscribers.
+ *
+ * Once a log is set, every add and remove is also written to it and forced to disk before the call returns,
+ * so the files added since FileList.bin was last saved are not lost in a crash. The record is appended with
+ * writeLock held, so the log is in the order the changes were made, and forced after it is released.
+ * appendFile() and appendRemove() leave the wait to commit(), for callers with a lock of their own to release first.
+ *
+ * A snapshot for saving is taken without holding writeLock while the files are walked. It notes the version
+ * it is taken at, and until it is done every change first keeps what was at its path before, once per path.
+ * Paths changed during the walk are then taken from what was kept and the rest from the walk.
  */
 public class FileList implements java.io.Serializable
 {
-	private static final long serialVersionUID = -8911161283900260136L;
-	private ArrayList<ShareFile> list;  // list of files
+    private static final long serialVersionUID = -8911161283900260136L;
+    private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField("list", ArrayList.class),
+                                                                        new ObjectStreamField("version", long.class) };
+
+    private transient ConcurrentSkipListMap<String, ShareFile> files; // path -> file
+    private transient ConcurrentHashMap<String, ConcurrentSkipListMap<String, ShareFile>> groups; // group -> path -> file
+    private transient Object writeLock; // Held while changing both indexes
+    private transient ConcurrentSkipListMap<Long, FileChange> changes; // version -> change, the most recent ones
+    private transient long epoch;            // Top half of every version since the list was created or loaded
+    private transient volatile long version; // Version after the last change
+    private transient volatile long floor;   // Oldest version changes can be given from
+    private transient volatile long changeCount; // Changes made since the list was created or loaded
+    private transient List<ChangeListener> listeners; // Told about every change
+    private transient WriteAheadLog log; // Where changes are logged until the next snapshot
+    private transient Map<String, ShareFile> before; // path -> file as of the snapshot being taken, null if none is
+
+    /**
+     * Receives the changes made to a FileList
+     */
+    public interface ChangeListener
+    {
+        /**
+         * Called for each change while the FileList is locked, so it must return quickly
+         *
+         * @param change The change
+         */
+        void fileChanged(FileChange change);
+    }
 
     /**
      * Default constructor, creates empty list
      */
-	public FileList()
-	{
-		list = new ArrayList<>();
-	}
+    public FileList()
+    {
+        files     = new ConcurrentSkipListMap<>();
+        groups    = new ConcurrentHashMap<>();
+        writeLock = new Object();
+        changes   = new ConcurrentSkipListMap<>();
+        listeners = new CopyOnWriteArrayList<>();
+        startEpoch(0);
+    }
 
     /**
      * Adds a file to the FileList
@@ -25,23 +84,71 @@ public class FileList implements java.io.Serializable
      * @param group The group to which this file belongs
      * @param path The path to the file
      */
-	public synchronized void addFile(String owner, String group, String path)
-	{
-		ShareFile newFile = new ShareFile(owner, group, path);
-		list.add(newFile);
-	}
+    public void addFile(String owner, String group, String path)
+    {
+        addFile(owner, group, path, null);
+    }
+
+    /**
+     * Adds a file to the FileList along with its metadata
+     *
+     * @param owner The owner of the file
+     * @param group The group to which this file belongs
+     * @param path The path to the file
+     * @param metadata The size, upload time and hash of the file
+     */
+    public void addFile(String owner, String group, String path, FileMetadata metadata)
+    {
+        commit(appendFile(new ShareFile(owner, group, path, metadata)));
+    }
+
+    /**
+     * Adds a file to the FileList and logs it without waiting for the record to be on disk, so a caller holding
+     * a lock of its own can release it first. The change must not be acknowledged before commit() returns
+     *
+     * @param owner The owner of the file
+     * @param group The group to which this file belongs
+     * @param path The path to the file
+     * @param metadata The size, upload time and hash of the file
+     *
+     * @return The sequence number of the record to pass to commit()
+     */
+    public long appendFile(String owner, String group, String path, FileMetadata metadata)
+    {
+        return appendFile(new ShareFile(owner, group, path, metadata));
+    }
 
     /**
      * Removes file from FileList
      *
      * @param path The path to the file
      */
-	public synchronized void removeFile(String path)
-	{
-		for (int i = 0; i < list.size(); i++)
-			if (list.get(i).getPath().compareTo(path) == 0)
-				list.remove(i);
-	}
+    public void removeFile(String path)
+    {
+        commit(appendRemove(path));
+    }
+
+    /**
+     * Removes a file from the FileList and logs it without waiting for the record to be on disk, as appendFile()
+     *
+     * @param path The path to the file
+     *
+     * @return The sequence number of the record to pass to commit(), 0 if there was no such file
+     */
+    public long appendRemove(String path)
+    {
+        synchronized (writeLock)
+        {
+            ShareFile old = files.remove(path);
+            if (old == null)
+                return 0;
+
+            keep(path, old);
+            unindex(old);
+            logChange(FileChange.Type.REMOVED, old);
+            return logFile(path, null);
+        }
+    }
 
     /**
      * Checks if file exists in FileList
@@ -49,24 +156,177 @@ public class FileList implements java.io.Serializable
      * @param path The path to the file
      * @return true if present, false otherwise
      */
-	public synchronized boolean checkFile(String path)
-	{
-        for (ShareFile aList : list)
-            if (aList.getPath().compareTo(path) == 0)
-                return true;
-		return false;
-	}
+    public boolean checkFile(String path)
+    {
+        return files.containsKey(path);
+    }
+
+    /**
+     * Returns list of files in FileList, sorted by path
+     *
+     * @return A copy of the list of files
+     */
+    public List<ShareFile> getFiles()
+    {
+        return new ArrayList<>(files.values());
+    }
+
+    /**
+     * Returns the files belonging to any of the given groups, sorted by path
+     *
+     * @param groupNames The groups
+     * @return The files
+     */
+    public List<ShareFile> getFiles(Collection<String> groupNames)
+    {
+        List<ShareFile> list = new ArrayList<>();
+        for (String group : new HashSet<>(groupNames))
+        {
+            Map<String, ShareFile> groupFiles = groups.get(group);
+            if (groupFiles != null)
+                list.addAll(groupFiles.values());
+        }
+
+        if (groupNames.size() > 1)
+            Collections.sort(list); // Each group is in order already, only the groups need merging
+        return list;
+    }
+
+    /**
+     * Returns a page of the files belonging to any of the given groups whose paths start with prefix, sorted by path.
+     * Each group is read from where the page starts and only as far as limit, so a page costs about its own size
+     *
+     * @param groupNames The groups
+     * @param prefix Only paths starting with this are returned
+     * @param after The last path of the previous page, null for the first page
+     * @param limit The most files to return
+     * @return The files
+     */
+    public List<ShareFile> getPage(Collection<String> groupNames, String prefix, String after, int limit)
+    {
+        boolean         first = after == null || after.compareTo(prefix) < 0;
+        String          from  = first ? prefix : after;
+        List<ShareFile> page  = new ArrayList<>();
+
+        for (String group : new HashSet<>(groupNames))
+        {
+            ConcurrentSkipListMap<String, ShareFile> groupFiles = groups.get(group);
+            if (groupFiles == null)
+                continue;
+
+            int n = 0;
+            for (ShareFile file : groupFiles.tailMap(from, first).values())
+            {// Paths starting with prefix are all next to each other
+                if (n++ == limit || !file.getPath().startsWith(prefix))
+                    break;
+                page.add(file);
+            }
+        }
+
+        Collections.sort(page);
+        return page.size() > limit ? new ArrayList<>(page.subList(0, limit)) : page;
+    }
+
+    /**
+     * Returns the current version. Read it before listing files so the changes since
+     * that version cover anything the listing might have missed
+     *
+     * @return The version
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Returns the number of changes made since the list was created or loaded, replayed ones included.
+     * Replacing a file counts as two
+     *
+     * @return The number of changes
+     */
+    public long getChanges()
+    {
+        return changeCount;
+    }
+
+    /**
+     * Returns the changes to files of the given groups made after one version up to another
+     *
+     * @param since The version the client has
+     * @param until The version to stop at, usually getVersion()
+     * @param groupNames The groups
+     * @return The changes in order, empty if there are none, null if since is too old or from another epoch
+     *         and a full listing is needed
+     */
+    public List<FileChange> getChanges(long since, long until, Collection<String> groupNames)
+    {
+        if (since >>> 32 != epoch || since < floor || since > until || until > version)
+            return null;
+
+        Set<String>      wanted = new HashSet<>(groupNames);
+        List<FileChange> list   = new ArrayList<>();
+        for (FileChange change : changes.subMap(since, false, until, true).values())
+            if (wanted.contains(change.getGroup()))
+                list.add(change);
+
+        // The log may have been trimmed past since while it was being read
+        return since < floor ? null : list;
+    }
+
+    /**
+     * Starts telling a listener about changes
+     *
+     * @param listener The listener
+     */
+    public void addListener(ChangeListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stops telling a listener about changes
+     *
+     * @param listener The listener
+     */
+    public void removeListener(ChangeListener listener)
+    {
+        listeners.remove(listener);
+    }
 
     /**
-     * Returns list of files in FileList
+     * Starts logging every add and remove to some log, after the changes already in it have been applied
      *
-     * @return The list of files
+     * @param log The log
      */
-	public synchronized ArrayList<ShareFile> getFiles()
-	{
-		Collections.sort(list);
-		return list;			
-	}
+    public void setLog(WriteAheadLog log)
+    {
+        synchronized (writeLock)
+        {
+            this.log = log;
+        }
+    }
+
+    /**
+     * Applies a change read back from the log
+     *
+     * @param record The logged change
+     *
+     * @return true if it was a change to FileList, false otherwise
+     */
+    public boolean apply(Envelope record)
+    {
+        if (record.getMessage().equals("FILE"))
+        {// FILE [file]
+            commit(appendFile((ShareFile)record.getObjContents().get(0)));
+            return true;
+        }
+        else if (record.getMessage().equals("DFILE"))
+        {// DFILE [path]
+            removeFile((String)record.getObjContents().get(0));
+            return true;
+        }
+        return false;
+    }
 
     /**
      * Returns the file specified
@@ -74,11 +334,320 @@ public class FileList implements java.io.Serializable
      * @param path The path to the file
      * @return The file
      */
-	public synchronized ShareFile getFile(String path)
-	{
-        for (ShareFile aList : list)
-            if (aList.getPath().compareTo(path) == 0)
-                return aList;
-		return null;
-	}
-}	
+    public ShareFile getFile(String path)
+    {
+        return files.get(path);
+    }
+
+    /**
+     * Adds a file, replacing any at the same path, and logs it
+     *
+     * @param file The file
+     *
+     * @return The sequence number of the record to commit, 0 if there is no log
+     */
+    private long appendFile(ShareFile file)
+    {
+        synchronized (writeLock)
+        {
+            ShareFile old = files.put(file.getPath(), file);
+            keep(file.getPath(), old);
+            if (old != null)
+            {
+                unindex(old);
+                logChange(FileChange.Type.REMOVED, old);
+            }
+            index(file);
+            logChange(FileChange.Type.ADDED, file);
+            return logFile(file.getPath(), file);
+        }
+    }
+
+    /**
+     * Logs the file now at some path. Called with writeLock held right after the change
+     *
+     * @param path The path
+     * @param file The file, null if it was removed
+     *
+     * @return The sequence number of the record to commit, 0 if there is no log
+     */
+    private long logFile(String path, ShareFile file)
+    {
+        if (log == null)
+            return 0;
+
+        Envelope record = new Envelope(file == null ? "DFILE" : "FILE");
+        record.addObject(file == null ? path : file);
+        try
+        {
+            return log.append(record);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits for a logged change to be on disk, called once writeLock is released so other changes can share the write
+     *
+     * @param lsn The sequence number of the record, 0 for none
+     *
+     * @throws UncheckedIOException If the log cannot be written
+     */
+    public void commit(long lsn)
+    {
+        try
+        {
+            if (log != null && lsn > 0)
+                log.await(lsn);
+        }
+        catch (IOException e)
+        {// The change was made but cannot be kept, the request must not be acknowledged
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Keeps what was at a path before its first change since a snapshot started. Called with writeLock held
+     *
+     * @param path The path
+     * @param old The file that was there, null if there was none
+     */
+    private void keep(String path, ShareFile old)
+    {
+        if (before != null && !before.containsKey(path))
+            before.put(path, old);
+    }
+
+    /**
+     * Returns the files as they were at one version. writeLock is only held to start and finish the snapshot,
+     * not while the files are walked, so changes carry on meanwhile. Snapshots are taken one at a time
+     *
+     * @return The snapshot
+     */
+    private synchronized Snapshot snapshot()
+    {
+        long at;
+        synchronized (writeLock)
+        {
+            at     = version;
+            before = new HashMap<>();
+        }
+
+        List<ShareFile>        walked = new ArrayList<>(files.values());
+        Map<String, ShareFile> changed;
+        synchronized (writeLock)
+        {
+            changed = before;
+            before  = null;
+        }
+
+        // A path left alone during the walk was seen as it was at the version, any other was kept
+        List<ShareFile> list = new ArrayList<>(walked.size());
+        for (ShareFile file : walked)
+            if (!changed.containsKey(file.getPath()))
+                list.add(file);
+        for (ShareFile file : changed.values())
+            if (file != null)
+                list.add(file);
+        return new Snapshot(at, list);
+    }
+
+    /**
+     * Starts numbering versions from a new epoch with an empty change log. Only called while the list is built
+     *
+     * @param saved The epoch of the saved list, which is not drawn again, 0 if there is none
+     */
+    private void startEpoch(long saved)
+    {
+        Random random = new SecureRandom();
+        do
+            epoch = random.nextInt(Integer.MAX_VALUE) + 1; // Positive, so no version is mistaken for "none yet"
+        while (epoch == saved);
+
+        version = epoch << 32;
+        floor   = version;
+    }
+
+    /**
+     * Adds a file to the group index
+     *
+     * @param file The file
+     */
+    private void index(ShareFile file)
+    {
+        ConcurrentSkipListMap<String, ShareFile> groupFiles = groups.get(file.getGroup());
+        if (groupFiles == null)
+        {
+            groupFiles = new ConcurrentSkipListMap<>();
+            groups.put(file.getGroup(), groupFiles);
+        }
+        groupFiles.put(file.getPath(), file);
+    }
+
+    /**
+     * Records a change and drops the oldest ones once the log is full. Called with writeLock held
+     *
+     * @param type The type of change
+     * @param file The file
+     */
+    private void logChange(FileChange.Type type, ShareFile file)
+    {
+        long       next   = version + 1;
+        FileChange change = new FileChange(next, type, file.getGroup(), file.getPath());
+        changes.put(next, change);
+        version = next;
+        changeCount++;
+
+        for (ChangeListener listener : listeners)
+            listener.fileChanged(change);
+
+        while (next - floor > FileServer.CHANGE_LOG_SIZE)
+            floor = changes.pollFirstEntry().getKey();
+    }
+
+    /**
+     * Removes a file from the group index
+     *
+     * @param file The file, may be null
+     */
+    private void unindex(ShareFile file)
+    {
+        if (file == null)
+            return;
+
+        Map<String, ShareFile> groupFiles = groups.get(file.getGroup());
+        if (groupFiles != null)
+            groupFiles.remove(file.getPath());
+    }
+
+    /**
+     * Writes the version and the files as of that version, in the format SnapshotCodec reads back with decode()
+     *
+     * @param out The stream
+     *
+     * @throws IOException
+     */
+    public void encode(DataOutputStream out) throws IOException
+    {
+        Snapshot snapshot = snapshot();
+        SnapshotCodec.writeLong(out, snapshot.version);
+        SnapshotCodec.writeCount(out, snapshot.files.size());
+        for (ShareFile file : snapshot.files)
+        {
+            FileMetadata metadata = file.getMetadata();
+            SnapshotCodec.writeString(out, file.getOwner());
+            SnapshotCodec.writeString(out, file.getGroup());
+            SnapshotCodec.writeString(out, file.getPath());
+            out.writeBoolean(metadata != null);
+            if (metadata != null)
+            {
+                SnapshotCodec.writeLong(out, metadata.getSize());
+                SnapshotCodec.writeLong(out, metadata.getUploaded());
+                SnapshotCodec.writeString(out, metadata.getSHA256());
+            }
+        }
+    }
+
+    /**
+     * Reads the files written by encode()
+     *
+     * @param in The stream
+     * @param version The version of the layout, 1 is the only one so far
+     *
+     * @return The FileList
+     *
+     * @throws IOException
+     */
+    public static FileList decode(DataInputStream in, int version) throws IOException
+    {
+        FileList fileList = new FileList();
+        long     saved    = SnapshotCodec.readLong(in);
+        int      size     = SnapshotCodec.readCount(in);
+        for (int i = 0; i < size; i++)
+        {
+            String       owner    = SnapshotCodec.readString(in);
+            String       group    = SnapshotCodec.readString(in);
+            String       path     = SnapshotCodec.readString(in);
+            FileMetadata metadata = null;
+            if (in.readBoolean())
+                metadata = new FileMetadata(SnapshotCodec.readLong(in), SnapshotCodec.readLong(in), SnapshotCodec.readString(in));
+
+            ShareFile file = new ShareFile(owner, group, path, metadata);
+            fileList.unindex(fileList.files.put(path, file));
+            fileList.index(file);
+        }
+
+        // As in readObject(), files saved before snapshots were taken may be newer than the saved version
+        fileList.startEpoch(saved >>> 32);
+        return fileList;
+    }
+
+    /**
+     * Writes the files as the ArrayList older versions stored
+     *
+     * @param out The stream
+     *
+     * @throws IOException
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        Snapshot                    snapshot = snapshot();
+        ObjectOutputStream.PutField fields   = out.putFields();
+        fields.put("version", snapshot.version);
+        fields.put("list", new ArrayList<>(snapshot.files));
+        out.writeFields();
+    }
+
+    /**
+     * Reads the ArrayList written by writeObject() or by older versions
+     *
+     * @param in The stream
+     *
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields();
+        List<ShareFile> list = (List<ShareFile>)fields.get("list", null);
+
+        files     = new ConcurrentSkipListMap<>();
+        groups    = new ConcurrentHashMap<>();
+        writeLock = new Object();
+        changes   = new ConcurrentSkipListMap<>();
+        listeners = new CopyOnWriteArrayList<>();
+
+        // The saved list may hold changes made after the saved version, so start a new epoch with an empty log
+        startEpoch(fields.get("version", 0L) >>> 32);
+        if (list != null)
+            for (ShareFile file : list)
+            {
+                unindex(files.put(file.getPath(), file));
+                index(file);
+            }
+    }
+
+    /**
+     * The files as of some version
+     */
+    private static class Snapshot
+    {
+        final long            version; // The version
+        final List<ShareFile> files;   // The files at that version
+
+        /**
+         * Constructor which accepts the version and the files
+         *
+         * @param version The version
+         * @param files The files
+         */
+        Snapshot(long version, List<ShareFile> files)
+        {
+            this.version = version;
+            this.files   = files;
+        }
+    }
+}
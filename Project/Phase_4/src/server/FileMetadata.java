@@ -0,0 +1,188 @@
+package server;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+/**
+ * The size, upload time and SHA-256 of a file's plain text, recorded when the file is uploaded.
+ * Kept with the file's ShareFile in the FileList and returned by STAT and LFILES, so clients can
+ * tell whether a file changed without downloading it
+ */
+public class FileMetadata implements java.io.Serializable
+{
+    private static final long serialVersionUID = -2315806725412399720L;
+
+    private final long   size;     // Length of the plain text
+    private final long   uploaded; // When the upload finished
+    private final String sha256;   // SHA-256 of the plain text, in hex
+
+    /**
+     * Constructor which accepts the size and the digest the plain text went through
+     *
+     * @param size The size
+     * @param sha256 The SHA-256 digest, digest() is called on it
+     */
+    public FileMetadata(long size, MessageDigest sha256)
+    {
+        this.size     = size;
+        this.uploaded = System.currentTimeMillis();
+        this.sha256   = toHex(sha256.digest());
+    }
+
+    /**
+     * Constructor which accepts the size and a hash already computed
+     *
+     * @param size The size
+     * @param sha256 The SHA-256 in hex
+     */
+    public FileMetadata(long size, String sha256)
+    {
+        this.size     = size;
+        this.uploaded = System.currentTimeMillis();
+        this.sha256   = sha256;
+    }
+
+    /**
+     * Constructor which accepts everything, for metadata loaded from a snapshot
+     *
+     * @param size The size
+     * @param uploaded When the upload finished
+     * @param sha256 The SHA-256 in hex
+     */
+    public FileMetadata(long size, long uploaded, String sha256)
+    {
+        this.size     = size;
+        this.uploaded = uploaded;
+        this.sha256   = sha256;
+    }
+
+    /**
+     * Reads back a stored file to record its metadata, for uploads whose bytes did not all pass through one connection
+     *
+     * @param file The BlockFile
+     * @param groupKey The group key
+     *
+     * @return The metadata
+     *
+     * @throws IOException
+     */
+    public static FileMetadata read(File file, SecretKey groupKey) throws IOException
+    {
+        try (InputStream in = BlockFile.open(file, groupKey, 0, -1))
+        {
+            MessageDigest sha256 = newDigest();
+            return new FileMetadata(digest(in, sha256), sha256);
+        }
+    }
+
+    /**
+     * Computes the SHA-256 of a stream, as found in getSHA256()
+     *
+     * @param in The stream, read to the end
+     *
+     * @return The SHA-256 in hex
+     *
+     * @throws IOException
+     */
+    public static String sha256(InputStream in) throws IOException
+    {
+        MessageDigest sha256 = newDigest();
+        digest(in, sha256);
+        return toHex(sha256.digest());
+    }
+
+    /**
+     * Returns a new SHA-256 digest
+     *
+     * @return The digest
+     */
+    public static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {// Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feeds a stream to a digest
+     *
+     * @param in The stream
+     * @param digest The digest
+     *
+     * @return The number of bytes read
+     *
+     * @throws IOException
+     */
+    private static long digest(InputStream in, MessageDigest digest) throws IOException
+    {
+        byte[] buf   = new byte[65536];
+        long   total = 0;
+        int    n;
+        while ((n = in.read(buf)) >= 0)
+        {
+            digest.update(buf, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Converts bytes to hex
+     *
+     * @param bytes The bytes
+     *
+     * @return The hex string
+     */
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Returns the length of the plain text
+     *
+     * @return The size in bytes
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns when the upload finished
+     *
+     * @return The time in milliseconds since the epoch
+     */
+    public long getUploaded()
+    {
+        return uploaded;
+    }
+
+    /**
+     * Returns the SHA-256 of the plain text
+     *
+     * @return The SHA-256 in hex
+     */
+    public String getSHA256()
+    {
+        return sha256;
+    }
+
+    @Override public String toString()
+    {
+        return size + " bytes, uploaded " + new Date(uploaded) + ", SHA-256 " + sha256;
+    }
+}
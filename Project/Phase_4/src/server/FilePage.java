@@ -0,0 +1,67 @@
+package server;
+
+import java.util.List;
+
+/**
+ * One page of the file list returned by FileClient.listFiles(token, prefix, pageSize, cursor)
+ */
+public class FilePage
+{
+    private final List<String> files;  // Paths on this page
+    private final String       cursor; // Where the next page starts, null if this is the last page
+    private final long         version; // FileList version the page was read at
+
+    /**
+     * Constructor which accepts the paths, the cursor, and the version
+     *
+     * @param files The paths
+     * @param cursor The cursor for the next page, null if there is none
+     * @param version The FileList version
+     */
+    public FilePage(List<String> files, String cursor, long version)
+    {
+        this.files   = files;
+        this.cursor  = cursor;
+        this.version = version;
+    }
+
+    /**
+     * Returns the paths on this page
+     *
+     * @return The paths, sorted
+     */
+    public List<String> getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * Returns the cursor to pass when asking for the next page
+     *
+     * @return The cursor, null if this is the last page
+     */
+    public String getCursor()
+    {
+        return cursor;
+    }
+
+    /**
+     * Returns the FileList version the page was read at. Pass it to FileClient.listChanges() to catch up later
+     *
+     * @return The version
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Checks whether there is another page
+     *
+     * @return true if there is, false otherwise
+     */
+    public boolean hasMore()
+    {
+        return cursor != null;
+    }
+}
@@ -4,14 +4,48 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.*;
+import java.util.List;
 
 /**
  * FileServer loads files from FileList.bin. Stores files in shared_files directory.
+ * Files added and removed after FileList.bin was saved are journaled to FileServer.wal and replayed on start.
  */
 public class FileServer extends Server
 {
     public static final int SERVER_PORT = 4321;
+    public static int MAX_WINDOW             = Integer.getInteger("fs.maxWindow", 64);                           // Most chunks a transfer may keep in flight
+    public static int MAX_CHUNK_SIZE         = Integer.getInteger("fs.maxChunkSize", 1024 * 1024);               // Largest chunk size a client may negotiate
+    public static int UPLOAD_EXPIRY_HOURS    = Integer.getInteger("fs.uploadExpiryHours", 72);                   // How long unfinished uploads are kept
+    public static int BLOCK_SIZE             = Integer.getInteger("fs.blockSize", BlockFile.DEFAULT_BLOCK_SIZE); // Plain text bytes per block in new files
+    public static int MAX_SEGMENTS           = Integer.getInteger("fs.maxSegments", 16);                         // Most segments a multipart upload may be split into
+    public static int MAX_MULTIPART          = Integer.getInteger("fs.maxMultipart", 256);                       // Most multipart uploads open at once
+    public static int MAX_MULTIPART_PER_USER = Integer.getInteger("fs.maxMultipartPerUser", 8);                  // Most multipart uploads one user may have open at once
+    public static int MAX_PAGE_SIZE          = Integer.getInteger("fs.maxPageSize", 1000);                       // Most files LFILESP returns at once
+    public static int CHANGE_LOG_SIZE        = Integer.getInteger("fs.changeLogSize", 10000);                    // Most recent FileList changes kept for LCHANGES
+    public static int PUSH_KEEPALIVE_SECONDS = Integer.getInteger("fs.pushKeepAliveSeconds", 30);                // Longest a subscription goes without a message
+    public static int MAX_SUBSCRIPTIONS      = Integer.getInteger("fs.maxSubscriptions", 256);                   // Most change subscriptions open at once, apart from fs.maxConnections
+    public static int MAX_COMPRESSION        = Integer.getInteger("fs.maxCompression", 2);                       // Strongest chunk compression agreed to, a Compression ordinal
+    public static int SNAPSHOT_RECORDS       = Integer.getInteger("fs.snapshotRecords", 10000);                  // Journaled changes that make AutoSaveFS save the list
+    public static int SNAPSHOT_COMPRESSION   = Integer.getInteger("fs.snapshotCompression", 0);                  // How the list is compressed when saved, a Compression ordinal
+    public static int SAVE_INTERVAL          = Integer.getInteger("fs.saveInterval", 120);                       // Seconds between AutoSaveFS's checks
+    public static int MAX_STALENESS          = Integer.getInteger("fs.maxStaleness", 600);                       // Seconds a change may wait before the list is saved
+    public static String EXECUTOR            = System.getProperty("fs.executor", "pool");                        // Threads that handle connections, pool or virtual
+    public static int MAX_CONNECTIONS        = Integer.getInteger("fs.maxConnections", 256);                     // Most connections handled at once
+    public static int MAX_QUEUED             = Integer.getInteger("fs.maxQueued", 1024);                         // Most connections waiting for a thread
+    public static int QUEUE_TIMEOUT          = Integer.getInteger("fs.queueTimeout", 30);                        // Seconds a connection waits for a thread before it is closed
+    public static int MAX_HANDSHAKES         = Integer.getInteger("fs.maxHandshakes", 64);                       // Most handshakes under way at once, 0 for no limit
+    public static int MAX_TRANSFERS          = Integer.getInteger("fs.maxTransfers", 64);                        // Most uploads and downloads under way at once, 0 for no limit
+    public static int MIN_FREE_HEAP          = Integer.getInteger("fs.minFreeHeap", 10);                         // Least percent of the heap free for a connection or transfer to be admitted
+    public static int RETRY_AFTER            = Integer.getInteger("fs.retryAfter", 2);                           // Seconds a client turned away is asked to wait, on average
+    public static int READ_TIMEOUT           = Integer.getInteger("fs.readTimeout", 60);                         // Seconds a client may take to send the rest of a handshake, request or transfer, 0 for no limit
+    public static int IDLE_TIMEOUT           = Integer.getInteger("fs.idleTimeout", 1800);                       // Seconds a session may go without a request before it is closed, 0 for no limit
     public static FileList  fileList; // The list of files on the server
+    public static BlobStore blobs;    // Where the contents of the files are kept
+    public static WriteAheadLog log;  // The changes made since the list was last saved
+    public static ConnectionExecutor connections;   // Runs a FileThread for each connection
+    public static ConnectionExecutor subscriptions; // Pushes changes to subscribed clients, so they do not hold connection workers
+    public static AdmissionControl   admission;     // Turns connections and transfers away while the server is overloaded
+    public static final SavedList fileSave = new SavedList("FileList.bin", Compression.fromOrdinal(SNAPSHOT_COMPRESSION), MAX_STALENESS * 1000L); // Where the FileList is saved
     public PublicKey  publicKey;      // The public key of this server
     public PrivateKey privateKey;     // The private key of this server
 
@@ -39,12 +73,10 @@ public class FileServer extends Server
      */
     public void start()
     {
-        String fileFile = "FileList.bin";    // The file holding the FileList
-        String keyFile  = "FileKeyPair.bin"; // The file holding the KeyPair
-        ObjectInputStream fileStream;        // The InputStream for the fileFile
-        ObjectInputStream keyStream;         // The InputStream for the keyFile
-        FileInputStream   fis;               // The FileInputStream for all ObjectInputStreams
-        KeyPair keyPair;                     // The KeyPair for this server
+        SnapshotFile keyFile = new SnapshotFile("FileKeyPair.bin"); // The file holding the KeyPair
+        String       logFile = "FileServer.wal";                   // The prefix of the journal's segments
+        boolean      created = false;                              // Whether the list was just created
+        KeyPair      keyPair;                                      // The KeyPair for this server
 
         // This runs a thread that saves the list on program exit
         Runtime runtime   = Runtime.getRuntime();
@@ -52,15 +84,9 @@ public class FileServer extends Server
         runtime.addShutdownHook(catchExit);
 
         try
-        {// Open user file to get user list
-            // Open and read FileList.bin
-            fis        = new FileInputStream(fileFile);
-            fileStream = new ObjectInputStream(fis);
-            fileList   = (FileList)fileStream.readObject();
-            // Open and read FileKeyPair.bin
-            fis        = new FileInputStream(keyFile);
-            keyStream  = new ObjectInputStream(fis);
-            keyPair    = (KeyPair)keyStream.readObject();
+        {// Open user file to get user list, each file falls back to the save before it if damaged
+            fileList   = (FileList)fileSave.load();
+            keyPair    = (KeyPair)keyFile.readObject();
             publicKey  = keyPair.getPublic();
             privateKey = keyPair.getPrivate();
         }
@@ -68,6 +94,7 @@ public class FileServer extends Server
         {// fileFile.bin does not exist
             System.out.println("FileList or KeyPair Does Not Exist. Creating new FileList...");
             fileList  = new FileList();
+            created   = true;
 
             System.out.println("Generating new KeyPair...");
             try
@@ -81,20 +108,40 @@ public class FileServer extends Server
                 System.out.println(privateKey.toString());
 
                 // Save to file
-                ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(keyFile));
-                outputStream.writeObject(keyPair);
+                keyFile.writeObject(keyPair);
             }
             catch (NoSuchAlgorithmException | IOException e1)
             {
                 e1.printStackTrace();
             }
         }
-        catch (IOException | ClassNotFoundException e)
+        catch (IOException e)
         {
             System.out.println("Error reading from FileList file");
             System.exit(-1);
         }
 
+        try
+        {// Replay the files added and removed since the list was saved, then journal every change from here on
+            log = new WriteAheadLog(logFile);
+            List<Object> records = log.recover();
+            for (Object record : records)
+                if (!fileList.apply((Envelope)record))
+                    System.out.println("Skipping unknown change " + ((Envelope)record).getMessage());
+            if (!records.isEmpty())
+                System.out.printf("Replayed %d changes from %s\n", records.size(), logFile);
+            fileList.setLog(log);
+
+            // Save the list so an old journal is not replayed again
+            if (created || !records.isEmpty())
+                checkpoint();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Error replaying " + logFile + ": " + e.getMessage());
+            System.exit(-1);
+        }
+
         // Create shared_files directory
         File file = new File("shared_files");
         if (file.mkdir())
@@ -104,26 +151,33 @@ public class FileServer extends Server
         else
             System.out.println("Error creating shared_files directory");
 
-        // Autosave Daemon. Saves lists every 5 minutes
+        // Count the files pointing at each stored content
+        blobs = new BlobStore(fileList);
+
+        // Throw away uploads nobody came back to finish
+        UploadSession.expire(UPLOAD_EXPIRY_HOURS * 3600000L);
+
+        // Autosave Daemon. Saves the list once enough changes are journaled
         AutoSaveFS aSave = new AutoSaveFS();
         aSave.setDaemon(true);
         aSave.start();
 
         boolean running = true;
 
+        admission     = new AdmissionControl("FileServer", MAX_HANDSHAKES, MAX_TRANSFERS, MIN_FREE_HEAP, RETRY_AFTER * 1000);
+        connections   = new ConnectionExecutor("FileServer", EXECUTOR, MAX_CONNECTIONS, MAX_QUEUED, QUEUE_TIMEOUT * 1000L);
+        subscriptions = new ConnectionExecutor("FileServer-subscriptions", EXECUTOR, MAX_SUBSCRIPTIONS, 0, 0);
         try
-        {// Launch FileThread
+        {// Run FileThread when a thread is free
             final ServerSocket serverSock = new ServerSocket(port);
             System.out.printf("%s up and running\n", this.getClass().getName());
 
             Socket sock;
-            Thread thread;
 
             while (running)
             {
-                sock   = serverSock.accept();
-                thread = new FileThread(sock, this);
-                thread.start();
+                sock = serverSock.accept();
+                connections.execute(sock, new FileThread(sock, this));
             }
 
             System.out.printf("%s shut down\n", this.getClass().getName());
@@ -134,6 +188,25 @@ public class FileServer extends Server
             e.printStackTrace(System.err);
         }
     }
+
+    /**
+     * Saves the FileList if it changed since it was last saved and deletes the journaled changes it no longer needs.
+     * Writers are not stopped, the list is saved as of one version and a change made after the roll is journaled
+     * and replayed again harmlessly. Changes since the previous save are kept, so the list can still be loaded
+     * from that if the new one is damaged
+     *
+     * @throws IOException If the list cannot be saved, the journal is kept
+     */
+    public static synchronized void checkpoint() throws IOException
+    {
+        if (!fileSave.isDirty(fileList.getChanges()))
+            return;
+
+        long last = log.roll(); // Changes journaled from here on are kept
+        fileSave.save(fileList, fileList.getChanges(), last);
+        if (fileSave.getNeeded() >= 0)
+            log.truncate(fileSave.getNeeded());
+    }
 }
 
 /**
@@ -144,12 +217,19 @@ class ShutDownListenerFS implements Runnable
     public void run()
     {
         System.out.println("Shutting down server");
-        ObjectOutputStream outStream;
+        if (FileServer.connections != null)
+            System.out.println(FileServer.connections);
+        if (FileServer.subscriptions != null)
+            System.out.println(FileServer.subscriptions);
+        if (FileServer.admission != null)
+            System.out.println(FileServer.admission);
+        if (FileServer.log == null)
+            return; // Never finished starting
 
         try
         {
-            outStream = new ObjectOutputStream(new FileOutputStream("FileList.bin"));
-            outStream.writeObject(FileServer.fileList);
+            FileServer.checkpoint();
+            FileServer.log.close();
         }
         catch(Exception e)
         {
@@ -160,7 +240,8 @@ class ShutDownListenerFS implements Runnable
 }
 
 /**
- * This thread autosaves FileList every 5 min
+ * This thread autosaves FileList once enough changes are journaled or a change has waited the maximum staleness,
+ * checking every save interval
  */
 class AutoSaveFS extends Thread
 {
@@ -169,14 +250,17 @@ class AutoSaveFS extends Thread
         do
         {
             try
-            {// Save file list every 2 minutes
-                Thread.sleep(120000);
+            {// Changes are already safe in the journal so small ones can wait, up to the maximum staleness
+                Thread.sleep(FileServer.SAVE_INTERVAL * 1000L);
+                UploadSession.expire(FileServer.UPLOAD_EXPIRY_HOURS * 3600000L);
+                MultipartUpload.expire(FileServer.UPLOAD_EXPIRY_HOURS * 3600000L);
+                boolean stale = FileServer.fileSave.isStale(FileServer.fileList.getChanges());
+                if (FileServer.log.size() < FileServer.SNAPSHOT_RECORDS && !stale)
+                    continue;
                 System.out.println("Autosave file list...");
-                ObjectOutputStream outStream;
                 try
                 {
-                    outStream = new ObjectOutputStream(new FileOutputStream("FileList.bin"));
-                    outStream.writeObject(FileServer.fileList);
+                    FileServer.checkpoint();
                 }
                 catch (Exception e)
                 {
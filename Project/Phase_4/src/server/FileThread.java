@@ -7,8 +7,10 @@ import javax.crypto.*;
 import java.lang.Thread;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.security.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.io.*;
 
@@ -16,10 +18,16 @@ import java.io.*;
  * FileServer's worker thread
  * Handles the business of upload, download, and removing files for clients with valid tokens
  */
-public class FileThread extends Thread
+public class FileThread implements Runnable
 {
-    private final Socket     socket;           // The socket passed from FileServer
-    private       FileServer my_fs;            // The FileServer
+    private final Socket             socket;    // The socket passed from FileServer
+    private       FileServer         my_fs;     // The FileServer
+    private       ObjectInputStream  input;     // The input stream of the socket
+    private       ObjectOutputStream output;    // The output stream of the socket
+    private       CryptoTools        ct;        // The session's CryptoTools
+    private       int                chunkSize; // Chunk size agreed on during the handshake
+    private       boolean            adaptive;  // Whether chunk sizes adapt during transfers
+    private       Compression        compression; // Compression agreed on during the handshake
 
     /**
      * Constructor which accepts the socket passed from FileServer
@@ -36,13 +44,27 @@ public class FileThread extends Thread
      */
     public void run()
     {
-        boolean proceed = true;
+        boolean proceed      = true;
+        boolean handshaking  = false; // Whether this holds one of the server's handshakes
+        boolean transferring = false; // Whether this holds one of the server's transfers
 
         try
         {// Establish connection and input/output streams
             System.out.println("*** New connection from " + socket.getInetAddress() + ":" + socket.getPort() + " ***");
-            final ObjectInputStream  input  = new ObjectInputStream(socket.getInputStream());
-            final ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+            socket.setTcpNoDelay(true); // Small ACKs must not sit in Nagle's buffer during windowed transfers
+            socket.setSoTimeout(FileServer.READ_TIMEOUT * 1000); // A client that vanishes must not hold a thread forever
+            input  = new ObjectInputStream(socket.getInputStream());
+            output = new ObjectOutputStream(socket.getOutputStream());
+
+            // Turn the client away before any cryptography is done for it
+            if (!(handshaking = FileServer.admission.startHandshake()))
+            {
+                Envelope busy = new Envelope("BUSY");
+                busy.addObject(FileServer.admission.getRetryAfter());
+                output.writeObject(busy);
+                socket.close();
+                return;
+            }
 
             /* HANDSHAKE PROTOCOL */
             System.out.println("Handshake with FileClient started");
@@ -61,7 +83,7 @@ public class FileThread extends Thread
             output.writeObject((my_fs.getName() + my_fs.getPort()));
 
             // Needed to convert from byte arrays
-            CryptoTools ct = new CryptoTools();
+            ct = new CryptoTools();
 
             // Set up CryptoTools
             ct = new CryptoTools(new BigInteger(cipher.doFinal((byte[])input.readObject())).intValue(),// N
@@ -70,22 +92,36 @@ public class FileThread extends Thread
                     (SecretKey)ct.fromByteArray(cipher.doFinal((byte[])input.readObject())));          // KH
             PublicKey  KGS = (PublicKey)input.readObject();                                            // KGS
             BigInteger RC  = (BigInteger)ct.fromByteArray(cipher.doFinal((byte[])input.readObject())); // RC
+            chunkSize      = (Integer)ct.fromByteArray(cipher.doFinal((byte[])input.readObject()));    // Chunk size
+            adaptive       = (Boolean)ct.fromByteArray(cipher.doFinal((byte[])input.readObject()));    // Adaptive
+            int requested  = (Integer)ct.fromByteArray(cipher.doFinal((byte[])input.readObject()));    // Compression
 
             // RC + 1
             RC = new BigInteger(String.valueOf(RC.intValue() + 1));
 
+            // Agree on the chunk size used for transfers on this connection
+            chunkSize   = ChunkTransfer.negotiateChunkSize(chunkSize, FileServer.MAX_CHUNK_SIZE);
+            compression = Compression.negotiate(requested, FileServer.MAX_COMPRESSION);
+
             // Encrypt and send back challenge response using KS
             ct.incrementN();
             Envelope envelope = new Envelope("RC+1");
-            envelope.addObject(ct.getN()); // Add N
-            envelope.addObject(RC);        // Add RC
+            envelope.addObject(ct.getN());  // Add N
+            envelope.addObject(RC);         // Add RC
+            envelope.addObject(chunkSize);  // Add the chunk size
+            envelope.addObject(adaptive);   // Add whether chunk sizes adapt
+            envelope.addObject(compression.ordinal()); // Add the compression
             output.writeObject(ct.encrypt(envelope));   // Send cipher text
             output.writeObject(ct.getDigest(envelope)); // Send message digest
 
             System.out.println("Handshake with FileClient complete");
+            FileServer.admission.endHandshake();
+            handshaking = false;
             do
             {// Listen for messages from client
+                socket.setSoTimeout(FileServer.IDLE_TIMEOUT * 1000); // Wait for the next request
                 Envelope e       = (Envelope)ct.decrypt((byte[])input.readObject());
+                socket.setSoTimeout(FileServer.READ_TIMEOUT * 1000); // The rest of it must not take long
                 byte[]   digest  = (byte[])input.readObject();
                 System.out.println("Request received: " + e.getMessage());
                 // Verify message integrity
@@ -100,8 +136,17 @@ public class FileThread extends Thread
 
                 Envelope response = null;  // Server response
 
+                /* Client wants to transfer a file while the server has all the transfers it admits */
+                if (isTransfer(e.getMessage()) && !(transferring = FileServer.admission.startTransfer()))
+                {
+                    ct.incrementN();
+                    response = new Envelope("BUSY");
+                    response.addObject(ct.getN());                            // Add N
+                    response.addObject(FileServer.admission.getRetryAfter()); // Add the milliseconds to wait
+                    output.writeObject(ct.encrypt(response)); // Send response
+                }
                 /* Client wants to list files the requester can see */
-                if (e.getMessage().equals("LFILES"))
+                else if (e.getMessage().equals("LFILES"))
                 {
                     // Check to make sure parameter is passed and != null
                     if (e.getObjContents().size() < 2 && e.getObjContents().get(1) == null)
@@ -116,22 +161,128 @@ public class FileThread extends Thread
                         SignedObject so = (SignedObject)e.getObjContents().get(1);
                         UserToken yourToken = verifyToken(so, KGS);
                         // list to hold the files the requester can see
-                        List<String> list = new ArrayList<>();
-                        // Iterate over each file and check against requester groups
-                        // TODO: probably a better way to do this and need to account for ADMIN group
-                        for (int i = 0; i < FileServer.fileList.getFiles().size(); i++)
-                            for (int j = 0; j < yourToken.getGroups().size(); j++)
-                                if (FileServer.fileList.getFiles().get(i).getGroup().equals(yourToken.getGroups().get(j)))
-                                    list.add(FileServer.fileList.getFiles().get(i).getPath());
+                        List<String> list     = new ArrayList<>();
+                        long         version  = FileServer.fileList.getVersion(); // Read first so LCHANGES covers anything missed
+                        boolean      extended = e.getObjContents().size() > 2 && Boolean.TRUE.equals(e.getObjContents().get(2));
+                        LinkedHashMap<String, FileMetadata> metadata = new LinkedHashMap<>();
+                        // Only look at the files of the requester's groups
+                        // TODO: need to account for ADMIN group
+                        for (ShareFile file : FileServer.fileList.getFiles(yourToken.getGroups()))
+                        {
+                            list.add(file.getPath());
+                            if (extended)
+                                metadata.put(file.getPath(), file.getMetadata());
+                        }
                         // If list is created, change response to OK
                         ct.incrementN();
                         response = new Envelope("OK");
                         response.addObject(ct.getN()); // Add N
                         response.addObject(list);      // Add the list
+                        response.addObject(version);   // Add the version of the list
+                        if (extended)
+                            response.addObject(metadata); // Add each file's metadata, null where none was recorded
+                    }
+                    // Send response
+                    output.writeObject(ct.encrypt(response));
+                }
+                /* Client wants one page of its files */
+                else if (e.getMessage().equals("LFILESP"))
+                {
+                    UserToken yourToken = e.getObjContents().size() < 5 ? null : verifyToken((SignedObject)e.getObjContents().get(1), KGS);
+
+                    // Check to make sure all parameters are passed
+                    if (yourToken == null || e.getObjContents().get(3) == null)
+                    {
+                        ct.incrementN();
+                        response = new Envelope("FAIL-BADCONTENTS");
+                        response.addObject(ct.getN());
+                    }
+                    else
+                    {
+                        String prefix   = (String)e.getObjContents().get(2); // Extract prefix
+                        int    pageSize = Math.max(1, Math.min((Integer)e.getObjContents().get(3), FileServer.MAX_PAGE_SIZE)); // Extract page size
+                        String cursor   = (String)e.getObjContents().get(4); // Extract cursor
+
+                        long version = FileServer.fileList.getVersion(); // Read first so LCHANGES covers anything missed
+
+                        // Ask for one more than a page to find out if there is another page
+                        List<ShareFile> files = FileServer.fileList.getPage(yourToken.getGroups(), prefix == null ? "" : prefix,
+                                                                            cursor, pageSize + 1);
+                        List<String> page = new ArrayList<>();
+                        for (int i = 0; i < Math.min(pageSize, files.size()); i++)
+                            page.add(files.get(i).getPath());
+
+                        ct.incrementN();
+                        response = new Envelope("OK");
+                        response.addObject(ct.getN()); // Add N
+                        response.addObject(page);      // Add the page
+                        response.addObject(files.size() > pageSize ? page.get(page.size() - 1) : null); // Add the cursor for the next page
+                        response.addObject(version);   // Add the version of the list
+                    }
+                    // Send response
+                    output.writeObject(ct.encrypt(response));
+                }
+                /* Client wants the changes to its files since a version of the list */
+                else if (e.getMessage().equals("LCHANGES"))
+                {
+                    UserToken yourToken = e.getObjContents().size() < 3 ? null : verifyToken((SignedObject)e.getObjContents().get(1), KGS);
+
+                    // Check to make sure all parameters are passed
+                    if (yourToken == null || e.getObjContents().get(2) == null)
+                    {
+                        ct.incrementN();
+                        response = new Envelope("FAIL-BADCONTENTS");
+                        response.addObject(ct.getN());
+                    }
+                    else
+                    {
+                        long             since   = (Long)e.getObjContents().get(2); // Extract the client's version
+                        long             version = FileServer.fileList.getVersion();
+                        List<FileChange> changes = FileServer.fileList.getChanges(since, version, yourToken.getGroups());
+
+                        ct.incrementN();
+                        if (since == version)
+                            response = new Envelope("NOTMODIFIED");
+                        else if (changes == null)
+                            response = new Envelope("RESET"); // Too old, the client has to list everything again
+                        else
+                            response = new Envelope("OK");
+                        response.addObject(ct.getN()); // Add N
+                        response.addObject(version);   // Add the version the client is now at
+                        if (changes != null && since != version)
+                            response.addObject(changes); // Add the changes
                     }
                     // Send response
                     output.writeObject(ct.encrypt(response));
                 }
+                /* Client wants changes to its files pushed to it as they happen */
+                else if (e.getMessage().equals("SUBSCRIBE"))
+                {
+                    UserToken yourToken = e.getObjContents().size() < 3 ? null : verifyToken((SignedObject)e.getObjContents().get(1), KGS);
+
+                    // Check to make sure all parameters are passed
+                    if (yourToken == null || e.getObjContents().get(2) == null)
+                    {
+                        ct.incrementN();
+                        response = new Envelope("FAIL-BADCONTENTS");
+                        response.addObject(ct.getN());
+                        output.writeObject(ct.encrypt(response));
+                    }
+                    else if (FileServer.subscriptions.getActive() >= FileServer.subscriptions.getMaxConcurrency())
+                    {// The server has all the subscriptions it keeps open
+                        ct.incrementN();
+                        response = new Envelope("FAIL-TOOMANYSUBSCRIPTIONS");
+                        response.addObject(ct.getN());
+                        output.writeObject(ct.encrypt(response));
+                    }
+                    else
+                    {// Only changes are sent from now on, on a subscription thread so this worker is free for other clients
+                        final UserToken token = yourToken;
+                        final long      since = (Long)e.getObjContents().get(2);
+                        FileServer.subscriptions.execute(socket, () -> subscription(token, since)); // Closes the socket if it is full
+                        proceed = false;
+                    }
+                }
                 /* Client wants to upload file */
                 else if (e.getMessage().equals("UPLOADF"))
                 {
@@ -179,18 +330,19 @@ public class FileThread extends Thread
                             String       remotePath  = (String)e.getObjContents().get(1);       // Extract filename
                             String       group       = (String)e.getObjContents().get(2);       // Extract group name
                             SecretKey    groupKey    = (SecretKey)e.getObjContents().get(3);    // Extract group key
-                            byte[]       IV          = (byte[])e.getObjContents().get(4);       // Extract group IV
                             SignedObject so          = (SignedObject)e.getObjContents().get(5); // Extract SignedObject
                             UserToken yourToken = verifyToken(so, KGS); // Extract requester token
 
-                            if (FileServer.fileList.checkFile(remotePath))
+                            String       path        = "shared_files/" + group + "/" + remotePath.replace('/', '_');
+
+                            if (FileServer.fileList.checkFile(path) || new File(path).exists())
                             {// File exists
                                 System.out.printf("Error: file already exists at %s\n", remotePath);
                                 ct.incrementN();
                                 response = new Envelope("FAIL-FILEEXISTS");
                                 response.addObject(ct.getN());
                             }
-                            else if (!yourToken.getGroups().contains(group))
+                            else if (yourToken == null || !yourToken.getGroups().contains(group))
                             {// Not part of group
                                 System.out.printf("Error: user missing valid token for group %s\n", group);
                                 ct.incrementN();
@@ -208,217 +360,368 @@ public class FileThread extends Thread
                                 else
                                     System.out.println("Error creating group directory");
 
-                                // Create file on server
-                                file = new File("shared_files/" + group + "/" + remotePath.replace('/', '_'));
-                                file.createNewFile();
-                                FileOutputStream   fos = new FileOutputStream(file);
-                                CipherOutputStream cos = new CipherOutputStream(fos, ct.getFileCipher("ENCRYPT", groupKey, IV));
-                                System.out.printf("Successfully created file %s\n", remotePath.replace('/', '_'));
-
-                                // Tell client that server is ready
-                                ct.incrementN();
-                                response = new Envelope("READY");
-                                response.addObject(ct.getN());
-                                output.writeObject(ct.encrypt(response));   // Send response
-                                output.writeObject(ct.getDigest(response)); // Send digest
-
-                                // Receive message
-                                e = (Envelope)ct.decrypt((byte[])input.readObject());
+                                // Start an upload session the client can resume if the connection drops
+                                UploadSession session = UploadSession.create(yourToken.getSubject(), group, path);
+                                System.out.printf("Started upload session %s for %s\n", session.getID(), path);
 
-                                // Verify message integrity
-                                if (ct.verifyMessage(e, (byte[])input.readObject()))
-                                    ct.incrementN();
-                                else
-                                {// Verification failed
-                                    System.out.println("Message Verification Failed");
-                                    socket.close();  // Close the socket
-                                    proceed = false; // End this communication loop
-                                }
-
-                                while (e.getMessage().compareTo("CHUNK") == 0)
-                                {// There is a chunk to read
-                                    cos.write((byte[])e.getObjContents().get(1), 0, (Integer)e.getObjContents().get(2));
-
-                                    // Tell client that server is ready
-                                    ct.incrementN();
-                                    response = new Envelope("READY");
-                                    response.addObject(ct.getN());
-                                    output.writeObject(ct.encrypt(response));   // Send response
-                                    output.writeObject(ct.getDigest(response)); // Send digest
-
-                                    // Receive message
-                                    e = (Envelope)ct.decrypt((byte[])input.readObject());
-
-                                    // Verify message integrity
-                                    if (ct.verifyMessage(e, (byte[])input.readObject()))
-                                        ct.incrementN();
-                                    else
-                                    {// Verification failed
-                                        System.out.println("Message Verification Failed");
-                                        socket.close();  // Close the socket
-                                        proceed = false; // End this communication loop
-                                    }
-                                }
-
-                                if (e.getMessage().compareTo("EOF") == 0)
-                                {// Reached end of file
-                                    System.out.printf("Transfer successful file %s\n", remotePath);
-                                    FileServer.fileList.addFile(yourToken.getSubject(), group, file.getPath());
-
-                                    // Tell client success
-                                    ct.incrementN();
-                                    response = new Envelope("OK");
-                                    response.addObject(ct.getN());
-                                }
-                                else
-                                {// Error
-                                    System.out.printf("Error reading file %s from client\n", remotePath);
-                                    ct.incrementN();
-                                    response = new Envelope("ERROR-TRANSFER");
-                                    response.addObject(ct.getN());
-                                }
-
-                                cos.close();
-                                fos.close();
+                                response = receiveUpload(session, groupKey,
+                                        e.getObjContents().size() > 6 ? (Integer)e.getObjContents().get(6) : null);
                             }
                         }
                     }
                     // Send response
                     output.writeObject(ct.encrypt(response));
                 }
-                /* Client wants to download file */
-                else if (e.getMessage().compareTo("DOWNLOADF") == 0)
+                /* Client wants to upload a file the group may already have, sending only its hash */
+                else if (e.getMessage().equals("UPLOADHASH"))
                 {
-                    String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
-                    SecretKey    groupKey   = (SecretKey)e.getObjContents().get(2);    // Extract group key
-                    byte[]       IV         = (byte[])e.getObjContents().get(3);       // Extract group IV
-                    SignedObject so         = (SignedObject)e.getObjContents().get(4); // Extract SignedObject
-                    UserToken    t          = verifyToken(so, KGS);                    // Extract requester token
-                    ShareFile    sf         = FileServer.fileList.getFile(remotePath); // Get the file
+                    UserToken t = e.getObjContents().size() < 6 ? null : verifyToken((SignedObject)e.getObjContents().get(3), KGS);
+
+                    if (t == null || e.getObjContents().get(1) == null || e.getObjContents().get(2) == null
+                            || e.getObjContents().get(4) == null || e.getObjContents().get(5) == null)
+                    {
+                        ct.incrementN();
+                        response = new Envelope("FAIL-BADCONTENTS");
+                        response.addObject(ct.getN());
+                    }
+                    else
+                    {
+                        String remotePath = (String)e.getObjContents().get(1); // Extract filename
+                        String group      = (String)e.getObjContents().get(2); // Extract group name
+                        String sha256     = (String)e.getObjContents().get(4); // Extract hash of the contents
+                        long   size       = (Long)e.getObjContents().get(5);   // Extract length of the contents
+                        String path       = "shared_files/" + group + "/" + remotePath.replace('/', '_');
 
-                    // Check parameters -- don't know why the skeleton code was set up like this but whatever
-                    //                  -- this should obviously happen before the parameters are set, not after
-                    //                  -- TODO: Change this to be set up like upload
+                        ct.incrementN();
+                        if (!t.getGroups().contains(group))
+                        {// Not part of group
+                            System.out.printf("Error: user missing valid token for group %s\n", group);
+                            response = new Envelope("FAIL-UNAUTHORIZED");
+                        }
+                        else if (FileServer.blobs.link(t.getSubject(), group, path, sha256, size))
+                        {
+                            System.out.printf("Transfer successful file %s, contents already stored\n", path);
+                            response = new Envelope("OK");
+                        }
+                        else // The client has to send the data with UPLOADF, which reports an existing path
+                            response = new Envelope("NOTFOUND");
+                        response.addObject(ct.getN());
+                    }
+                    // Send response
+                    output.writeObject(ct.encrypt(response));
+                }
+                /* Client wants to continue an upload that was cut off */
+                else if (e.getMessage().equals("RESUMEF"))
+                {
+                    // Check to make sure all parameters are passed
                     if (e.getObjContents().size() < 5)
-                    {// Parameters are missing
+                    {
                         ct.incrementN();
-                        e = new Envelope("FAIL-BADCONTENTS");
-                        e.addObject(ct.getN());
-                        output.writeObject(ct.encrypt(e)); // Send response
+                        response = new Envelope("FAIL-BADCONTENTS");
+                        response.addObject(ct.getN());
                     }
-                    else if (sf == null)
-                    {// File does not exist in FileList
+                    else
+                    {
+                        String        sessionID = (String)e.getObjContents().get(1);       // Extract session ID
+                        SecretKey     groupKey  = (SecretKey)e.getObjContents().get(2);    // Extract group key
+                        SignedObject  so        = (SignedObject)e.getObjContents().get(4); // Extract SignedObject
+                        UserToken     t         = verifyToken(so, KGS);                    // Extract requester token
+                        UploadSession session   = UploadSession.load(sessionID);           // Get the session
+
+                        if (session == null)
+                        {// Session expired, finished, or never existed
+                            System.out.printf("Error: upload session %s doesn't exist\n", sessionID);
+                            ct.incrementN();
+                            response = new Envelope("FAIL-NOSESSION");
+                            response.addObject(ct.getN());
+                        }
+                        else if (t == null || !t.getSubject().equals(session.getOwner()) || !t.getGroups().contains(session.getGroup()))
+                        {// Only the uploader may finish the upload
+                            System.out.printf("Error: user may not resume upload session %s\n", sessionID);
+                            ct.incrementN();
+                            response = new Envelope("FAIL-UNAUTHORIZED");
+                            response.addObject(ct.getN());
+                        }
+                        else
+                        {
+                            System.out.printf("Resuming upload session %s at byte %d\n", sessionID, session.getOffset());
+                            response = receiveUpload(session, groupKey,
+                                    e.getObjContents().size() > 5 ? (Integer)e.getObjContents().get(5) : null);
+                        }
+                    }
+                    // Send response
+                    output.writeObject(ct.encrypt(response));
+                }
+                /* Client wants to upload one file over several connections */
+                else if (e.getMessage().equals("MPINIT"))
+                {
+                    // Check to make sure all parameters are passed
+                    if (e.getObjContents().size() < 7 || e.getObjContents().get(1) == null || e.getObjContents().get(2) == null
+                            || e.getObjContents().get(3) == null || e.getObjContents().get(5) == null
+                            || e.getObjContents().get(6) == null || (Long)e.getObjContents().get(5) < 0)
+                    {
                         ct.incrementN();
-                        System.out.printf("Error: File %s doesn't exist\n", remotePath);
-                        e = new Envelope("ERROR_FILEMISSING");
-                        e.addObject(ct.getN());
-                        output.writeObject(ct.encrypt(e)); // Send response
+                        response = new Envelope("FAIL-BADCONTENTS");
+                        response.addObject(ct.getN());
                     }
-                    else if (!t.getGroups().contains(sf.getGroup()))
-                    {// File not in client's groups
+                    else
+                    {
+                        String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
+                        String       group      = (String)e.getObjContents().get(2);       // Extract group name
+                        SecretKey    groupKey   = (SecretKey)e.getObjContents().get(3);    // Extract group key
+                        SignedObject so         = (SignedObject)e.getObjContents().get(4); // Extract SignedObject
+                        long         length     = (Long)e.getObjContents().get(5);         // Extract file length
+                        int          segments   = (Integer)e.getObjContents().get(6);      // Extract number of segments wanted
+                        UserToken    t          = verifyToken(so, KGS);                    // Extract requester token
+                        String       path       = "shared_files/" + group + "/" + remotePath.replace('/', '_');
+                        MultipartUpload upload;
+
+                        if (FileServer.fileList.checkFile(path) || new File(path).exists())
+                        {// File exists
+                            System.out.printf("Error: file already exists at %s\n", remotePath);
+                            ct.incrementN();
+                            response = new Envelope("FAIL-FILEEXISTS");
+                            response.addObject(ct.getN());
+                        }
+                        else if (t == null || !t.getGroups().contains(group))
+                        {// Not part of group
+                            System.out.printf("Error: user missing valid token for group %s\n", group);
+                            ct.incrementN();
+                            response = new Envelope("FAIL-UNAUTHORIZED");
+                            response.addObject(ct.getN());
+                        }
+                        else if ((upload = MultipartUpload.create(t.getSubject(), group, path, groupKey, length, segments)) == null)
+                        {// Every upload holds a file open until it finishes or expires
+                            System.out.printf("Error: too many multipart uploads open for %s\n", t.getSubject());
+                            ct.incrementN();
+                            response = new Envelope("FAIL-TOOMANYUPLOADS");
+                            response.addObject(ct.getN());
+                        }
+                        else
+                        {
+                            new File("shared_files/" + group).mkdir();
+                            System.out.printf("Started multipart upload %s for %s in %d segments\n", upload.getID(), path, upload.getSegments());
+
+                            // Tell client how to split the file
+                            ct.incrementN();
+                            response = new Envelope("OK");
+                            response.addObject(ct.getN());                // Add N
+                            response.addObject(upload.getID());           // Add upload ID
+                            response.addObject(upload.getSegmentSize());  // Add segment size
+                            response.addObject(upload.getSegments());     // Add number of segments
+                        }
+                    }
+                    // Send response
+                    output.writeObject(ct.encrypt(response));
+                }
+                /* Client is sending one segment of a multipart upload */
+                else if (e.getMessage().equals("MPPART"))
+                {
+                    // Check to make sure all parameters are passed
+                    if (e.getObjContents().size() < 4 || e.getObjContents().get(2) == null)
+                    {
                         ct.incrementN();
-                        System.out.printf("Error user %s doesn't have permission\n", t.getSubject());
-                        e = new Envelope("ERROR_PERMISSION");
-                        e.addObject(ct.getN());
-                        output.writeObject(ct.encrypt(e)); // Send response
+                        response = new Envelope("FAIL-BADCONTENTS");
+                        response.addObject(ct.getN());
                     }
                     else
                     {
-                        try
-                        {   // PROB GONNA BE ERROR RIGHT HERE
-                            File f = new File(sf.getPath());
+                        MultipartUpload upload  = MultipartUpload.get((String)e.getObjContents().get(1)); // Get the upload
+                        int             segment = (Integer)e.getObjContents().get(2);                     // Extract segment number
+                        SignedObject    so      = (SignedObject)e.getObjContents().get(3);                // Extract SignedObject
+                        UserToken       t       = verifyToken(so, KGS);                                   // Extract requester token
+                        BlockFile.SegmentWriter writer;
 
-                            if (!f.exists())
-                            {// File does not exist on server directory
-                                System.out.printf("Error file %s missing from disk\n", "_"+remotePath.replace('/', '_'));
-                                ct.incrementN();
-                                e = new Envelope("ERROR_NOTONDISK"); // Tell client file does not exist
-                                e.addObject(ct.getN());
-                                output.writeObject(ct.encrypt(e)); // Send response
-                            }
-                            else
-                            {
-                                FileInputStream   fis = new FileInputStream(f);
-                                CipherInputStream cis = new CipherInputStream(fis, ct.getFileCipher("DECRYPT", groupKey, IV));
-
-                                do
-                                {// Send file in chunks
-                                    byte[] buf = new byte[4096];
-
-                                    if (e.getMessage().compareTo("DOWNLOADF") != 0)
-                                    {// Message is wrong
-                                        System.out.printf("Server error: %s\n", e.getMessage());
-                                        break;
-                                    }
-                                    // Tell client a chunk is coming
-                                    e = new Envelope("CHUNK");
-                                    int n = cis.read(buf); // Can throw an IOException
-                                    if (n > 0)             // Amount read
-                                        System.out.printf(".");
-                                    else if (n < 0)        // Didn't read in
-                                        System.out.println("Read error");
-                                    ct.incrementN();
-                                    e.addObject(ct.getN());              // Add N
-                                    e.addObject(buf);                    // Add chunk to be sent
-                                    e.addObject(new Integer(n));         // Add number of bytes in chunk
-                                    output.writeObject(ct.encrypt(e));   // Send response
-                                    output.writeObject(ct.getDigest(e)); // Send digest
-
-                                    // Get message from client
-                                    e = (Envelope)ct.decrypt((byte[])input.readObject());
-
-                                    // Verify message integrity
-                                    if (ct.verifyMessage(e, (byte[])input.readObject()))
-                                        ct.incrementN();
-                                    else
-                                    {// Verification failed
-                                        System.out.println("Message Verification Failed");
-                                        socket.close();  // Close the socket
-                                        proceed = false; // End this communication loop
-                                    }
-                                }
-                                while (cis.available() > 0);
-
-                                cis.close();
-                                fis.close();
-
-                                // If server indicates success, return the member list
-                                if (e.getMessage().compareTo("DOWNLOADF") == 0)
-                                {
-                                    ct.incrementN();
-                                    e = new Envelope("EOF");             // Tell client end of file
-                                    e.addObject(ct.getN());              // Add N
-                                    output.writeObject(ct.encrypt(e));   // Send response
-                                    output.writeObject(ct.getDigest(e)); // Send digest
-
-                                    // Get message from client
-                                    e = (Envelope)ct.decrypt((byte[])input.readObject());
-
-                                    // Verify message integrity
-                                    if (ct.verifyMessage(e, (byte[])input.readObject()))
-                                        ct.incrementN();
-                                    else
-                                    {// Verification failed
-                                        System.out.println("Message Verification Failed");
-                                        socket.close();  // Close the socket
-                                        proceed = false; // End this communication loop
-                                    }
-
-                                    if (e.getMessage().compareTo("OK") == 0)
-                                        System.out.printf("File data upload successful\n");
-                                    else
-                                        System.out.printf("Upload failed: %s\n", e.getMessage());
-                                }
-                                else
-                                    System.out.printf("Upload failed: %s\n", e.getMessage());
-                            }
+                        if (upload == null)
+                        {// Upload finished, was dropped, or never existed
+                            ct.incrementN();
+                            response = new Envelope("FAIL-NOSESSION");
+                            response.addObject(ct.getN());
                         }
-                        catch (Exception e1)
+                        else if (t == null || !t.getSubject().equals(upload.getOwner()) || !t.getGroups().contains(upload.getGroup()))
+                        {// Only the uploader may send segments
+                            ct.incrementN();
+                            response = new Envelope("FAIL-UNAUTHORIZED");
+                            response.addObject(ct.getN());
+                        }
+                        else if ((writer = upload.claim(segment)) == null)
+                        {// No such segment, or it has already been sent
+                            ct.incrementN();
+                            response = new Envelope("FAIL-BADSEGMENT");
+                            response.addObject(ct.getN());
+                        }
+                        else
+                            response = receivePart(upload, segment, writer,
+                                    e.getObjContents().size() > 4 ? (Integer)e.getObjContents().get(4) : null);
+                    }
+                    // Send response
+                    output.writeObject(ct.encrypt(response));
+                }
+                /* Client has sent every segment of a multipart upload, or is giving up on it */
+                else if (e.getMessage().equals("MPCOMPLETE") || e.getMessage().equals("MPABORT"))
+                {
+                    MultipartUpload upload = e.getObjContents().size() < 3 ? null : MultipartUpload.get((String)e.getObjContents().get(1));
+                    UserToken       t      = upload == null ? null : verifyToken((SignedObject)e.getObjContents().get(2), KGS);
+                    File            data;
+
+                    if (upload == null)
+                    {// Upload finished, was dropped, or never existed
+                        ct.incrementN();
+                        response = new Envelope("FAIL-NOSESSION");
+                        response.addObject(ct.getN());
+                    }
+                    else if (t == null || !t.getSubject().equals(upload.getOwner()) || !t.getGroups().contains(upload.getGroup()))
+                    {// Only the uploader may finish the upload
+                        ct.incrementN();
+                        response = new Envelope("FAIL-UNAUTHORIZED");
+                        response.addObject(ct.getN());
+                    }
+                    else if (e.getMessage().equals("MPABORT"))
+                    {
+                        System.out.printf("Multipart upload of %s aborted\n", upload.getPath());
+                        upload.abort();
+                        ct.incrementN();
+                        response = new Envelope("OK");
+                        response.addObject(ct.getN());
+                    }
+                    else if (!upload.isReceived())
+                    {// Segments still missing
+                        ct.incrementN();
+                        response = new Envelope("FAIL-MISSINGPARTS");
+                        response.addObject(ct.getN());
+                    }
+                    else if ((data = upload.complete()) == null)
+                    {// Another MPCOMPLETE or MPABORT for the same upload got there first
+                        ct.incrementN();
+                        response = new Envelope("FAIL-NOSESSION");
+                        response.addObject(ct.getN());
+                    }
+                    else if (storeMultipart(upload, data))
+                    {
+                        System.out.printf("Transfer successful file %s\n", upload.getPath());
+                        ct.incrementN();
+                        response = new Envelope("OK");
+                        response.addObject(ct.getN());
+                    }
+                    else
+                    {// Another upload to the same path finished first
+                        System.out.printf("Error: file already exists at %s\n", upload.getPath());
+                        ct.incrementN();
+                        response = new Envelope("FAIL-FILEEXISTS");
+                        response.addObject(ct.getN());
+                    }
+                    // Send response
+                    output.writeObject(ct.encrypt(response));
+                }
+                /* Client wants to download file */
+                else if (e.getMessage().compareTo("DOWNLOADF") == 0)
+                {
+                    // Check to make sure all parameters are passed
+                    if (e.getObjContents().size() < 5)
+                    {// Parameters are missing
+                        ct.incrementN();
+                        response = new Envelope("FAIL-BADCONTENTS");
+                        response.addObject(ct.getN());
+                    }
+                    else
+                    {
+                        String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
+                        SecretKey    groupKey   = (SecretKey)e.getObjContents().get(2);    // Extract group key
+                        byte[]       IV         = (byte[])e.getObjContents().get(3);       // Extract group IV
+                        SignedObject so         = (SignedObject)e.getObjContents().get(4); // Extract SignedObject
+                        UserToken    t          = verifyToken(so, KGS);                    // Extract requester token
+                        ShareFile    sf         = FileServer.fileList.getFile(remotePath); // Get the file
+                        File         f          = sf == null ? null : FileServer.blobs.locate(sf);
+
+                        if (sf == null)
+                        {// File does not exist in FileList
+                            System.out.printf("Error: File %s doesn't exist\n", remotePath);
+                            ct.incrementN();
+                            response = new Envelope("ERROR_FILEMISSING");
+                            response.addObject(ct.getN());
+                        }
+                        else if (!t.getGroups().contains(sf.getGroup()))
+                        {// File not in client's groups
+                            System.out.printf("Error user %s doesn't have permission\n", t.getSubject());
+                            ct.incrementN();
+                            response = new Envelope("ERROR_PERMISSION");
+                            response.addObject(ct.getN());
+                        }
+                        else if (!f.exists())
+                        {// File does not exist on server directory
+                            System.out.printf("Error file %s missing from disk\n", "_"+remotePath.replace('/', '_'));
+                            ct.incrementN();
+                            response = new Envelope("ERROR_NOTONDISK"); // Tell client file does not exist
+                            response.addObject(ct.getN());
+                        }
+                        else
                         {
-                            System.err.println("Error: " + e.getMessage());
-                            e1.printStackTrace(System.err);
+                            Long from   = e.getObjContents().size() > 6 ? (Long)e.getObjContents().get(6) : null; // Extract the first byte wanted
+                            Long count  = e.getObjContents().size() > 7 ? (Long)e.getObjContents().get(7) : null; // Extract the number of bytes wanted
+                            long offset = from == null ? 0 : from;    // From the start unless asked otherwise
+                            long length = count == null ? -1 : count; // To the end unless asked otherwise
+                            InputStream cis = openFile(f, groupKey, IV, offset, length);
+
+                            // Tell client a file is coming and how many chunks will be sent ahead
+                            int window = ChunkTransfer.negotiateWindow(
+                                    e.getObjContents().size() > 5 ? (Integer)e.getObjContents().get(5) : null,
+                                    FileServer.MAX_WINDOW);
+                            ct.incrementN();
+                            response = new Envelope("READY");
+                            response.addObject(ct.getN()); // Add N
+                            response.addObject(window);    // Add window
+                            output.writeObject(ct.encrypt(response));   // Send response
+                            output.writeObject(ct.getDigest(response)); // Send digest
+                            response = null;
+
+                            // Send file in chunks and get the client's reply
+                            ChunkTransfer transfer = new ChunkTransfer(input, output, ct, window, chunkSize, adaptive, compression);
+                            e = transfer.send(cis);
+                            System.out.println("Download " + transfer.getStats());
+
+                            cis.close();
+
+                            if (e.getMessage().compareTo("OK") == 0)
+                                System.out.printf("File data download successful\n");
+                            else
+                                System.out.printf("Download failed: %s\n", e.getMessage());
                         }
                     }
+                    // Send response
+                    if (response != null)
+                        output.writeObject(ct.encrypt(response));
+                }
+                /* Client wants the size, upload time and hash of a file */
+                else if (e.getMessage().equals("STAT"))
+                {
+                    UserToken yourToken = e.getObjContents().size() < 3 ? null : verifyToken((SignedObject)e.getObjContents().get(2), KGS);
+                    ShareFile sf        = yourToken == null ? null : FileServer.fileList.getFile((String)e.getObjContents().get(1));
+
+                    ct.incrementN();
+                    if (yourToken == null)
+                        response = new Envelope("FAIL-BADCONTENTS");
+                    else if (sf == null)
+                        response = new Envelope("ERROR_DOESNTEXIST");
+                    else if (!yourToken.getGroups().contains(sf.getGroup()))
+                        response = new Envelope("ERROR_PERMISSION");
+                    else
+                        response = new Envelope("OK");
+                    response.addObject(ct.getN()); // Add N
+                    if (response.getMessage().equals("OK"))
+                    {
+                        response.addObject(sf.getMetadata()); // Add the metadata, null if none was recorded
+                        response.addObject(sf.getOwner());    // Add the owner
+                    }
+                    // Send response
+                    output.writeObject(ct.encrypt(response));
+                }
+                /* Client wants to keep the session from being closed as idle */
+                else if (e.getMessage().equals("PING"))
+                {
+                    ct.incrementN();
+                    response = new Envelope("PONG");
+                    response.addObject(ct.getN());
+                    output.writeObject(ct.encrypt(response)); // Send response
                 }
                 /* Client wants to delete file */
                 else if (e.getMessage().compareTo("DELETEF") == 0)
@@ -453,7 +756,7 @@ public class FileThread extends Thread
                     {
                         try
                         {
-                            File f = new File(sf.getPath());
+                            File f = FileServer.blobs.locate(sf);
 
                             if (!f.exists())
                             {// File does not exist on server directory
@@ -462,10 +765,9 @@ public class FileThread extends Thread
                                 e = new Envelope("ERROR_FILEMISSING"); // Tell client file does not exist
                                 e.addObject(ct.getN());
                             }
-                            else if (f.delete())
-                            {
-                                System.out.printf("File %s deleted from disk\n", "_"+remotePath.replace('/', '_'));
-                                FileServer.fileList.removeFile(remotePath);
+                            else if (FileServer.blobs.remove(sf))
+                            {// The contents stay on disk while other files point at them
+                                System.out.printf("File %s deleted\n", "_"+remotePath.replace('/', '_'));
                                 ct.incrementN();
                                 e = new Envelope("OK"); // Tell client delete successful
                                 e.addObject(ct.getN());
@@ -508,13 +810,353 @@ public class FileThread extends Thread
                 // Send digest of response message
                 if (response != null)
                     output.writeObject(ct.getDigest(response));
+
+                if (transferring)
+                {// Let another transfer start
+                    FileServer.admission.endTransfer();
+                    transferring = false;
+                }
             } while (proceed);
         }
+        catch (SocketTimeoutException e)
+        {// The client went quiet, or vanished without a DISCONNECT
+            System.out.println("*** Closed quiet connection from " + socket.getInetAddress() + ":" + socket.getPort() + " ***");
+            FileServer.connections.reaped();
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e1)
+            {
+                System.err.println("Error: " + e1.getMessage());
+            }
+        }
         catch (Exception e)
         {
             System.err.println("Error: " + e.getMessage());
             e.printStackTrace(System.err);
         }
+        finally
+        {// Give back what the connection held if it ended part way
+            if (handshaking)
+                FileServer.admission.endHandshake();
+            if (transferring)
+                FileServer.admission.endTransfer();
+        }
+    }
+
+    /**
+     * Returns whether a request moves a file's contents, which AdmissionControl limits
+     *
+     * @param message The request's message
+     *
+     * @return true if it does, false otherwise
+     */
+    private static boolean isTransfer(String message)
+    {
+        return message.equals("UPLOADF") || message.equals("RESUMEF") || message.equals("MPPART")
+            || message.equals("DOWNLOADF");
+    }
+
+    /**
+     * Private method that runs a subscription on a FileServer.subscriptions thread until the client goes away.
+     * The subscription never reads, so FileServer.IDLE_TIMEOUT does not apply. A client that stops reading but keeps
+     * its connection up holds one of FileServer.MAX_SUBSCRIPTIONS, never a connection worker
+     *
+     * @param token The requester's token
+     * @param since The version the client has, negative if it will list its files itself
+     */
+    private void subscription(UserToken token, long since)
+    {
+        try
+        {
+            pushChanges(token, since);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Subscriber disconnected: " + e.getMessage());
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Private method that turns the connection into a feed of the changes to the requester's files.
+     * Replies OK with the current version, then sends CHANGES [N, version, changes] whenever files change
+     * and an empty CHANGES every FileServer.PUSH_KEEPALIVE_SECONDS, which is how a closed connection is noticed.
+     * RESET [N, version] means changes were missed and the client has to list its files again
+     *
+     * @param token The requester's token
+     * @param since The version the client has, negative if it will list its files itself
+     *
+     * @throws Exception When the client goes away
+     */
+    private void pushChanges(UserToken token, long since) throws Exception
+    {
+        ChangeFeed feed = new ChangeFeed(token.getGroups(), FileServer.CHANGE_LOG_SIZE);
+        FileServer.fileList.addListener(feed); // Before reading the version so nothing falls in between
+
+        try
+        {
+            long             version = FileServer.fileList.getVersion();
+            List<FileChange> missed  = since < 0 ? null : FileServer.fileList.getChanges(since, version, token.getGroups());
+
+            push("OK", version, null);
+            if (since >= 0 && missed == null)
+                push("RESET", version, null);     // Too old, the client has to list everything again
+            else if (missed != null && !missed.isEmpty())
+                push("CHANGES", version, missed); // Catch the client up first
+
+            while (true)
+            {
+                List<FileChange> changes = feed.take(FileServer.PUSH_KEEPALIVE_SECONDS * 1000L);
+                if (changes == null)
+                {// The client fell too far behind
+                    version = FileServer.fileList.getVersion();
+                    push("RESET", version, null);
+                    continue;
+                }
+
+                // Drop changes the client already has from the reply or a RESET
+                List<FileChange> fresh = new ArrayList<>();
+                for (FileChange change : changes)
+                    if (change.getVersion() > version)
+                        fresh.add(change);
+
+                if (!fresh.isEmpty())
+                    version = fresh.get(fresh.size() - 1).getVersion();
+                push("CHANGES", version, fresh);
+            }
+        }
+        finally
+        {
+            FileServer.fileList.removeListener(feed);
+        }
+    }
+
+    /**
+     * Private method that sends a message to a subscribed client
+     *
+     * @param message The message
+     * @param version The version the client is at after it
+     * @param changes The changes, null for none
+     *
+     * @throws Exception
+     */
+    private void push(String message, long version, List<FileChange> changes) throws Exception
+    {
+        ct.incrementN();
+        Envelope env = new Envelope(message);
+        env.addObject(ct.getN()); // Add N
+        env.addObject(version);   // Add the version
+        if (changes != null)
+            env.addObject(changes); // Add the changes
+        output.writeObject(ct.encrypt(env));   // Send message
+        output.writeObject(ct.getDigest(env)); // Send digest
+        output.reset(); // Subscriptions live long, so do not let the stream remember every change sent
+    }
+
+    /**
+     * Private method that opens a range of a stored file for reading.
+     * Block files only decrypt the blocks the range covers. Files stored before the block format
+     * are AES/CBC under the group IV and are decrypted from the start, skipping up to offset
+     *
+     * @param f The file
+     * @param groupKey The group key
+     * @param IV The group IV
+     * @param offset The first byte to read
+     * @param length The number of bytes to read, negative to read to the end
+     *
+     * @return The stream of plain text
+     *
+     * @throws Exception
+     */
+    private InputStream openFile(File f, SecretKey groupKey, byte[] IV, long offset, long length) throws Exception
+    {
+        if (BlockFile.isBlockFile(f))
+            return BlockFile.open(f, groupKey, offset, length);
+
+        InputStream cis  = new CipherInputStream(new FileInputStream(f), ct.getFileCipher("DECRYPT", groupKey, IV));
+        byte[]      skip = new byte[8192];
+        int         n;
+        while (offset > 0 && (n = cis.read(skip, 0, (int)Math.min(skip.length, offset))) >= 0)
+        {// CipherInputStream.skip() only skips what is already decrypted, so read through instead
+            offset -= n;
+        }
+
+        return length < 0 ? cis : new LimitedInputStream(cis, length);
+    }
+
+    /**
+     * Private method that receives one segment of a multipart upload
+     *
+     * @param upload The upload
+     * @param segment The segment number
+     * @param writer The writer returned when the segment was claimed
+     * @param requestedWindow The window the client asked for, null if it did not ask
+     *
+     * @return The response to send once the transfer is over
+     *
+     * @throws Exception
+     */
+    private Envelope receivePart(MultipartUpload upload, int segment, BlockFile.SegmentWriter writer, Integer requestedWindow)
+            throws Exception
+    {
+        Envelope response;
+        boolean  arrived = false;
+
+        // Tell client that server is ready, how many chunks it may send ahead, and how many bytes to send
+        int window = ChunkTransfer.negotiateWindow(requestedWindow, FileServer.MAX_WINDOW);
+        ct.incrementN();
+        response = new Envelope("READY");
+        response.addObject(ct.getN());                          // Add N
+        response.addObject(window);                             // Add window
+        response.addObject(upload.getSegmentLength(segment));   // Add segment length
+        output.writeObject(ct.encrypt(response));   // Send response
+        output.writeObject(ct.getDigest(response)); // Send digest
+
+        ChunkTransfer transfer = new ChunkTransfer(input, output, ct, window, chunkSize, adaptive, compression);
+        try
+        {
+            if (transfer.receive(writer))
+            {
+                writer.close();
+                arrived = writer.getWritten() == upload.getSegmentLength(segment);
+            }
+        }
+        finally
+        {// A segment that did not arrive whole can be sent again
+            upload.release(segment, arrived);
+        }
+        System.out.printf("Segment %d of %s: %s\n", segment, upload.getPath(), transfer.getStats());
+
+        ct.incrementN();
+        response = new Envelope(arrived ? "OK" : "ERROR-TRANSFER");
+        response.addObject(ct.getN());
+        return response;
+    }
+
+    /**
+     * Private method that receives the rest of an upload into its session and finishes it on EOF
+     *
+     * @param session The upload session
+     * @param groupKey The group key
+     * @param requestedWindow The window the client asked for, null if it did not ask
+     *
+     * @return The response to send once the transfer is over
+     *
+     * @throws Exception
+     */
+    private Envelope receiveUpload(UploadSession session, SecretKey groupKey, Integer requestedWindow) throws Exception
+    {
+        Envelope      response;
+        OutputStream  cos    = session.open(groupKey);
+        MessageDigest sha256 = FileMetadata.newDigest(); // Hashes the plain text as it is received
+
+        if (cos == null)
+        {// Another connection is already sending this upload
+            ct.incrementN();
+            response = new Envelope("FAIL-SESSIONBUSY");
+            response.addObject(ct.getN());
+            return response;
+        }
+
+        // Until the session completes, anything that goes wrong releases it so RESUMEF can carry on later
+        long          resumedAt = session.getOffset();
+        int           window    = ChunkTransfer.negotiateWindow(requestedWindow, FileServer.MAX_WINDOW);
+        ChunkTransfer transfer  = new ChunkTransfer(input, output, ct, window, chunkSize, adaptive, compression);
+        boolean       complete  = false;
+        File          data      = null;
+        try
+        {
+            // Tell client that server is ready, how many chunks it may send ahead, and where to start
+            ct.incrementN();
+            response = new Envelope("READY");
+            response.addObject(ct.getN());            // Add N
+            response.addObject(window);               // Add window
+            response.addObject(session.getID());      // Add session ID
+            response.addObject(resumedAt);            // Add offset to send from
+            output.writeObject(ct.encrypt(response));   // Send response
+            output.writeObject(ct.getDigest(response)); // Send digest
+
+            // Receive the chunks. Whatever arrived is kept for RESUMEF if the transfer does not finish
+            complete = transfer.receive(new DigestOutputStream(cos, sha256));
+            if (complete)
+            {
+                cos.close();
+                data = session.complete();
+            }
+        }
+        finally
+        {
+            if (data == null)
+                session.suspend();
+        }
+        System.out.println("Upload " + transfer.getStats());
+
+        if (!complete)
+        {// Error
+            System.out.printf("Error reading file %s from client\n", session.getPath());
+            ct.incrementN();
+            response = new Envelope("ERROR-TRANSFER");
+            response.addObject(ct.getN());
+        }
+        else
+        {
+            // The hash only saw this connection's bytes if the upload was resumed, so then hash the finished file
+            FileMetadata metadata = resumedAt == 0 ? new FileMetadata(BlockFile.length(data), sha256)
+                                                   : FileMetadata.read(data, groupKey);
+
+            if (FileServer.blobs.store(session.getOwner(), session.getGroup(), session.getPath(), metadata, data))
+            {// Reached end of file
+                System.out.printf("Transfer successful file %s\n", session.getPath());
+
+                // Tell client success
+                ct.incrementN();
+                response = new Envelope("OK");
+                response.addObject(ct.getN());
+            }
+            else
+            {// Another upload to the same path finished first
+                System.out.printf("Error: file already exists at %s\n", session.getPath());
+                ct.incrementN();
+                response = new Envelope("FAIL-FILEEXISTS");
+                response.addObject(ct.getN());
+            }
+        }
+
+        return response;
+    }
+
+    /**
+     * Private method that finishes a multipart upload and puts it in the BlobStore
+     *
+     * @param upload The upload, every segment of which has arrived
+     * @param data The finished file, from upload.complete()
+     *
+     * @return true if the file was added, false if a file already exists at its path
+     *
+     * @throws IOException
+     */
+    private boolean storeMultipart(MultipartUpload upload, File data) throws IOException
+    {
+        // Segments arrive out of order over several connections, so hash the finished file
+        FileMetadata metadata = FileMetadata.read(data, upload.getGroupKey());
+        return FileServer.blobs.store(upload.getOwner(), upload.getGroup(), upload.getPath(), metadata, data);
     }
 
     /**
@@ -0,0 +1,112 @@
+package server;
+
+import java.io.*;
+
+/**
+ * An ObjectInputStream that reads the frames FrameOutputStream writes, one object per frame.
+ * Only readObject() and close() may be used.
+ */
+public class FrameInputStream extends ObjectInputStream
+{
+    public static final int DEFAULT_MAX_FRAME = 64 * 1024 * 1024; // Largest frame read unless told otherwise
+
+    private final DataInputStream in;       // The stream the frames are read from
+    private final int             maxFrame; // Largest frame read, in bytes
+
+    /**
+     * Constructor which accepts the stream to read frames from, and reads MAGIC from it
+     *
+     * @param in The stream
+     *
+     * @throws IOException If the stream does not start with MAGIC
+     */
+    public FrameInputStream(InputStream in) throws IOException
+    {
+        this(in, DEFAULT_MAX_FRAME);
+    }
+
+    /**
+     * Constructor which accepts the stream to read frames from and the largest frame to read, and reads MAGIC from it
+     *
+     * @param in The stream
+     * @param maxFrame The largest frame in bytes, larger ones are refused before they are read
+     *
+     * @throws IOException If the stream does not start with MAGIC
+     */
+    public FrameInputStream(InputStream in, int maxFrame) throws IOException
+    {
+        super();
+        this.in       = new DataInputStream(in);
+        this.maxFrame = maxFrame;
+
+        int magic = this.in.readInt();
+        if (magic != FrameOutputStream.MAGIC)
+            throw new StreamCorruptedException(String.format("Stream starts with %08x, not frames", magic));
+    }
+
+    /**
+     * Reads the object in the next frame
+     *
+     * @return The object
+     *
+     * @throws IOException If the frame cannot be read or is too large
+     * @throws ClassNotFoundException If the object's class is unknown
+     */
+    @Override protected Object readObjectOverride() throws IOException, ClassNotFoundException
+    {
+        int length = in.readInt();
+        if (length < 0 || length > maxFrame)
+            throw new StreamCorruptedException("Frame of " + length + " bytes, the most is " + maxFrame);
+
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return decode(frame);
+    }
+
+    @Override public void close() throws IOException
+    {
+        in.close();
+    }
+
+    /**
+     * Deserializes the object in the bytes of a frame
+     *
+     * @param frame The bytes, without the length
+     *
+     * @return The object
+     *
+     * @throws IOException If the bytes are not a serialized object
+     * @throws ClassNotFoundException If the object's class is unknown
+     */
+    public static Object decode(byte[] frame) throws IOException, ClassNotFoundException
+    {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(frame)))
+        {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Checks whether a stream starts with MAGIC, without reading past it
+     *
+     * @param in The stream, which must support mark()
+     *
+     * @return true if it does, false if it starts with anything else, such as an object stream's header
+     *
+     * @throws IOException If the stream cannot be read
+     */
+    public static boolean isFramed(InputStream in) throws IOException
+    {
+        in.mark(4);
+        int magic = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            int b = in.read();
+            if (b < 0)
+                break;
+            magic = magic << 8 | b;
+        }
+        in.reset();
+        return magic == FrameOutputStream.MAGIC;
+    }
+}
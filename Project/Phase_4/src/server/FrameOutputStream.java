@@ -0,0 +1,77 @@
+package server;
+
+import java.io.*;
+
+/**
+ * An ObjectOutputStream that writes each object as a frame of its own, its length and then the object serialized
+ * by itself. Whoever reads the stream can tell where an object ends before deserializing it, which lets the NIO
+ * engine read requests as they arrive instead of keeping a thread blocked on every connection.
+ *
+ * The stream starts with MAGIC, where an object stream starts with its own header, so a server can tell which
+ * of the two a client opened. Only writeObject(), flush() and close() may be used.
+ */
+public class FrameOutputStream extends ObjectOutputStream
+{
+    public static final int MAGIC = 0x46524d31; // "FRM1", the first four bytes of the stream
+
+    private final DataOutputStream out; // The stream the frames are written to
+
+    /**
+     * Constructor which accepts the stream to write frames to, and writes MAGIC to it
+     *
+     * @param out The stream
+     *
+     * @throws IOException If MAGIC cannot be written
+     */
+    public FrameOutputStream(OutputStream out) throws IOException
+    {
+        super();
+        this.out = new DataOutputStream(new BufferedOutputStream(out)); // A frame's length goes out with the frame
+        this.out.writeInt(MAGIC);
+        this.out.flush();
+    }
+
+    /**
+     * Writes an object as one frame and flushes it
+     *
+     * @param object The object
+     *
+     * @throws IOException If the object cannot be serialized or written
+     */
+    @Override protected void writeObjectOverride(Object object) throws IOException
+    {
+        byte[] frame = encode(object);
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    @Override public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    @Override public void close() throws IOException
+    {
+        out.close();
+    }
+
+    /**
+     * Serializes an object into the bytes of a frame
+     *
+     * @param object The object
+     *
+     * @return The bytes, without the length
+     *
+     * @throws IOException If the object cannot be serialized
+     */
+    public static byte[] encode(Object object) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+}
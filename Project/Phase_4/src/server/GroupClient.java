@@ -21,6 +21,16 @@ public class GroupClient extends Client implements GroupClientInterface
     private PublicKey   publicKey;    // GroupServer public key
     private CryptoTools ct;           // Handles a lot of the encryption shit
 
+    /**
+     * Connects with framed streams, which both of the GroupServer's engines read
+     *
+     * @return true
+     */
+    @Override protected boolean isFramed()
+    {
+        return true;
+    }
+
     /**
      * Method responsible for handling the GroupClient side of the handshake protocol
      *
@@ -32,8 +42,14 @@ public class GroupClient extends Client implements GroupClientInterface
         {// Set provider as BouncyCastle
             Security.addProvider(new BouncyCastleProvider());
 
-            // Receive PublicKey from group server
-            publicKey = (PublicKey)input.readObject();
+            // Receive PublicKey from group server, or how long to wait if it is too busy
+            Object first = input.readObject();
+            if (first instanceof Envelope && isBusy((Envelope)first, 0))
+            {
+                System.out.printf("Server busy, retry after %d ms\n", retryAfter);
+                return false;
+            }
+            publicKey = (PublicKey)first;
 
             // Generate RC
             byte[] rndmBytes = new byte[8];
@@ -554,6 +570,48 @@ public class GroupClient extends Client implements GroupClientInterface
         }
     }
 
+    /**
+     * Tells the server the session is still in use, so it is not closed as idle.
+     * A client that may go longer than the server's idle timeout between requests should call this in between
+     *
+     * @return true if the server answered, false otherwise
+     */
+    public boolean ping()
+    {
+        try
+        {
+            Envelope message, response;
+
+            // Tell the server the session is still in use
+            ct.incrementN();
+            message = new Envelope("PING");
+            message.addObject(ct.getN()); // Add N
+            output.writeObject(ct.encrypt(message));   // Send message
+            output.writeObject(ct.getDigest(message)); // Send digest
+
+            // Get server response
+            response = (Envelope)ct.decrypt((byte[])input.readObject());
+
+            // Verify message
+            if (ct.verifyMessage(response, (byte[])input.readObject()))
+                ct.incrementN();
+            else
+            {// Verification failed
+                System.out.println("Message Verification Failed");
+                disconnect();
+                System.exit(0);
+            }
+
+            return response.getMessage().equals("PONG");
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return false;
+        }
+    }
+
     /**
      * Sets the password for the user of this group client
      *
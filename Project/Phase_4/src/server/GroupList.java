@@ -4,28 +4,79 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This list represents the groups on GroupServer
+ *
+ * As in UserList, a Group is never changed once it is in the list, a change puts a new Group in its place.
+ * Groups are read without any lock, a change locks only the group it changes, and a snapshot only needs
+ * the table of groups copied with the whole list locked.
+ *
+ * As in UserList, the groups are kept in a Storage, in memory unless the list is opened on a B-tree file,
+ * and serialized GroupLists hold them as a Hashtable named "list".
  */
 public class GroupList implements Serializable
 {
     private static final long serialVersionUID = 7600343803563417993L;
-    private Hashtable<String, Group> list = new Hashtable<>(); // list of groups
+    private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField("list", Hashtable.class) };
+    private transient Storage<Group>         list;             // list of groups
+    private transient StripedLocks           locks;            // Held by a change to a group, or by whatever copies the list
+    private transient volatile WriteAheadLog log;              // Where changes are logged until the next snapshot
+    private transient AtomicLong             changes;          // Changes made since the list was created or loaded
+
+    /**
+     * Default constructor, creates an empty list kept in memory
+     */
+    public GroupList()
+    {
+        list    = new MemoryStorage<>();
+        locks   = new StripedLocks();
+        changes = new AtomicLong();
+    }
+
+    /**
+     * Constructor which opens a list kept in a B-tree file, creating the file if it does not exist
+     *
+     * @param fileName The name of the file
+     * @param cachePages The most unchanged pages of it to keep in memory
+     *
+     * @throws IOException If the file cannot be opened or is damaged
+     */
+    public GroupList(String fileName, int cachePages) throws IOException
+    {
+        list    = new BTreeStorage<>(fileName, cachePages, new GroupCodec());
+        locks   = new StripedLocks();
+        changes = new AtomicLong();
+    }
 
     /**
      * Adds some group to GroupList
      *
      * @param groupname The group
      */
-    public synchronized void addGroup(String groupname)
+    public void addGroup(String groupname)
     {
-        Group newGroup = new Group();
-        list.put(groupname, newGroup);
+        long lsn;
+        try (StripedLocks.Held held = locks.lock(groupname))
+        {
+            Group newGroup = new Group();
+            list.put(groupname, newGroup);
+            lsn = logGroup(groupname);
+        }
+        commit(lsn);
     }
 
     /**
@@ -33,9 +84,15 @@ public class GroupList implements Serializable
      *
      * @param groupname The group
      */
-    public synchronized void deleteGroup(String groupname)
+    public void deleteGroup(String groupname)
     {
-        list.remove(groupname);
+        long lsn;
+        try (StripedLocks.Held held = locks.lock(groupname))
+        {
+            list.remove(groupname);
+            lsn = logGroup(groupname);
+        }
+        commit(lsn);
     }
 
     /**
@@ -45,7 +102,7 @@ public class GroupList implements Serializable
      *
      * @return true is group was found, false otherwise
      */
-    public synchronized boolean checkGroup(String groupname)
+    public boolean checkGroup(String groupname)
     {
         return list.containsKey(groupname);
     }
@@ -55,9 +112,9 @@ public class GroupList implements Serializable
      *
      * @param groupname The group
      *
-     * @return The list of members, null otherwise
+     * @return The list of members, which must not be changed
      */
-    public synchronized ArrayList<String> getGroupMembers(String groupname)
+    public ArrayList<String> getGroupMembers(String groupname)
     {
         return list.get(groupname).getMembers();
     }
@@ -69,7 +126,7 @@ public class GroupList implements Serializable
      *
      * @return The owner of group, null otherwise
      */
-    public synchronized String getGroupOwner(String groupname)
+    public String getGroupOwner(String groupname)
     {
         return list.get(groupname).getOwner();
     }
@@ -80,9 +137,15 @@ public class GroupList implements Serializable
      * @param username The member
      * @param groupname The group
      */
-    public synchronized void addMember(String username, String groupname)
+    public void addMember(String username, String groupname)
     {
-        list.get(groupname).addMember(username);
+        long lsn;
+        try (StripedLocks.Held held = locks.lock(groupname))
+        {
+            list.put(groupname, list.get(groupname).withMember(username));
+            lsn = logGroup(groupname);
+        }
+        commit(lsn);
     }
 
     /**
@@ -92,12 +155,18 @@ public class GroupList implements Serializable
      * @param username The member
      * @param groupname The group
      */
-    public synchronized void removeMember(String username, String groupname)
+    public void removeMember(String username, String groupname)
     { // deletes group if removed member is owner
-        if ( list.get(groupname).getOwner().equals(username) )
-            deleteGroup(groupname);
-        else
-            list.get(groupname).removeMember(username);
+        long lsn;
+        try (StripedLocks.Held held = locks.lock(groupname))
+        {
+            if ( list.get(groupname).getOwner().equals(username) )
+                list.remove(groupname);
+            else
+                list.put(groupname, list.get(groupname).withoutMember(username));
+            lsn = logGroup(groupname);
+        }
+        commit(lsn);
     }
 
     /**
@@ -106,9 +175,15 @@ public class GroupList implements Serializable
      * @param username The member
      * @param groupname The group
      */
-    public synchronized void setOwner(String username, String groupname)
+    public void setOwner(String username, String groupname)
     {
-        list.get(groupname).setOwner(username);
+        long lsn;
+        try (StripedLocks.Held held = locks.lock(groupname))
+        {
+            list.put(groupname, list.get(groupname).withOwner(username));
+            lsn = logGroup(groupname);
+        }
+        commit(lsn);
     }
 
     /**
@@ -118,7 +193,7 @@ public class GroupList implements Serializable
      *
      * @return The group key
      */
-    public synchronized SecretKey getGroupKey(String groupname)
+    public SecretKey getGroupKey(String groupname)
     {
         return list.get(groupname).getGroupKey();
     }
@@ -130,16 +205,282 @@ public class GroupList implements Serializable
      *
      * @return The initialization vector
      */
-    public synchronized byte[] getGroupIV(String groupname)
+    public byte[] getGroupIV(String groupname)
     {
         return list.get(groupname).getIV();
     }
 
     /**
-     * Represents the groups found in GroupList
+     * Returns the number of groups
+     *
+     * @return The number of groups
+     */
+    public long size()
+    {
+        return list.size();
+    }
+
+    /**
+     * Adds every group of another list, replacing any with the same name. The groups are not logged,
+     * this is for filling a new list, which must be saved before the log is relied on
+     *
+     * @param other The other list
+     */
+    public void addAll(GroupList other)
+    {
+        Map<String, Group> groups;
+        try (StripedLocks.Held held = other.locks.lockAll())
+        {
+            groups = other.list.copy();
+        }
+
+        try (StripedLocks.Held held = locks.lockAll())
+        {
+            for (Map.Entry<String, Group> entry : groups.entrySet())
+            {
+                Group group = entry.getValue();
+                list.put(entry.getKey(), new Group(group.owner, group.members, group.groupKey, group.IV));
+                changes.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns where the groups are kept
+     *
+     * @return The storage
+     */
+    public Storage<?> getStorage()
+    {
+        return list;
+    }
+
+    /**
+     * Returns the number of changes made since the list was created or loaded, replayed ones included
+     *
+     * @return The number of changes
+     */
+    public long getChanges()
+    {
+        return changes.get();
+    }
+
+    /**
+     * Starts logging every change to some log, after the changes already in it have been applied
+     *
+     * @param log The log
+     */
+    public void setLog(WriteAheadLog log)
+    {
+        this.log = log;
+    }
+
+    /**
+     * Applies a change read back from the log
+     *
+     * @param record The logged change
+     *
+     * @return true if it was a change to GroupList, false otherwise
+     */
+    @SuppressWarnings("unchecked")
+    public boolean apply(Envelope record)
+    {
+        ArrayList<Object> contents = record.getObjContents();
+        if (record.getMessage().equals("GROUP"))
+        {// GROUP [groupname, owner, members, groupKey, IV]
+            try (StripedLocks.Held held = locks.lock((String)contents.get(0)))
+            {
+                list.put((String)contents.get(0), new Group((String)contents.get(1), (ArrayList<String>)contents.get(2),
+                                                            (SecretKey)contents.get(3), (byte[])contents.get(4)));
+            }
+            changes.incrementAndGet();
+            return true;
+        }
+        else if (record.getMessage().equals("DGROUP"))
+        {// DGROUP [groupname]
+            try (StripedLocks.Held held = locks.lock((String)contents.get(0)))
+            {
+                list.remove((String)contents.get(0));
+            }
+            changes.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the groups in the format SnapshotCodec reads back with decode(), as they were when it was called.
+     * GroupList is only locked while its table is copied
+     *
+     * @param out The stream
+     *
+     * @throws IOException
+     */
+    public void encode(DataOutputStream out) throws IOException
+    {
+        Map<String, Group> groups;
+        try (StripedLocks.Held held = locks.lockAll())
+        {// Groups are replaced rather than changed, so copying the table is enough for a consistent view
+            groups = list.copy();
+        }
+
+        GroupCodec codec = new GroupCodec();
+        SnapshotCodec.writeCount(out, groups.size());
+        for (Map.Entry<String, Group> entry : groups.entrySet())
+        {
+            SnapshotCodec.writeString(out, entry.getKey());
+            codec.write(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads the groups written by encode()
+     *
+     * @param in The stream
+     * @param version The version of the layout, 1 is the only one so far
+     *
+     * @return The GroupList
+     *
+     * @throws IOException
+     */
+    public static GroupList decode(DataInputStream in, int version) throws IOException
+    {
+        GroupList  groupList = new GroupList();
+        GroupCodec codec     = groupList.new GroupCodec();
+        int        size      = SnapshotCodec.readCount(in);
+        for (int i = 0; i < size; i++)
+        {
+            String groupname = SnapshotCodec.readString(in);
+            groupList.list.put(groupname, codec.read(in));
+        }
+        return groupList;
+    }
+
+    /**
+     * Writes the groups as the Hashtable older versions stored
+     *
+     * @param out The stream
+     *
+     * @throws IOException
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        ObjectOutputStream.PutField fields = out.putFields();
+        try (StripedLocks.Held held = locks.lockAll())
+        {
+            fields.put("list", new Hashtable<>(list.copy()));
+        }
+        out.writeFields();
+    }
+
+    /**
+     * Reads the Hashtable written by writeObject() or by older versions
+     *
+     * @param in The stream
+     *
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields();
+        Hashtable<String, Group>   groups = (Hashtable<String, Group>)fields.get("list", null);
+        list    = new MemoryStorage<>(groups == null ? new Hashtable<String, Group>() : groups);
+        locks   = new StripedLocks();
+        changes = new AtomicLong();
+    }
+
+    /**
+     * Counts a change and logs the current state of some group, called with the group locked right after changing it
+     *
+     * @param groupname The group
+     *
+     * @return The sequence number of the record to commit, 0 if there is no log
+     */
+    private long logGroup(String groupname)
+    {
+        changes.incrementAndGet();
+        if (log == null)
+            return 0;
+
+        Group    group = list.get(groupname);
+        Envelope record;
+        if (group == null)
+        {
+            record = new Envelope("DGROUP");
+            record.addObject(groupname);
+        }
+        else
+        {// The key goes in too, the files of the group cannot be read with any other
+            record = new Envelope("GROUP");
+            record.addObject(groupname);
+            record.addObject(group.getOwner());
+            record.addObject(group.getMembers());
+            record.addObject(group.getGroupKey());
+            record.addObject(group.getIV());
+        }
+
+        try
+        {
+            return log.append(record);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits for a logged change to be on disk, called once the group is unlocked so other changes can share the write
+     *
+     * @param lsn The sequence number of the record
+     */
+    private void commit(long lsn)
+    {
+        try
+        {
+            if (log != null && lsn > 0)
+                log.await(lsn);
+        }
+        catch (IOException e)
+        {// The change was made but cannot be kept, the request must not be acknowledged
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes groups to bytes and back, for snapshots and for the B-tree
+     */
+    private class GroupCodec implements Storage.Codec<Group>
+    {
+        @Override public void write(DataOutputStream out, Group group) throws IOException
+        {
+            SnapshotCodec.writeString(out, group.getOwner());
+            SnapshotCodec.writeStrings(out, group.getMembers());
+            SnapshotCodec.writeString(out, group.getGroupKey().getAlgorithm());
+            SnapshotCodec.writeBytes(out, group.getGroupKey().getEncoded());
+            SnapshotCodec.writeBytes(out, group.getIV());
+        }
+
+        @Override public Group read(DataInputStream in) throws IOException
+        {
+            String            owner     = SnapshotCodec.readString(in);
+            ArrayList<String> members   = SnapshotCodec.readStrings(in);
+            String            algorithm = SnapshotCodec.readString(in);
+            SecretKey         groupKey  = new SecretKeySpec(SnapshotCodec.readBytes(in), algorithm);
+            byte[]            IV        = SnapshotCodec.readBytes(in);
+            return new Group(owner, members, groupKey, IV);
+        }
+    }
+
+    /**
+     * Represents the groups found in GroupList, a change returns a new Group and leaves this one as it was
      */
     class Group implements Serializable
     {
+        private static final long serialVersionUID = -4684226413967998864L; // The one computed before it was declared
+
         private String            owner;    // Owner of group
         private ArrayList<String> members;  // Members in group
         private SecretKey         groupKey; // SecretKey of the group
@@ -169,6 +510,22 @@ public class GroupList implements Serializable
             }
         }
 
+        /**
+         * Constructor which restores a group from the log
+         *
+         * @param owner The owner
+         * @param members The members
+         * @param groupKey The group key
+         * @param IV The IV
+         */
+        private Group(String owner, ArrayList<String> members, SecretKey groupKey, byte[] IV)
+        {
+            this.owner    = owner;
+            this.members  = members;
+            this.groupKey = groupKey;
+            this.IV       = IV;
+        }
+
         /**
          * Returns owner of this group
          *
@@ -190,39 +547,45 @@ public class GroupList implements Serializable
         }
 
         /**
-         * Sets the owner of this group,
-         * If owner is not already a member
-         * set as one
+         * Returns this group with a new owner,
+         * who is made a member if they are not one already
          *
          * @param username The new owner
+         *
+         * @return The new group
          */
-        public void setOwner(String username)
+        public Group withOwner(String username)
         {
-            addMember(username);
-            owner = username;
+            return new Group(username, withMember(username).members, groupKey, IV);
         }
 
         /**
-         * Adds some member to this group
+         * Returns this group with some member added
          *
          * @param username The member
+         *
+         * @return The new group
          */
-        public void addMember(String username)
+        public Group withMember(String username)
         {
+            ArrayList<String> members = new ArrayList<>(this.members);
             if (!members.contains(username))
                 members.add(username);
+            return new Group(owner, members, groupKey, IV);
         }
 
         /**
-         * Removes some member from this group
+         * Returns this group with some member removed
          *
          * @param username The member
+         *
+         * @return The new group
          */
-        public void removeMember(String username)
+        public Group withoutMember(String username)
         {
-            if (!members.isEmpty())
-                if (members.contains(username))
-                    members.remove(members.indexOf(username));
+            ArrayList<String> members = new ArrayList<>(this.members);
+            members.remove(username);
+            return new Group(owner, members, groupKey, IV);
         }
 
         /**
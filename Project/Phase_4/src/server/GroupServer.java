@@ -1,24 +1,57 @@
 package server;
 
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.io.*;
 import java.security.*;
 import java.util.*;
 
 /**
- * GroupServer loads the users from UserList.bin and the groups from GroupList.bin,
+ * GroupServer loads the users from UserList.bin and the groups from GroupList.bin, or opens them in UserList.db
+ * and GroupList.db if they are kept in B-trees,
  * If either UserList.bin or GroupList.bin does not exist, it creates a new UserList and makes the user ADMIN
  * and then creates a new GroupList and adds ADMIN to the list with the user as owner.
- * On exist, the server saves the UserList and GroupList to their respective files.
+ * Every change after that is written to GroupServer.wal before it is acknowledged, and replayed on top of
+ * the saved lists on the next start. The lists that changed are saved again, and the log emptied, once enough
+ * changes have been logged or a change has waited the maximum staleness, and on exit.
+ * Each connection is served by a GroupThread, on a thread of its own or, with gs.engine=nio, by a SelectorEngine
+ * that only gives it a thread while it has a request to handle.
  */
 public class GroupServer extends Server
 {
 	public static final int SERVER_PORT = 8765;
+    public static int SNAPSHOT_RECORDS     = Integer.getInteger("gs.snapshotRecords", 10000); // Logged changes that make AutoSave save the lists
+    public static int SNAPSHOT_COMPRESSION = Integer.getInteger("gs.snapshotCompression", 0); // How the lists are compressed when saved, a Compression ordinal
+    public static int SAVE_INTERVAL        = Integer.getInteger("gs.saveInterval", 120);      // Seconds between AutoSave's checks
+    public static int MAX_STALENESS        = Integer.getInteger("gs.maxStaleness", 600);      // Seconds a change may wait before its list is saved
+    public static String STORAGE           = System.getProperty("gs.storage", "memory");      // Where the lists are kept, memory or btree
+    public static int PAGE_CACHE           = Integer.getInteger("gs.pageCache", 16384);       // Most unchanged B-tree pages kept in memory per list
+    public static String EXECUTOR          = System.getProperty("gs.executor", "pool");       // Threads that handle connections, pool or virtual
+    public static int MAX_CONNECTIONS      = Integer.getInteger("gs.maxConnections", 256);    // Most connections handled at once
+    public static int MAX_QUEUED           = Integer.getInteger("gs.maxQueued", 1024);        // Most connections waiting for a thread
+    public static int QUEUE_TIMEOUT        = Integer.getInteger("gs.queueTimeout", 30);       // Seconds a connection waits for a thread before it is closed
+    public static String ENGINE            = System.getProperty("gs.engine", "thread");       // How connections are served, thread or nio
+    public static int SELECTORS            = Integer.getInteger("gs.selectors", 2);           // Event loop threads of the nio engine
+    public static int WORKERS              = Integer.getInteger("gs.workers", 0);             // Worker threads of the nio engine, 0 for one per processor
+    public static int MAX_FRAME_SIZE       = Integer.getInteger("gs.maxFrameSize", 1048576);  // Largest frame a client may send, in bytes
+    public static int MAX_HANDSHAKES       = Integer.getInteger("gs.maxHandshakes", 64);      // Most handshakes under way at once, 0 for no limit
+    public static int MIN_FREE_HEAP        = Integer.getInteger("gs.minFreeHeap", 10);        // Least percent of the heap free for a connection to be admitted
+    public static int RETRY_AFTER          = Integer.getInteger("gs.retryAfter", 2);          // Seconds a client turned away is asked to wait, on average
+    public static int READ_TIMEOUT         = Integer.getInteger("gs.readTimeout", 60);        // Seconds a client may take to send the rest of a handshake or request, 0 for no limit
+    public static int IDLE_TIMEOUT         = Integer.getInteger("gs.idleTimeout", 1800);      // Seconds a session may go without a request before it is closed, 0 for no limit
 	public UserList   userList;   // The list of users on this server
     public GroupList  groupList;  // The list of groups on this server
     public PublicKey  publicKey;  // The public key of the server
     public PrivateKey privateKey; // The private key of the server
+    public WriteAheadLog log;    // The changes made since the lists were last saved
+    public SavedList  userSave;   // Where the UserList is saved
+    public SavedList  groupSave;  // Where the GroupList is saved
+    public ConnectionExecutor connections; // Runs a GroupThread for each connection
+    public SelectorEngine     engine;      // Serves framed connections if the nio engine is used, null otherwise
+    public AdmissionControl   admission;   // Turns connections away while the server is overloaded
+    public StripedLocks       locks = new StripedLocks(); // Held by GroupThreads while a request changes both lists
 
     /**
      * Default constructor.
@@ -45,40 +78,35 @@ public class GroupServer extends Server
      */
 	public void start()
     {// Overwrote server.start() because if no user file exists, initial admin account needs to be created
-		String  userFile  = "UserList.bin";         // The file holding the UserList
-        String  groupFile = "GroupList.bin";        // The file holding the GroupList
-        String  keyFile   = "GroupKeyPair.bin";     // The file holding the KeyPair
-		Scanner console   = new Scanner(System.in); // The scanner for console input
-		ObjectInputStream userStream;               // The InputStream for the userFile
-		ObjectInputStream groupStream;              // The InputStream for the groupFile
-        ObjectInputStream keyStream;                // The InputStream for the keyFile
-        FileInputStream   fis;                      // The FileInputStream for all ObjectInputStreams
-        KeyPair keyPair;                            // The KeyPair for this server
+        String       logFile = "GroupServer.wal";                   // The prefix of the change log's segments
+        boolean      created = false;                               // Whether the lists were just created
+        Scanner      console = new Scanner(System.in);              // The scanner for console input
+        SnapshotFile keyFile = new SnapshotFile("GroupKeyPair.bin"); // The file holding the KeyPair
+        KeyPair      keyPair;                                       // The KeyPair for this server
 
 		// This runs a thread that saves the lists on program exit
 		Runtime runtime = Runtime.getRuntime();
 		runtime.addShutdownHook(new ShutDownListener(this));
 
 		try
-		{// Open user and group files to get lists
-            // Open user file
-			fis         = new FileInputStream(userFile);
-			userStream  = new ObjectInputStream(fis);
-			userList    = (UserList)userStream.readObject();
-            // Open group file
-            fis         = new FileInputStream(groupFile);
-            groupStream = new ObjectInputStream(fis);
-            groupList   = (GroupList)groupStream.readObject();
-            // Open key file
-            fis         = new FileInputStream(keyFile);
-            keyStream   = new ObjectInputStream(fis);
-            keyPair     = (KeyPair)keyStream.readObject();
+		{// Open user and group files to get lists, each falls back to the save before it if damaged
+            if (STORAGE.equals("btree"))
+                created = openTrees();
+            else
+            {
+                userSave  = new SavedList("UserList.bin", Compression.fromOrdinal(SNAPSHOT_COMPRESSION), MAX_STALENESS * 1000L);
+                groupSave = new SavedList("GroupList.bin", Compression.fromOrdinal(SNAPSHOT_COMPRESSION), MAX_STALENESS * 1000L);
+                userList  = (UserList)userSave.load();
+                groupList = (GroupList)groupSave.load();
+            }
+            keyPair     = (KeyPair)keyFile.readObject();
             publicKey   = keyPair.getPublic();
             privateKey  = keyPair.getPrivate();
 		}
 		catch (FileNotFoundException e)
 		{
 			System.out.println("UserList or GroupList File Does Not Exist. Creating new UserList...");
+            created = true;
 			System.out.println("No users currently exist. Your account will be the administrator.");
 			System.out.print("Enter your username: ");
 			String username = console.next();
@@ -87,7 +115,9 @@ public class GroupServer extends Server
             System.out.println();
 
 			// Create a new userList, add current user to the ADMIN group. They now own the ADMIN group.
-			userList = new UserList();
+			// B-trees were already opened, empty
+			if (!STORAGE.equals("btree"))
+				userList = new UserList();
 			userList.addUser(username, password);
 			userList.addGroup(username, "ADMIN");
 			userList.addOwnership(username, "ADMIN");
@@ -96,7 +126,8 @@ public class GroupServer extends Server
             System.out.println("No groups currently exist. Your account will be added to the ADMIN group.");
 
             // Create a new groupList, create ADMIN group, add current user to ADMIN group as owner
-            groupList = new GroupList();
+            if (!STORAGE.equals("btree"))
+                groupList = new GroupList();
             groupList.addGroup("ADMIN");
             groupList.setOwner(username, "ADMIN");
 
@@ -112,41 +143,75 @@ public class GroupServer extends Server
                 System.out.println(privateKey.toString());
 
                 // Save to file
-                ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(keyFile));
-                outputStream.writeObject(keyPair);
-                outputStream.flush();
-                outputStream.close();
+                keyFile.writeObject(keyPair);
             }
             catch (NoSuchAlgorithmException | IOException e1)
             {
                 e1.printStackTrace();
             }
         }
-		catch (IOException | ClassNotFoundException e)
+		catch (IOException e)
 		{
 			System.out.println("Error reading from UserList or GroupList file");
 			System.exit(-1);
 		}
 
-        // Autosave Daemon. Saves lists every 5 minutes
+        try
+        {// Replay the changes made since the lists were saved, then log every change from here on
+            log = new WriteAheadLog(logFile);
+            List<Object> records = log.recover();
+            for (Object record : records)
+                if (!userList.apply((Envelope)record) && !groupList.apply((Envelope)record))
+                    System.out.println("Skipping unknown change " + ((Envelope)record).getMessage());
+            if (!records.isEmpty())
+                System.out.printf("Replayed %d changes from %s\n", records.size(), logFile);
+            userList.setLog(log);
+            groupList.setLog(log);
+
+            // Save the lists so a new server does not depend on the log and an old log is not replayed again
+            if (created || !records.isEmpty())
+                checkpoint();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Error replaying " + logFile + ": " + e.getMessage());
+            System.exit(-1);
+        }
+
+        // Autosave Daemon. Saves lists once enough changes are logged
 		AutoSave aSave = new AutoSave(this);
 		aSave.setDaemon(true);
 		aSave.start();
 
-		// This block listens for connections and creates threads on new connections
+		// This block listens for connections and hands them to the connection threads, or to the NIO engine
+		admission   = new AdmissionControl("GroupServer", MAX_HANDSHAKES, 0, MIN_FREE_HEAP, RETRY_AFTER * 1000);
+		connections = new ConnectionExecutor("GroupServer", EXECUTOR, MAX_CONNECTIONS, MAX_QUEUED, QUEUE_TIMEOUT * 1000L);
 		try
 		{
-			final ServerSocket serverSock = new ServerSocket(port);
-            System.out.printf("%s up and running\n", this.getClass().getName());
+			if ("nio".equalsIgnoreCase(ENGINE))
+			{// Clients that open object streams instead of frames still get a thread each
+				final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				serverChannel.socket().bind(new InetSocketAddress(port));
+				engine = new SelectorEngine("GroupServer", SELECTORS,
+				                            WORKERS > 0 ? WORKERS : Runtime.getRuntime().availableProcessors(), MAX_FRAME_SIZE,
+				                            READ_TIMEOUT * 1000L, IDLE_TIMEOUT * 1000L,
+				                            socket -> new GroupThread(socket, this),
+				                            (socket, preread) -> connections.execute(socket, new GroupThread(socket, this, preread)));
+				System.out.printf("%s up and running\n", this.getClass().getName());
+				engine.serve(serverChannel);
+			}
+			else
+			{
+				final ServerSocket serverSock = new ServerSocket(port);
+				System.out.printf("%s up and running\n", this.getClass().getName());
 
-			Socket      sock;
-			GroupThread thread;
+				Socket sock;
 
-			while (true)
-			{// Start GroupThread
-				sock   = serverSock.accept();
-				thread = new GroupThread(sock, this);
-				thread.start();
+				while (true)
+				{// Run GroupThread when a thread is free
+					sock = serverSock.accept();
+					connections.execute(sock, new GroupThread(sock, this));
+				}
 			}
 		}
 		catch (Exception e)
@@ -155,6 +220,54 @@ public class GroupServer extends Server
 			e.printStackTrace(System.err);
 		}
 	}
+
+    /**
+     * Opens the lists kept in B-trees, filling new trees from UserList.bin and GroupList.bin if those exist,
+     * so a server can move from snapshots to B-trees by restarting with gs.storage=btree
+     *
+     * @return true if the trees were filled and must be saved, false if they were opened as they were
+     *
+     * @throws FileNotFoundException If the trees are new and there are no saved lists to fill them from
+     * @throws IOException If a tree or saved list cannot be read
+     */
+    private boolean openTrees() throws IOException
+    {
+        userList  = new UserList("UserList.db", PAGE_CACHE);
+        groupList = new GroupList("GroupList.db", PAGE_CACHE);
+        userSave  = new SavedList(userList.getStorage(), MAX_STALENESS * 1000L);
+        groupSave = new SavedList(groupList.getStorage(), MAX_STALENESS * 1000L);
+        if (userList.size() > 0 || groupList.size() > 0)
+            return false;
+
+        UserList  users  = (UserList)new SnapshotFile("UserList.bin").readObject();
+        GroupList groups = (GroupList)new SnapshotFile("GroupList.bin").readObject();
+        userList.addAll(users);
+        groupList.addAll(groups);
+        System.out.printf("Copied %d users and %d groups into UserList.db and GroupList.db\n", users.size(), groups.size());
+        return true;
+    }
+
+    /**
+     * Saves the lists that changed since they were last saved and deletes the logged changes no save needs.
+     * Nothing is done if neither changed. The lists are only locked while their tables are copied, the snapshots
+     * are encoded and written afterwards. Changes since each list's previous save are kept, so it can still be
+     * loaded from that if the new one is damaged
+     *
+     * @throws IOException If a list cannot be saved, the log is kept
+     */
+    public synchronized void checkpoint() throws IOException
+    {
+        if (!userSave.isDirty(userList.getChanges()) && !groupSave.isDirty(groupList.getChanges()))
+            return;
+
+        long last = log.roll(); // Changes logged from here on are kept
+        userSave.save(userList, userList.getChanges(), last);
+        groupSave.save(groupList, groupList.getChanges(), last);
+
+        long needed = Math.min(userSave.getNeeded(), groupSave.getNeeded());
+        if (needed >= 0)
+            log.truncate(needed);
+    }
 }
 
 /**
@@ -172,13 +285,19 @@ class ShutDownListener extends Thread
 	public void run()
 	{
 		System.out.println("Shutting down server");
-		ObjectOutputStream outStream;
+		if (my_gs.connections != null)
+			System.out.println(my_gs.connections);
+		if (my_gs.engine != null)
+			System.out.println(my_gs.engine);
+		if (my_gs.admission != null)
+			System.out.println(my_gs.admission);
+		if (my_gs.log == null)
+			return; // Never finished starting
+
 		try
 		{
-			outStream = new ObjectOutputStream(new FileOutputStream("UserList.bin"));
-			outStream.writeObject(my_gs.userList);
-            outStream = new ObjectOutputStream(new FileOutputStream("GroupList.bin"));
-            outStream.writeObject(my_gs.groupList);
+			my_gs.checkpoint();
+			my_gs.log.close();
 		}
 		catch(Exception e)
 		{
@@ -189,7 +308,8 @@ class ShutDownListener extends Thread
 }
 
 /**
- * This thread autosaves the user and group lists every 5 min
+ * This thread autosaves the user and group lists once enough changes are logged or a change has waited
+ * the maximum staleness, checking every save interval
  */
 class AutoSave extends Thread
 {
@@ -205,16 +325,16 @@ class AutoSave extends Thread
 		do
 		{
 			try
-			{// Save group and user lists every 2 minutes
-				Thread.sleep(120000);
+			{// Changes are already safe in the log so small ones can wait, up to the maximum staleness
+				Thread.sleep(GroupServer.SAVE_INTERVAL * 1000L);
+				boolean stale = my_gs.userSave.isStale(my_gs.userList.getChanges());
+				stale |= my_gs.groupSave.isStale(my_gs.groupList.getChanges());
+				if (my_gs.log.size() < GroupServer.SNAPSHOT_RECORDS && !stale)
+					continue;
 				System.out.println("Autosave group and user lists...");
-				ObjectOutputStream outStream;
 				try
 				{
-					outStream = new ObjectOutputStream(new FileOutputStream("UserList.bin"));
-					outStream.writeObject(my_gs.userList);
-                    outStream = new ObjectOutputStream(new FileOutputStream("GroupList.bin"));
-                    outStream.writeObject(my_gs.groupList);
+					my_gs.checkpoint();
 				}
 				catch(Exception e)
 				{
@@ -2,24 +2,30 @@ package server;
 
 import java.security.*;
 import javax.crypto.*;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
-import java.lang.Thread;
 import java.math.BigInteger;
 
 
 /**
- * This thread does all the work. It communicates with the client through Envelopes.
+ * This does all the work for one connection. It communicates with the client through Envelopes.
+ * run() handles the connection on a thread of its own. The NIO engine instead calls opened() when the client
+ * connects and received() with each object the client sends, on whichever worker thread is free.
  */
-public class GroupThread extends Thread
+public class GroupThread implements Runnable, SelectorEngine.Handler
 {
-	private final Socket      socket; // The socket
-	private       GroupServer my_gs;  // The GroupServer
+	private final Socket        socket;      // The socket
+	private final byte[]        preread;     // Bytes read from the socket before this was given it, null if none
+	private       GroupServer   my_gs;       // The GroupServer
+	private       CryptoTools   ct;          // The session's CryptoTools, null until the handshake is done
+	private final List<Object>  received    = new ArrayList<Object>(5); // Objects received towards the next handshake or request
+	private final AtomicBoolean handshaking = new AtomicBoolean();      // Whether this holds one of the server's handshakes
 
     /**
      * Constructor which accepts the socket and GroupServer
@@ -29,415 +35,588 @@ public class GroupThread extends Thread
      */
 	public GroupThread(Socket _socket, GroupServer _gs)
 	{
-		socket = _socket;
-		my_gs  = _gs;
+		this(_socket, _gs, null);
+	}
+
+    /**
+     * Constructor which accepts the socket, the bytes already read from it and GroupServer
+     *
+     * @param _socket The socket
+     * @param _gs The GroupServer
+     * @param _preread The bytes already read, null if none
+     */
+	public GroupThread(Socket _socket, GroupServer _gs, byte[] _preread)
+	{
+		socket  = _socket;
+		my_gs   = _gs;
+		preread = _preread;
 	}
 
     /**
      * Method that runs this thread.
-     * Contains all the handlers for messages this server accepts from client,
-     * which are outlined in GroupClientInterface.java
+     * Opens framed streams if the client sends FrameOutputStream's header and object streams otherwise,
+     * then passes everything the client sends to received() until it ends the communication
      */
 	public void run()
 	{
-		boolean proceed = true;
-
 		try
 		{
-			// Announces connection and opens object streams
-			System.out.println("*** New connection from " + socket.getInetAddress() + ":" + socket.getPort() + " ***");
-			final ObjectInputStream  input  = new ObjectInputStream(socket.getInputStream());
-			final ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
-
-            /* HANDSHAKE PROTOCOL */
-            System.out.println("Handshake with GroupClient started");
-
-            // Set provider as BouncyCastle
-            Security.addProvider(new BouncyCastleProvider());
+			socket.setSoTimeout(GroupServer.READ_TIMEOUT * 1000);
+			InputStream in = socket.getInputStream();
+			if (preread != null)
+				in = new SequenceInputStream(new ByteArrayInputStream(preread), in);
+			in = new BufferedInputStream(in);
+
+			final ObjectInputStream  input;
+			final ObjectOutputStream output;
+			if (FrameInputStream.isFramed(in))
+			{
+				input  = new FrameInputStream(in, GroupServer.MAX_FRAME_SIZE);
+				output = new FrameOutputStream(socket.getOutputStream());
+			}
+			else
+			{
+				input  = new ObjectInputStream(in);
+				output = new ObjectOutputStream(socket.getOutputStream());
+			}
 
-            // Set RSA cipher
-            Cipher cipher = Cipher.getInstance("RSA", "BC");
-            cipher.init(Cipher.DECRYPT_MODE, my_gs.privateKey);
+			if (opened(output))
+				while (received(nextObject(input), output))
+					; // Listen for messages from client
+		}
+		catch (SocketTimeoutException e)
+		{// The client went quiet, or vanished without a DISCONNECT
+			System.out.println("*** Closed quiet connection from " + socket.getInetAddress() + ":" + socket.getPort() + " ***");
+			my_gs.connections.reaped();
+		}
+		catch (Exception e)
+		{
+			System.err.println("Error: " + e.getMessage());
+			e.printStackTrace(System.err);
+		}
+		finally
+		{// Close the socket, also when the client is not answered, so it is not left waiting
+			closed();
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				System.err.println("Error: " + e.getMessage());
+			}
+		}
+	}
 
-            // Send Public Key to client
-            output.writeObject(my_gs.publicKey);
+    /**
+     * Reads the next object the client sends, waiting at most GroupServer.IDLE_TIMEOUT for a new request
+     * and GroupServer.READ_TIMEOUT for the rest of a handshake or request
+     *
+     * @param input The stream from the client
+     *
+     * @return The object
+     *
+     * @throws Exception If it cannot be read, or SocketTimeoutException if it did not arrive in time
+     */
+	private Object nextObject(ObjectInputStream input) throws Exception
+	{
+		socket.setSoTimeout((isIdle() ? GroupServer.IDLE_TIMEOUT : GroupServer.READ_TIMEOUT) * 1000);
+		return input.readObject();
+	}
 
-            // Needed to convert from byte arrays
-            CryptoTools ct = new CryptoTools();
+    /**
+     * Announces the connection and starts the handshake by sending the server's public key,
+     * or answers BUSY with the milliseconds to wait before retrying if the server admits no more handshakes
+     *
+     * @param output The stream to the client
+     *
+     * @return true if the handshake started, false if the client was turned away
+     *
+     * @throws Exception
+     */
+	@Override public boolean opened(ObjectOutputStream output) throws Exception
+	{
+		System.out.println("*** New connection from " + socket.getInetAddress() + ":" + socket.getPort() + " ***");
 
-            // Set up CryptoTools
-            ct = new CryptoTools(new BigInteger(cipher.doFinal((byte[])input.readObject())).intValue(),   // N       // N
-                                (SecretKey)ct.fromByteArray(cipher.doFinal((byte[])input.readObject())),  // KS
-                                 cipher.doFinal((byte[])input.readObject()),                              // IV
-                                (SecretKey)ct.fromByteArray(cipher.doFinal((byte[]) input.readObject()))); // KH
-            BigInteger RC = (BigInteger)ct.fromByteArray(cipher.doFinal((byte[]) input.readObject()));     // RC
+		// Turn the client away before any cryptography is done for it
+		if (!my_gs.admission.startHandshake())
+		{
+			Envelope busy = new Envelope("BUSY");
+			busy.addObject(my_gs.admission.getRetryAfter());
+			output.writeObject(busy);
+			return false;
+		}
+		handshaking.set(true);
 
-            // RC + 1
-            RC = new BigInteger(String.valueOf(RC.intValue() + 1));  // RC + 1
+		/* HANDSHAKE PROTOCOL */
+		System.out.println("Handshake with GroupClient started");
 
-            // Encrypt and send back challenge response using KS
-            ct.incrementN();
-            Envelope envelope = new Envelope("RC+1");
-            envelope.addObject(ct.getN()); // Add N
-            envelope.addObject(RC);        // Add RC
-            output.writeObject(ct.encrypt(envelope));   // Send cipher text
-            output.writeObject(ct.getDigest(envelope)); // Send message digest
-
-            System.out.println("Handshake with GroupClient complete");
-   			do
-			{// Listen for messages from client
-                Envelope message = (Envelope) ct.decrypt((byte[]) input.readObject());
-                byte[]   digest  = (byte[])input.readObject();
-                System.out.println("Request received: " + message.getMessage());
-                // Verify message integrity
-                if (ct.verifyMessage(message, digest))
-                    ct.incrementN();
-                else
-                {// Verification failed
-                    System.out.println("Message Verification Failed");
-                    socket.close();  // Close the socket
-                    proceed = false; // End this communication loop
-                }
+		// Set provider as BouncyCastle
+		Security.addProvider(new BouncyCastleProvider());
 
-				Envelope response = null;   // Server response
+		// Send Public Key to client
+		output.writeObject(my_gs.publicKey);
+		return true;
+	}
 
-                /* Client wants a token */
-				if (message.getMessage().equals("GET"))
-				{
-                    // Get the username, password, and fileServerID
-					String username     = (String)message.getObjContents().get(1);
-                    String password     = (String)message.getObjContents().get(2);
-                    String fileServerID = (String)message.getObjContents().get(3);
+    /**
+     * Returns whether the handshake is done and no part of a request has arrived
+     *
+     * @return true if it is, false otherwise
+     */
+	@Override public boolean isIdle()
+	{
+		return ct != null && received.isEmpty();
+	}
 
-					if (username == null || password == null || fileServerID == null)
-					{// If username or password or ID is null, send back fail and a null token
-                        ct.incrementN();
-						response = new Envelope("FAIL");
-                        response.addObject(ct.getN());
-						response.addObject(null);
-						output.writeObject(ct.encrypt(response));
-					}
-					else
-					{// Create a SignedObject containing the token
-						SignedObject so = createToken(username, password, fileServerID);
+    /**
+     * Gives back the handshake this held, if the connection closed before it was done
+     */
+	@Override public void closed()
+	{
+		if (handshaking.compareAndSet(true, false))
+			my_gs.admission.endHandshake();
+	}
 
-						// Respond to the client. On error, the client will receive a null token
-                        ct.incrementN();
-						response = new Envelope("OK");
-                        response.addObject(ct.getN());
-						response.addObject(so);
-						output.writeObject(ct.encrypt(response));
-					}
-				}
-                /* Client wants to create a user */
-				else if (message.getMessage().equals("CUSER"))
+    /**
+     * Takes an object sent by the client. The first five finish the handshake, after which
+     * every two are a request and its digest, which is handled and answered
+     *
+     * @param object The object
+     * @param output The stream to the client
+     *
+     * @return true to go on, false to end the communication
+     *
+     * @throws Exception
+     */
+	@Override public boolean received(Object object, ObjectOutputStream output) throws Exception
+	{
+		received.add(object);
+		if (ct == null)
+		{// N, KS, IV, KH and RC
+			if (received.size() == 5)
+			{
+				try
 				{
-                    // Check to make sure all parameters are passed
-					if (message.getObjContents().size() < 4)
-						response = new Envelope("FAIL");
-					else
-					{
-						response = new Envelope("FAIL");
-
-                        // Check to make sure all parameters != null
-						if (message.getObjContents().get(1) != null)         // username
-                            if (message.getObjContents().get(2) != null)     // password
-							    if (message.getObjContents().get(3) != null) // token
-							    {// Extract the username, password, and token
-				    				String       username  = (String)message.getObjContents().get(1);
-                                    String       password  = (String)message.getObjContents().get(2);
-					    			SignedObject so        = (SignedObject)message.getObjContents().get(3);
-
-                                    // If user is created, change response to OK
-							    	if (createUser(username, password, so))
-								    	response = new Envelope("OK");
-							    }
-					}
-                    // Send response
-                    ct.incrementN();
-                    response.addObject(ct.getN());
-					output.writeObject(ct.encrypt(response));
+					handshake(output);
 				}
-                /* Client wants to delete a user */
-				else if (message.getMessage().equals("DUSER"))
+				finally
 				{
-                    // Check to make sure all parameters are passed
-					if (message.getObjContents().size() < 3)
-						response = new Envelope("FAIL");
-					else
-					{
-						response = new Envelope("FAIL");
-
-                        // Check to make sure both parameters != null
-						if (message.getObjContents().get(1) != null)
-							if (message.getObjContents().get(2) != null)
-							{// Extract the username and token
-								String       username  = (String)message.getObjContents().get(1);
-								SignedObject so        = (SignedObject)message.getObjContents().get(2);
-
-                                // If user is deleted, change response to OK
-								if (deleteUser(username, so))
-									response = new Envelope("OK");
-							}
-					}
-					// Send response
-                    ct.incrementN();
-                    response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
+					closed();
 				}
-                /* Client wants to create a group */
-				else if (message.getMessage().equals("CGROUP"))
-				{
-                    // Check to make sure all parameters are passed
-                    if (message.getObjContents().size() < 3)
-                        response = new Envelope("FAIL");
-                    else
-                    {
-                        response = new Envelope("FAIL");
+				received.clear();
+			}
+			return true;
+		}
+		if (received.size() < 2)
+			return true;
 
-                        // Check to make sure all parameters != null
-                        if (message.getObjContents().get(1) != null)
-                            if (message.getObjContents().get(2) != null)
-                            {// Extract group name and token
-                                String       groupname = (String)message.getObjContents().get(1);
-                                SignedObject so        = (SignedObject)message.getObjContents().get(2);
+		Envelope message = (Envelope)ct.decrypt((byte[])received.get(0));
+		byte[]   digest  = (byte[])received.get(1);
+		received.clear();
+		return handle(message, digest, output);
+	}
 
-                                // If group is created, change response to OK
-                                if (createGroup(groupname, so))
-                                    response = new Envelope("OK");
-                            }
-                    }
-                    // Send response
-                    ct.incrementN();
-                    response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
-				}
-                /* Client wants to delete a group */
-				else if (message.getMessage().equals("DGROUP"))
-				{
-                    // Check to make sure all parameters are passed
-                    if (message.getObjContents().size() < 3)
-                        response = new Envelope("FAIL");
-                    else
-                    {
-                        response = new Envelope("FAIL");
+    /**
+     * Finishes the handshake with the five objects received, and answers the client's challenge
+     *
+     * @param output The stream to the client
+     *
+     * @throws Exception
+     */
+	private void handshake(ObjectOutputStream output) throws Exception
+	{
+		// Set RSA cipher
+		Cipher cipher = Cipher.getInstance("RSA", "BC");
+		cipher.init(Cipher.DECRYPT_MODE, my_gs.privateKey);
+
+		// Needed to convert from byte arrays
+		CryptoTools ct = new CryptoTools();
+
+		// Set up CryptoTools
+		ct = new CryptoTools(new BigInteger(cipher.doFinal((byte[])received.get(0))).intValue(),       // N
+							(SecretKey)ct.fromByteArray(cipher.doFinal((byte[])received.get(1))),  // KS
+							 cipher.doFinal((byte[])received.get(2)),                              // IV
+							(SecretKey)ct.fromByteArray(cipher.doFinal((byte[])received.get(3)))); // KH
+		BigInteger RC = (BigInteger)ct.fromByteArray(cipher.doFinal((byte[])received.get(4)));     // RC
+
+		// RC + 1
+		RC = new BigInteger(String.valueOf(RC.intValue() + 1));  // RC + 1
+
+		// Encrypt and send back challenge response using KS
+		ct.incrementN();
+		Envelope envelope = new Envelope("RC+1");
+		envelope.addObject(ct.getN()); // Add N
+		envelope.addObject(RC);        // Add RC
+		output.writeObject(ct.encrypt(envelope));   // Send cipher text
+		output.writeObject(ct.getDigest(envelope)); // Send message digest
+
+		this.ct = ct;
+		System.out.println("Handshake with GroupClient complete");
+	}
+
+    /**
+     * Handles a request and sends the response.
+     * Contains all the handlers for messages this server accepts from client,
+     * which are outlined in GroupClientInterface.java
+     *
+     * @param message The request
+     * @param digest The request's digest
+     * @param output The stream to the client
+     *
+     * @return true to go on, false to end the communication
+     *
+     * @throws Exception
+     */
+	private boolean handle(Envelope message, byte[] digest, ObjectOutputStream output) throws Exception
+	{
+        System.out.println("Request received: " + message.getMessage());
+        // Verify message integrity
+        if (ct.verifyMessage(message, digest))
+            ct.incrementN();
+        else
+        {// Verification failed
+            System.out.println("Message Verification Failed");
+            return false; // End this communication
+        }
 
-                        // Check to make sure both parameters != null
-                        if (message.getObjContents().get(1) != null)
-                            if (message.getObjContents().get(2) != null)
-                            {// Extract group name and token
-                                String       groupname = (String)message.getObjContents().get(1);
-                                SignedObject so        = (SignedObject)message.getObjContents().get(2);
+		Envelope response = null;   // Server response
 
-                                // If group is created, change response to OK
-                                if (deleteGroup(groupname, so))
-                                    response = new Envelope("OK");
-                            }
+        /* Client wants a token */
+		if (message.getMessage().equals("GET"))
+		{
+            // Get the username, password, and fileServerID
+			String username     = (String)message.getObjContents().get(1);
+            String password     = (String)message.getObjContents().get(2);
+            String fileServerID = (String)message.getObjContents().get(3);
+
+			if (username == null || password == null || fileServerID == null)
+			{// If username or password or ID is null, send back fail and a null token
+                ct.incrementN();
+				response = new Envelope("FAIL");
+                response.addObject(ct.getN());
+				response.addObject(null);
+				output.writeObject(ct.encrypt(response));
+			}
+			else
+			{// Create a SignedObject containing the token
+				SignedObject so = createToken(username, password, fileServerID);
+
+				// Respond to the client. On error, the client will receive a null token
+                ct.incrementN();
+				response = new Envelope("OK");
+                response.addObject(ct.getN());
+				response.addObject(so);
+				output.writeObject(ct.encrypt(response));
+			}
+		}
+        /* Client wants to create a user */
+		else if (message.getMessage().equals("CUSER"))
+		{
+            // Check to make sure all parameters are passed
+			if (message.getObjContents().size() < 4)
+				response = new Envelope("FAIL");
+			else
+			{
+				response = new Envelope("FAIL");
+
+                // Check to make sure all parameters != null
+				if (message.getObjContents().get(1) != null)         // username
+                    if (message.getObjContents().get(2) != null)     // password
+					    if (message.getObjContents().get(3) != null) // token
+					    {// Extract the username, password, and token
+		    				String       username  = (String)message.getObjContents().get(1);
+                            String       password  = (String)message.getObjContents().get(2);
+			    			SignedObject so        = (SignedObject)message.getObjContents().get(3);
+
+                            // If user is created, change response to OK
+					    	if (createUser(username, password, so))
+						    	response = new Envelope("OK");
+					    }
+			}
+            // Send response
+            ct.incrementN();
+            response.addObject(ct.getN());
+			output.writeObject(ct.encrypt(response));
+		}
+        /* Client wants to delete a user */
+		else if (message.getMessage().equals("DUSER"))
+		{
+            // Check to make sure all parameters are passed
+			if (message.getObjContents().size() < 3)
+				response = new Envelope("FAIL");
+			else
+			{
+				response = new Envelope("FAIL");
+
+                // Check to make sure both parameters != null
+				if (message.getObjContents().get(1) != null)
+					if (message.getObjContents().get(2) != null)
+					{// Extract the username and token
+						String       username  = (String)message.getObjContents().get(1);
+						SignedObject so        = (SignedObject)message.getObjContents().get(2);
+
+                        // If user is deleted, change response to OK
+						if (deleteUser(username, so))
+							response = new Envelope("OK");
+					}
+			}
+			// Send response
+            ct.incrementN();
+            response.addObject(ct.getN());
+            output.writeObject(ct.encrypt(response));
+		}
+        /* Client wants to create a group */
+		else if (message.getMessage().equals("CGROUP"))
+		{
+            // Check to make sure all parameters are passed
+            if (message.getObjContents().size() < 3)
+                response = new Envelope("FAIL");
+            else
+            {
+                response = new Envelope("FAIL");
+
+                // Check to make sure all parameters != null
+                if (message.getObjContents().get(1) != null)
+                    if (message.getObjContents().get(2) != null)
+                    {// Extract group name and token
+                        String       groupname = (String)message.getObjContents().get(1);
+                        SignedObject so        = (SignedObject)message.getObjContents().get(2);
+
+                        // If group is created, change response to OK
+                        if (createGroup(groupname, so))
+                            response = new Envelope("OK");
                     }
-                    // Send response
-                    ct.incrementN();
-                    response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
-				}
-                /* Client wants a list of members in a group */
-				else if (message.getMessage().equals("LMEMBERS"))
-				{
-                    // Check to make sure all parameters are passed
-                    if (message.getObjContents().size() < 3)
-                    {
-                        ct.incrementN();
-                        response = new Envelope("FAIL");
-                        response.addObject(ct.getN());
-                        output.writeObject(ct.encrypt(response));
+            }
+            // Send response
+            ct.incrementN();
+            response.addObject(ct.getN());
+            output.writeObject(ct.encrypt(response));
+		}
+        /* Client wants to delete a group */
+		else if (message.getMessage().equals("DGROUP"))
+		{
+            // Check to make sure all parameters are passed
+            if (message.getObjContents().size() < 3)
+                response = new Envelope("FAIL");
+            else
+            {
+                response = new Envelope("FAIL");
+
+                // Check to make sure both parameters != null
+                if (message.getObjContents().get(1) != null)
+                    if (message.getObjContents().get(2) != null)
+                    {// Extract group name and token
+                        String       groupname = (String)message.getObjContents().get(1);
+                        SignedObject so        = (SignedObject)message.getObjContents().get(2);
+
+                        // If group is created, change response to OK
+                        if (deleteGroup(groupname, so))
+                            response = new Envelope("OK");
                     }
-                    else
-                    {
-                        // Check to make sure all parameters != null
-                        if (message.getObjContents().get(1) != null)
+            }
+            // Send response
+            ct.incrementN();
+            response.addObject(ct.getN());
+            output.writeObject(ct.encrypt(response));
+		}
+        /* Client wants a list of members in a group */
+		else if (message.getMessage().equals("LMEMBERS"))
+		{
+            // Check to make sure all parameters are passed
+            if (message.getObjContents().size() < 3)
+            {
+                ct.incrementN();
+                response = new Envelope("FAIL");
+                response.addObject(ct.getN());
+                output.writeObject(ct.encrypt(response));
+            }
+            else
+            {
+                // Check to make sure all parameters != null
+                if (message.getObjContents().get(1) != null)
+                {
+                    if (message.getObjContents().get(2) != null)
+                    {// Extract group name and token
+                        String       groupname = (String) message.getObjContents().get(1);
+                        SignedObject so        = (SignedObject) message.getObjContents().get(2);
+
+                        // If member list was returned, change response to OK and send list
+                        List<String> temp = listMembers(groupname, so);
+                        if (temp != null)
                         {
-                            if (message.getObjContents().get(2) != null)
-                            {// Extract group name and token
-                                String       groupname = (String) message.getObjContents().get(1);
-                                SignedObject so        = (SignedObject) message.getObjContents().get(2);
-
-                                // If member list was returned, change response to OK and send list
-                                List<String> temp = listMembers(groupname, so);
-                                if (temp != null)
-                                {
-                                    ct.incrementN();
-                                    response = new Envelope("OK");
-                                    response.addObject(ct.getN());
-                                    response.addObject(temp);
-                                    output.writeObject(ct.encrypt(response));
-                                }
-                                else
-                                {// Member list was not returned
-                                    ct.incrementN();
-                                    response = new Envelope("FAIL");
-                                    response.addObject(ct.getN());
-                                    output.writeObject(ct.encrypt(response));
-                                }
-                            }
-                            else
-                            {// Token Missing
-                                ct.incrementN();
-                                response = new Envelope("FAIL");
-                                response.addObject(ct.getN());
-                                output.writeObject(ct.encrypt(response));
-                            }
+                            ct.incrementN();
+                            response = new Envelope("OK");
+                            response.addObject(ct.getN());
+                            response.addObject(temp);
+                            output.writeObject(ct.encrypt(response));
                         }
                         else
-                        {// Group name missing
+                        {// Member list was not returned
                             ct.incrementN();
                             response = new Envelope("FAIL");
                             response.addObject(ct.getN());
                             output.writeObject(ct.encrypt(response));
                         }
                     }
-				}
-                /* Client wants to add user to a group */
-				else if (message.getMessage().equals("AUSERTOGROUP"))
-				{
-                    // Check to make sure all parameters are passed
-                    if (message.getObjContents().size() < 4)
-                        response = new Envelope("FAIL");
                     else
-                    {
-                        response = new Envelope("FAIL");
-
-                        // Check to make sure all parameters != null
-                        if (message.getObjContents().get(1) != null)
-                            if (message.getObjContents().get(2) != null)
-                                if (message.getObjContents().get(3) != null)
-                                {// Extract parameters
-                                    String       username  = (String)message.getObjContents().get(1);
-                                    String       groupname = (String)message.getObjContents().get(2);
-                                    SignedObject so        = (SignedObject)message.getObjContents().get(3);
-
-                                    // If user is added to group, change response to OK
-                                    if (addUserToGroup(username, groupname, so))
-                                        response = new Envelope("OK");
-                                }
-                    }
-                    // Send response
-                    ct.incrementN();
-                    response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
-				}
-                /* Client wants to remove user from a group */
-				else if (message.getMessage().equals("RUSERFROMGROUP"))
-				{
-                    // Check to make sure all parameters are passed
-                    if (message.getObjContents().size() < 4)
-                        response = new Envelope("FAIL");
-                    else
-                    {
+                    {// Token Missing
+                        ct.incrementN();
                         response = new Envelope("FAIL");
-
-                        // Check to make sure all parameters != null
-                        if (message.getObjContents().get(1) != null)
-                            if (message.getObjContents().get(2) != null)
-                                if (message.getObjContents().get(3) != null)
-                                {// Extract parameters
-                                    String       username  = (String)message.getObjContents().get(1);
-                                    String       groupname = (String)message.getObjContents().get(2);
-                                    SignedObject so        = (SignedObject)message.getObjContents().get(3);
-
-                                    // If user is added to group, change response to OK
-                                    if (deleteUserFromGroup(username, groupname, so))
-                                        response = new Envelope("OK");
-                                }
+                        response.addObject(ct.getN());
+                        output.writeObject(ct.encrypt(response));
                     }
-                    // Send response
+                }
+                else
+                {// Group name missing
                     ct.incrementN();
+                    response = new Envelope("FAIL");
                     response.addObject(ct.getN());
                     output.writeObject(ct.encrypt(response));
                 }
-                /* Client wants a group's key and IV */
-                else if (message.getMessage().equals("GETGROUPKEY"))
+            }
+		}
+        /* Client wants to add user to a group */
+		else if (message.getMessage().equals("AUSERTOGROUP"))
+		{
+            // Check to make sure all parameters are passed
+            if (message.getObjContents().size() < 4)
+                response = new Envelope("FAIL");
+            else
+            {
+                response = new Envelope("FAIL");
+
+                // Check to make sure all parameters != null
+                if (message.getObjContents().get(1) != null)
+                    if (message.getObjContents().get(2) != null)
+                        if (message.getObjContents().get(3) != null)
+                        {// Extract parameters
+                            String       username  = (String)message.getObjContents().get(1);
+                            String       groupname = (String)message.getObjContents().get(2);
+                            SignedObject so        = (SignedObject)message.getObjContents().get(3);
+
+                            // If user is added to group, change response to OK
+                            if (addUserToGroup(username, groupname, so))
+                                response = new Envelope("OK");
+                        }
+            }
+            // Send response
+            ct.incrementN();
+            response.addObject(ct.getN());
+            output.writeObject(ct.encrypt(response));
+		}
+        /* Client wants to remove user from a group */
+		else if (message.getMessage().equals("RUSERFROMGROUP"))
+		{
+            // Check to make sure all parameters are passed
+            if (message.getObjContents().size() < 4)
+                response = new Envelope("FAIL");
+            else
+            {
+                response = new Envelope("FAIL");
+
+                // Check to make sure all parameters != null
+                if (message.getObjContents().get(1) != null)
+                    if (message.getObjContents().get(2) != null)
+                        if (message.getObjContents().get(3) != null)
+                        {// Extract parameters
+                            String       username  = (String)message.getObjContents().get(1);
+                            String       groupname = (String)message.getObjContents().get(2);
+                            SignedObject so        = (SignedObject)message.getObjContents().get(3);
+
+                            // If user is added to group, change response to OK
+                            if (deleteUserFromGroup(username, groupname, so))
+                                response = new Envelope("OK");
+                        }
+            }
+            // Send response
+            ct.incrementN();
+            response.addObject(ct.getN());
+            output.writeObject(ct.encrypt(response));
+        }
+        /* Client wants a group's key and IV */
+        else if (message.getMessage().equals("GETGROUPKEY"))
+        {
+            // Check to make sure all parameters are passed
+            if (message.getObjContents().size() < 3)
+            {
+                ct.incrementN();
+                response = new Envelope("FAIL");
+                response.addObject(ct.getN());
+            }
+            else
+            {
+                // Check to make sure all parameters != null
+                if (message.getObjContents().get(1) != null)
                 {
-                    // Check to make sure all parameters are passed
-                    if (message.getObjContents().size() < 3)
-                    {
-                        ct.incrementN();
-                        response = new Envelope("FAIL");
-                        response.addObject(ct.getN());
-                    }
-                    else
-                    {
-                        // Check to make sure all parameters != null
-                        if (message.getObjContents().get(1) != null)
-                        {
-                            if (message.getObjContents().get(2) != null)
-                            {// Extract parameters
-                                String groupname = (String) message.getObjContents().get(1);
-                                SignedObject so = (SignedObject) message.getObjContents().get(2);
-                                UserToken token = verifyToken(so, my_gs.publicKey);
-
-                                if (my_gs.groupList.checkGroup(groupname))
-                                {// Group exists
-                                    if (token.getGroups().contains(groupname))
-                                    {// Requester is part of group
-                                        ct.incrementN();
-                                        response = new Envelope("OK");
-                                        response.addObject(ct.getN());
-                                        response.addObject(my_gs.groupList.getGroupKey(groupname));
-                                        response.addObject(my_gs.groupList.getGroupIV(groupname));
-                                        output.writeObject(ct.encrypt(response));
-                                    }
-                                    else
-                                    {// Requester not part of group
-                                        ct.incrementN();
-                                        response = new Envelope("FAIL");
-                                        response.addObject(ct.getN());
-                                    }
-                                }
-                                else
-                                {// Group does not exist
-                                    ct.incrementN();
-                                    response = new Envelope("FAIL");
-                                    response.addObject(ct.getN());
-                                }
+                    if (message.getObjContents().get(2) != null)
+                    {// Extract parameters
+                        String groupname = (String) message.getObjContents().get(1);
+                        SignedObject so = (SignedObject) message.getObjContents().get(2);
+                        UserToken token = verifyToken(so, my_gs.publicKey);
+
+                        if (my_gs.groupList.checkGroup(groupname))
+                        {// Group exists
+                            if (token.getGroups().contains(groupname))
+                            {// Requester is part of group
+                                ct.incrementN();
+                                response = new Envelope("OK");
+                                response.addObject(ct.getN());
+                                response.addObject(my_gs.groupList.getGroupKey(groupname));
+                                response.addObject(my_gs.groupList.getGroupIV(groupname));
+                                output.writeObject(ct.encrypt(response));
                             }
                             else
-                            {// Token is null
+                            {// Requester not part of group
                                 ct.incrementN();
                                 response = new Envelope("FAIL");
                                 response.addObject(ct.getN());
                             }
                         }
                         else
-                        {// Group name is null
+                        {// Group does not exist
                             ct.incrementN();
                             response = new Envelope("FAIL");
                             response.addObject(ct.getN());
                         }
                     }
+                    else
+                    {// Token is null
+                        ct.incrementN();
+                        response = new Envelope("FAIL");
+                        response.addObject(ct.getN());
+                    }
                 }
-                /* Client wants to disconnect */
-				else if (message.getMessage().equals("DISCONNECT"))
-				{
-					socket.close();  // Close the socket
-					proceed = false; // End this communication loop
-                    break;
-				}
-				else
-				{
-					response = new Envelope("FAIL"); // Server does not understand client request
+                else
+                {// Group name is null
                     ct.incrementN();
+                    response = new Envelope("FAIL");
                     response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
-				}
-
-                // Send digest of response message
-                output.writeObject(ct.getDigest(response));
-			} while (proceed);
+                }
+            }
+        }
+        /* Client wants to keep the session from being closed as idle */
+		else if (message.getMessage().equals("PING"))
+		{
+            ct.incrementN();
+			response = new Envelope("PONG");
+            response.addObject(ct.getN());
+			output.writeObject(ct.encrypt(response));
 		}
-		catch (Exception e)
+        /* Client wants to disconnect */
+		else if (message.getMessage().equals("DISCONNECT"))
+			return false; // End this communication
+		else
 		{
-			System.err.println("Error: " + e.getMessage());
-			e.printStackTrace(System.err);
+			response = new Envelope("FAIL"); // Server does not understand client request
+            ct.incrementN();
+            response.addObject(ct.getN());
+            output.writeObject(ct.encrypt(response));
 		}
+
+        // Send digest of response message
+        output.writeObject(ct.getDigest(response));
+        return true;
 	}
 
     /**
@@ -521,6 +700,10 @@ public class GroupThread extends Thread
         // Get username of the requester
 		String requester = yourToken.getSubject();
 
+		// Names the B-tree cannot store are refused whatever the storage, so both accept the same names
+		if (!BTreeStorage.fits(username))
+			return false;
+
 		// Check if requester exists
 		if (my_gs.userList.checkUser(requester))
 		{
@@ -528,13 +711,16 @@ public class GroupThread extends Thread
 			ArrayList<String> temp = my_gs.userList.getUserGroups(requester);
 			// requester needs to be an administrator
 			if (temp.contains("ADMIN"))
-			{// Check if user being created already exists
-				if (my_gs.userList.checkUser(username))
-					return false; // user already exists
-				else
-                {// Add user to GroupServer
-					my_gs.userList.addUser(username, password);
-					return true;
+			{// Check if user being created already exists, with nobody else creating it meanwhile
+				try (StripedLocks.Held held = my_gs.locks.lock(username))
+				{
+					if (my_gs.userList.checkUser(username))
+						return false; // user already exists
+					else
+					{// Add user to GroupServer
+						my_gs.userList.addUser(username, password);
+						return true;
+					}
 				}
 			}
 			else // requester is not an admin
@@ -571,49 +757,52 @@ public class GroupThread extends Thread
 			ArrayList<String> temp = my_gs.userList.getUserGroups(requester);
 			// requester needs to be an administer
 			if (temp.contains("ADMIN"))
-			{// Check if user exists
-				if (my_gs.userList.checkUser(username))
-				{
-					// User needs deleted from the groups they belong
-					ArrayList<String> deleteFromGroups = new ArrayList<>(); // <-- This is a Java 7 thing
-					// This loop will produce a hard copy of the list of groups this user belongs
-					for (int index = 0; index < my_gs.userList.getUserGroups(username).size(); index++)
-						deleteFromGroups.add(my_gs.userList.getUserGroups(username).get(index));
-
-					// Delete the user from the groups
-					// If user is the owner, removeMember will automatically delete group!
-                    for (String dFG : deleteFromGroups)
-                        my_gs.groupList.removeMember(username, dFG);
-
-					// If groups are owned, they must be deleted and removed from any member user's group list
-					ArrayList<String> deleteOwnedGroup = new ArrayList<>();
-					// This loop will make a hard copy of the user's ownership list
-					for (int index = 0; index < my_gs.userList.getUserOwnership(username).size(); index++)
-						deleteOwnedGroup.add(my_gs.userList.getUserOwnership(username).get(index));
-
-                    try
-                    {// Create signature engine for SignedObject in delete owned groups loop
-                        Signature signature = Signature.getInstance("SHA1withRSA", "BC");
-
-                        // Delete owned groups
-                        // TODO: MAKE SURE THIS WORKS!
-                        for (int index = 0; index < deleteOwnedGroup.size(); index++)
-                            // Use the delete group method. Token must be created for this action
-                            deleteGroup(deleteOwnedGroup.get(index),
-                                        new SignedObject(new Token(my_gs.name, username, deleteOwnedGroup, "f"), my_gs.privateKey, signature));
-                    }
-                    catch (Exception e)
-                    {
-                        e.printStackTrace();
-                    }
+			{// Nothing else may change while the user and its groups are deleted, they are not known beforehand
+				try (StripedLocks.Held held = my_gs.locks.lockAll())
+				{// Check if user exists
+					if (my_gs.userList.checkUser(username))
+					{
+						// User needs deleted from the groups they belong
+						ArrayList<String> deleteFromGroups = new ArrayList<>(); // <-- This is a Java 7 thing
+						// This loop will produce a hard copy of the list of groups this user belongs
+						for (int index = 0; index < my_gs.userList.getUserGroups(username).size(); index++)
+							deleteFromGroups.add(my_gs.userList.getUserGroups(username).get(index));
+
+						// Delete the user from the groups
+						// If user is the owner, removeMember will automatically delete group!
+                        for (String dFG : deleteFromGroups)
+                            my_gs.groupList.removeMember(username, dFG);
+
+						// If groups are owned, they must be deleted and removed from any member user's group list
+						ArrayList<String> deleteOwnedGroup = new ArrayList<>();
+						// This loop will make a hard copy of the user's ownership list
+						for (int index = 0; index < my_gs.userList.getUserOwnership(username).size(); index++)
+							deleteOwnedGroup.add(my_gs.userList.getUserOwnership(username).get(index));
+
+                        try
+                        {// Create signature engine for SignedObject in delete owned groups loop
+                            Signature signature = Signature.getInstance("SHA1withRSA", "BC");
+
+                            // Delete owned groups
+                            // TODO: MAKE SURE THIS WORKS!
+                            for (int index = 0; index < deleteOwnedGroup.size(); index++)
+                                // Use the delete group method. Token must be created for this action
+                                deleteGroup(deleteOwnedGroup.get(index),
+                                            new SignedObject(new Token(my_gs.name, username, deleteOwnedGroup, "f"), my_gs.privateKey, signature));
+                        }
+                        catch (Exception e)
+                        {
+                            e.printStackTrace();
+                        }
 
-					// Delete the user from the user list
-					my_gs.userList.deleteUser(username);
+						// Delete the user from the user list
+						my_gs.userList.deleteUser(username);
 
-					return true;
+						return true;
+					}
+					else // User does not exist
+						return false;
 				}
-				else // User does not exist
-					return false;
 			}
 			else // requester is not an administer
 				return false;
@@ -641,21 +830,29 @@ public class GroupThread extends Thread
         // Get username of the requester
         String requester = yourToken.getSubject();
 
-        // Check if requester exists
-        if (my_gs.userList.checkUser(requester))
-        {// Create Group
-            // Add group to GroupList and set requester as owner
-            my_gs.groupList.addGroup(groupname);
-            my_gs.groupList.addMember(requester, groupname);
-            my_gs.groupList.setOwner(requester, groupname);
-
-            // Add group to requester groups and ownership list
-            my_gs.userList.addOwnership(requester, groupname);
-            my_gs.userList.addGroup(requester, groupname);
-            return true;
-        }
-        else // requester does not exist
+        // Names the B-tree cannot store are refused whatever the storage, so both accept the same names
+        if (!BTreeStorage.fits(groupname))
             return false;
+
+        // Nobody else may change the group or the requester meanwhile, or delete the requester
+        try (StripedLocks.Held held = my_gs.locks.lock(requester, groupname))
+        {
+            // Check if requester exists
+            if (my_gs.userList.checkUser(requester))
+            {// Create Group
+                // Add group to GroupList and set requester as owner
+                my_gs.groupList.addGroup(groupname);
+                my_gs.groupList.addMember(requester, groupname);
+                my_gs.groupList.setOwner(requester, groupname);
+
+                // Add group to requester groups and ownership list
+                my_gs.userList.addOwnership(requester, groupname);
+                my_gs.userList.addGroup(requester, groupname);
+                return true;
+            }
+            else // requester does not exist
+                return false;
+        }
     }
 
     /**
@@ -682,34 +879,38 @@ public class GroupThread extends Thread
         {
             // Get the requester groups
             ArrayList<String> temp = my_gs.userList.getUserGroups(requester);
-            // Check if group exists
-            if (my_gs.groupList.checkGroup(groupname))
-            {// The requester needs to be owner or admin
-                if (my_gs.groupList.getGroupOwner(groupname).equals(requester) || temp.contains("ADMIN"))
-                {
-                    // Members need to have group removed from their groups list
-                    ArrayList<String> deleteFromGroup = new ArrayList<>();
-                    // This loop will produce a hard copy of the list of members in the group
-                    for (int index = 0; index < my_gs.groupList.getGroupMembers(groupname).size(); index++)
-                        deleteFromGroup.add(my_gs.groupList.getGroupMembers(groupname).get(index));
-
-                    // Delete group from members' list
-                    for (String username : deleteFromGroup)
-                        my_gs.userList.removeGroup(username, groupname);
-                    // If requester is owner, remove ownership
-                    if (my_gs.groupList.getGroupOwner(groupname).equals(requester))
-                        my_gs.userList.removeOwnership(requester, groupname);
-
-                    // Delete the group from GroupList
-                    my_gs.groupList.deleteGroup(groupname);
-
-                    return true;
+            // Nothing else may change while the group is taken off its members, they are not known beforehand
+            try (StripedLocks.Held held = my_gs.locks.lockAll())
+            {
+                // Check if group exists
+                if (my_gs.groupList.checkGroup(groupname))
+                {// The requester needs to be owner or admin
+                    if (my_gs.groupList.getGroupOwner(groupname).equals(requester) || temp.contains("ADMIN"))
+                    {
+                        // Members need to have group removed from their groups list
+                        ArrayList<String> deleteFromGroup = new ArrayList<>();
+                        // This loop will produce a hard copy of the list of members in the group
+                        for (int index = 0; index < my_gs.groupList.getGroupMembers(groupname).size(); index++)
+                            deleteFromGroup.add(my_gs.groupList.getGroupMembers(groupname).get(index));
+
+                        // Delete group from members' list
+                        for (String username : deleteFromGroup)
+                            my_gs.userList.removeGroup(username, groupname);
+                        // If requester is owner, remove ownership
+                        if (my_gs.groupList.getGroupOwner(groupname).equals(requester))
+                            my_gs.userList.removeOwnership(requester, groupname);
+
+                        // Delete the group from GroupList
+                        my_gs.groupList.deleteGroup(groupname);
+
+                        return true;
+                    }
+                    else // group does not exist
+                        return false;
                 }
-                else // group does not exist
+                else // requester does not have permission
                     return false;
             }
-            else // requester does not have permission
-                return false;
         }
         else // requester does not exist
             return false;
@@ -779,28 +980,32 @@ public class GroupThread extends Thread
         {
             // Get the requester groups
             ArrayList<String> temp = my_gs.userList.getUserGroups(requester);
-            // The requester needs to be owner or admin
-            if (my_gs.groupList.getGroupOwner(groupname).equals(requester) || temp.contains("ADMIN"))
-            {// Check if group exists
-                if (my_gs.groupList.checkGroup(groupname))
-                {// Check if user exists
-                    if (my_gs.userList.checkUser(username))
-                    {
-                        // Add user to the group's members in GroupList
-                        my_gs.groupList.addMember(username, groupname);
-                        // Add group to user's group list in UserList
-                        my_gs.userList.addGroup(username, groupname);
+            // Nobody else may change the user or the group meanwhile
+            try (StripedLocks.Held held = my_gs.locks.lock(username, groupname))
+            {
+                // The requester needs to be owner or admin
+                if (my_gs.groupList.getGroupOwner(groupname).equals(requester) || temp.contains("ADMIN"))
+                {// Check if group exists
+                    if (my_gs.groupList.checkGroup(groupname))
+                    {// Check if user exists
+                        if (my_gs.userList.checkUser(username))
+                        {
+                            // Add user to the group's members in GroupList
+                            my_gs.groupList.addMember(username, groupname);
+                            // Add group to user's group list in UserList
+                            my_gs.userList.addGroup(username, groupname);
 
-                        return true;
+                            return true;
+                        }
+                        else // user does not exist
+                            return false;
                     }
-                    else // user does not exist
+                    else // group does not exist
                         return false;
                 }
-                else // group does not exist
+                else // requester does not have permission
                     return false;
             }
-            else // requester does not have permission
-                return false;
         }
         else // requester does not exist
             return false;
@@ -831,28 +1036,32 @@ public class GroupThread extends Thread
         {
             // Get the requester groups
             ArrayList<String> temp = my_gs.userList.getUserGroups(requester);
-            // The requester needs to be owner or admin
-            if (my_gs.groupList.getGroupOwner(groupname).equals(requester) || temp.contains("ADMIN"))
-            {// Check if group exists
-                if (my_gs.groupList.checkGroup(groupname))
-                {// Check if user exists
-                    if (my_gs.userList.checkUser(username))
-                    {
-                        // Remove user from group's members in GroupList
-                        my_gs.groupList.removeMember(username, groupname);
-                        // Remove group from user's group list in UserList
-                        my_gs.userList.removeGroup(username, groupname);
+            // Nobody else may change the user or the group meanwhile
+            try (StripedLocks.Held held = my_gs.locks.lock(username, groupname))
+            {
+                // The requester needs to be owner or admin
+                if (my_gs.groupList.getGroupOwner(groupname).equals(requester) || temp.contains("ADMIN"))
+                {// Check if group exists
+                    if (my_gs.groupList.checkGroup(groupname))
+                    {// Check if user exists
+                        if (my_gs.userList.checkUser(username))
+                        {
+                            // Remove user from group's members in GroupList
+                            my_gs.groupList.removeMember(username, groupname);
+                            // Remove group from user's group list in UserList
+                            my_gs.userList.removeGroup(username, groupname);
 
-                        return true;
+                            return true;
+                        }
+                        else // user does not exist
+                            return false;
                     }
-                    else // user does not exist
+                    else // group does not exist
                         return false;
                 }
-                else // group does not exist
+                else // requester does not have permission
                     return false;
             }
-            else // requester does not have permission
-                return false;
         }
         else // requester does not exist
             return false;
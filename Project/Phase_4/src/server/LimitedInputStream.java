@@ -0,0 +1,47 @@
+package server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream that ends after a set number of bytes
+ */
+public class LimitedInputStream extends FilterInputStream
+{
+    private long remaining; // Bytes left to read
+
+    /**
+     * Constructor which accepts the stream and the number of bytes to read from it
+     *
+     * @param in The stream
+     * @param limit The number of bytes
+     */
+    public LimitedInputStream(InputStream in, long limit)
+    {
+        super(in);
+        this.remaining = limit;
+    }
+
+    @Override public int read() throws IOException
+    {
+        if (remaining <= 0)
+            return -1;
+
+        int b = in.read();
+        if (b >= 0)
+            remaining--;
+        return b;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (remaining <= 0)
+            return -1;
+
+        int n = in.read(b, off, (int)Math.min(len, remaining));
+        if (n > 0)
+            remaining -= n;
+        return n;
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage that keeps every entry in a ConcurrentHashMap, so the list must be saved whole by a snapshot and loaded
+ * at startup. Entries are read without locking, even while others are being changed
+ *
+ * @param <V> The type of the entries
+ */
+public class MemoryStorage<V> implements Storage<V>
+{
+    private final ConcurrentHashMap<String, V> map; // name -> entry
+
+    /**
+     * Default constructor, creates empty storage
+     */
+    public MemoryStorage()
+    {
+        map = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Constructor which accepts the entries to start with
+     *
+     * @param entries The entries by name, copied
+     */
+    public MemoryStorage(Map<String, V> entries)
+    {
+        map = new ConcurrentHashMap<>(entries);
+    }
+
+    @Override public V get(String key)
+    {
+        return key == null ? null : map.get(key); // ConcurrentHashMap throws on null
+    }
+
+    @Override public void put(String key, V value)
+    {
+        map.put(key, value);
+    }
+
+    @Override public void remove(String key)
+    {
+        if (key != null)
+            map.remove(key);
+    }
+
+    @Override public boolean containsKey(String key)
+    {
+        return key != null && map.containsKey(key);
+    }
+
+    @Override public long size()
+    {
+        return map.size();
+    }
+
+    @Override public Map<String, V> copy()
+    {
+        return new HashMap<>(map);
+    }
+
+    @Override public boolean isPersistent()
+    {
+        return false;
+    }
+
+    @Override public long flush()
+    {
+        return 0;
+    }
+
+    @Override public void close()
+    {
+    }
+}
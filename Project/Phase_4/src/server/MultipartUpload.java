@@ -0,0 +1,305 @@
+package server;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents an upload whose segments arrive over several connections at once.
+ *
+ * MPINIT creates the upload with the length of the file and the number of segments the client wants to use.
+ * The file is split into segments of a whole number of blocks, so each MPPART writes its own blocks of a single
+ * BlockFile at their fixed positions and the FileThreads handling the parts never have to coordinate.
+ * MPCOMPLETE checks every segment has arrived, writes the length and hands the file to the BlobStore.
+ * Completing or aborting first takes the upload out of uploads, and only the caller that took it out goes on,
+ * so a second MPCOMPLETE or an expiry at the same time finds nothing to do.
+ *
+ * Every upload holds its partial file open until it completes or expires, so a user may only have
+ * FileServer.MAX_MULTIPART_PER_USER of them at once and the server FileServer.MAX_MULTIPART.
+ *
+ * Unlike UploadSession nothing is kept on disk about these uploads, so they do not survive a restart.
+ */
+public class MultipartUpload
+{
+    private static final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>(); // Uploads in progress
+
+    private final String      id;          // The upload ID handed to the client
+    private final String      owner;       // The user uploading the file
+    private final String      group;       // The group the file will belong to
+    private final String      path;        // Where the file goes once complete
+    private final SecretKey   groupKey;    // The group key every segment is encrypted with
+    private final long        length;      // Length of the file
+    private final long        segmentSize; // Bytes in every segment but the last
+    private final int         segments;    // Number of segments
+    private final int         blockSize;   // Block size of the partial file
+    private final long        created = System.currentTimeMillis(); // When the upload started
+    private final File        partial;     // The file being written
+    private final FileChannel channel;     // Shared by the segments' writers
+    private final byte[]      fileId;      // The partial file's ID, authenticated with every block
+    private final BitSet      received = new BitSet(); // Segments that have arrived
+    private final BitSet      claimed  = new BitSet(); // Segments being received right now
+
+    /**
+     * Private constructor, use create()
+     *
+     * @param id The upload ID
+     * @param owner The owner
+     * @param group The group
+     * @param path The final path
+     * @param groupKey The group key
+     * @param length The file length
+     * @param segments The number of segments asked for
+     *
+     * @throws IOException If the partial file cannot be created
+     */
+    private MultipartUpload(String id, String owner, String group, String path, SecretKey groupKey, long length, int segments)
+            throws IOException
+    {
+        this.id          = id;
+        this.owner       = owner;
+        this.group       = group;
+        this.path        = path;
+        this.groupKey    = groupKey;
+        this.length      = length;
+        this.blockSize   = FileServer.BLOCK_SIZE;
+
+        // Round segments up to whole blocks
+        long blocks      = Math.max(1, (length + blockSize - 1) / blockSize);
+        long perSegment  = (blocks + segments - 1) / segments;
+        this.segmentSize = perSegment * blockSize;
+        this.segments    = (int)((blocks + perSegment - 1) / perSegment);
+
+        new File(UploadSession.UPLOAD_DIR).mkdirs();
+        this.partial = new File(UploadSession.UPLOAD_DIR, id + ".mp");
+        this.channel = BlockFile.create(partial, blockSize);
+        this.fileId  = BlockFile.getFileId(channel);
+    }
+
+    /**
+     * Starts a multipart upload, unless the owner or the server has as many open as allowed
+     *
+     * @param owner The user uploading the file
+     * @param group The group the file will belong to
+     * @param path Where the file goes once complete
+     * @param groupKey The group key
+     * @param length The length of the file
+     * @param segments The number of segments the client would like, capped at FileServer.MAX_SEGMENTS
+     *
+     * @return The upload, null if there are too many open
+     *
+     * @throws IOException If the partial file cannot be created
+     */
+    public static synchronized MultipartUpload create(String owner, String group, String path, SecretKey groupKey, long length, int segments)
+            throws IOException
+    {
+        int mine = 0;
+        for (MultipartUpload upload : uploads.values())
+            if (upload.owner.equals(owner))
+                mine++;
+        if (uploads.size() >= FileServer.MAX_MULTIPART || mine >= FileServer.MAX_MULTIPART_PER_USER)
+            return null;
+
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder id = new StringBuilder();
+        for (byte b : bytes)
+            id.append(String.format("%02x", b));
+
+        MultipartUpload upload = new MultipartUpload(id.toString(), owner, group, path, groupKey, length,
+                                                     Math.max(1, Math.min(segments, FileServer.MAX_SEGMENTS)));
+        uploads.put(upload.id, upload);
+        return upload;
+    }
+
+    /**
+     * Finds an upload in progress
+     *
+     * @param id The upload ID
+     *
+     * @return The upload, null if there is no such upload
+     */
+    public static MultipartUpload get(String id)
+    {
+        return id == null ? null : uploads.get(id);
+    }
+
+    /**
+     * Drops uploads that have not finished within maxAge
+     *
+     * @param maxAge The age in milliseconds
+     */
+    public static void expire(long maxAge)
+    {
+        for (MultipartUpload upload : uploads.values())
+        {
+            if (System.currentTimeMillis() - upload.created > maxAge)
+            {
+                System.out.printf("Expiring unfinished multipart upload of %s\n", upload.path);
+                upload.abort();
+            }
+        }
+    }
+
+    /**
+     * Claims a segment for the connection that is about to receive it
+     *
+     * @param segment The segment number
+     *
+     * @return The writer for the segment, null if the segment does not exist, has arrived, or is being received
+     */
+    public synchronized BlockFile.SegmentWriter claim(int segment)
+    {
+        if (segment < 0 || segment >= segments || received.get(segment) || claimed.get(segment) || !uploads.containsKey(id))
+            return null;
+
+        claimed.set(segment);
+        return new BlockFile.SegmentWriter(channel, fileId, groupKey, blockSize, segment * segmentSize / blockSize,
+                                           getSegmentLength(segment), length);
+    }
+
+    /**
+     * Releases a segment after its connection is done with it
+     *
+     * @param segment The segment number
+     * @param arrived true if the whole segment was written, false if it has to be sent again
+     */
+    public synchronized void release(int segment, boolean arrived)
+    {
+        claimed.clear(segment);
+        if (arrived)
+            received.set(segment);
+    }
+
+    /**
+     * Checks whether every segment has arrived
+     *
+     * @return true if they have, false otherwise
+     */
+    public synchronized boolean isReceived()
+    {
+        return received.cardinality() == segments;
+    }
+
+    /**
+     * Finishes the file and hands it over, to be put in the BlobStore. Every segment must have arrived
+     *
+     * @return The finished file, null if the upload was already completed or aborted
+     *
+     * @throws IOException If the file cannot be finished
+     */
+    public synchronized File complete() throws IOException
+    {
+        if (!uploads.remove(id, this))
+            return null;
+
+        BlockFile.finish(channel, length);
+        channel.close();
+        return partial;
+    }
+
+    /**
+     * Drops the upload and deletes what has been received
+     */
+    public synchronized void abort()
+    {
+        if (!uploads.remove(id, this))
+            return; // Completed or aborted already, the file is no longer ours to delete
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: " + e.getMessage());
+        }
+        partial.delete();
+    }
+
+    /**
+     * Returns the number of bytes in a segment
+     *
+     * @param segment The segment number
+     *
+     * @return The number of bytes
+     */
+    public long getSegmentLength(int segment)
+    {
+        return Math.max(0, Math.min(segmentSize, length - segment * segmentSize));
+    }
+
+    /**
+     * Returns the upload ID
+     *
+     * @return The ID
+     */
+    public String getID()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the user uploading the file
+     *
+     * @return The owner
+     */
+    public String getOwner()
+    {
+        return owner;
+    }
+
+    /**
+     * Returns the group the file will belong to
+     *
+     * @return The group
+     */
+    public String getGroup()
+    {
+        return group;
+    }
+
+    /**
+     * Returns where the file goes once complete
+     *
+     * @return The path
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Returns the group key the file is encrypted with
+     *
+     * @return The group key
+     */
+    public SecretKey getGroupKey()
+    {
+        return groupKey;
+    }
+
+    /**
+     * Returns the number of bytes in every segment but the last
+     *
+     * @return The segment size
+     */
+    public long getSegmentSize()
+    {
+        return segmentSize;
+    }
+
+    /**
+     * Returns the number of segments
+     *
+     * @return The number of segments
+     */
+    public int getSegments()
+    {
+        return segments;
+    }
+}
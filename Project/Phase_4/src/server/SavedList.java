@@ -0,0 +1,207 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * One of a server's lists as saved to its SnapshotFile, with what is needed to save it only when it changed.
+ *
+ * The lists count their changes. A list whose count is the one it had when it was last saved is clean and is
+ * skipped by a checkpoint, unless it was last written more than the maximum staleness ago. Rewriting it then lets
+ * the log segments its previous save needs be deleted, which a list that never changes would otherwise keep forever.
+ *
+ * Each save records the log segment it covers. The previous save's segment is the last one that can be deleted,
+ * as SnapshotFile falls back to the previous save if the latest is damaged.
+ *
+ * A list kept in persistent Storage, such as a B-tree, is saved by flushing its storage instead. A flush is
+ * all or nothing, so the segment it covers can be deleted straight away, and a clean list needs nothing kept.
+ */
+public class SavedList
+{
+    private final SnapshotFile file;         // Where the list is saved, null if it is kept in storage
+    private final Storage<?>   storage;      // Where the list keeps itself, null if it is saved to file
+    private final long         maxStaleness; // Longest a change waits to be saved, and a save to be rewritten, in ms
+    private long               saved = -1;   // The list's change count when it was last saved, -1 if it never was
+    private long               written;      // When it was last written, or when the server started
+    private long               dirtySince;   // When a change was first seen unsaved, 0 if the list is clean
+    private long               latest = -1;  // Log segment the last save covers, -1 if not saved since startup
+    private long               needed = -1;  // Log segment the save before it covers, the last one that can be deleted
+    private long               lastBytes;    // Bytes the last save wrote
+    private long               lastElapsed;  // Time the last save took, in nanoseconds
+    private long               saves;        // Saves written since startup
+    private long               totalBytes;   // Bytes those saves wrote
+
+    /**
+     * Constructor which accepts the name of the file, how to compress it and the maximum staleness
+     *
+     * @param name The name of the file
+     * @param compression The compression
+     * @param maxStaleness The maximum staleness in milliseconds
+     */
+    public SavedList(String name, Compression compression, long maxStaleness)
+    {
+        this.file         = new SnapshotFile(name, compression);
+        this.storage      = null;
+        this.maxStaleness = maxStaleness;
+        this.written      = System.currentTimeMillis();
+    }
+
+    /**
+     * Constructor which accepts the persistent storage a list keeps itself in, which counts as saved as it is
+     *
+     * @param storage The storage
+     * @param maxStaleness The maximum staleness in milliseconds
+     */
+    public SavedList(Storage<?> storage, long maxStaleness)
+    {
+        this.file         = null;
+        this.storage      = storage;
+        this.maxStaleness = maxStaleness;
+        this.written      = System.currentTimeMillis();
+        this.saved        = 0;
+    }
+
+    /**
+     * Loads the list from its file, which counts as saved with no changes
+     *
+     * @return The list
+     *
+     * @throws java.io.FileNotFoundException If it was never saved
+     * @throws IOException If every save there is is damaged
+     */
+    public synchronized Object load() throws IOException
+    {
+        Object list = file.readObject();
+        saved = 0;
+        return list;
+    }
+
+    /**
+     * Returns whether a list has changed since it was last saved
+     *
+     * @param changes The list's change count
+     *
+     * @return true if it has, false otherwise
+     */
+    public synchronized boolean isDirty(long changes)
+    {
+        return changes != saved;
+    }
+
+    /**
+     * Returns whether a list has had changes waiting to be saved for longer than the maximum staleness.
+     * Changes are noticed when this is called, so it must be called regularly
+     *
+     * @param changes The list's change count
+     *
+     * @return true if it has, false otherwise
+     */
+    public synchronized boolean isStale(long changes)
+    {
+        if (changes == saved)
+            return false;
+
+        long now = System.currentTimeMillis();
+        if (dirtySince == 0)
+            dirtySince = now;
+        return now - dirtySince >= maxStaleness;
+    }
+
+    /**
+     * Saves a list if it changed since it was last saved or its save is older than the maximum staleness.
+     * The change count must be read before the list is encoded, so a change made meanwhile is saved again next time.
+     * A list kept in storage is flushed if it changed
+     *
+     * @param list The list
+     * @param changes The list's change count
+     * @param segment The log segment ended just before, see WriteAheadLog#roll()
+     *
+     * @return true if it was written, false if it was skipped
+     *
+     * @throws IOException If the list cannot be saved, the last save is left as it was
+     */
+    public synchronized boolean save(Object list, long changes, long segment) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        if (changes == saved && (storage != null || now - written < maxStaleness))
+        {
+            if (storage != null)
+                needed = segment; // Everything logged before the roll is already in storage
+            return false;
+        }
+
+        long start = System.nanoTime();
+        lastBytes   = file != null ? file.writeObject(list) : storage.flush();
+        lastElapsed = System.nanoTime() - start;
+        saves++;
+        totalBytes += lastBytes;
+        System.out.printf("Saved %s, %d bytes in %.1f ms\n", file != null ? file : storage, lastBytes, lastElapsed / 1e6);
+
+        saved      = changes;
+        written    = now;
+        dirtySince = 0;
+        needed     = storage != null ? segment : latest;
+        latest     = segment;
+        return true;
+    }
+
+    /**
+     * Returns the last log segment neither save of the list needs
+     *
+     * @return The segment number, -1 if every segment may still be needed
+     */
+    public synchronized long getNeeded()
+    {
+        return needed;
+    }
+
+    /**
+     * Returns the number of bytes the last save wrote
+     *
+     * @return The number of bytes, 0 if the list was not saved since startup
+     */
+    public synchronized long getLastBytes()
+    {
+        return lastBytes;
+    }
+
+    /**
+     * Returns the time the last save took to encode and write
+     *
+     * @return The time in nanoseconds
+     */
+    public synchronized long getLastElapsed()
+    {
+        return lastElapsed;
+    }
+
+    /**
+     * Returns the number of saves written since startup
+     *
+     * @return The number of saves
+     */
+    public synchronized long getSaves()
+    {
+        return saves;
+    }
+
+    /**
+     * Returns the number of bytes written by the saves since startup
+     *
+     * @return The number of bytes
+     */
+    public synchronized long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * Summarizes the saves in one line
+     *
+     * @return The summary
+     */
+    @Override public synchronized String toString()
+    {
+        return String.format("%s: %d saves, %d bytes, last %d bytes in %.1f ms", file != null ? file : storage, saves,
+                             totalBytes, lastBytes, lastElapsed / 1e6);
+    }
+}
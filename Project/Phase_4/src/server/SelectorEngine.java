@@ -0,0 +1,706 @@
+package server;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A server engine built on java.nio selectors, where an idle connection costs a selection key and a few small
+ * buffers instead of a thread blocked reading it.
+ *
+ * A few event loop threads each own a Selector. They read the bytes that arrive, cut them into the frames
+ * FrameOutputStream writes, and write out what does not fit in the socket at once. The work a frame asks for,
+ * the cryptography and the lists, is done by a Handler on a separate pool of workers. A connection's frames are
+ * handled one at a time and in order, and a connection stops being read while MAX_PENDING of its frames wait, so a
+ * client that sends faster than it is answered is slowed down instead of buffered.
+ *
+ * A client that opens an object stream instead of sending FrameOutputStream.MAGIC cannot be read this way.
+ * Its connection is switched back to blocking and handed to the fallback, with the bytes read so far.
+ */
+public class SelectorEngine
+{
+    public  static final int MAX_PENDING = 4;     // Frames read ahead for a connection before it stops being read
+    private static final int READ_BUFFER = 65536; // Bytes an event loop reads from a connection at once
+    private static final int FIRST_FRAME = 65536; // Most bytes set aside for a frame before more of it arrives
+    private static final int SWEEP       = 1000;  // Milliseconds between an event loop's checks for quiet connections
+
+    /**
+     * Handles one connection's frames. The engine calls a Handler's methods one at a time, on any worker
+     */
+    public interface Handler
+    {
+        /**
+         * Called once the client has sent FrameOutputStream.MAGIC, before any frame
+         *
+         * @param output The stream to the client
+         *
+         * @return true to go on reading frames, false to close the connection once what was written is sent
+         *
+         * @throws Exception If the connection must be closed
+         */
+        boolean opened(ObjectOutputStream output) throws Exception;
+
+        /**
+         * Called with the object in each frame the client sends
+         *
+         * @param object The object
+         * @param output The stream to the client
+         *
+         * @return true to go on, false to close the connection once what was written is sent
+         *
+         * @throws Exception If the connection must be closed
+         */
+        boolean received(Object object, ObjectOutputStream output) throws Exception;
+
+        /**
+         * Returns whether the handler waits for a new request, rather than the rest of a handshake or request
+         *
+         * @return true if it does, false otherwise
+         */
+        boolean isIdle();
+
+        /**
+         * Called once when the connection is closed, for whatever reason
+         */
+        void closed();
+    }
+
+    private final String                     name;        // Name of the server, for thread names
+    private final Loop[]                     loops;       // The event loops, given connections in turn
+    private final ThreadPoolExecutor         workers;     // Where the handlers run
+    private final int                        maxFrame;    // Largest frame read, in bytes
+    private final long                       readTimeout; // Longest the rest of a handshake or frame may take, in ms, 0 for no limit
+    private final long                       idleTimeout; // Longest a connection may wait between requests, in ms, 0 for no limit
+    private final Function<Socket, Handler>  handlers;    // Makes the handler for a new framed connection
+    private final BiConsumer<Socket, byte[]> fallback;    // Takes connections that are not framed
+    private final AtomicInteger              sessions    = new AtomicInteger(); // Framed connections open
+    private final AtomicLong                 accepted    = new AtomicLong();    // Connections accepted since startup
+    private final AtomicLong                 fellBack    = new AtomicLong();    // Connections given to the fallback
+    private final AtomicLong                 reaped      = new AtomicLong();    // Connections closed because the client went quiet
+    private       int                        next;        // The loop given the next connection
+
+    /**
+     * Constructor which accepts the number of threads, the largest frame, the timeouts, and what to do with connections
+     *
+     * @param name The name of the server
+     * @param loops The number of event loop threads
+     * @param workers The number of worker threads
+     * @param maxFrame The largest frame in bytes, a connection sending a larger one is closed
+     * @param readTimeout The longest in ms a client may take to send the rest of a handshake or frame, 0 for no limit
+     * @param idleTimeout The longest in ms a client may wait between requests, 0 for no limit
+     * @param handlers Makes the handler for a new framed connection, given its socket
+     * @param fallback Takes a connection that is not framed, given its socket, now blocking, and the bytes read from it
+     *
+     * @throws IOException If a Selector cannot be opened
+     */
+    public SelectorEngine(String name, int loops, int workers, int maxFrame, long readTimeout, long idleTimeout,
+                          Function<Socket, Handler> handlers, BiConsumer<Socket, byte[]> fallback) throws IOException
+    {
+        if (loops < 1 || workers < 1)
+            throw new IllegalArgumentException("Need at least one event loop and one worker");
+
+        AtomicInteger count = new AtomicInteger();
+        this.name        = name;
+        this.maxFrame    = maxFrame;
+        this.readTimeout = readTimeout;
+        this.idleTimeout = idleTimeout;
+        this.handlers    = handlers;
+        this.fallback    = fallback;
+        this.workers     = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                  runnable -> new Thread(runnable, name + "-worker-" + count.incrementAndGet()));
+        this.workers.allowCoreThreadTimeOut(true);
+        this.loops       = new Loop[loops];
+        for (int i = 0; i < loops; i++)
+        {
+            this.loops[i] = new Loop(name + "-selector-" + (i + 1));
+            this.loops[i].start();
+        }
+    }
+
+    /**
+     * Accepts connections and hands them to the event loops in turn, until the server socket is closed
+     *
+     * @param server The server socket, which must be blocking
+     *
+     * @throws IOException If a connection cannot be accepted
+     */
+    public void serve(ServerSocketChannel server) throws IOException
+    {
+        while (true)
+        {
+            final SocketChannel channel = server.accept();
+            accepted.incrementAndGet();
+            try
+            {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true); // A reply is two frames, the second must not wait for an ack
+            }
+            catch (IOException e)
+            {
+                close(channel);
+                continue;
+            }
+
+            final Loop loop = loops[next];
+            next = (next + 1) % loops.length;
+            loop.execute(() -> loop.register(channel));
+        }
+    }
+
+    /**
+     * Returns the number of framed connections open
+     *
+     * @return The number of connections
+     */
+    public int getSessions()
+    {
+        return sessions.get();
+    }
+
+    /**
+     * Returns the number of connections accepted since startup
+     *
+     * @return The number of connections
+     */
+    public long getAccepted()
+    {
+        return accepted.get();
+    }
+
+    /**
+     * Returns the number of connections given to the fallback since startup because they were not framed
+     *
+     * @return The number of connections
+     */
+    public long getFellBack()
+    {
+        return fellBack.get();
+    }
+
+    /**
+     * Returns the number of connections closed since startup because the client went quiet
+     *
+     * @return The number of connections
+     */
+    public long getReaped()
+    {
+        return reaped.get();
+    }
+
+    /**
+     * Returns the number of connections with frames waiting for a worker
+     *
+     * @return The number of connections
+     */
+    public int getQueued()
+    {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Summarizes the connections in one line
+     *
+     * @return The summary
+     */
+    @Override public String toString()
+    {
+        return String.format("%s selector engine: %d sessions, %d waiting for a worker, %d accepted, %d fell back, %d reaped (%d loops, %d workers)",
+                             name, getSessions(), getQueued(), getAccepted(), getFellBack(), getReaped(), loops.length,
+                             workers.getMaximumPoolSize());
+    }
+
+    /**
+     * Closes a channel that will not be served
+     *
+     * @param channel The channel
+     */
+    private static void close(Channel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {// Nothing more to do with it
+        }
+    }
+
+    /**
+     * An event loop, which owns a Selector and the connections registered with it
+     */
+    private class Loop extends Thread
+    {
+        private final Selector        selector;                                // Where the connections are registered
+        private final Queue<Runnable> tasks  = new ConcurrentLinkedQueue<>();   // Work other threads left for this one
+        private final ByteBuffer      buffer = ByteBuffer.allocateDirect(READ_BUFFER); // Where connections are read into
+        private       long            swept  = System.nanoTime();              // When quiet connections were last looked for
+
+        /**
+         * Constructor which accepts the name of the thread
+         *
+         * @param name The name
+         *
+         * @throws IOException If the Selector cannot be opened
+         */
+        Loop(String name) throws IOException
+        {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Runs a task on this loop's thread, the only one that may change its keys
+         *
+         * @param task The task
+         */
+        void execute(Runnable task)
+        {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Registers a new connection to be read
+         *
+         * @param channel The connection
+         */
+        void register(SocketChannel channel)
+        {
+            try
+            {
+                Session session = new Session(this, channel);
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+            }
+            catch (IOException e)
+            {
+                close(channel);
+            }
+        }
+
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    selector.select(SWEEP);
+                    for (Runnable task; (task = tasks.poll()) != null; )
+                    {
+                        try
+                        {
+                            task.run();
+                        }
+                        catch (CancelledKeyException e)
+                        {// The connection was closed meanwhile
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key     = keys.next();
+                        Session      session = (Session)key.attachment();
+                        keys.remove();
+                        try
+                        {
+                            if (key.isValid() && key.isReadable())
+                                session.read(buffer);
+                            if (key.isValid() && key.isWritable())
+                                session.writeReady();
+                        }
+                        catch (IOException | CancelledKeyException e)
+                        {// The client went away
+                            session.close();
+                        }
+                    }
+
+                    if (System.nanoTime() - swept >= TimeUnit.MILLISECONDS.toNanos(SWEEP))
+                        sweep();
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Error: " + e.getMessage());
+                    e.printStackTrace(System.err);
+                }
+            }
+        }
+
+        /**
+         * Closes the connections whose clients sent nothing for longer than the timeouts allow
+         */
+        private void sweep()
+        {
+            swept = System.nanoTime();
+            for (SelectionKey key : selector.keys())
+            {
+                Session session = (Session)key.attachment();
+                if (key.isValid() && session.isQuiet(swept))
+                {
+                    reaped.incrementAndGet();
+                    session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * One connection. The event loop fills its inbox with frames and empties its outbox into the socket, a worker
+     * passes the frames to the handler, which writes to the outbox through this as an OutputStream
+     */
+    private class Session extends OutputStream implements Runnable
+    {
+        private final Loop                  loop;                          // The loop the connection is registered with
+        private final SocketChannel         channel;                       // The connection
+        private       SelectionKey          key;                           // Its key, set by the loop
+        private final ByteBuffer            header = ByteBuffer.allocate(4); // MAGIC or a frame's length, being read
+        private       ByteBuffer            frame;                         // The frame being read, null between frames
+        private       int                   frameLength;                   // Its length
+        private       Handler               handler;                       // null until MAGIC has been read
+        private       ObjectOutputStream    output;                        // The frames written to the client
+        private final ArrayDeque<byte[]>    inbox  = new ArrayDeque<>();   // Frames waiting for the handler
+        private final ArrayDeque<ByteBuffer> outbox = new ArrayDeque<>();  // Bytes waiting for room in the socket
+        private       boolean               busy;                          // Whether a worker has, or is about to, run this
+        private       boolean               paused;                        // Whether reading stopped for a full inbox
+        private       boolean               closing;                       // Whether to close once the outbox is empty
+        private       boolean               closed;                        // Whether the connection is closed
+        private       long                  lastRead = System.nanoTime();  // When bytes last arrived
+
+        /**
+         * Constructor which accepts the loop and the connection
+         *
+         * @param loop The loop
+         * @param channel The connection
+         */
+        Session(Loop loop, SocketChannel channel)
+        {
+            this.loop    = loop;
+            this.channel = channel;
+        }
+
+        /**
+         * Reads what arrived, on the loop's thread, and queues the frames it completes
+         *
+         * @param buffer The loop's buffer
+         *
+         * @throws IOException If the connection cannot be read
+         */
+        void read(ByteBuffer buffer) throws IOException
+        {
+            buffer.clear();
+            if (channel.read(buffer) < 0)
+            {// The client closed the connection
+                close();
+                return;
+            }
+            lastRead = System.nanoTime();
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                if (frame == null)
+                {
+                    transfer(buffer, header);
+                    if (header.hasRemaining())
+                        return;
+                    header.flip();
+                    int value = header.getInt();
+                    header.clear();
+
+                    if (handler == null)
+                    {// The first four bytes say what kind of stream this is
+                        if (value == FrameOutputStream.MAGIC)
+                            open();
+                        else
+                            fallBack(value, buffer);
+                        if (handler == null)
+                            return;
+                        continue;
+                    }
+                    if (value < 0 || value > maxFrame)
+                    {
+                        System.err.println("Error: " + channel.socket().getRemoteSocketAddress() + " sent a frame of "
+                                           + value + " bytes, the most is " + maxFrame);
+                        close();
+                        return;
+                    }
+                    frameLength = value;
+                    frame       = ByteBuffer.allocate(Math.min(value, FIRST_FRAME));
+                }
+                else
+                {
+                    if (!frame.hasRemaining())
+                        frame = ByteBuffer.allocate(Math.min(frameLength, frame.capacity() * 2)).put((ByteBuffer)frame.flip());
+                    transfer(buffer, frame);
+                }
+
+                if (frame.position() == frameLength)
+                {
+                    queue(frame.array());
+                    frame = null;
+                }
+            }
+        }
+
+        /**
+         * Starts serving a framed connection, its handler sends the first reply from a worker
+         */
+        private void open()
+        {
+            handler = handlers.apply(channel.socket());
+            sessions.incrementAndGet();
+            synchronized (this)
+            {
+                busy = true;
+            }
+            workers.execute(this);
+        }
+
+        /**
+         * Hands a connection that is not framed to the fallback, once its key is gone from the selector
+         *
+         * @param first The first four bytes read
+         * @param buffer The buffer holding the rest of what was read
+         */
+        private void fallBack(int first, ByteBuffer buffer)
+        {
+            final byte[] preread = new byte[4 + buffer.remaining()];
+            ByteBuffer.wrap(preread).putInt(first).put(buffer);
+
+            key.cancel();
+            fellBack.incrementAndGet();
+            loop.execute(() ->
+            {// The selector has deregistered the key by now, so the channel may block again
+                try
+                {
+                    channel.configureBlocking(true);
+                    fallback.accept(channel.socket(), preread);
+                }
+                catch (IOException e)
+                {
+                    SelectorEngine.close(channel);
+                }
+            });
+        }
+
+        /**
+         * Queues a frame for the handler, and starts a worker on it if none is running
+         *
+         * @param bytes The frame
+         */
+        private void queue(byte[] bytes)
+        {
+            synchronized (this)
+            {
+                inbox.add(bytes);
+                if (inbox.size() >= MAX_PENDING && !paused)
+                {// Stop reading until the handler catches up
+                    paused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                if (busy || closing)
+                    return;
+                busy = true;
+            }
+            workers.execute(this);
+        }
+
+        /**
+         * Passes the queued frames to the handler, on a worker
+         */
+        public void run()
+        {
+            try
+            {
+                if (output == null)
+                {
+                    output = new FrameOutputStream(this);
+                    if (!handler.opened(output))
+                    {
+                        finish();
+                        return;
+                    }
+                }
+
+                while (true)
+                {
+                    byte[]  bytes;
+                    boolean resume = false;
+                    synchronized (this)
+                    {
+                        bytes = closing ? null : inbox.poll();
+                        if (bytes == null)
+                        {
+                            busy = false;
+                            return;
+                        }
+                        if (paused && inbox.size() < MAX_PENDING)
+                        {
+                            paused = false;
+                            resume = true;
+                        }
+                    }
+                    if (resume)
+                        loop.execute(() -> key.interestOps(key.interestOps() | SelectionKey.OP_READ));
+
+                    if (!handler.received(FrameInputStream.decode(bytes), output))
+                    {
+                        finish();
+                        return;
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                if (!isClosed())
+                {
+                    System.err.println("Error: " + e.getMessage());
+                    e.printStackTrace(System.err);
+                }
+                finish();
+            }
+        }
+
+        /**
+         * Queues bytes for the client and writes as many as the socket takes now
+         */
+        @Override public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            boolean full;
+            synchronized (this)
+            {
+                if (closed)
+                    throw new IOException("Connection closed");
+                outbox.add(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length)));
+                if (outbox.size() > 1)
+                    return; // The loop is waiting for room to write what came before
+                full = !flushOutbox();
+            }
+            if (full)
+                loop.execute(() -> key.interestOps(key.interestOps() | SelectionKey.OP_WRITE));
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        /**
+         * Writes more of the outbox, on the loop's thread, once the socket has room
+         *
+         * @throws IOException If the connection cannot be written
+         */
+        void writeReady() throws IOException
+        {
+            synchronized (this)
+            {
+                if (flushOutbox())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Writes as much of the outbox as the socket takes, and closes the connection if it was waiting to
+         *
+         * @return true if the outbox was emptied, false if the socket is full
+         *
+         * @throws IOException If the connection cannot be written
+         */
+        private synchronized boolean flushOutbox() throws IOException
+        {
+            while (!outbox.isEmpty())
+            {
+                ByteBuffer buffer = outbox.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining())
+                    return false;
+                outbox.poll();
+            }
+            if (closing)
+                close();
+            return true;
+        }
+
+        /**
+         * Closes the connection once what was written to it is sent
+         */
+        private synchronized void finish()
+        {
+            closing = true;
+            if (outbox.isEmpty())
+                close();
+        }
+
+        /**
+         * Returns whether the client has sent nothing for longer than it may, on the loop's thread.
+         * That is the read timeout while a handshake or frame is partly received and the idle timeout between requests.
+         * A connection the handler is still working on is never quiet
+         *
+         * @param now The time now, from System.nanoTime()
+         *
+         * @return true if it has, false otherwise
+         */
+        synchronized boolean isQuiet(long now)
+        {
+            if (busy)
+                return false;
+            boolean idle    = handler != null && frame == null && header.position() == 0 && handler.isIdle();
+            long    timeout = idle ? idleTimeout : readTimeout;
+            return timeout > 0 && now - lastRead > TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+
+        /**
+         * Returns whether the connection is closed
+         *
+         * @return true if it is, false otherwise
+         */
+        private synchronized boolean isClosed()
+        {
+            return closed;
+        }
+
+        /**
+         * Closes the connection now
+         */
+        @Override public synchronized void close()
+        {
+            if (closed)
+                return;
+            closed = true;
+            outbox.clear();
+            if (handler != null)
+            {
+                sessions.decrementAndGet();
+                handler.closed();
+            }
+            SelectorEngine.close(channel);
+        }
+    }
+
+    /**
+     * Copies as many bytes from one buffer to another as both allow
+     *
+     * @param from The buffer copied from
+     * @param to The buffer copied to
+     */
+    private static void transfer(ByteBuffer from, ByteBuffer to)
+    {
+        int        count = Math.min(from.remaining(), to.remaining());
+        ByteBuffer slice = from.duplicate();
+        slice.limit(slice.position() + count);
+        to.put(slice);
+        from.position(from.position() + count);
+    }
+}
@@ -9,6 +9,7 @@ public class ShareFile implements java.io.Serializable, Comparable<ShareFile>
 	private String group;   // Group to which this file belongs
 	private String path;    // Path to the file on server
 	private String owner;   // Owner of the file
+	private FileMetadata metadata; // Size and hash, null for files listed before they were recorded
 
     /**
      * Constructor which accepts the owner, group, and path
@@ -24,6 +25,20 @@ public class ShareFile implements java.io.Serializable, Comparable<ShareFile>
 		path  = _path;
 	}
 
+    /**
+     * Constructor which accepts the owner, group, path, and metadata
+     *
+     * @param _owner The owner
+     * @param _group The group
+     * @param _path The path
+     * @param _metadata The metadata
+     */
+	public ShareFile(String _owner, String _group, String _path, FileMetadata _metadata)
+    {
+		this(_owner, _group, _path);
+		metadata = _metadata;
+	}
+
     /**
      * Returns the path to this file
      *
@@ -54,6 +69,16 @@ public class ShareFile implements java.io.Serializable, Comparable<ShareFile>
 		return group;
 	}
 
+    /**
+     * Returns the size, upload time and hash of this file
+     *
+     * @return The metadata, null if the file was uploaded before metadata was recorded
+     */
+	public FileMetadata getMetadata()
+	{
+		return metadata;
+	}
+
     /**
      * Compares two files
      *
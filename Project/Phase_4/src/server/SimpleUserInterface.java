@@ -1,5 +1,7 @@
 package server;
 import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -14,6 +16,10 @@ public class SimpleUserInterface extends Client
     public static String  gsName;
     public static String  fsName;
 
+    private static final long MULTIPART_THRESHOLD   = 64 * 1024 * 1024; // Files at least this big are sent in segments
+    private static final int  MULTIPART_CONNECTIONS = 4;                // Connections used for a multipart upload
+    private static final int  PAGE_SIZE             = 25;               // Files shown at a time when listing
+
     public static  GroupClient  groupClient;
     public static  FileClient   fileClient;
     static         Scanner      scanner;
@@ -125,6 +131,9 @@ public class SimpleUserInterface extends Client
                         case "9":   // List Members
                             listMembers(token);
                             break;
+                        case "R":   // Resume Upload
+                            resumeUpload(token);
+                            break;
                         case "0":   // Disconnect
                             fileClient.disconnect();
                             groupClient.disconnect();
@@ -172,6 +181,9 @@ public class SimpleUserInterface extends Client
                         case "9":   // List Members
                             listMembers(token);
                             break;
+                        case "R":   // Resume Upload
+                            resumeUpload(token);
+                            break;
                         case "0":   // Disconnect
                             fileClient.disconnect();
                             groupClient.disconnect();
@@ -212,6 +224,7 @@ public class SimpleUserInterface extends Client
         System.out.println("7: Add a user to a group");
         System.out.println("8: Remove a user from a group");
         System.out.println("9: List the members of a group");
+        System.out.println("R: Resume an interrupted upload");
         System.out.println("0: Disconnect from the client");
     }
 
@@ -246,12 +259,29 @@ public class SimpleUserInterface extends Client
     {
         printLineBreaks(3);
 
-        List<String> list = fileClient.listFiles(token);
-        if (list.isEmpty())
+        System.out.println("Please enter the start of the paths to list (leave blank to list everything)");
+        String prefix = scanner.nextLine();
+
+        // Fetch a page at a time so long lists are never held all at once
+        FilePage page = fileClient.listFiles(token, prefix, PAGE_SIZE, null);
+        if (page == null)
+            System.out.println("Error listing files...");
+        else if (page.getFiles().isEmpty())
             System.out.println("No files to list");
-        else // Print the list
-            for (String file : list)
-                System.out.println(file);
+        else
+            while (page != null)
+            {// Print the page and ask before fetching the next one
+                for (String file : page.getFiles())
+                    System.out.println(file);
+
+                if (!page.hasMore())
+                    break;
+
+                System.out.println("-- Press enter for more, or q to stop --");
+                if (scanner.nextLine().equalsIgnoreCase("q"))
+                    break;
+                page = fileClient.listFiles(token, prefix, PAGE_SIZE, page.getCursor());
+            }
 
         printLineBreaks(3);
     }
@@ -280,7 +310,60 @@ public class SimpleUserInterface extends Client
 
         printLineBreaks(1);
         
-        if (fileClient.upload(sourceFile, destFile, group, groupKey, IV, token))
+        boolean uploaded;
+        if (new File(sourceFile).length() >= MULTIPART_THRESHOLD)
+            uploaded = fileClient.uploadMultipart(sourceFile, destFile, group, groupKey, token, MULTIPART_CONNECTIONS);
+        else
+            uploaded = fileClient.upload(sourceFile, destFile, group, groupKey, IV, token);
+
+        if (uploaded)
+            System.out.println("File uploaded successfully");
+        else
+        {
+            System.out.println("Error uploading file...");
+            if (fileClient.getUploadSession() != null)
+                System.out.printf("Use R with session %s to finish this upload later\n", fileClient.getUploadSession());
+        }
+
+        printLineBreaks(3);
+    }
+
+    /**
+     * Private method that handles resuming an upload that was interrupted
+     *
+     * @param token The token of the requester
+     */
+    private static void resumeUpload(SignedObject token)
+    {
+        printLineBreaks(3);
+
+        // Parameters for FileClient.resumeUpload()
+        String sessionID, sourceFile, group;
+
+        // Get the parameters from user
+        System.out.println("Please enter the upload session ID");
+        sessionID  = scanner.nextLine();
+        System.out.println("Please enter the path to the local file being uploaded");
+        sourceFile = scanner.nextLine();
+        System.out.println("Please enter the group the file is shared with");
+        group      = scanner.nextLine();
+        SecretKey groupKey = (SecretKey)groupClient.getGroupKey(group, token).get(0);
+        byte[] IV = (byte[])groupClient.getGroupKey(group, token).get(1);
+
+        printLineBreaks(1);
+
+        if (!fileClient.isConnected())
+        {// The connection the upload was using is gone, so start a new one
+            fileClient = new FileClient();
+            if (!fileClient.connect(fsName, fsPort) || !fileClient.handshake(groupClient.getPublicKey()))
+            {
+                System.out.println("Problem reconnecting to the FileServer");
+                printLineBreaks(3);
+                return;
+            }
+        }
+
+        if (fileClient.resumeUpload(sessionID, sourceFile, groupKey, IV, token))
             System.out.println("File uploaded successfully");
         else
             System.out.println("Error uploading file...");
@@ -313,7 +396,9 @@ public class SimpleUserInterface extends Client
 
         printLineBreaks(1);
 
-        if (fileClient.download(sourceFile, destFile, groupKey, IV, token))
+        if (isSameAsServer(sourceFile, destFile, token))
+            System.out.println("The local file is already the same as the file on the server");
+        else if (fileClient.download(sourceFile, destFile, groupKey, IV, token))
             System.out.println("File downloaded successfully");
         else
             System.out.println("Error downloading file...");
@@ -321,6 +406,37 @@ public class SimpleUserInterface extends Client
         printLineBreaks(3);
     }
 
+    /**
+     * Private method that checks whether a local file already has the contents of a file on the server,
+     * by comparing its hash with the one the server recorded
+     *
+     * @param sourceFile The filename used on the server
+     * @param destFile The local file
+     * @param token The token of the requester
+     *
+     * @return true if the hashes match, false if they do not or either is unknown
+     */
+    private static boolean isSameAsServer(String sourceFile, String destFile, SignedObject token)
+    {
+        File local = new File(destFile);
+        if (!local.isFile())
+            return false;
+
+        FileMetadata metadata = fileClient.stat(sourceFile, token);
+        if (metadata == null || metadata.getSize() != local.length())
+            return false;
+
+        try (FileInputStream in = new FileInputStream(local))
+        {
+            return metadata.getSHA256().equals(FileMetadata.sha256(in));
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Private method that handles deleting a file on the server
      *
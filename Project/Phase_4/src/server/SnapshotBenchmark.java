@@ -0,0 +1,108 @@
+package server;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Random;
+
+/**
+ * Compares how long the servers take to load their lists at startup from serialized objects, as the .bin files
+ * were written before SnapshotCodec, and from each compression of the binary format.
+ *
+ * Usage: java -cp .:bcprov-jdk15on-150.jar server.SnapshotBenchmark [users] [groups] [files]
+ */
+public class SnapshotBenchmark
+{
+    private static final int ROUNDS = 5; // Loads timed per format, the fastest is reported
+
+    public static void main(String[] args) throws Exception
+    {
+        int users  = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int groups = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int files  = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+        Random random = new Random(1);
+
+        System.out.printf("Building %d users, %d groups and %d files...\n", users, groups, files);
+        GroupList groupList = new GroupList();
+        for (int i = 0; i < groups; i++)
+        {
+            groupList.addGroup("group" + i);
+            groupList.setOwner("user" + random.nextInt(users), "group" + i);
+        }
+
+        UserList userList = new UserList();
+        for (int i = 0; i < users; i++)
+        {
+            userList.addUser("user" + i, "password" + i);
+            for (int j = 0; j < 3; j++)
+            {
+                String group = "group" + random.nextInt(groups);
+                userList.addGroup("user" + i, group);
+                groupList.addMember("user" + i, group);
+            }
+        }
+
+        FileList fileList = new FileList();
+        for (int i = 0; i < files; i++)
+        {
+            String group = "group" + random.nextInt(groups);
+            String hash  = String.format("%064x", new BigInteger(256, random));
+            fileList.addFile("user" + random.nextInt(users), group, "shared_files/" + group + "/_file" + i,
+                             new FileMetadata(random.nextInt(1 << 24), System.currentTimeMillis(), hash));
+        }
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        Object[] objects = { userList, groupList, fileList, keyPair };
+        String[] names   = { "UserList", "GroupList", "FileList", "KeyPair" };
+
+        System.out.printf("%-12s %-10s %12s %10s %10s\n", "Format", "Object", "Bytes", "Save ms", "Load ms");
+        for (int format = -1; format < Compression.values().length; format++)
+        {
+            String label      = format < 0 ? "Serialized" : Compression.values()[format].toString();
+            long   totalBytes = 0;
+            double totalLoad  = 0;
+            for (int i = 0; i < objects.length; i++)
+            {
+                long   start = System.nanoTime();
+                byte[] bytes = format < 0 ? serialize(objects[i]) : SnapshotCodec.encode(objects[i], Compression.values()[format]);
+                double save  = (System.nanoTime() - start) / 1e6;
+
+                double load = Double.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++)
+                {
+                    start = System.nanoTime();
+                    SnapshotCodec.decode(bytes);
+                    load = Math.min(load, (System.nanoTime() - start) / 1e6);
+                }
+
+                System.out.printf("%-12s %-10s %12d %10.1f %10.1f\n", label, names[i], bytes.length, save, load);
+                totalBytes += bytes.length;
+                totalLoad  += load;
+            }
+            System.out.printf("%-12s %-10s %12d %10s %10.1f\n", label, "Startup", totalBytes, "", totalLoad);
+        }
+    }
+
+    /**
+     * Serializes an object the way the .bin files were written before SnapshotCodec
+     *
+     * @param object The object
+     *
+     * @return The bytes
+     *
+     * @throws IOException
+     */
+    private static byte[] serialize(Object object) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+}
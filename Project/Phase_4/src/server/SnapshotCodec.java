@@ -0,0 +1,372 @@
+package server;
+
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes the lists and key pairs the servers save into a compact binary format, and decodes them again.
+ *
+ * Every snapshot starts with a header: the magic number, what kind of object follows, the version of its layout
+ * and how the rest is compressed. The lists write their own contents with the helpers here, strings and byte arrays
+ * as a length followed by the bytes and counts as variable length integers, so small values take one byte.
+ * A layout change adds a version, and decode() keeps reading the versions before it.
+ *
+ * Snapshots written before this format are serialized objects, which decode() still reads, so existing .bin files
+ * load unchanged and are written in this format the next time they are saved.
+ */
+public class SnapshotCodec
+{
+    private static final int  MAGIC      = 0x46505342; // "FPSB", a serialized object starts with 0xaced instead
+    private static final byte USER_LIST  = 1;          // What a snapshot holds
+    private static final byte GROUP_LIST = 2;
+    private static final byte FILE_LIST  = 3;
+    private static final byte KEY_PAIR   = 4;
+    private static final int  VERSION    = 1;          // Layout of the contents written by this version
+
+    /**
+     * Encodes a list or key pair
+     *
+     * @param object The UserList, GroupList, FileList or KeyPair
+     * @param compression How to compress the contents
+     *
+     * @return The snapshot
+     *
+     * @throws IOException
+     */
+    public static byte[] encode(Object object, Compression compression) throws IOException
+    {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        DataOutputStream      out      = new DataOutputStream(contents);
+        byte                  type;
+        if (object instanceof UserList)
+        {
+            type = USER_LIST;
+            ((UserList)object).encode(out);
+        }
+        else if (object instanceof GroupList)
+        {
+            type = GROUP_LIST;
+            ((GroupList)object).encode(out);
+        }
+        else if (object instanceof FileList)
+        {
+            type = FILE_LIST;
+            ((FileList)object).encode(out);
+        }
+        else if (object instanceof KeyPair)
+        {
+            type = KEY_PAIR;
+            encode((KeyPair)object, out);
+        }
+        else
+            throw new IllegalArgumentException("Cannot encode " + object.getClass().getName());
+        out.flush();
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream(contents.size() + 16);
+        DataOutputStream      header   = new DataOutputStream(snapshot);
+        header.writeInt(MAGIC);
+        header.writeByte(type);
+        header.writeShort(VERSION);
+        header.writeByte(compression.ordinal());
+        header.flush();
+
+        if (compression == Compression.NONE)
+            contents.writeTo(snapshot);
+        else
+        {
+            Deflater deflater = new Deflater(compression.getLevel());
+            try (DeflaterOutputStream deflated = new DeflaterOutputStream(snapshot, deflater, 65536))
+            {
+                contents.writeTo(deflated);
+            }
+            finally
+            {
+                deflater.end();
+            }
+        }
+        return snapshot.toByteArray();
+    }
+
+    /**
+     * Decodes a snapshot written by encode(), or a serialized object written before it
+     *
+     * @param snapshot The snapshot
+     *
+     * @return The UserList, GroupList, FileList or KeyPair
+     *
+     * @throws IOException If the snapshot is damaged or was written by a newer version
+     * @throws ClassNotFoundException If a serialized object's class is unknown
+     */
+    public static Object decode(byte[] snapshot) throws IOException, ClassNotFoundException
+    {
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(snapshot));
+        if (snapshot.length < 8 || header.readInt() != MAGIC)
+        {// Written before this format
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(snapshot)))
+            {
+                return in.readObject();
+            }
+        }
+
+        byte type    = header.readByte();
+        int  version = header.readUnsignedShort();
+        int  codec   = header.readUnsignedByte();
+        if (version > VERSION)
+            throw new IOException("Snapshot version " + version + " was written by a newer server");
+        if (codec >= Compression.values().length)
+            throw new IOException("Unknown snapshot compression " + codec);
+
+        InputStream body     = header;
+        Inflater    inflater = null;
+        if (codec != Compression.NONE.ordinal())
+        {
+            inflater = new Inflater();
+            body     = new InflaterInputStream(header, inflater, 65536);
+        }
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(body, 65536));
+            switch (type)
+            {
+                case USER_LIST:  return UserList.decode(in, version);
+                case GROUP_LIST: return GroupList.decode(in, version);
+                case FILE_LIST:  return FileList.decode(in, version);
+                case KEY_PAIR:   return decodeKeyPair(in);
+                default:         throw new IOException("Unknown snapshot type " + type);
+            }
+        }
+        catch (EOFException e)
+        {
+            throw new IOException("Snapshot is cut short", e);
+        }
+        finally
+        {
+            if (inflater != null)
+                inflater.end();
+        }
+    }
+
+    /**
+     * Writes a non-negative int in as few bytes as it needs, 7 bits per byte
+     *
+     * @param out The stream
+     * @param value The value
+     *
+     * @throws IOException
+     */
+    public static void writeCount(DataOutput out, int value) throws IOException
+    {
+        writeLong(out, value);
+    }
+
+    /**
+     * Reads an int written by writeCount()
+     *
+     * @param in The stream
+     *
+     * @return The value
+     *
+     * @throws IOException If it is not a valid count
+     */
+    public static int readCount(DataInput in) throws IOException
+    {
+        long value = readLong(in);
+        if (value > Integer.MAX_VALUE)
+            throw new IOException("Count " + value + " is too large");
+        return (int)value;
+    }
+
+    /**
+     * Writes a non-negative long in as few bytes as it needs, 7 bits per byte
+     *
+     * @param out The stream
+     * @param value The value
+     *
+     * @throws IOException
+     */
+    public static void writeLong(DataOutput out, long value) throws IOException
+    {
+        if (value < 0)
+            throw new IllegalArgumentException("Negative value " + value);
+        while (value > 0x7f)
+        {
+            out.writeByte((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    /**
+     * Reads a long written by writeLong()
+     *
+     * @param in The stream
+     *
+     * @return The value
+     *
+     * @throws IOException If it is not a valid value
+     */
+    public static long readLong(DataInput in) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed number in snapshot");
+    }
+
+    /**
+     * Writes a string as its length and UTF-8 bytes
+     *
+     * @param out The stream
+     * @param value The string, may be null
+     *
+     * @throws IOException
+     */
+    public static void writeString(DataOutput out, String value) throws IOException
+    {
+        writeBytes(out, value == null ? null : value.getBytes("UTF-8"));
+    }
+
+    /**
+     * Reads a string written by writeString()
+     *
+     * @param in The stream
+     *
+     * @return The string, may be null
+     *
+     * @throws IOException
+     */
+    public static String readString(DataInput in) throws IOException
+    {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes a list of strings as its size and the strings
+     *
+     * @param out The stream
+     * @param values The strings
+     *
+     * @throws IOException
+     */
+    public static void writeStrings(DataOutput out, List<String> values) throws IOException
+    {
+        writeCount(out, values.size());
+        for (String value : values)
+            writeString(out, value);
+    }
+
+    /**
+     * Reads a list of strings written by writeStrings()
+     *
+     * @param in The stream
+     *
+     * @return The strings
+     *
+     * @throws IOException
+     */
+    public static ArrayList<String> readStrings(DataInput in) throws IOException
+    {
+        int               size   = readCount(in);
+        ArrayList<String> values = new ArrayList<>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++)
+            values.add(readString(in));
+        return values;
+    }
+
+    /**
+     * Writes a byte array as its length and contents, the length is one more so 0 can stand for null
+     *
+     * @param out The stream
+     * @param value The bytes, may be null
+     *
+     * @throws IOException
+     */
+    public static void writeBytes(DataOutput out, byte[] value) throws IOException
+    {
+        if (value == null)
+            writeCount(out, 0);
+        else
+        {
+            writeCount(out, value.length + 1);
+            out.write(value);
+        }
+    }
+
+    /**
+     * Reads a byte array written by writeBytes()
+     *
+     * @param in The stream
+     *
+     * @return The bytes, may be null
+     *
+     * @throws IOException
+     */
+    public static byte[] readBytes(DataInput in) throws IOException
+    {
+        int length = readCount(in);
+        if (length == 0)
+            return null;
+
+        byte[] value = new byte[length - 1];
+        in.readFully(value);
+        return value;
+    }
+
+    /**
+     * Writes a key pair as its algorithm and its standard encodings
+     *
+     * @param keyPair The key pair
+     * @param out The stream
+     *
+     * @throws IOException
+     */
+    private static void encode(KeyPair keyPair, DataOutput out) throws IOException
+    {
+        writeString(out, keyPair.getPublic().getAlgorithm());
+        writeBytes(out, keyPair.getPublic().getEncoded());  // X.509
+        writeBytes(out, keyPair.getPrivate().getEncoded()); // PKCS #8
+    }
+
+    /**
+     * Reads a key pair written by encode()
+     *
+     * @param in The stream
+     *
+     * @return The key pair
+     *
+     * @throws IOException If the keys cannot be decoded
+     */
+    private static KeyPair decodeKeyPair(DataInput in) throws IOException
+    {
+        try
+        {
+            KeyFactory factory    = KeyFactory.getInstance(readString(in));
+            PublicKey  publicKey  = factory.generatePublic(new X509EncodedKeySpec(readBytes(in)));
+            PrivateKey privateKey = factory.generatePrivate(new PKCS8EncodedKeySpec(readBytes(in)));
+            return new KeyPair(publicKey, privateKey);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("Cannot decode key pair", e);
+        }
+    }
+}
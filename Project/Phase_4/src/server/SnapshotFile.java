@@ -0,0 +1,197 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A file a server saves its state to, such as UserList.bin, replaced whole on every save.
+ *
+ * A save is written to NAME.tmp with a header holding its length and CRC32, forced to disk and renamed over
+ * NAME, so a crash leaves either the old save or the new one and never a mix. The save it replaces is kept as
+ * NAME.prev. Loading checks the checksum and falls back to NAME.prev if NAME is missing or damaged, so callers
+ * must keep whatever else they need to bring the previous save up to date, such as log segments, until the
+ * save after it has been written. Saves to the same file are serialized.
+ *
+ * What is saved is encoded with SnapshotCodec, compressed as chosen when the SnapshotFile is created.
+ * Files saved before the header was added are plain serialized objects and are still read, without a check.
+ */
+public class SnapshotFile
+{
+    private static final int MAGIC   = 0x534e4150; // "SNAP", a serialized object starts with 0xaced instead
+    private static final int VERSION = 1;          // Layout of the header
+    private static final int HEADER  = 20;         // Bytes of header before the data
+
+    private final File        file;        // The latest save
+    private final File        previous;    // The save before it
+    private final File        temp;        // Where a save is written before it replaces file
+    private final Compression compression; // How saves are compressed
+
+    /**
+     * Constructor which accepts the name of the file, saves are not compressed
+     *
+     * @param name The name
+     */
+    public SnapshotFile(String name)
+    {
+        this(name, Compression.NONE);
+    }
+
+    /**
+     * Constructor which accepts the name of the file and how to compress saves
+     *
+     * @param name The name
+     * @param compression The compression
+     */
+    public SnapshotFile(String name, Compression compression)
+    {
+        this.file        = new File(name);
+        this.previous    = new File(name + ".prev");
+        this.temp        = new File(name + ".tmp");
+        this.compression = compression;
+    }
+
+    /**
+     * Saves an object, replacing the last save. The lists are saved as of the moment this is called
+     *
+     * @param object The UserList, GroupList, FileList or KeyPair
+     *
+     * @return The number of bytes written
+     *
+     * @throws IOException If the object cannot be saved, the last save is left as it was
+     */
+    public long writeObject(Object object) throws IOException
+    {
+        byte[] data = SnapshotCodec.encode(object, compression);
+        write(data);
+        return HEADER + data.length;
+    }
+
+    /**
+     * Saves some bytes, replacing the last save
+     *
+     * @param data The bytes
+     *
+     * @throws IOException If the bytes cannot be saved, the last save is left as it was
+     */
+    public synchronized void write(byte[] data) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        try (FileOutputStream fos = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(data.length);
+            out.writeInt((int)crc.getValue());
+            out.write(data);
+            out.flush();
+            fos.getFD().sync();
+        }
+
+        if (file.exists())
+            Files.move(file.toPath(), previous.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    /**
+     * Loads the object last saved, or the one before it if the last save is missing or damaged
+     *
+     * @return The object
+     *
+     * @throws FileNotFoundException If nothing was ever saved
+     * @throws IOException If every save there is is damaged
+     */
+    public Object readObject() throws IOException
+    {
+        if (!file.exists() && !previous.exists())
+            throw new FileNotFoundException(file + " does not exist");
+
+        IOException damaged = null;
+        for (File generation : new File[] { file, previous })
+        {
+            if (!generation.exists())
+                continue;
+
+            try
+            {
+                Object object = SnapshotCodec.decode(read(generation));
+                if (generation == previous)
+                    System.out.printf("%s is missing or damaged, loaded the save before it\n", file);
+                return object;
+            }
+            catch (IOException | ClassNotFoundException e)
+            {
+                System.err.printf("Error: cannot load %s: %s\n", generation, e.getMessage());
+                damaged = new IOException("Cannot load " + file + " or the save before it", e);
+            }
+        }
+        throw damaged;
+    }
+
+    /**
+     * Returns the name of the file
+     *
+     * @return The name
+     */
+    @Override public String toString()
+    {
+        return file.toString();
+    }
+
+    /**
+     * Reads one save and checks it
+     *
+     * @param generation The file holding the save
+     *
+     * @return The bytes that were saved
+     *
+     * @throws IOException If the file cannot be read or fails its checksum
+     */
+    private static byte[] read(File generation) throws IOException
+    {
+        byte[] contents = Files.readAllBytes(generation.toPath());
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents)))
+        {
+            if (contents.length < HEADER || in.readInt() != MAGIC)
+                return contents; // Saved before the header was added
+
+            int  version = in.readInt();
+            long length  = in.readLong();
+            long crc     = in.readInt() & 0xffffffffL;
+            if (version != VERSION)
+                throw new IOException("Unknown snapshot version " + version);
+            if (length != contents.length - HEADER)
+                throw new IOException("Expected " + length + " bytes, found " + (contents.length - HEADER));
+
+            byte[] data = new byte[(int)length];
+            in.readFully(data);
+
+            CRC32 check = new CRC32();
+            check.update(data);
+            if (check.getValue() != crc)
+                throw new IOException("Checksum mismatch");
+            return data;
+        }
+    }
+
+    /**
+     * Forces the renames to disk, where the platform allows a directory to be opened
+     */
+    private void syncDirectory()
+    {
+        try (FileChannel dir = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ))
+        {
+            dir.force(true);
+        }
+        catch (IOException e)
+        {// Directories cannot be opened on every platform, the rename is atomic either way
+        }
+    }
+}
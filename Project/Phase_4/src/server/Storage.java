@@ -0,0 +1,114 @@
+package server;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Where a list keeps its entries, by name. UserList and GroupList are built on top of a Storage, either
+ * MemoryStorage, which holds everything in the heap and is saved whole by a snapshot, or BTreeStorage,
+ * which keeps the entries in a file and only holds the pages it is using.
+ *
+ * Every call may be made by several threads at once. MemoryStorage reads without locking, BTreeStorage makes
+ * one call at a time. The list using a Storage locks around changes that read an entry and put it back.
+ * Failures to read or write a file are thrown as UncheckedIOException.
+ *
+ * @param <V> The type of the entries
+ */
+public interface Storage<V> extends Closeable
+{
+    /**
+     * Writes entries to bytes and reads them back, for storage that keeps them outside the heap
+     *
+     * @param <V> The type of the entries
+     */
+    interface Codec<V>
+    {
+        /**
+         * Writes an entry
+         *
+         * @param out The stream
+         * @param value The entry
+         *
+         * @throws IOException
+         */
+        void write(DataOutputStream out, V value) throws IOException;
+
+        /**
+         * Reads an entry written by write()
+         *
+         * @param in The stream
+         *
+         * @return The entry
+         *
+         * @throws IOException
+         */
+        V read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Returns an entry
+     *
+     * @param key The name of the entry
+     *
+     * @return The entry, null if there is none
+     */
+    V get(String key);
+
+    /**
+     * Adds an entry, replacing any with the same name
+     *
+     * @param key The name of the entry
+     * @param value The entry
+     */
+    void put(String key, V value);
+
+    /**
+     * Removes an entry
+     *
+     * @param key The name of the entry
+     */
+    void remove(String key);
+
+    /**
+     * Checks if there is an entry with some name
+     *
+     * @param key The name
+     *
+     * @return true if there is, false otherwise
+     */
+    boolean containsKey(String key);
+
+    /**
+     * Returns the number of entries
+     *
+     * @return The number of entries
+     */
+    long size();
+
+    /**
+     * Copies every entry into the heap, for writing a snapshot after the list is unlocked
+     *
+     * @return The entries by name
+     */
+    Map<String, V> copy();
+
+    /**
+     * Returns whether the entries are kept on disk, so flush() saves them and no snapshot is needed
+     *
+     * @return true if they are, false otherwise
+     */
+    boolean isPersistent();
+
+    /**
+     * Writes every change made so far to disk, all or none of them if the server crashes meanwhile.
+     * Does nothing for storage kept in memory
+     *
+     * @return The number of bytes written
+     *
+     * @throws IOException If the changes cannot be written
+     */
+    long flush() throws IOException;
+}
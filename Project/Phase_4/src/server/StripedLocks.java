@@ -0,0 +1,111 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks on names, so changes to different users or groups go ahead at the same time instead of one at a time.
+ * A name falls in one of a fixed number of stripes, each with a lock of its own. Several names are always locked
+ * in the order of their stripes, so two threads locking some of the same names cannot deadlock.
+ *
+ * Holding names also holds a shared lock that lockAll() takes exclusively, for whatever needs nothing to change
+ * meanwhile, such as copying a list for a snapshot or a change to names that are not known beforehand.
+ * Reads take neither, they rely on entries being replaced rather than changed.
+ */
+public class StripedLocks
+{
+    public static final int DEFAULT_STRIPES = 64; // Stripes unless told otherwise
+
+    private final ReentrantReadWriteLock all = new ReentrantReadWriteLock(); // Shared by lock(), exclusive to lockAll()
+    private final ReentrantLock[]        stripes;                            // The locks names fall in
+
+    /**
+     * Held locks, released by close() so they can be taken in a try-with-resources statement
+     */
+    public interface Held extends AutoCloseable
+    {
+        /**
+         * Releases the locks
+         */
+        @Override void close();
+    }
+
+    /**
+     * Default constructor, with DEFAULT_STRIPES stripes
+     */
+    public StripedLocks()
+    {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Constructor which accepts the number of stripes
+     *
+     * @param stripes The number of stripes, rounded up to a power of two
+     */
+    public StripedLocks(int stripes)
+    {
+        int count = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantLock[stripes > 1 ? count : 1];
+        for (int i = 0; i < this.stripes.length; i++)
+            this.stripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * Locks some names, waiting for whoever holds any of them or lockAll()
+     *
+     * @param names The names
+     *
+     * @return The locks, to be closed once the change is made
+     */
+    public Held lock(String... names)
+    {
+        final int[] held = new int[names.length];
+        for (int i = 0; i < names.length; i++)
+            held[i] = stripe(names[i]);
+        Arrays.sort(held);
+
+        all.readLock().lock();
+        int locked = 0;
+        for (int i = 0; i < held.length; i++)
+        {
+            if (i > 0 && held[i] == held[i - 1])
+                continue; // Names in the same stripe share its lock
+            stripes[held[i]].lock();
+            held[locked++] = held[i];
+        }
+
+        final int count = locked;
+        return () ->
+        {
+            for (int i = count - 1; i >= 0; i--)
+                stripes[held[i]].unlock();
+            all.readLock().unlock();
+        };
+    }
+
+    /**
+     * Locks every name, waiting for whoever holds any of them. The thread holding this may still lock names
+     *
+     * @return The lock, to be closed once done
+     */
+    public Held lockAll()
+    {
+        all.writeLock().lock();
+        return () -> all.writeLock().unlock();
+    }
+
+    /**
+     * Returns the stripe a name falls in
+     *
+     * @param name The name
+     *
+     * @return The index of its lock
+     */
+    private int stripe(String name)
+    {
+        int hash = name == null ? 0 : name.hashCode();
+        return (hash ^ hash >>> 16) & (stripes.length - 1);
+    }
+}
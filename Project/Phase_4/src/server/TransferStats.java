@@ -0,0 +1,169 @@
+package server;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Statistics collected by ChunkTransfer for a single upload or download
+ */
+public class TransferStats
+{
+    private long startTime;                                       // When the transfer started, in nanoseconds
+    private long endTime;                                         // When the transfer ended, in nanoseconds
+    private long bytes;                                           // File bytes moved
+    private long sentBytes;                                       // Chunk bytes after compression
+    private long codecTime;                                       // CPU time spent compressing or decompressing
+    private int  chunks;                                          // Chunks moved
+    private long minRTT = Long.MAX_VALUE;                         // Shortest chunk round trip, in nanoseconds
+    private long totalRTT;                                        // Sum of measured round trips
+    private int  samples;                                         // Number of measured round trips
+    private TreeMap<Integer, Integer> chunkSizes = new TreeMap<>(); // How many chunks of each size were used
+
+    /**
+     * Marks the start of the transfer
+     */
+    public void start()
+    {
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Marks the end of the transfer
+     */
+    public void stop()
+    {
+        endTime = System.nanoTime();
+    }
+
+    /**
+     * Records a chunk
+     *
+     * @param size The number of file bytes in the chunk
+     * @param sent The number of bytes sent for it, less than size if it was compressed
+     */
+    public void addChunk(int size, int sent)
+    {
+        bytes     += size;
+        sentBytes += sent;
+        chunks++;
+        Integer count = chunkSizes.get(size);
+        chunkSizes.put(size, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Records the round trip of an acknowledged chunk
+     *
+     * @param rtt The round trip time in nanoseconds
+     */
+    public void addRTT(long rtt)
+    {
+        minRTT    = Math.min(minRTT, rtt);
+        totalRTT += rtt;
+        samples++;
+    }
+
+    /**
+     * Records time spent compressing or decompressing a chunk
+     *
+     * @param nanos The CPU time in nanoseconds
+     */
+    public void addCodecTime(long nanos)
+    {
+        codecTime += nanos;
+    }
+
+    /**
+     * Returns the number of file bytes moved
+     *
+     * @return The number of bytes
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of chunks moved
+     *
+     * @return The number of chunks
+     */
+    public int getChunks()
+    {
+        return chunks;
+    }
+
+    /**
+     * Returns the number of chunk bytes sent, after compression
+     *
+     * @return The number of bytes
+     */
+    public long getSentBytes()
+    {
+        return sentBytes;
+    }
+
+    /**
+     * Returns how much the chunks were compressed
+     *
+     * @return File bytes per byte sent, 1 if nothing was compressed
+     */
+    public double getCompressionRatio()
+    {
+        return sentBytes > 0 ? bytes / (double)sentBytes : 1.0;
+    }
+
+    /**
+     * Returns the CPU time spent compressing or decompressing
+     *
+     * @return The time in nanoseconds
+     */
+    public long getCodecTime()
+    {
+        return codecTime;
+    }
+
+    /**
+     * Returns the time the transfer took
+     *
+     * @return The elapsed time in nanoseconds
+     */
+    public long getElapsed()
+    {
+        return (endTime == 0 ? System.nanoTime() : endTime) - startTime;
+    }
+
+    /**
+     * Returns the chunk sizes used and how often each was used
+     *
+     * @return Map of chunk size to number of chunks
+     */
+    public Map<Integer, Integer> getChunkSizes()
+    {
+        return chunkSizes;
+    }
+
+    /**
+     * Summarizes the transfer in one line
+     *
+     * @return The summary
+     */
+    @Override public String toString()
+    {
+        double seconds = getElapsed() / 1e9;
+        StringBuilder string = new StringBuilder(String.format("%d bytes in %d chunks, %.3f s, %.2f MB/s",
+                bytes, chunks, seconds, seconds > 0 ? bytes / seconds / (1 << 20) : 0.0));
+
+        if (samples > 0)
+            string.append(String.format(", RTT min %.2f ms avg %.2f ms", minRTT / 1e6, totalRTT / 1e6 / samples));
+
+        if (codecTime > 0)
+            string.append(String.format(", compressed to %d bytes (ratio %.2f), codec CPU %.1f ms",
+                                        sentBytes, getCompressionRatio(), codecTime / 1e6));
+
+        string.append(", chunk sizes:");
+        for (Map.Entry<Integer, Integer> size : chunkSizes.entrySet())
+            string.append(' ').append(size.getKey()).append('x').append(size.getValue());
+
+        return string.toString();
+    }
+}
@@ -0,0 +1,316 @@
+package server;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents an upload that has not finished yet.
+ *
+ * The encrypted data is written to shared_files/.uploads/ID.part as a BlockFile and the session record to ID.session.
+ * The record holds the number of complete blocks known to be on disk. A client that lost its connection sends
+ * RESUMEF with the session ID, the file is cut back to those blocks, and the client only sends the rest of the file.
+ * The file is handed to the BlobStore and added to FileList once EOF arrives.
+ */
+public class UploadSession implements Serializable
+{
+    private static final long   serialVersionUID = 4180923365741275614L;
+    public  static final String UPLOAD_DIR       = "shared_files/.uploads"; // Where partial uploads are kept
+    private static final long   CHECKPOINT_BYTES = 4 * 1024 * 1024;         // Bytes written between checkpoints
+    private static final Set<String> active = ConcurrentHashMap.newKeySet(); // Sessions receiving data right now
+
+    private final String id;      // The session ID handed to the client
+    private final String owner;   // The user uploading the file
+    private final String group;   // The group the file will belong to
+    private final String path;    // Where the file goes once complete
+    private final long   created; // When the upload started
+    private       long   blocks;  // Blocks durably written to the partial file
+    private       long   offset;  // Bytes of the file those blocks hold
+
+    private transient PartialFileStream stream; // The stream currently writing the partial file
+
+    /**
+     * Private constructor, use create() or load()
+     *
+     * @param id The session ID
+     * @param owner The owner
+     * @param group The group
+     * @param path The final path
+     */
+    private UploadSession(String id, String owner, String group, String path)
+    {
+        this.id      = id;
+        this.owner   = owner;
+        this.group   = group;
+        this.path    = path;
+        this.created = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts a new upload session and saves its record
+     *
+     * @param owner The user uploading the file
+     * @param group The group the file will belong to
+     * @param path Where the file goes once complete
+     *
+     * @return The session
+     *
+     * @throws IOException If the record cannot be saved
+     */
+    public static UploadSession create(String owner, String group, String path) throws IOException
+    {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder id = new StringBuilder();
+        for (byte b : bytes)
+            id.append(String.format("%02x", b));
+
+        new File(UPLOAD_DIR).mkdirs();
+        UploadSession session = new UploadSession(id.toString(), owner, group, path);
+        session.save();
+        return session;
+    }
+
+    /**
+     * Loads the record of an unfinished upload
+     *
+     * @param id The session ID
+     *
+     * @return The session, null if there is no such session
+     */
+    public static UploadSession load(String id)
+    {
+        if (id == null || !id.matches("[0-9a-f]{32}"))
+            return null;
+
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(new File(UPLOAD_DIR, id + ".session"))))
+        {
+            return (UploadSession)in.readObject();
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes sessions that have not finished within maxAge
+     *
+     * @param maxAge The age in milliseconds
+     */
+    public static void expire(long maxAge)
+    {
+        File[] records = new File(UPLOAD_DIR).listFiles((dir, name) -> name.endsWith(".session"));
+        if (records == null)
+            return;
+
+        for (File record : records)
+        {
+            String        id      = record.getName().replace(".session", "");
+            UploadSession session = load(id);
+            if (session == null && System.currentTimeMillis() - record.lastModified() > maxAge)
+            {// Record from an older format that can no longer be resumed
+                new File(UPLOAD_DIR, id + ".part").delete();
+                record.delete();
+            }
+            else if (session != null && !active.contains(session.id) && System.currentTimeMillis() - session.created > maxAge)
+            {
+                System.out.printf("Expiring unfinished upload of %s\n", session.path);
+                session.getPartialFile().delete();
+                record.delete();
+            }
+        }
+    }
+
+    /**
+     * Opens the partial file for writing after the last durable block
+     *
+     * @param groupKey The group key
+     *
+     * @return The stream that encrypts into the partial file, null if another connection is using this session
+     *
+     * @throws IOException
+     */
+    public OutputStream open(SecretKey groupKey) throws IOException
+    {
+        if (!active.add(id))
+            return null;
+
+        try
+        {
+            stream = new PartialFileStream(new BlockFile.Writer(getPartialFile(), groupKey, FileServer.BLOCK_SIZE, blocks));
+            return stream;
+        }
+        catch (IOException e)
+        {
+            active.remove(id);
+            throw e;
+        }
+    }
+
+    /**
+     * Saves what has been written so far and releases the session so it can be resumed later
+     */
+    public void suspend()
+    {
+        try
+        {
+            stream.checkpoint();
+            stream.writer.release();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: " + e.getMessage());
+        }
+        finally
+        {
+            active.remove(id);
+        }
+    }
+
+    /**
+     * Removes the session record and hands over the finished file, which the caller puts in the BlobStore.
+     * The stream returned by open() must already be closed
+     *
+     * @return The finished file
+     */
+    public File complete()
+    {
+        new File(UPLOAD_DIR, id + ".session").delete();
+        active.remove(id);
+        return getPartialFile();
+    }
+
+    /**
+     * Writes the session record, replacing the old one in a single step
+     *
+     * @throws IOException
+     */
+    private void save() throws IOException
+    {
+        File temp   = new File(UPLOAD_DIR, id + ".session.tmp");
+        File record = new File(UPLOAD_DIR, id + ".session");
+
+        try (FileOutputStream fos = new FileOutputStream(temp))
+        {
+            ObjectOutputStream out = new ObjectOutputStream(fos);
+            out.writeObject(this);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(temp.toPath(), record.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the file holding the data received so far
+     *
+     * @return The partial file
+     */
+    private File getPartialFile()
+    {
+        return new File(UPLOAD_DIR, id + ".part");
+    }
+
+    /**
+     * Returns the session ID
+     *
+     * @return The ID
+     */
+    public String getID()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the user uploading the file
+     *
+     * @return The owner
+     */
+    public String getOwner()
+    {
+        return owner;
+    }
+
+    /**
+     * Returns the group the file will belong to
+     *
+     * @return The group
+     */
+    public String getGroup()
+    {
+        return group;
+    }
+
+    /**
+     * Returns where the file goes once complete
+     *
+     * @return The path
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Returns the number of bytes of the file the server already has
+     *
+     * @return The offset
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * Stream over the BlockFile.Writer that records the blocks reaching the partial file in the session
+     * every CHECKPOINT_BYTES
+     */
+    private class PartialFileStream extends FilterOutputStream
+    {
+        private final BlockFile.Writer writer; // The partial file
+
+        /**
+         * Constructor which accepts the writer for the partial file
+         *
+         * @param writer The writer
+         */
+        PartialFileStream(BlockFile.Writer writer)
+        {
+            super(writer);
+            this.writer = writer;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException
+        {
+            writer.write(b, off, len);
+        }
+
+        /**
+         * Called before every ACK. Checkpoints once enough data has arrived since the last one
+         *
+         * @throws IOException
+         */
+        @Override public void flush() throws IOException
+        {
+            if (writer.getWritten() - offset >= CHECKPOINT_BYTES)
+                checkpoint();
+        }
+
+        /**
+         * Forces the blocks to disk and records them
+         *
+         * @throws IOException
+         */
+        void checkpoint() throws IOException
+        {
+            writer.sync();
+            blocks = writer.getBlocks();
+            offset = writer.getWritten();
+            save();
+        }
+    }
+}
@@ -2,28 +2,80 @@ package server;
 
 import com.sun.org.apache.xerces.internal.impl.dv.util.Base64;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.UncheckedIOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This list represents the users on the server
+ *
+ * A User is never changed once it is in the list, a change puts a new User in its place. So users and the lists
+ * of groups they hand out are read without any lock. A change locks only the user it changes, so changes to
+ * different users go ahead at the same time, and a snapshot only needs to copy the table of users with the
+ * whole list locked, after which the users are written out while other changes carry on.
+ *
+ * The users are kept in a Storage, in memory unless the list is opened on a B-tree file. Users kept in a B-tree
+ * are read back as new User objects, which is no different to callers since users are never changed.
+ * Serialized UserLists hold the users as a Hashtable named "list", as they did before Storage was added.
  */
 public class UserList implements java.io.Serializable
 {
     private static final long serialVersionUID = 7600343803563417992L;
-	private Hashtable<String, User> list = new Hashtable<>(); // The list of users
+    private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField("list", Hashtable.class) };
+	private transient Storage<User> list;                    // The list of users
+	private transient StripedLocks locks;                    // Held by a change to a user, or by whatever copies the list
+	private transient volatile WriteAheadLog log;            // Where changes are logged until the next snapshot
+	private transient AtomicLong changes;                    // Changes made since the list was created or loaded
+
+    /**
+     * Default constructor, creates an empty list kept in memory
+     */
+    public UserList()
+    {
+        list    = new MemoryStorage<>();
+        locks   = new StripedLocks();
+        changes = new AtomicLong();
+    }
+
+    /**
+     * Constructor which opens a list kept in a B-tree file, creating the file if it does not exist
+     *
+     * @param fileName The name of the file
+     * @param cachePages The most unchanged pages of it to keep in memory
+     *
+     * @throws IOException If the file cannot be opened or is damaged
+     */
+    public UserList(String fileName, int cachePages) throws IOException
+    {
+        list    = new BTreeStorage<>(fileName, cachePages, new UserCodec());
+        locks   = new StripedLocks();
+        changes = new AtomicLong();
+    }
 
     /**
      * Adds some user to UserList
      *
      * @param username The user
      */
-	public synchronized void addUser(String username, String password)
+	public void addUser(String username, String password)
 	{
-		User newUser = new User(password);
-		list.put(username, newUser);
+		long lsn;
+		try (StripedLocks.Held held = locks.lock(username))
+		{
+			User newUser = new User(password);
+			list.put(username, newUser);
+			lsn = logUser(username);
+		}
+		commit(lsn);
 	}
 
     /**
@@ -31,9 +83,15 @@ public class UserList implements java.io.Serializable
      *
      * @param username The user
      */
-	public synchronized void deleteUser(String username)
+	public void deleteUser(String username)
 	{
-		list.remove(username);
+		long lsn;
+		try (StripedLocks.Held held = locks.lock(username))
+		{
+			list.remove(username);
+			lsn = logUser(username);
+		}
+		commit(lsn);
 	}
 
     /**
@@ -43,7 +101,7 @@ public class UserList implements java.io.Serializable
      *
      * @return true is user exists, false otherwise
      */
-	public synchronized boolean checkUser(String username)
+	public boolean checkUser(String username)
 	{
         return list.containsKey(username);
 	}
@@ -53,9 +111,9 @@ public class UserList implements java.io.Serializable
      *
      * @param username The user
      *
-     * @return The list of groups for that user
+     * @return The list of groups for that user, which must not be changed
      */
-	public synchronized ArrayList<String> getUserGroups(String username)
+	public ArrayList<String> getUserGroups(String username)
 	{
 		return list.get(username).getGroups();
 	}
@@ -65,9 +123,9 @@ public class UserList implements java.io.Serializable
      *
      * @param username The user
      *
-     * @return The list of groups that user owns
+     * @return The list of groups that user owns, which must not be changed
      */
-	public synchronized ArrayList<String> getUserOwnership(String username)
+	public ArrayList<String> getUserOwnership(String username)
 	{
 		return list.get(username).getOwnership();
 	}
@@ -78,9 +136,15 @@ public class UserList implements java.io.Serializable
      * @param user The user
      * @param groupname The group
      */
-	public synchronized void addGroup(String user, String groupname)
+	public void addGroup(String user, String groupname)
 	{
-		list.get(user).addGroup(groupname);
+		long lsn;
+		try (StripedLocks.Held held = locks.lock(user))
+		{
+			list.put(user, list.get(user).withGroup(groupname));
+			lsn = logUser(user);
+		}
+		commit(lsn);
 	}
 
     /**
@@ -89,9 +153,15 @@ public class UserList implements java.io.Serializable
      * @param user The user
      * @param groupname The group
      */
-	public synchronized void removeGroup(String user, String groupname)
+	public void removeGroup(String user, String groupname)
 	{
-		list.get(user).removeGroup(groupname);
+		long lsn;
+		try (StripedLocks.Held held = locks.lock(user))
+		{
+			list.put(user, list.get(user).withoutGroup(groupname));
+			lsn = logUser(user);
+		}
+		commit(lsn);
 	}
 
     /**
@@ -100,9 +170,15 @@ public class UserList implements java.io.Serializable
      * @param user The user
      * @param groupname The group
      */
-	public synchronized void addOwnership(String user, String groupname)
+	public void addOwnership(String user, String groupname)
 	{
-		list.get(user).addOwnership(groupname);
+		long lsn;
+		try (StripedLocks.Held held = locks.lock(user))
+		{
+			list.put(user, list.get(user).withOwnership(groupname));
+			lsn = logUser(user);
+		}
+		commit(lsn);
 	}
 
     /**
@@ -110,26 +186,294 @@ public class UserList implements java.io.Serializable
      * @param user The user
      * @param groupname The group
      */
-	public synchronized void removeOwnership(String user, String groupname)
+	public void removeOwnership(String user, String groupname)
 	{
-		list.get(user).removeOwnership(groupname);
+		long lsn;
+		try (StripedLocks.Held held = locks.lock(user))
+		{
+			list.put(user, list.get(user).withoutOwnership(groupname));
+			lsn = logUser(user);
+		}
+		commit(lsn);
 	}
 
-    public synchronized boolean checkPassword(String user, String password)
+    public boolean checkPassword(String user, String password)
     {
         return list.get(user).checkPass(password);
     }
 
     /**
-     * Represents the users found in UserList
+     * Returns the number of users
+     *
+     * @return The number of users
+     */
+    public long size()
+    {
+        return list.size();
+    }
+
+    /**
+     * Adds every user of another list, replacing any with the same name. The users are not logged,
+     * this is for filling a new list, which must be saved before the log is relied on
+     *
+     * @param other The other list
+     */
+    public void addAll(UserList other)
+    {
+        Map<String, User> users;
+        try (StripedLocks.Held held = other.locks.lockAll())
+        {
+            users = other.list.copy();
+        }
+
+        try (StripedLocks.Held held = locks.lockAll())
+        {
+            for (Map.Entry<String, User> entry : users.entrySet())
+            {
+                User user = entry.getValue();
+                list.put(entry.getKey(), new User(user.groups, user.ownership, user.hash, user.salt));
+                changes.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns where the users are kept
+     *
+     * @return The storage
+     */
+    public Storage<?> getStorage()
+    {
+        return list;
+    }
+
+    /**
+     * Returns the number of changes made since the list was created or loaded, replayed ones included
+     *
+     * @return The number of changes
+     */
+    public long getChanges()
+    {
+        return changes.get();
+    }
+
+    /**
+     * Starts logging every change to some log, after the changes already in it have been applied
+     *
+     * @param log The log
+     */
+    public void setLog(WriteAheadLog log)
+    {
+        this.log = log;
+    }
+
+    /**
+     * Applies a change read back from the log
+     *
+     * @param record The logged change
+     *
+     * @return true if it was a change to UserList, false otherwise
+     */
+    @SuppressWarnings("unchecked")
+    public boolean apply(Envelope record)
+    {
+        ArrayList<Object> contents = record.getObjContents();
+        if (record.getMessage().equals("USER"))
+        {// USER [username, groups, ownership, hash, salt]
+            try (StripedLocks.Held held = locks.lock((String)contents.get(0)))
+            {
+                list.put((String)contents.get(0), new User((ArrayList<String>)contents.get(1), (ArrayList<String>)contents.get(2),
+                                                           (byte[])contents.get(3), (byte[])contents.get(4)));
+            }
+            changes.incrementAndGet();
+            return true;
+        }
+        else if (record.getMessage().equals("DUSER"))
+        {// DUSER [username]
+            try (StripedLocks.Held held = locks.lock((String)contents.get(0)))
+            {
+                list.remove((String)contents.get(0));
+            }
+            changes.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the users in the format SnapshotCodec reads back with decode(), as they were when it was called.
+     * UserList is only locked while its table is copied
+     *
+     * @param out The stream
+     *
+     * @throws IOException
+     */
+    public void encode(DataOutputStream out) throws IOException
+    {
+        Map<String, User> users;
+        try (StripedLocks.Held held = locks.lockAll())
+        {// Users are replaced rather than changed, so copying the table is enough for a consistent view
+            users = list.copy();
+        }
+
+        UserCodec codec = new UserCodec();
+        SnapshotCodec.writeCount(out, users.size());
+        for (Map.Entry<String, User> entry : users.entrySet())
+        {
+            SnapshotCodec.writeString(out, entry.getKey());
+            codec.write(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads the users written by encode()
+     *
+     * @param in The stream
+     * @param version The version of the layout, 1 is the only one so far
+     *
+     * @return The UserList
+     *
+     * @throws IOException
+     */
+    public static UserList decode(DataInputStream in, int version) throws IOException
+    {
+        UserList  userList = new UserList();
+        UserCodec codec    = userList.new UserCodec();
+        int       size     = SnapshotCodec.readCount(in);
+        for (int i = 0; i < size; i++)
+        {
+            String username = SnapshotCodec.readString(in);
+            userList.list.put(username, codec.read(in));
+        }
+        return userList;
+    }
+
+    /**
+     * Writes the users as the Hashtable older versions stored
+     *
+     * @param out The stream
+     *
+     * @throws IOException
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        ObjectOutputStream.PutField fields = out.putFields();
+        try (StripedLocks.Held held = locks.lockAll())
+        {
+            fields.put("list", new Hashtable<>(list.copy()));
+        }
+        out.writeFields();
+    }
+
+    /**
+     * Reads the Hashtable written by writeObject() or by older versions
+     *
+     * @param in The stream
+     *
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields();
+        Hashtable<String, User>    users  = (Hashtable<String, User>)fields.get("list", null);
+        list    = new MemoryStorage<>(users == null ? new Hashtable<String, User>() : users);
+        locks   = new StripedLocks();
+        changes = new AtomicLong();
+    }
+
+    /**
+     * Counts a change and logs the current state of some user, called with the user locked right after changing it
+     *
+     * @param username The user
+     *
+     * @return The sequence number of the record to commit, 0 if there is no log
+     */
+    private long logUser(String username)
+    {
+        changes.incrementAndGet();
+        if (log == null)
+            return 0;
+
+        User     user = list.get(username);
+        Envelope record;
+        if (user == null)
+        {
+            record = new Envelope("DUSER");
+            record.addObject(username);
+        }
+        else
+        {
+            record = new Envelope("USER");
+            record.addObject(username);
+            record.addObject(user.groups);
+            record.addObject(user.ownership);
+            record.addObject(user.hash);
+            record.addObject(user.salt);
+        }
+
+        try
+        {
+            return log.append(record);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits for a logged change to be on disk, called once the user is unlocked so other changes can share the write
+     *
+     * @param lsn The sequence number of the record
+     */
+    private void commit(long lsn)
+    {
+        try
+        {
+            if (log != null && lsn > 0)
+                log.await(lsn);
+        }
+        catch (IOException e)
+        {// The change was made but cannot be kept, the request must not be acknowledged
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes users to bytes and back, for snapshots and for the B-tree
+     */
+    private class UserCodec implements Storage.Codec<User>
+    {
+        @Override public void write(DataOutputStream out, User user) throws IOException
+        {
+            SnapshotCodec.writeStrings(out, user.groups);
+            SnapshotCodec.writeStrings(out, user.ownership);
+            SnapshotCodec.writeBytes(out, user.hash);
+            SnapshotCodec.writeBytes(out, user.salt);
+        }
+
+        @Override public User read(DataInputStream in) throws IOException
+        {
+            ArrayList<String> groups    = SnapshotCodec.readStrings(in);
+            ArrayList<String> ownership = SnapshotCodec.readStrings(in);
+            byte[]            hash      = SnapshotCodec.readBytes(in);
+            byte[]            salt      = SnapshotCodec.readBytes(in);
+            return new User(groups, ownership, hash, salt);
+        }
+    }
+
+    /**
+     * Represents the users found in UserList, a change returns a new User and leaves this one as it was
      */
 	class User implements java.io.Serializable
     {
 		private static final long serialVersionUID = -6699986336399821598L;
-		private ArrayList<String> groups;    // The groups to which this user belongs
-		private ArrayList<String> ownership; // The groups to which this user owns
+		private final ArrayList<String> groups;    // The groups to which this user belongs
+		private final ArrayList<String> ownership; // The groups to which this user owns
         private byte[] hash;
-        private byte[] salt;
+        private final byte[] salt;
 
         /**
          * Default constructor
@@ -156,6 +500,22 @@ public class UserList implements java.io.Serializable
             }
         }
 
+        /**
+         * Constructor which restores a user from the log
+         *
+         * @param groups The groups
+         * @param ownership The groups owned
+         * @param hash The password hash
+         * @param salt The salt
+         */
+        private User(ArrayList<String> groups, ArrayList<String> ownership, byte[] hash, byte[] salt)
+        {
+            this.groups    = groups;
+            this.ownership = ownership;
+            this.hash      = hash;
+            this.salt      = salt;
+        }
+
         /**
          * Returns the groups to which this user belongs
          *
@@ -202,47 +562,59 @@ public class UserList implements java.io.Serializable
         }
 
         /**
-         * Adds a group to this user's list of groups
+         * Returns this user with a group added to its list of groups
          *
          * @param group The group
+         *
+         * @return The new user
          */
-		public void addGroup(String group)
+		public User withGroup(String group)
 		{
+			ArrayList<String> groups = new ArrayList<>(this.groups);
 			groups.add(group);
+			return new User(groups, ownership, hash, salt);
 		}
 
         /**
-         * Removes a group from this user's list of groups
+         * Returns this user with a group removed from its list of groups
          *
          * @param group The group
+         *
+         * @return The new user
          */
-		public void removeGroup(String group)
+		public User withoutGroup(String group)
 		{
-			if (!groups.isEmpty())
-				if (groups.contains(group))
-					groups.remove(groups.indexOf(group));
+			ArrayList<String> groups = new ArrayList<>(this.groups);
+			groups.remove(group);
+			return new User(groups, ownership, hash, salt);
 		}
 
         /**
-         * Adds ownership of a group to this user's list
+         * Returns this user with ownership of a group added to its list
          *
          * @param group The group
+         *
+         * @return The new user
          */
-		public void addOwnership(String group)
+		public User withOwnership(String group)
 		{
+			ArrayList<String> ownership = new ArrayList<>(this.ownership);
 			ownership.add(group);
+			return new User(groups, ownership, hash, salt);
 		}
 
         /**
-         * Removes ownership of a group from this user's list
+         * Returns this user with ownership of a group removed from its list
          *
          * @param group The group
+         *
+         * @return The new user
          */
-		public void removeOwnership(String group)
+		public User withoutOwnership(String group)
 		{
-			if (!ownership.isEmpty())
-				if (ownership.contains(group))
-				    ownership.remove(ownership.indexOf(group));
+			ArrayList<String> ownership = new ArrayList<>(this.ownership);
+			ownership.remove(group);
+			return new User(groups, ownership, hash, salt);
 		}
 	}
 }	
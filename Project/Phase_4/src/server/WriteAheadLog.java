@@ -0,0 +1,337 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to a server's lists since they were last saved.
+ *
+ * A change is appended while the list it changes is locked, so records are in the order the changes were made,
+ * and is only acknowledged once await() has seen its record forced to disk. Appends are buffered, and whichever
+ * waiting thread finds no write in progress writes and forces everything buffered so far, so the changes that
+ * arrive during one fsync share the next one (group commit).
+ *
+ * The log is kept in numbered segments, NAME.0, NAME.1, ... A snapshot starts a new segment with roll(), saves
+ * the lists and then deletes the segments before it with truncate(). Records hold the new value of what changed
+ * rather than the operation, so replaying a record the snapshot already includes changes nothing.
+ *
+ * Each record is stored as its length, its CRC32 and its serialized bytes. A record cut short by a crash fails
+ * its checksum and is cut off, with anything after it, when the log is recovered.
+ */
+public class WriteAheadLog implements Closeable
+{
+    private final String          name;                                  // Prefix of the segment files
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(); // Records not written yet
+    private FileChannel           channel;                               // The segment being appended to
+    private long                  segment;                               // Number of that segment
+    private long                  appended;                              // Records appended, pending included
+    private long                  durable;                               // Records forced to disk
+    private long                  rolled;                                // Records appended before the last roll()
+    private boolean               writing;                               // Whether a thread is writing records
+    private IOException           failure;                               // Why writing failed, nothing is written after that
+
+    /**
+     * Constructor which finds the segments already on disk and starts a new one after them
+     *
+     * @param name The prefix of the segment files
+     *
+     * @throws IOException If the new segment cannot be created
+     */
+    public WriteAheadLog(String name) throws IOException
+    {
+        this.name = name;
+
+        TreeMap<Long, File> segments = getSegments();
+        segment = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        channel = open(segment);
+    }
+
+    /**
+     * Reads the records the segments left by the last run hold, to be applied on top of the last snapshot
+     *
+     * @return The records in the order they were appended
+     *
+     * @throws IOException If a segment cannot be read
+     */
+    public List<Object> recover() throws IOException
+    {
+        List<Object> records = new ArrayList<>();
+        for (File file : getSegments().headMap(segment, false).values())
+        {
+            long good = 0; // Length of the segment up to its last whole record
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+            {
+                while (true)
+                {
+                    byte[] bytes;
+                    long   crc;
+                    try
+                    {
+                        int length = in.readInt();
+                        crc        = in.readInt() & 0xffffffffL;
+                        if (length < 0 || length > file.length() - good - 8)
+                            break;
+                        bytes = new byte[length];
+                        in.readFully(bytes);
+                    }
+                    catch (EOFException e)
+                    {// Cut short by a crash
+                        break;
+                    }
+
+                    CRC32 check = new CRC32();
+                    check.update(bytes);
+                    if (check.getValue() != crc)
+                        break;
+
+                    try (ObjectInputStream record = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+                    {
+                        records.add(record.readObject());
+                    }
+                    catch (ClassNotFoundException e)
+                    {
+                        throw new IOException("Unknown record in " + file, e);
+                    }
+                    good += 8 + bytes.length;
+                }
+            }
+
+            if (good < file.length())
+            {
+                System.out.printf("Discarding %d bytes of incomplete records at the end of %s\n", file.length() - good, file);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+                {
+                    raf.setLength(good);
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Appends a record, to be written by the next call to await()
+     *
+     * @param record The record
+     *
+     * @return The record's sequence number, to pass to await()
+     *
+     * @throws IOException If the record cannot be serialized
+     */
+    public synchronized long append(Serializable record) throws IOException
+    {
+        checkFailure();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(record);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(bytes.size());
+        out.writeInt((int)crc.getValue());
+        bytes.writeTo(out);
+        return ++appended;
+    }
+
+    /**
+     * Waits until a record and all before it are on disk, writing them if no other thread is
+     *
+     * @param lsn The record's sequence number
+     *
+     * @throws IOException If the records cannot be written
+     */
+    public void await(long lsn) throws IOException
+    {
+        while (true)
+        {
+            ByteArrayOutputStream batch;
+            long                  upTo;
+            FileChannel           out;
+            synchronized (this)
+            {
+                while (writing && durable < lsn)
+                    waitForWriter();
+                if (durable >= lsn)
+                    return;
+                checkFailure();
+
+                // Take everything appended so far, other threads append to a new buffer meanwhile
+                writing = true;
+                batch   = pending;
+                pending = new ByteArrayOutputStream();
+                upTo    = appended;
+                out     = channel;
+            }
+
+            IOException error = null;
+            try
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining())
+                    out.write(buffer);
+                out.force(false);
+            }
+            catch (IOException e)
+            {// A segment may now end in part of a record, so appending after it would hide what follows
+                error = e;
+            }
+
+            synchronized (this)
+            {
+                writing = false;
+                if (error == null)
+                    durable = upTo;
+                else
+                    failure = error;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment, so the ones before it can be deleted once a snapshot holds their changes.
+     * The snapshot must be taken after this returns
+     *
+     * @return The number of the last segment the snapshot makes unnecessary
+     *
+     * @throws IOException If the new segment cannot be created
+     */
+    public synchronized long roll() throws IOException
+    {
+        while (writing)
+            waitForWriter();
+
+        // Records still pending go to the new segment, which is kept
+        FileChannel old = channel;
+        channel = open(segment + 1);
+        old.close();
+
+        rolled = appended;
+        return segment++;
+    }
+
+    /**
+     * Deletes the segments up to and including one, after a snapshot holding their changes was saved
+     *
+     * @param last The number returned by roll()
+     */
+    public synchronized void truncate(long last)
+    {
+        for (File file : getSegments().headMap(Math.min(last, segment - 1), true).values())
+            file.delete();
+    }
+
+    /**
+     * Returns the number of records appended since the last roll(), which a new snapshot would make unnecessary
+     *
+     * @return The number of records
+     */
+    public synchronized long size()
+    {
+        return appended - rolled;
+    }
+
+    /**
+     * Writes any pending records and closes the current segment
+     *
+     * @throws IOException If the records cannot be written
+     */
+    @Override public void close() throws IOException
+    {
+        long last;
+        synchronized (this)
+        {
+            last = appended;
+        }
+        await(last);
+
+        synchronized (this)
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Opens a segment for appending
+     *
+     * @param n The segment number
+     *
+     * @return The channel
+     *
+     * @throws IOException
+     */
+    private FileChannel open(long n) throws IOException
+    {
+        return FileChannel.open(getSegmentFile(n).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Finds the segments on disk
+     *
+     * @return The segment files by number
+     */
+    private TreeMap<Long, File> getSegments()
+    {
+        TreeMap<Long, File> segments = new TreeMap<>();
+        File   dir    = new File(name).getAbsoluteFile().getParentFile();
+        String prefix = new File(name).getName() + ".";
+        File[] files  = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (file.getName().startsWith(prefix) && file.getName().substring(prefix.length()).matches("\\d+"))
+                    segments.put(Long.parseLong(file.getName().substring(prefix.length())), file);
+        return segments;
+    }
+
+    /**
+     * Returns the file holding a segment
+     *
+     * @param n The segment number
+     *
+     * @return The file
+     */
+    private File getSegmentFile(long n)
+    {
+        return new File(name + "." + n);
+    }
+
+    /**
+     * Throws if writing the log failed before
+     *
+     * @throws IOException If it did
+     */
+    private void checkFailure() throws IOException
+    {
+        if (failure != null)
+            throw new IOException("Writing " + name + " failed: " + failure.getMessage(), failure);
+    }
+
+    /**
+     * Waits for the thread writing records to finish
+     *
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    private void waitForWriter() throws InterruptedIOException
+    {
+        try
+        {
+            wait();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the log to be written");
+        }
+    }
+}
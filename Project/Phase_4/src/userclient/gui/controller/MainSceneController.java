@@ -1,14 +1,19 @@
 package userclient.gui.controller;
 
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.ListView;
 import javafx.scene.control.TreeItem;
 import javafx.scene.control.TreeView;
 import javafx.scene.input.*;
+import server.FileChange;
+import server.FileChangeListener;
 import userclient.gui.model.FilePathTreeItem;
 
 import javax.crypto.SecretKey;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Controller for MainScene
@@ -25,6 +30,9 @@ public class MainSceneController
     // FilePathTreeItem to help with generating TreeViews
     private FilePathTreeItem pathItem = new FilePathTreeItem();
 
+    // FileList version serverFileTreeView is up to date with
+    private long treeVersion = -1;
+
     /**
      * Sets the reference to Main
      * First thing called when scene is shown
@@ -42,14 +50,83 @@ public class MainSceneController
         // Set localFileTreeView and serverFileTreeView
         updateLocalTree();
         updateServerTree();
+
+        // Have the server push changes other users make, so serverFileTreeView does not need refreshing
+        mainApp.fileClient.subscribe(mainApp.getUserToken(), treeVersion, new FileChangeListener()
+        {
+            @Override public void filesChanged(long version, List<FileChange> changes)
+            {
+                Platform.runLater(() -> applyServerChanges(version, changes));
+            }
+
+            @Override public void subscriptionClosed()
+            {// The tree is still updated after this user's own uploads and deletes
+                System.out.println("No longer receiving file changes from the server");
+            }
+        });
     }
 
     /**
      * Updates the serverFileTreeView
+     * Only what changed since the last update is fetched, unless the server no longer has those changes
      */
     private void updateServerTree()
     {
-        TreeItem<String> serverRootNode = pathItem.buildServerTreeRoot(mainApp.fileClient.listFiles(mainApp.getUserToken()));
+        TreeItem<String> root = serverFileTreeView.getRoot();
+        if (root != null && root.getChildren().size() == mainApp.getGroupList().size())
+        {// Same groups as when the tree was built
+            List<FileChange> changes = mainApp.fileClient.listChanges(mainApp.getUserToken(), treeVersion);
+            if (changes != null && pathItem.applyChanges(root, changes))
+            {
+                treeVersion = mainApp.fileClient.getListVersion();
+                return;
+            }
+        }
+
+        rebuildServerTree();
+    }
+
+    /**
+     * Applies changes pushed by the server to the serverFileTreeView
+     *
+     * @param version The version the changes bring the tree up to
+     * @param changes The changes, null if the tree has to be rebuilt
+     */
+    private void applyServerChanges(long version, List<FileChange> changes)
+    {
+        if (version <= treeVersion)
+            return; // updateServerTree() got there first
+
+        TreeItem<String> root = serverFileTreeView.getRoot();
+        if (changes != null && root != null)
+        {
+            // Skip what updateServerTree() has already applied
+            List<FileChange> fresh = new ArrayList<>();
+            for (FileChange change : changes)
+                if (change.getVersion() > treeVersion)
+                    fresh.add(change);
+
+            if (pathItem.applyChanges(root, fresh))
+            {
+                treeVersion = version;
+                return;
+            }
+        }
+
+        rebuildServerTree();
+    }
+
+    /**
+     * Builds the serverFileTreeView again from scratch
+     */
+    private void rebuildServerTree()
+    {
+        // Start from the current version
+        mainApp.fileClient.listChanges(mainApp.getUserToken(), -1);
+        treeVersion = mainApp.fileClient.getListVersion();
+
+        TreeItem<String> serverRootNode = pathItem.buildServerTreeRoot(mainApp.fileClient, mainApp.getUserToken(),
+                                                                       mainApp.getGroupList());
         serverRootNode.setExpanded(true);
         serverFileTreeView.setRoot(serverRootNode);
     }
@@ -1,8 +1,12 @@
 package userclient.gui.model;
 
 import javafx.scene.control.TreeItem;
+import server.FileChange;
+import server.FileClient;
+import server.FilePage;
 
 import java.io.File;
+import java.security.SignedObject;
 import java.util.*;
 
 /**
@@ -10,6 +14,8 @@ import java.util.*;
  */
 public class FilePathTreeItem extends TreeItem<String>
 {
+    private static final int PAGE_SIZE = 200; // Files fetched at a time for a group node
+
     /**
      * Builds the root node for localFileTreeView
      *
@@ -38,63 +44,170 @@ public class FilePathTreeItem extends TreeItem<String>
     }
 
     /**
-     * Builds the root node for serverFileTreeView
+     * Builds the root node for serverFileTreeView.
+     * Each group's files are only fetched when its node is expanded, PAGE_SIZE at a time
      *
-     * @param fileList The list of files on the file server
+     * @param fileClient The connection to the file server
+     * @param token The token of the user
+     * @param groups The groups the user belongs to
      *
      * @return The root node
      */
-    public TreeItem<String> buildServerTreeRoot(List<String> fileList)
+    public TreeItem<String> buildServerTreeRoot(FileClient fileClient, SignedObject token, List<String> groups)
     {
-        // Create node and sort fileList
-        TreeItem<String> rootNode = new TreeItem<>("shared_files");
-        Collections.sort(fileList);
-
-        if (!fileList.isEmpty())
-        {// Fix for Windows path names
-            if (fileList.get(0).contains("\\"))
-                fileList = fixPathSlashes(fileList);
-
-            // Get the first group directory name and set group node
-            String groupName  = fileList.get(0).split("/")[1];
-            TreeItem<String> groupNode = new TreeItem<>(groupName);
-
-            for (String file : fileList)
-            {// Iterate over fileList from file server
-                // File is in current group
-                if (file.split("/")[1].equals(groupName))
-                    groupNode.getChildren().add(new TreeItem<>(file.split("/")[2]));
-                else
-                {// File is in next group
-                    rootNode.getChildren().add(groupNode); // Add the current group node
-                    groupName = file.split("/")[1];        // Get new groupName
-                    groupNode = new TreeItem<>(groupName); // Create new groupNode
-                    // Add file to groupNode
-                    groupNode.getChildren().add(new TreeItem<>(file.split("/")[2]));
-                }
-            }
-            // Add final groupNode
-            rootNode.getChildren().add(groupNode);
+        // Create node and sort the groups
+        TreeItem<String> rootNode  = new TreeItem<>("shared_files");
+        List<String>     groupList = new ArrayList<>(groups);
+        Collections.sort(groupList);
 
-            return rootNode;
-        }
-        else // Empty directory
-            return rootNode;
+        for (String groupName : groupList)
+            rootNode.getChildren().add(new GroupTreeItem(groupName, fileClient, token));
+
+        return rootNode;
     }
 
     /**
-     * Replaces the '\' char with '/'
+     * Applies changes from FileClient.listChanges() to a root node built by buildServerTreeRoot().
+     * Only groups that have been expanded hold files, the others will fetch the changed listing when they are
      *
-     * @param fileList The list of files on the file server
+     * @param rootNode The root node
+     * @param changes The changes, in order
      *
-     * @return The fixed list of files
+     * @return true if every change was applied, false if a change is for a group not in the tree and it needs rebuilding
      */
-    private List<String> fixPathSlashes(List<String> fileList)
+    public boolean applyChanges(TreeItem<String> rootNode, List<FileChange> changes)
     {
-        List<String> list = new ArrayList<>();
+        Map<String, GroupTreeItem> groupItems = new HashMap<>();
+        for (TreeItem<String> child : rootNode.getChildren())
+            if (child instanceof GroupTreeItem)
+                groupItems.put(child.getValue(), (GroupTreeItem)child);
+
+        for (FileChange change : changes)
+        {
+            GroupTreeItem groupItem = groupItems.get(change.getGroup());
+            if (groupItem == null)
+                return false;
+
+            if (change.getType() == FileChange.Type.ADDED)
+                groupItem.addFile(change.getPath());
+            else
+                groupItem.removeFile(change.getPath());
+        }
+
+        return true;
+    }
+
+    /**
+     * Node for a group in serverFileTreeView that fetches its files a page at a time,
+     * first when it is expanded and then whenever the "More..." node under it is expanded
+     */
+    private static class GroupTreeItem extends TreeItem<String>
+    {
+        private final FileClient       fileClient; // The connection to the file server
+        private final SignedObject     token;      // The token of the user
+        private final String           prefix;     // Path of the group's directory on the server
+        private final TreeItem<String> more = new TreeItem<>("More..."); // Last child while there are more pages
+        private       String           cursor;     // Where the next page starts
+        private       boolean          loaded;     // Whether the first page has been fetched
+
+        /**
+         * Constructor which accepts the group and what is needed to list its files
+         *
+         * @param groupName The group
+         * @param fileClient The connection to the file server
+         * @param token The token of the user
+         */
+        GroupTreeItem(String groupName, FileClient fileClient, SignedObject token)
+        {
+            super(groupName);
+            this.fileClient = fileClient;
+            this.token      = token;
+            this.prefix     = "shared_files/" + groupName + "/";
+
+            expandedProperty().addListener((observable, wasExpanded, isExpanded) ->
+            {
+                if (isExpanded && !loaded)
+                    loadPage();
+            });
 
-        for (String file : fileList)
-            list.add(file.replace("\\", "/"));
-        return list;
+            // Give "More..." a placeholder child so it can be expanded
+            more.getChildren().add(new TreeItem<>());
+            more.expandedProperty().addListener((observable, wasExpanded, isExpanded) ->
+            {
+                if (isExpanded)
+                {
+                    more.setExpanded(false);
+                    loadPage();
+                }
+            });
+        }
+
+        /**
+         * Shows the expand arrow until the group turns out to be empty
+         *
+         * @return true if the group has been fetched and has no files, false otherwise
+         */
+        @Override public boolean isLeaf()
+        {
+            return loaded && getChildren().isEmpty();
+        }
+
+        /**
+         * Fetches the next page of files and adds them below this node
+         */
+        private void loadPage()
+        {
+            FilePage page = fileClient.listFiles(token, prefix, PAGE_SIZE, cursor);
+            loaded = true;
+            getChildren().remove(more);
+
+            if (page == null)
+                return;
+
+            for (String file : page.getFiles())
+                getChildren().add(new TreeItem<>(file.substring(prefix.length())));
+
+            cursor = page.getCursor();
+            if (page.hasMore())
+                getChildren().add(more);
+        }
+
+        /**
+         * Adds a file that was uploaded since the group was fetched, keeping the files in order
+         *
+         * @param path The path to the file on the server
+         */
+        void addFile(String path)
+        {
+            // Files past the cursor turn up when the next page is fetched
+            if (!loaded || !path.startsWith(prefix) || (cursor != null && path.compareTo(cursor) > 0))
+                return;
+
+            String name = path.substring(prefix.length());
+            int    i    = 0;
+            for (TreeItem<String> child : getChildren())
+            {
+                if (child == more || child.getValue().compareTo(name) > 0)
+                    break;
+                if (child.getValue().equals(name))
+                    return;
+                i++;
+            }
+            getChildren().add(i, new TreeItem<>(name));
+        }
+
+        /**
+         * Removes a file that was deleted since the group was fetched
+         *
+         * @param path The path to the file on the server
+         */
+        void removeFile(String path)
+        {
+            if (!loaded || !path.startsWith(prefix))
+                return;
+
+            String name = path.substring(prefix.length());
+            getChildren().removeIf(child -> child != more && name.equals(child.getValue()));
+        }
     }
 }